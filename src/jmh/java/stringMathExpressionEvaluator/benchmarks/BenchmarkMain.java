@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled so that the allocation rate, in bytes per 
+ * operation, is reported alongside the time per operation. Accepts the same command line options
+ * as the standard JMH runner, for example a regular expression selecting the benchmarks to run.
+ */
+public class BenchmarkMain {
+    
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
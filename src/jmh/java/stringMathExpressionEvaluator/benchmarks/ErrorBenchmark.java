@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stringMathExpressionEvaluator.EvaluationResult;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+/**
+ * Measures the throughput of expressions that fail, either while parsing or while evaluating
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ErrorBenchmark {
+    
+    @Param({"2*(3+7", "(6 - sqt(4))", "1 = 2", "3 $ 4", "fact(-1)", "comb(2, 3)"})
+    public String expression;
+    
+    private StringMathExpressionEvaluator evaluator;
+    private final EvaluationResult result = new EvaluationResult();
+    
+    @Setup
+    public void setup() {
+        evaluator = new StringMathExpressionEvaluator();
+    }
+    
+    @Benchmark
+    public Object evaluate() {
+        try {
+            return evaluator.evaluate(expression);
+        }
+        catch (InvalidMathExpressionException ex) {
+            return ex;
+        }
+    }
+    
+    /**
+     * Includes building the message, as most callers log it
+     */
+    @Benchmark
+    public Object evaluateAndGetMessage() {
+        try {
+            return evaluator.evaluate(expression);
+        }
+        catch (InvalidMathExpressionException ex) {
+            return ex.getMessage();
+        }
+    }
+    
+    @Benchmark
+    public boolean tryEvaluate() {
+        return evaluator.tryEvaluate(expression, result);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+/**
+ * Measures parsing and evaluation of short, long and deeply nested expressions through each of 
+ * the ways an expression can be evaluated
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluationBenchmark {
+    
+    @Param({"short", "long", "nested"})
+    public String kind;
+    
+    private String expression;
+    private StringMathExpressionEvaluator uncached;
+    private StringMathExpressionEvaluator cached;
+    private CompiledExpression interpreted;
+    private CompiledExpression bytecode;
+    private CompiledExpression unoptimized;
+    
+    @Setup
+    public void setup() throws InvalidMathExpressionException {
+        expression = Expressions.of(kind);
+        uncached = new StringMathExpressionEvaluator(0);
+        cached = new StringMathExpressionEvaluator();
+        interpreted = cached.compile(expression);
+        StringMathExpressionEvaluator evaluator = new StringMathExpressionEvaluator();
+        evaluator.setEngine(StringMathExpressionEvaluator.Engine.BYTECODE);
+        bytecode = evaluator.compile(expression);
+        evaluator = new StringMathExpressionEvaluator();
+        evaluator.setOptimizing(false);
+        unoptimized = evaluator.compile(expression);
+    }
+    
+    /**
+     * Parses and evaluates the string on every call
+     */
+    @Benchmark
+    public double parseAndEvaluate() throws InvalidMathExpressionException {
+        return uncached.evaluate(expression);
+    }
+    
+    /**
+     * Parses and optimizes the string on every call
+     */
+    @Benchmark
+    public CompiledExpression compile() throws InvalidMathExpressionException {
+        return uncached.compile(expression);
+    }
+    
+    /**
+     * Evaluates the string with the parsed expression found in the cache
+     */
+    @Benchmark
+    public double evaluateCached() throws InvalidMathExpressionException {
+        return cached.evaluate(expression);
+    }
+    
+    @Benchmark
+    public double evaluateCompiled() throws InvalidMathExpressionException {
+        return interpreted.evaluate();
+    }
+    
+    @Benchmark
+    public double evaluateCompiledUnoptimized() throws InvalidMathExpressionException {
+        return unoptimized.evaluate();
+    }
+    
+    @Benchmark
+    public double evaluateBytecode() throws InvalidMathExpressionException {
+        return bytecode.evaluate();
+    }
+}
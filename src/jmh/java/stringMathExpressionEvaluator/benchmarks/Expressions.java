@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+/**
+ * Generates the expressions used by the benchmarks
+ */
+final class Expressions {
+    
+    private Expressions() {
+        //Not instantiable
+    }
+    
+    /**
+     * Gets an expression of the given kind
+     * @param kind - short, long or nested
+     * @return the expression
+     */
+    static String of(String kind) {
+        switch (kind) {
+            case "short":
+                return "2*(3+4)";
+            case "long": {
+                //A long flat expression exercising the operators and a few common functions
+                StringBuilder sb = new StringBuilder();
+                for (int i=0; i<50; i++) {
+                    if (i > 0) {
+                        sb.append(i % 2 == 0 ? " + " : " - ");
+                    }
+                    sb.append(i + 1).append(".25*sqrt(").append(i).append(" + 1)/(")
+                        .append(i + 2).append(" % 7 + 1)^2");
+                }
+                return sb.toString();
+            }
+            case "nested": {
+                //Deeply nested parentheses
+                StringBuilder sb = new StringBuilder();
+                for (int i=0; i<100; i++) {
+                    sb.append("(1+");
+                }
+                sb.append("1");
+                for (int i=0; i<100; i++) {
+                    sb.append(")*1.0001");
+                }
+                return sb.toString();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown kind: " + kind);
+        }
+    }
+    
+    /**
+     * Gets an expression that calls the given built-in function
+     * @param function - the name of the function, with a suffix giving the number of arguments 
+     * when the function takes more than one
+     * @return the expression
+     */
+    static String calling(String function) {
+        switch (function) {
+            case "pi":
+            case "e":
+                return function + "()";
+            case "acosh":
+                return "acosh(1.5)";
+            case "asin":
+            case "acos":
+            case "atanh":
+                return function + "(0.5)";
+            case "fact":
+                return "fact(10)";
+            case "atan2":
+            case "hypot":
+            case "max":
+            case "min":
+            case "pow":
+            case "and":
+            case "or":
+            case "xor":
+                return function + "(0.75, 2)";
+            case "atan_2":
+                return "atan(0.75, 2)";
+            case "log_2":
+                return "log(2, 8)";
+            case "comb":
+            case "perm":
+                return function + "(10, 4)";
+            case "if":
+                return "if(0.75 > 0.5, 1.25, 2.5)";
+            default:
+                return function + "(0.75)";
+        }
+    }
+}
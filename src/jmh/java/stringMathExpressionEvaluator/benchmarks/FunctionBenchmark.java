@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+/**
+ * Measures each built-in function in both angle modes. The argument is a variable so the call is
+ * not removed by constant folding when the compiled expression is evaluated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FunctionBenchmark {
+    
+    @Param({"pi", "e", "abs", "ceil", "floor", "round", "signum", "sqrt", "cbrt", "sin", "cos", 
+        "tan", "asin", "acos", "atan", "sinh", "cosh", "tanh", "asinh", "acosh", "atanh", "exp", 
+        "log", "log2", "log10", "toRadians", "toDegrees", "not", "fact", "atan_2", "atan2", "hypot",
+        "log_2", "max", "min", "pow", "and", "or", "xor", "comb", "perm", "if"})
+    public String function;
+    
+    @Param({"radians", "degrees"})
+    public String angleMode;
+    
+    private String expression;
+    private StringMathExpressionEvaluator uncached;
+    private CompiledExpression compiled;
+    private double[] values;
+    
+    @Setup
+    public void setup() throws InvalidMathExpressionException {
+        expression = Expressions.calling(function);
+        uncached = new StringMathExpressionEvaluator(0);
+        StringMathExpressionEvaluator evaluator = new StringMathExpressionEvaluator();
+        if (angleMode.equals("degrees")) {
+            uncached.setDegreeMode();
+            evaluator.setDegreeMode();
+        }
+        //Replace the first argument by a variable
+        String withVariable = expression.replaceFirst("\\((\\d+(\\.\\d+)?)", "(x");
+        String firstArgument = expression.replaceFirst("^[^(]*\\((\\d+(\\.\\d+)?).*$", "$1");
+        compiled = evaluator.compile(withVariable, "x");
+        values = new double[] {withVariable.equals(expression) ? 0 : Double.parseDouble(firstArgument)};
+    }
+    
+    /**
+     * Parses and evaluates the function call on every call
+     */
+    @Benchmark
+    public double parseAndEvaluate() throws InvalidMathExpressionException {
+        return uncached.evaluate(expression);
+    }
+    
+    @Benchmark
+    public double evaluateCompiled() throws InvalidMathExpressionException {
+        return compiled.evaluate(values);
+    }
+}
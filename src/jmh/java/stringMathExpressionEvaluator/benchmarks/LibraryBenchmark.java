@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+/**
+ * Compares loading a library of compiled expressions with compiling the same expressions from 
+ * their strings
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LibraryBenchmark {
+    private static final String[] VARIABLES = {"x", "y", "z"};
+    
+    @Param({"INTERPRETER", "BYTECODE"})
+    public StringMathExpressionEvaluator.Engine engine;
+    
+    private StringMathExpressionEvaluator evaluator;
+    private final String[] expressions = new String[10000];
+    private byte[] library;
+    
+    @Setup
+    public void setup() throws InvalidMathExpressionException, IOException {
+        evaluator = new StringMathExpressionEvaluator();
+        evaluator.setEngine(engine);
+        Random random = new Random(1);
+        CompiledExpression[] compiled = new CompiledExpression[expressions.length];
+        for (int i=0; i<expressions.length; i++) {
+            expressions[i] = "sqrt(x^2 + y^2) * " + random.nextInt(100) + " + if(z > " + 
+                    random.nextInt(10) + ", sin(x*y), log(y + " + i + "))";
+            compiled[i] = evaluator.compile(expressions[i], VARIABLES);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringMathExpressionEvaluator.writeLibrary(out, compiled);
+        library = out.toByteArray();
+    }
+    
+    @Benchmark
+    public CompiledExpression[] compile() throws InvalidMathExpressionException {
+        CompiledExpression[] compiled = new CompiledExpression[expressions.length];
+        for (int i=0; i<expressions.length; i++) {
+            compiled[i] = evaluator.compile(expressions[i], VARIABLES);
+        }
+        return compiled;
+    }
+    
+    @Benchmark
+    public CompiledExpression[] load() throws InvalidMathExpressionException, IOException {
+        return evaluator.readLibrary(ByteBuffer.wrap(library));
+    }
+}
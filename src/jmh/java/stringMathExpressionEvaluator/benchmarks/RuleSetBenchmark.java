@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.RuleSet;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+/**
+ * Compares checking a set of threshold rules with a RuleSet against evaluating each rule's 
+ * compiled expression in turn
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleSetBenchmark {
+    private static final String[] VARIABLES = {"temperature", "pressure", "flow"};
+    
+    @Param({"100", "10000"})
+    public int ruleCount;
+    
+    private RuleSet ruleSet;
+    private CompiledExpression[] compiled;
+    private final double[][] events = new double[1024][];
+    private int[] matches;
+    private int next;
+    
+    @Setup
+    public void setup() throws InvalidMathExpressionException {
+        Random random = new Random(1);
+        String[] rules = new String[ruleCount];
+        for (int i=0; i<ruleCount; i++) {
+            String variable = VARIABLES[random.nextInt(VARIABLES.length)];
+            String threshold = variable + (random.nextBoolean() ? " > " : " <= ") + 
+                    random.nextInt(1000);
+            switch (i % 4) {
+                case 0:
+                    rules[i] = "and(" + threshold + ", sqrt(pressure^2 + flow^2) > " + 
+                            random.nextInt(1000) + ")";
+                    break;
+                case 1:
+                    rules[i] = "abs(temperature - pressure) > " + random.nextInt(1000);
+                    break;
+                default:
+                    rules[i] = threshold;
+            }
+        }
+        StringMathExpressionEvaluator evaluator = new StringMathExpressionEvaluator();
+        ruleSet = evaluator.compileRules(rules, VARIABLES);
+        compiled = new CompiledExpression[ruleCount];
+        for (int i=0; i<ruleCount; i++) {
+            compiled[i] = evaluator.compile(rules[i], VARIABLES);
+        }
+        for (int i=0; i<events.length; i++) {
+            events[i] = new double[] {random.nextInt(1000), random.nextInt(1000), 
+                    random.nextInt(1000)};
+        }
+        matches = new int[ruleCount];
+    }
+    
+    @Benchmark
+    public int ruleSet() throws InvalidMathExpressionException {
+        return ruleSet.match(events[next++ & (events.length - 1)], matches);
+    }
+    
+    @Benchmark
+    public int separately() throws InvalidMathExpressionException {
+        double[] values = events[next++ & (events.length - 1)];
+        int count = 0;
+        for (int i=0; i<compiled.length; i++) {
+            if (compiled[i].evaluate(values) != 0) {
+                matches[count++] = i;
+            }
+        }
+        return count;
+    }
+}
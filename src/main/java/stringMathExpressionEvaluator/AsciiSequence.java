@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of a range of ASCII encoded bytes as characters. The bytes are read in place with 
+ * absolute gets so the position of the buffer is never changed. Bytes outside the ASCII range, 
+ * such as those of multi-byte UTF-8 characters, can't be part of a valid expression and are 
+ * seen as the Unicode replacement character.
+ */
+final class AsciiSequence implements CharSequence {
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+    
+    /**
+     * Constructs a view of the bytes between the position and the limit of the buffer
+     * @param buffer - the buffer, which may be direct
+     */
+    AsciiSequence(ByteBuffer buffer) {
+        this(buffer, buffer.position(), buffer.remaining());
+    }
+    
+    private AsciiSequence(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    @Override
+    public int length() {
+        return length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+        }
+        byte b = buffer.get(offset + index);
+        return b >= 0 ? (char) b : '\uFFFD';
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + 
+                    ", length: " + length);
+        }
+        return new AsciiSequence(buffer, offset + start, end - start);
+    }
+    
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i=0; i<length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
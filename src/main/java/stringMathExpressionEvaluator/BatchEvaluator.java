@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayDeque;
+
+/**
+ * Evaluates an expression over many rows at once. The rows are processed in blocks and each 
+ * operation of the expression tree is applied to a whole block of values in a single tight loop 
+ * rather than walking the tree once per row. The simple loops used for arithmetic, comparisons, 
+ * <code>if</code>, <code>min</code>, <code>max</code> and <code>abs</code> are of the form that 
+ * HotSpot's C2 compiler turns into SIMD instructions. Every operation gives exactly the same result
+ * as {@link Node#eval(double[], double[])}.
+ * <p>
+ * Expressions that can throw an {@link InvalidMathExpressionException} are not supported since 
+ * evaluating them a column at a time could report a different error than evaluating them a row at 
+ * a time, see {@link #supports(Node[], Node)}. Neither are trees nested more deeply than 
+ * {@link Node#MAX_RECURSION} since the tree is walked by recursion. Instances are not thread safe.
+ */
+final class BatchEvaluator {
+    /**
+     * The number of rows processed by each pass over the tree, small enough that the working 
+     * blocks stay in the level one or level two cache
+     */
+    static final int BLOCK_SIZE = 512;
+    
+    private final Node[] shared;
+    private final Node root;
+    private final double[][] sharedBlocks;
+    private final ArrayDeque<double[]> freeBlocks = new ArrayDeque<>();
+    private double[][] columns;
+    private int start;
+    private int length;
+    
+    /**
+     * Constructs an evaluator for the given expression
+     * @param shared - the shared sub-expressions in the order they must be computed
+     * @param root - the root of the expression tree
+     */
+    BatchEvaluator(Node[] shared, Node root) {
+        this.shared = shared;
+        this.root = root;
+        sharedBlocks = new double[shared.length][];
+    }
+    
+    /**
+     * Checks if an expression can be evaluated in batches
+     * @param shared - the shared sub-expressions
+     * @param root - the root of the expression tree
+     * @return true if none of the operations can throw an exception and the trees are shallow 
+     * enough to walk by recursion
+     */
+    static boolean supports(Node[] shared, Node root) {
+        for (Node node : shared) {
+            if (node.depth > Node.MAX_RECURSION || Optimizer.canThrow(node)) {
+                return false;
+            }
+        }
+        return root.depth <= Node.MAX_RECURSION && !Optimizer.canThrow(root);
+    }
+    
+    /**
+     * Evaluates the expression for a range of rows
+     * @param columns - the values of the variables, indexed first by slot and then by row
+     * @param results - the array to receive the value of each row
+     * @param from - the first row to evaluate
+     * @param to - one past the last row to evaluate
+     * @param cancellation - checked before each block
+     * @throws InvalidMathExpressionException if the evaluation is cancelled or runs out of time
+     */
+    void evaluate(double[][] columns, double[] results, int from, int to, 
+            Cancellation cancellation) throws InvalidMathExpressionException {
+        this.columns = columns;
+        for (start = from; start < to; start += BLOCK_SIZE) {
+            cancellation.check(start);
+            length = Math.min(BLOCK_SIZE, to - start);
+            for (int i=0; i<shared.length; i++) {
+                double[] block = eval(shared[i]);
+                if (sharedBlocks[i] != null) {
+                    release(sharedBlocks[i]);
+                }
+                sharedBlocks[i] = block;
+            }
+            double[] block = eval(root);
+            System.arraycopy(block, 0, results, start, length);
+            release(block);
+        }
+        this.columns = null;
+    }
+    
+    private double[] take() {
+        double[] block = freeBlocks.poll();
+        return block != null ? block : new double[BLOCK_SIZE];
+    }
+    
+    private void release(double[] block) {
+        freeBlocks.push(block);
+    }
+    
+    /**
+     * Evaluates the given node for the current block of rows
+     * @param node - the node to evaluate
+     * @return a block holding the values, owned by the caller until it is released
+     */
+    private double[] eval(Node node) {
+        final int n = length;
+        switch (node.op) {
+            case Node.CONSTANT:
+            case Node.PI:
+            case Node.E: {
+                double[] r = take();
+                double value = node.op == Node.PI ? Math.PI : node.op == Node.E ? Math.E : node.value;
+                for (int i=0; i<n; i++) {
+                    r[i] = value;
+                }
+                return r;
+            }
+            case Node.VARIABLE: {
+                double[] r = take();
+                System.arraycopy(columns[node.slot], start, r, 0, n);
+                return r;
+            }
+            case Node.SHARED: {
+                double[] r = take();
+                System.arraycopy(sharedBlocks[node.slot], 0, r, 0, n);
+                return r;
+            }
+            case Node.IF: {
+                double[] c = eval(node.args[0]);
+                //Only evaluate both branches if the block needs both
+                int taken = countNonZero(c, n);
+                if (taken == n || taken == 0) {
+                    release(c);
+                    return eval(node.args[taken == n ? 1 : 2]);
+                }
+                double[] x = eval(node.args[1]);
+                double[] y = eval(node.args[2]);
+                for (int i=0; i<n; i++) {
+                    c[i] = c[i] != 0 ? x[i] : y[i];
+                }
+                release(y);
+                release(x);
+                return c;
+            }
+            case Node.AND:
+            case Node.OR: {
+                double[] r = eval(node.args[0]);
+                //The second argument is not needed if the first decides the result for every row
+                int nonZero = countNonZero(r, n);
+                if (node.op == Node.AND ? nonZero == 0 : nonZero == n) {
+                    double value = node.op == Node.AND ? 0 : 1;
+                    for (int i=0; i<n; i++) {
+                        r[i] = value;
+                    }
+                    return r;
+                }
+                double[] y = eval(node.args[1]);
+                if (node.op == Node.AND) {
+                    for (int i=0; i<n; i++) {
+                        r[i] = Node.and(r[i], y[i]);
+                    }
+                }
+                else {
+                    for (int i=0; i<n; i++) {
+                        r[i] = Node.or(r[i], y[i]);
+                    }
+                }
+                release(y);
+                return r;
+            }
+            default:
+                break;
+        }
+        
+        if (node.args.length == 1) {
+            double[] r = eval(node.args[0]);
+            switch (node.op) {
+                case Node.NEGATE:
+                    for (int i=0; i<n; i++) {
+                        r[i] = -r[i];
+                    }
+                    break;
+                case Node.ABS:
+                    for (int i=0; i<n; i++) {
+                        r[i] = Math.abs(r[i]);
+                    }
+                    break;
+                case Node.SQRT:
+                    for (int i=0; i<n; i++) {
+                        r[i] = Math.sqrt(r[i]);
+                    }
+                    break;
+                case Node.INTEGER_POWER:
+                    if (node.value == 2) {
+                        for (int i=0; i<n; i++) {
+                            r[i] = r[i] * r[i];
+                        }
+                    }
+                    else if (node.value == 3) {
+                        for (int i=0; i<n; i++) {
+                            r[i] = r[i] * r[i] * r[i];
+                        }
+                    }
+                    else {
+                        for (int i=0; i<n; i++) {
+                            double square = r[i] * r[i];
+                            r[i] = square * square;
+                        }
+                    }
+                    break;
+                case Node.NOT:
+                    for (int i=0; i<n; i++) {
+                        r[i] = r[i] == 0 ? 1 : 0;
+                    }
+                    break;
+                default:
+                    for (int i=0; i<n; i++) {
+                        r[i] = unary(node.op, r[i]);
+                    }
+                    break;
+            }
+            return r;
+        }
+        
+        if (node.chain >= Node.LONG_CHAIN) {
+            //Long chains are evaluated from the innermost operation outwards with a loop, in the
+            //same order as recursion
+            Node[] nodes = node.chainNodes();
+            double[] r = eval(nodes[nodes.length - 1].args[0]);
+            for (int i=nodes.length - 1; i>=0; i--) {
+                combine(nodes[i].op, r, eval(nodes[i].args[1]));
+            }
+            return r;
+        }
+        double[] r = eval(node.args[0]);
+        combine(node.op, r, eval(node.args[1]));
+        return r;
+    }
+    
+    /**
+     * Applies a binary operation to the current block of rows
+     * @param op - the operation code
+     * @param r - the values of the first operand, replaced by the results
+     * @param y - the values of the second operand, released once they have been used
+     */
+    private void combine(int op, double[] r, double[] y) {
+        final int n = length;
+        switch (op) {
+            case Node.ADD:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] + y[i];
+                }
+                break;
+            case Node.SUBTRACT:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] - y[i];
+                }
+                break;
+            case Node.MULTIPLY:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] * y[i];
+                }
+                break;
+            case Node.DIVIDE:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] / y[i];
+                }
+                break;
+            case Node.EQUAL:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] == y[i] ? 1 : 0;
+                }
+                break;
+            case Node.NOT_EQUAL:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] != y[i] ? 1 : 0;
+                }
+                break;
+            case Node.GREATER:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] > y[i] ? 1 : 0;
+                }
+                break;
+            case Node.GREATER_OR_EQUAL:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] >= y[i] ? 1 : 0;
+                }
+                break;
+            case Node.LESS:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] < y[i] ? 1 : 0;
+                }
+                break;
+            case Node.LESS_OR_EQUAL:
+                for (int i=0; i<n; i++) {
+                    r[i] = r[i] <= y[i] ? 1 : 0;
+                }
+                break;
+            case Node.MAX:
+                for (int i=0; i<n; i++) {
+                    r[i] = Math.max(r[i], y[i]);
+                }
+                break;
+            case Node.MIN:
+                for (int i=0; i<n; i++) {
+                    r[i] = Math.min(r[i], y[i]);
+                }
+                break;
+            default:
+                for (int i=0; i<n; i++) {
+                    r[i] = binary(op, r[i], y[i]);
+                }
+                break;
+        }
+        release(y);
+    }
+    
+    private static int countNonZero(double[] values, int n) {
+        int count = 0;
+        for (int i=0; i<n; i++) {
+            if (values[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    private static double unary(int op, double x) {
+        switch (op) {
+            case Node.CEIL:
+                return Math.ceil(x);
+            case Node.FLOOR:
+                return Math.floor(x);
+            case Node.ROUND:
+                return Math.round(x);
+            case Node.SIGNUM:
+                return Math.signum(x);
+            case Node.CBRT:
+                return Math.cbrt(x);
+            case Node.SIN:
+                return Math.sin(x);
+            case Node.COS:
+                return Math.cos(x);
+            case Node.TAN:
+                return Math.tan(x);
+            case Node.ASIN:
+                return Math.asin(x);
+            case Node.ACOS:
+                return Math.acos(x);
+            case Node.ATAN:
+                return Math.atan(x);
+            case Node.SINH:
+                return Math.sinh(x);
+            case Node.COSH:
+                return Math.cosh(x);
+            case Node.TANH:
+                return Math.tanh(x);
+            case Node.ASINH:
+                return Node.asinh(x);
+            case Node.ACOSH:
+                return Node.acosh(x);
+            case Node.ATANH:
+                return Node.atanh(x);
+            case Node.EXP:
+                return Math.exp(x);
+            case Node.LOG:
+                return Math.log(x);
+            case Node.LOG2:
+                return Math.log(x) / Node.LOG_2;
+            case Node.LOG10:
+                return Math.log10(x);
+            case Node.TO_RADIANS:
+                return Math.toRadians(x);
+            case Node.TO_DEGREES:
+                return Math.toDegrees(x);
+            case Node.POWER_HALF:
+                return Node.powerHalf(x);
+            default:
+                throw new IllegalStateException("Unknown operation code: " + op);
+        }
+    }
+    
+    private static double binary(int op, double x, double y) {
+        switch (op) {
+            case Node.MODULUS:
+                return x % y;
+            case Node.POWER:
+                return Math.pow(x, y);
+            case Node.ATAN2:
+                return Math.atan2(x, y);
+            case Node.HYPOT:
+                return Math.hypot(x, y);
+            case Node.LOG_BASE:
+                return Math.log(y) / Math.log(x);
+            case Node.XOR:
+                return Node.xor(x, y);
+            default:
+                throw new IllegalStateException("Unknown operation code: " + op);
+        }
+    }
+}
@@ -0,0 +1,886 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates expression trees into JVM bytecode. Each expression becomes a hidden class whose
+ * single method is double arithmetic that calls the {@link Math} functions directly, with jumps 
+ * only for comparisons and for skipping the arguments of <code>if</code>, <code>and</code> and 
+ * <code>or</code> that are not needed, so that HotSpot can compile it just like hand written Java.
+ * Hidden classes are only available on
+ * Java 15 or later, on earlier versions {@link #isAvailable()} returns false and expressions are
+ * left to the interpreter.
+ */
+final class BytecodeCompiler {
+    /**
+     * The superclass of all generated classes
+     */
+    abstract static class Code {
+        /**
+         * The user defined functions called by the generated code, set once after construction
+         */
+        MathFunction[] functions;
+        
+        /**
+         * Computes the numerical value of the expression, implemented by classes generated for a 
+         * single expression
+         * @param vars - the values of the variables indexed by slot
+         * @return the numerical value
+         * @throws InvalidMathExpressionException if a function is called with arguments outside
+         * of its domain
+         */
+        double evaluate(double[] vars) throws InvalidMathExpressionException {
+            throw new UnsupportedOperationException();
+        }
+        
+        /**
+         * Computes the numerical values of several expressions, implemented by classes generated
+         * for more than one expression
+         * @param vars - the values of the variables indexed by slot
+         * @param results - receives the values of the second and later expressions
+         * @return the numerical value of the first expression
+         * @throws InvalidMathExpressionException if a function is called with arguments outside
+         * of its domain
+         */
+        double evaluate(double[] vars, double[] results) throws InvalidMathExpressionException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A byte stream whose bytes can be changed after they are written, so that the offsets of 
+     * forward jumps can be filled in once their targets are known
+     */
+    private static final class CodeBuffer extends ByteArrayOutputStream {
+        void patchShort(int position, int value) {
+            buf[position] = (byte) (value >> 8);
+            buf[position + 1] = (byte) value;
+        }
+    }
+
+    //HotSpot will not JIT compile methods larger than this so there is no point generating them
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    private static final String CLASS_NAME = "stringMathExpressionEvaluator/GeneratedExpression";
+    private static final String SUPER_NAME = "stringMathExpressionEvaluator/BytecodeCompiler$Code";
+    private static final String NODE_NAME = "stringMathExpressionEvaluator/Node";
+    private static final String FUNCTION_NAME = "stringMathExpressionEvaluator/MathFunction";
+    private static final String MATH_NAME = "java/lang/Math";
+
+    //Class file constants
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_SYNTHETIC = 0x1000;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    //Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int DALOAD = 0x31;
+    private static final int AALOAD = 0x32;
+    private static final int DSTORE = 0x39;
+    private static final int DASTORE = 0x52;
+    private static final int POP2 = 0x58;
+    private static final int DUP = 0x59;
+    private static final int DUP2 = 0x5c;
+    private static final int DUP2_X2 = 0x5e;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DREM = 0x73;
+    private static final int DNEG = 0x77;
+    private static final int L2D = 0x8a;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int NEWARRAY = 0xbc;
+    private static final int WIDE = 0xc4;
+    private static final int T_DOUBLE = 7;
+
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_CLASS_OPTIONS;
+    private static final Method LOOKUP_CLASS;
+
+    static {
+        Method defineHiddenClass = null;
+        Object noClassOptions = null;
+        Method lookupClass = null;
+        try {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noClassOptions = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, noClassOptions.getClass());
+            lookupClass = MethodHandles.Lookup.class.getMethod("lookupClass");
+        }
+        catch (ClassNotFoundException | NoSuchMethodException ex) {
+            //Hidden classes are not supported by this version of Java
+            defineHiddenClass = null;
+        }
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_CLASS_OPTIONS = noClassOptions;
+        LOOKUP_CLASS = lookupClass;
+    }
+
+    private final CodeBuffer codeBytes = new CodeBuffer();
+    private final List<MathFunction> functions = new ArrayList<>();
+    private final Map<String, Integer> constantIndices = new HashMap<>();
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+    private int constantCount = 1;
+    private int stackDepth;
+    private int maxStackDepth;
+    //Local 0 is this, followed by the array arguments and then two locals for each shared value
+    private int firstSharedLocal;
+
+    private BytecodeCompiler() {
+        //Instances are only created by compile
+    }
+
+    /**
+     * Checks if this version of Java supports the hidden classes needed to load generated code
+     * @return true if bytecode can be generated and loaded
+     */
+    static boolean isAvailable() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    /**
+     * Checks if any of the given trees is nested too deeply for the code generator, which recurses
+     * once per level of nesting. Such trees are left to {@link Node#eval(double[], double[])}.
+     * @param nodes - the roots of the trees
+     * @return true if a tree is deeper than {@link Node#MAX_RECURSION}
+     */
+    private static boolean isDeep(Node[] nodes) {
+        for (Node node : nodes) {
+            if (node.depth > Node.MAX_RECURSION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generates and loads a class that computes the value of the given expression tree. Shared 
+     * sub-expressions are kept in local variables.
+     * @param shared - the shared sub-expressions in the order they must be computed
+     * @param root - the root of the expression tree
+     * @return an instance of the generated class or null if the expression could not be translated
+     * into bytecode that HotSpot will compile
+     */
+    static Code compile(Node[] shared, Node root) {
+        return compile(shared, new Node[] {root});
+    }
+    
+    /**
+     * Generates and loads a class that computes the values of several expression trees that share
+     * sub-expressions. With more than one tree, the generated class implements 
+     * {@link Code#evaluate(double[], double[])} and computes the trees in order.
+     * @param shared - the shared sub-expressions in the order they must be computed
+     * @param roots - the roots of the expression trees
+     * @return an instance of the generated class or null if the expressions could not be 
+     * translated into bytecode that HotSpot will compile
+     */
+    static Code compile(Node[] shared, Node[] roots) {
+        if (!isAvailable() || isDeep(shared) || isDeep(roots)) {
+            return null;
+        }
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        byte[] classFile = compiler.generate(shared, roots);
+        if (classFile == null) {
+            return null;
+        }
+        try {
+            Object lookup = DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), classFile, true,
+                    NO_CLASS_OPTIONS);
+            Class<?> generated = (Class<?>) LOOKUP_CLASS.invoke(lookup);
+            Code code = (Code) generated.getDeclaredConstructor().newInstance();
+            code.functions = compiler.functions.toArray(new MathFunction[compiler.functions.size()]);
+            return code;
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Failed to load generated code", ex);
+        }
+    }
+
+    /**
+     * Generates the class file for the given expression trees
+     * @param shared - the shared sub-expressions in the order they must be computed
+     * @param roots - the roots of the expression trees
+     * @return the class file or null if the code is too large
+     */
+    private byte[] generate(Node[] shared, Node[] roots) {
+        boolean single = roots.length == 1;
+        firstSharedLocal = single ? 2 : 3;
+        int thisClass = classConstant(CLASS_NAME);
+        int superClass = classConstant(SUPER_NAME);
+        int init = methodConstant(SUPER_NAME, "<init>", "()V");
+        int initName = utf8Constant("<init>");
+        int initDescriptor = utf8Constant("()V");
+        int evaluateName = utf8Constant("evaluate");
+        int evaluateDescriptor = utf8Constant(single ? "([D)D" : "([D[D)D");
+        int codeName = utf8Constant("Code");
+
+        //Constructor code
+        ByteArrayOutputStream initCode = new ByteArrayOutputStream();
+        initCode.write(ALOAD_0);
+        initCode.write(INVOKESPECIAL);
+        initCode.write(init >> 8);
+        initCode.write(init);
+        initCode.write(RETURN);
+
+        //Evaluate method code, local 0 is this, local 1 is the variable array, local 2 is the 
+        //results array if there is more than one tree and each shared value takes two locals after
+        //that
+        for (int i=0; i<shared.length; i++) {
+            emit(shared[i]);
+            emitLocal(DSTORE, i, -2);
+        }
+        //The value of the first tree stays on the stack while the others are stored
+        emit(roots[0]);
+        for (int i=1; i<roots.length; i++) {
+            emit(ALOAD_2, 1);
+            emitInt(i - 1);
+            emit(roots[i]);
+            emit(DASTORE, -4);
+        }
+        emit(DRETURN, 0);
+        if (codeBytes.size() > MAX_CODE_LENGTH) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            //Version 49 (Java 5) class files do not require stack map frames
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(constantCount);
+            constantPoolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); //interfaces
+            out.writeShort(0); //fields
+            out.writeShort(2); //methods
+            writeMethod(out, initName, initDescriptor, codeName, 1, 1, initCode);
+            writeMethod(out, evaluateName, evaluateDescriptor, codeName, maxStackDepth, 
+                    firstSharedLocal + 2*shared.length, codeBytes);
+            out.writeShort(0); //attributes
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            //Can't happen when writing to memory
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+            int maxStack, int maxLocals, ByteArrayOutputStream code) throws IOException {
+        out.writeShort(0); //package private access
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); //attributes
+        out.writeShort(codeName);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0); //exception table
+        out.writeShort(0); //attributes
+    }
+
+    /**
+     * Emits the code to compute the value of the tree rooted at the given node and leave it on the
+     * operand stack
+     * @param node - the root of the tree
+     */
+    private void emit(Node node) {
+        Node[] args = node.args;
+        switch (node.op) {
+            case Node.CALL:
+                emitCall(node);
+                return;
+            case Node.IF:
+            case Node.AND:
+            case Node.OR:
+                emitConditional(node);
+                return;
+            default:
+                break;
+        }
+        if (node.chain >= Node.LONG_CHAIN) {
+            //Long chains are emitted from the innermost operation outwards with a loop, in the
+            //same order as recursion
+            Node[] nodes = node.chainNodes();
+            emit(nodes[nodes.length - 1].args[0]);
+            for (int i=nodes.length - 1; i>=0; i--) {
+                emit(nodes[i].args[1]);
+                emitOperation(nodes[i]);
+            }
+            return;
+        }
+        for (Node arg : args) {
+            emit(arg);
+        }
+        emitOperation(node);
+    }
+
+    /**
+     * Emits the code for an operation whose operands have already been left on the operand stack
+     * @param node - the operation
+     */
+    private void emitOperation(Node node) {
+        switch (node.op) {
+            case Node.CONSTANT:
+                emitConstant(node.value);
+                break;
+            case Node.VARIABLE:
+                emit(ALOAD_1, 1);
+                emitInt(node.slot);
+                emit(DALOAD, 0);
+                break;
+            case Node.SHARED:
+                emitLocal(DLOAD, node.slot, 2);
+                break;
+            case Node.NEGATE:
+                emit(DNEG, 0);
+                break;
+            case Node.ADD:
+                emit(DADD, -2);
+                break;
+            case Node.SUBTRACT:
+                emit(DSUB, -2);
+                break;
+            case Node.MULTIPLY:
+                emit(DMUL, -2);
+                break;
+            case Node.DIVIDE:
+                emit(DDIV, -2);
+                break;
+            case Node.MODULUS:
+                emit(DREM, -2);
+                break;
+            case Node.POWER:
+                emitMath("pow", 2);
+                break;
+            case Node.INTEGER_POWER:
+                emit(DUP2, 2);
+                if (node.value == 3) {
+                    emit(DUP2, 2);
+                    emit(DMUL, -2);
+                }
+                emit(DMUL, -2);
+                if (node.value == 4) {
+                    emit(DUP2, 2);
+                    emit(DMUL, -2);
+                }
+                break;
+            case Node.POWER_HALF:
+                emitInvoke(NODE_NAME, "powerHalf", "(D)D", 0);
+                break;
+            case Node.EQUAL:
+                emitCompare(DCMPL, IFNE);
+                break;
+            case Node.NOT_EQUAL:
+                emitCompare(DCMPL, IFEQ);
+                break;
+            case Node.GREATER:
+                emitCompare(DCMPL, IFLE);
+                break;
+            case Node.GREATER_OR_EQUAL:
+                emitCompare(DCMPL, IFLT);
+                break;
+            case Node.LESS:
+                emitCompare(DCMPG, IFGE);
+                break;
+            case Node.LESS_OR_EQUAL:
+                emitCompare(DCMPG, IFGT);
+                break;
+            case Node.PI:
+                emitConstant(Math.PI);
+                break;
+            case Node.E:
+                emitConstant(Math.E);
+                break;
+            case Node.ABS:
+                emitMath("abs", 1);
+                break;
+            case Node.CEIL:
+                emitMath("ceil", 1);
+                break;
+            case Node.FLOOR:
+                emitMath("floor", 1);
+                break;
+            case Node.ROUND:
+                emitInvoke(MATH_NAME, "round", "(D)J", 0);
+                emit(L2D, 0);
+                break;
+            case Node.SIGNUM:
+                emitMath("signum", 1);
+                break;
+            case Node.SQRT:
+                emitMath("sqrt", 1);
+                break;
+            case Node.CBRT:
+                emitMath("cbrt", 1);
+                break;
+            case Node.SIN:
+                emitMath("sin", 1);
+                break;
+            case Node.COS:
+                emitMath("cos", 1);
+                break;
+            case Node.TAN:
+                emitMath("tan", 1);
+                break;
+            case Node.ASIN:
+                emitMath("asin", 1);
+                break;
+            case Node.ACOS:
+                emitMath("acos", 1);
+                break;
+            case Node.ATAN:
+                emitMath("atan", 1);
+                break;
+            case Node.SINH:
+                emitMath("sinh", 1);
+                break;
+            case Node.COSH:
+                emitMath("cosh", 1);
+                break;
+            case Node.TANH:
+                emitMath("tanh", 1);
+                break;
+            case Node.ASINH:
+                emitInvoke(NODE_NAME, "asinh", "(D)D", 0);
+                break;
+            case Node.ACOSH:
+                emitInvoke(NODE_NAME, "acosh", "(D)D", 0);
+                break;
+            case Node.ATANH:
+                emitInvoke(NODE_NAME, "atanh", "(D)D", 0);
+                break;
+            case Node.EXP:
+                emitMath("exp", 1);
+                break;
+            case Node.LOG:
+                emitMath("log", 1);
+                break;
+            case Node.LOG2:
+                emitMath("log", 1);
+                emitConstant(Node.LOG_2);
+                emit(DDIV, -2);
+                break;
+            case Node.LOG10:
+                emitMath("log10", 1);
+                break;
+            case Node.TO_RADIANS:
+                emitMath("toRadians", 1);
+                break;
+            case Node.TO_DEGREES:
+                emitMath("toDegrees", 1);
+                break;
+            case Node.NOT:
+                emitConstant(0);
+                emitCompare(DCMPL, IFNE);
+                break;
+            case Node.FACT:
+                emitInt(node.index);
+                emitInvoke(NODE_NAME, "fact", "(DI)D", -1);
+                break;
+            case Node.ATAN2:
+                emitMath("atan2", 2);
+                break;
+            case Node.HYPOT:
+                emitMath("hypot", 2);
+                break;
+            case Node.LOG_BASE:
+                //Both arguments have been evaluated in order, now find log(args[1])/log(args[0])
+                emitMath("log", 1);
+                emit(DUP2_X2, 2);
+                emit(POP2, -2);
+                emitMath("log", 1);
+                emit(DDIV, -2);
+                break;
+            case Node.MAX:
+                emitMath("max", 2);
+                break;
+            case Node.MIN:
+                emitMath("min", 2);
+                break;
+            case Node.XOR:
+                emitInvoke(NODE_NAME, "xor", "(DD)D", -2);
+                break;
+            case Node.COMB:
+                emitInt(node.index);
+                emitInvoke(NODE_NAME, "comb", "(DDI)D", -3);
+                break;
+            case Node.PERM:
+                emitInt(node.index);
+                emitInvoke(NODE_NAME, "perm", "(DDI)D", -3);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation code: " + node.op);
+        }
+    }
+
+    /**
+     * Emits a call of a user defined function through the array of functions held by the 
+     * generated object
+     * @param node - the call
+     */
+    private void emitCall(Node node) {
+        int function = functions.indexOf(node.function);
+        if (function < 0) {
+            function = functions.size();
+            functions.add(node.function);
+        }
+        emit(ALOAD_0, 1);
+        emit(GETFIELD, 0);
+        emitShort(fieldConstant(SUPER_NAME, "functions", "[L" + FUNCTION_NAME + ";"));
+        emitInt(function);
+        emit(AALOAD, -1);
+        Node[] args = node.args;
+        switch (args.length) {
+            case 1:
+                emit(args[0]);
+                emit(INVOKEVIRTUAL, -1);
+                emitShort(methodConstant(FUNCTION_NAME, "call", "(D)D"));
+                break;
+            case 2:
+                emit(args[0]);
+                emit(args[1]);
+                emit(INVOKEVIRTUAL, -3);
+                emitShort(methodConstant(FUNCTION_NAME, "call", "(DD)D"));
+                break;
+            default:
+                emitInt(args.length);
+                emit(NEWARRAY, 0);
+                codeBytes.write(T_DOUBLE);
+                for (int i=0; i<args.length; i++) {
+                    emit(DUP, 1);
+                    emitInt(i);
+                    emit(args[i]);
+                    emit(DASTORE, -4);
+                }
+                emit(INVOKEVIRTUAL, 0);
+                emitShort(methodConstant(FUNCTION_NAME, "call", "([D)D"));
+                break;
+        }
+    }
+
+    /**
+     * Emits code for <code>if</code>, <code>and</code> or <code>or</code> that jumps over the 
+     * arguments that don't need to be evaluated
+     * @param node - the operation
+     */
+    private void emitConditional(Node node) {
+        Node[] args = node.args;
+        //Each argument is compared to zero, dcmpl gives -1 for NaN so NaN is treated as true
+        emit(args[0]);
+        emit(DCONST_0, 2);
+        emit(DCMPL, -3);
+        switch (node.op) {
+            case Node.IF: {
+                int toElse = emitJump(IFEQ, -1);
+                emit(args[1]);
+                int toEnd = emitJump(GOTO, 0);
+                stackDepth -= 2;
+                patchJump(toElse);
+                emit(args[2]);
+                patchJump(toEnd);
+                break;
+            }
+            case Node.AND: {
+                int toFalse = emitJump(IFEQ, -1);
+                emit(args[1]);
+                emit(DCONST_0, 2);
+                emit(DCMPL, -3);
+                int toFalse2 = emitJump(IFEQ, -1);
+                emit(DCONST_1, 2);
+                int toEnd = emitJump(GOTO, 0);
+                stackDepth -= 2;
+                patchJump(toFalse);
+                patchJump(toFalse2);
+                emit(DCONST_0, 2);
+                patchJump(toEnd);
+                break;
+            }
+            default: {
+                int toTrue = emitJump(IFNE, -1);
+                emit(args[1]);
+                emit(DCONST_0, 2);
+                emit(DCMPL, -3);
+                int toTrue2 = emitJump(IFNE, -1);
+                emit(DCONST_0, 2);
+                int toEnd = emitJump(GOTO, 0);
+                stackDepth -= 2;
+                patchJump(toTrue);
+                patchJump(toTrue2);
+                emit(DCONST_1, 2);
+                patchJump(toEnd);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Emits a jump whose target is filled in later by {@link #patchJump(int)}
+     * @param opcode - the jump instruction
+     * @param stackChange - the change in stack depth caused by the instruction
+     * @return the position of the jump instruction
+     */
+    private int emitJump(int opcode, int stackChange) {
+        int position = codeBytes.size();
+        emit(opcode, stackChange);
+        emitShort(0);
+        return position;
+    }
+
+    /**
+     * Makes a jump emitted by {@link #emitJump(int, int)} go to the next instruction to be emitted
+     * @param position - the position of the jump instruction
+     */
+    private void patchJump(int position) {
+        codeBytes.patchShort(position + 1, codeBytes.size() - position);
+    }
+
+    /**
+     * Emits code that compares the two doubles on top of the stack and replaces them with 1 if the
+     * comparison is true or 0 if it is false
+     * @param compare - the comparison instruction, DCMPG or DCMPL chosen so that NaN compares false
+     * @param jumpIfFalse - the conditional jump taken when the comparison is false
+     */
+    private void emitCompare(int compare, int jumpIfFalse) {
+        emit(compare, -3);
+        //if<cond> +7 skips dconst_1 and goto, goto +4 skips dconst_0
+        emit(jumpIfFalse, -1);
+        emitShort(7);
+        emit(DCONST_1, 2);
+        emit(GOTO, 0);
+        emitShort(4);
+        stackDepth -= 2;
+        emit(DCONST_0, 2);
+    }
+
+    private void emitLocal(int opcode, int sharedSlot, int stackChange) {
+        int local = firstSharedLocal + 2*sharedSlot;
+        if (local <= 0xff) {
+            emit(opcode, stackChange);
+            codeBytes.write(local);
+        }
+        else {
+            emit(WIDE, 0);
+            emit(opcode, stackChange);
+            emitShort(local);
+        }
+    }
+
+    private void emitConstant(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            emit(DCONST_0, 2);
+        }
+        else if (value == 1.0) {
+            emit(DCONST_1, 2);
+        }
+        else {
+            emit(LDC2_W, 2);
+            emitShort(doubleConstant(value));
+        }
+    }
+
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value, 1);
+        }
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH, 1);
+            codeBytes.write(value);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH, 1);
+            emitShort(value);
+        }
+        else {
+            emit(LDC_W, 1);
+            emitShort(intConstant(value));
+        }
+    }
+
+    private void emitMath(String name, int argCount) {
+        emitInvoke(MATH_NAME, name, argCount == 1 ? "(D)D" : "(DD)D", -2*(argCount - 1));
+    }
+
+    private void emitInvoke(String owner, String name, String descriptor, int stackChange) {
+        emit(INVOKESTATIC, stackChange);
+        emitShort(methodConstant(owner, name, descriptor));
+    }
+
+    private void emit(int opcode, int stackChange) {
+        codeBytes.write(opcode);
+        stackDepth += stackChange;
+        maxStackDepth = Math.max(maxStackDepth, stackDepth);
+    }
+
+    private void emitShort(int value) {
+        codeBytes.write(value >> 8);
+        codeBytes.write(value);
+    }
+
+    private int utf8Constant(String value) {
+        String key = "U" + value;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            try {
+                constantPool.writeByte(CONSTANT_UTF8);
+                constantPool.writeUTF(value);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int classConstant(String name) {
+        String key = "C" + name;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            int nameIndex = utf8Constant(name);
+            constantPoolBytes.write(CONSTANT_CLASS);
+            writeShort(nameIndex);
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        return memberConstant(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int fieldConstant(String owner, String name, String descriptor) {
+        return memberConstant(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            int ownerIndex = classConstant(owner);
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            constantPoolBytes.write(CONSTANT_NAME_AND_TYPE);
+            writeShort(nameIndex);
+            writeShort(descriptorIndex);
+            int nameAndType = addConstant("N" + name + descriptor, 1);
+            constantPoolBytes.write(tag);
+            writeShort(ownerIndex);
+            writeShort(nameAndType);
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            try {
+                constantPool.writeByte(CONSTANT_INTEGER);
+                constantPool.writeInt(value);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            try {
+                constantPool.writeByte(CONSTANT_DOUBLE);
+                constantPool.writeLong(bits);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            //Double constants occupy two entries in the constant pool
+            index = addConstant(key, 2);
+        }
+        return index;
+    }
+
+    private void writeShort(int value) {
+        constantPoolBytes.write(value >> 8);
+        constantPoolBytes.write(value);
+    }
+
+    private int addConstant(String key, int size) {
+        int index = constantCount;
+        constantCount += size;
+        constantIndices.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * A snapshot of the counters of the cache of parsed expressions used by 
+ * {@link StringMathExpressionEvaluator#evaluate(String)}. The counters start from zero when the 
+ * evaluator is constructed and whenever its cache is cleared.
+ * @see StringMathExpressionEvaluator#getCacheStatistics()
+ */
+public final class CacheStatistics {
+    private final int capacity;
+    private final int size;
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    
+    CacheStatistics(int capacity, int size, long hitCount, long missCount, long evictionCount) {
+        this.capacity = capacity;
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+    }
+    
+    /**
+     * Gets the maximum number of expressions the cache can hold
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Gets the number of expressions in the cache
+     * @return the size
+     */
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Gets the number of times an expression was found in the cache and did not need to be parsed
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+    
+    /**
+     * Gets the number of times an expression was not found in the cache and had to be parsed
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+    
+    /**
+     * Gets the number of expressions that have been removed from the cache to make room for others
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    /**
+     * Gets the fraction of lookups that were found in the cache
+     * @return the hit rate between 0 and 1, or 0 if there have been no lookups
+     */
+    public double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0 : hitCount / (double) lookups;
+    }
+    
+    @Override
+    public String toString() {
+        return "CacheStatistics [capacity=" + capacity + ", size=" + size + ", hits=" + hitCount + 
+                ", misses=" + missCount + ", evictions=" + evictionCount + ", hitRate=" + 
+                getHitRate() + "]";
+    }
+}
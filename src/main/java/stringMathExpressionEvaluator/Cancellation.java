@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * Decides when an evaluation of many rows should stop early, either because the thread that 
+ * started it has been interrupted or because it has run longer than its time limit. The check is
+ * cheap enough to make between blocks of rows but not for every row.
+ */
+final class Cancellation {
+    //Time limits this long or longer can't be counted in nanoseconds and are never reached anyway
+    private static final long UNLIMITED_MILLIS = Long.MAX_VALUE / 1000000L;
+    
+    private final Thread thread;
+    private final long timeLimitMillis;
+    private final boolean timed;
+    private final long deadline;
+    
+    /**
+     * Starts timing an evaluation on the current thread
+     * @param limits - the limits of the evaluation
+     */
+    Cancellation(ResourceLimits limits) {
+        thread = Thread.currentThread();
+        timeLimitMillis = limits.getTimeLimit();
+        timed = timeLimitMillis < UNLIMITED_MILLIS;
+        deadline = timed ? System.nanoTime() + timeLimitMillis * 1000000L : 0;
+    }
+    
+    /**
+     * Checks if the evaluation should stop. May be called from any thread.
+     * @param row - the row about to be evaluated, used for reporting errors
+     * @throws InvalidMathExpressionException if the evaluation should stop
+     */
+    void check(int row) throws InvalidMathExpressionException {
+        if (thread.isInterrupted()) {
+            throw InvalidMathExpressionException.cancelled(row);
+        }
+        if (timed && System.nanoTime() - deadline > 0) {
+            throw InvalidMathExpressionException.limitExceeded("milliseconds of evaluation time", 
+                    timeLimitMillis, -1);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A math expression that has been parsed once so that it can be evaluated many times without
+ * re-parsing its string. Instances are immutable and are obtained from
+ * {@link StringMathExpressionEvaluator#compile(String)} or 
+ * {@link StringMathExpressionEvaluator#compile(String, String...)}. The angle mode (degrees or 
+ * radians) in effect at the time of compilation is fixed into the compiled expression.
+ */
+public final class CompiledExpression {
+    private static final double[] NO_VALUES = {};
+    
+    /**
+     * Per thread storage for the values of shared sub-expressions so that evaluation does not 
+     * need to allocate
+     */
+    private static final class Scratch {
+        double[] values = new double[16];
+        boolean inUse;
+    }
+    
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    
+    private final String expression;
+    private final String[] variables;
+    private final Node[] shared;
+    private final Node root;
+    private volatile BytecodeCompiler.Code code;
+    /** True until the deferred bytecode of an expression loaded from a library is generated */
+    private volatile boolean codePending;
+    private final Node unshared;
+    private final boolean batchable;
+    private final int operationCount;
+    private final int savedEvaluationCount;
+    private final ResourceLimits limits;
+
+    /**
+     * @param unshared - the expression tree before shared sub-expressions were removed, only 
+     * needed if the shared sub-expressions can throw so that errors are reported in the same order
+     * as they would be without sharing
+     * @param limits - the limits that apply to evaluations of many rows
+     * @param codePending - true if bytecode is to be generated when the expression is first 
+     * evaluated rather than given now
+     */
+    CompiledExpression(String expression, String[] variables, Node[] shared, Node root, 
+            BytecodeCompiler.Code code, int savedEvaluationCount, Node unshared, 
+            ResourceLimits limits, boolean codePending) {
+        this.expression = expression;
+        this.variables = variables;
+        this.shared = shared;
+        this.root = root;
+        this.code = code;
+        this.codePending = codePending;
+        this.unshared = unshared;
+        this.limits = limits;
+        batchable = BatchEvaluator.supports(shared, root);
+        this.savedEvaluationCount = savedEvaluationCount;
+        int count = root.operations;
+        for (Node node : shared) {
+            count += node.operations;
+        }
+        operationCount = count;
+    }
+
+    /**
+     * Evaluates the compiled expression and returns its numerical value. The result is the same as
+     * would have been obtained by calling {@link StringMathExpressionEvaluator#evaluate(String)}
+     * with the original expression string.
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     * @throws IllegalArgumentException if the expression was compiled with variables
+     */
+    public double evaluate() throws InvalidMathExpressionException {
+        return evaluate(NO_VALUES);
+    }
+
+    /**
+     * Evaluates the compiled expression using the given variable values and returns its numerical 
+     * value. The value of each variable is taken from the slot matching the variable's position 
+     * in the list of variables given when the expression was compiled. The array is only read so 
+     * the same array may be refilled and reused for each evaluation.
+     * @param values - the values of the variables indexed by slot, must have at least as many 
+     * elements as there are variables
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     * @throws IllegalArgumentException if fewer values are given than there are variables
+     */
+    public double evaluate(double... values) throws InvalidMathExpressionException {
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + 
+                    " variable values but got " + values.length);
+        }
+        if (unshared != null) {
+            try {
+                return evaluateShared(values);
+            }
+            catch (InvalidMathExpressionException ex) {
+                //A shared sub-expression may have been evaluated ahead of one that fails first
+                return unshared.eval(values, NO_VALUES);
+            }
+        }
+        return evaluateShared(values);
+    }
+    
+    private double evaluateShared(double[] values) throws InvalidMathExpressionException {
+        BytecodeCompiler.Code code = this.code;
+        if (code == null && codePending) {
+            code = generateCode();
+        }
+        if (code != null) {
+            return code.evaluate(values);
+        }
+        if (shared.length == 0) {
+            return root.eval(values, NO_VALUES);
+        }
+        Scratch scratch = SCRATCH.get();
+        if (scratch.inUse) {
+            //A function is evaluating another expression on this thread
+            return evaluate(values, new double[shared.length]);
+        }
+        if (scratch.values.length < shared.length) {
+            scratch.values = new double[shared.length];
+        }
+        scratch.inUse = true;
+        try {
+            return evaluate(values, scratch.values);
+        }
+        finally {
+            scratch.inUse = false;
+        }
+    }
+    
+    private synchronized BytecodeCompiler.Code generateCode() {
+        if (codePending) {
+            code = BytecodeCompiler.compile(shared, root);
+            codePending = false;
+        }
+        return code;
+    }
+    
+    private double evaluate(double[] values, double[] sharedValues) 
+            throws InvalidMathExpressionException {
+        for (int i=0; i<shared.length; i++) {
+            sharedValues[i] = shared[i].eval(values, sharedValues);
+        }
+        return root.eval(values, sharedValues);
+    }
+
+    /**
+     * Evaluates the compiled expression for many rows of variable values at once. The values are 
+     * given in columns, one array per variable, so that <code>columns[slot][row]</code> holds the 
+     * value of the variable in the given slot for the given row. Each row gives exactly the same 
+     * result as calling {@link #evaluate(double...)} with that row's values.
+     * <p>
+     * Rows are evaluated in blocks, applying each operation to a whole block before moving on to 
+     * the next, which allows the JIT compiler to use SIMD instructions and is typically several 
+     * times faster than evaluating one row at a time. Expressions that use <code>fact</code>, 
+     * <code>comb</code> or <code>perm</code> are evaluated one row at a time so that errors are 
+     * reported exactly as they would be by {@link #evaluate(double...)}.
+     * @param columns - the values of the variables indexed by slot and then by row, must have at 
+     * least as many columns as there are variables and each column must have at least as many rows
+     * as the results array
+     * @param results - the array to receive the value of each row, its length is the number of 
+     * rows evaluated
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain for any row, if the calling thread is interrupted or if the evaluation takes longer 
+     * than the time limit of the {@link ResourceLimits} the expression was compiled with, in which
+     * case the contents of the results array are unspecified
+     * @throws IllegalArgumentException if there are too few columns or a column is too short
+     */
+    public void evaluate(double[][] columns, double[] results) throws InvalidMathExpressionException {
+        checkColumns(columns, results.length);
+        evaluate(columns, results, 0, results.length, new Cancellation(limits));
+    }
+    
+    /**
+     * Evaluates the compiled expression for many rows of variable values at once, spreading the 
+     * rows over the threads of the common fork/join pool. The results are exactly the same, and in
+     * the same order, as those of {@link #evaluate(double[][], double[])}.
+     * @param columns - the values of the variables indexed by slot and then by row, must have at 
+     * least as many columns as there are variables and each column must have at least as many rows
+     * as the results array
+     * @param results - the array to receive the value of each row, its length is the number of 
+     * rows evaluated
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain for any row, if the calling thread is interrupted or if the evaluation takes longer 
+     * than the time limit, in which case the contents of the results array are unspecified
+     * @throws IllegalArgumentException if there are too few columns or a column is too short
+     */
+    public void evaluateParallel(double[][] columns, double[] results) 
+            throws InvalidMathExpressionException {
+        evaluateParallel(columns, results, null);
+    }
+    
+    /**
+     * Evaluates the compiled expression for many rows of variable values at once, spreading the 
+     * rows over the threads of the given fork/join pool. The rows are split into pieces of several
+     * thousand rows on block boundaries. The results are exactly the same, and in the same order, 
+     * as those of {@link #evaluate(double[][], double[])}. If more than one row fails, the error 
+     * reported is the one from the first failing row.
+     * @param columns - the values of the variables indexed by slot and then by row, must have at 
+     * least as many columns as there are variables and each column must have at least as many rows
+     * as the results array
+     * @param results - the array to receive the value of each row, its length is the number of 
+     * rows evaluated
+     * @param pool - the pool whose threads evaluate the rows, or null for the common pool
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain for any row, if the calling thread is interrupted or if the evaluation takes longer 
+     * than the time limit, in which case the contents of the results array are unspecified
+     * @throws IllegalArgumentException if there are too few columns or a column is too short
+     */
+    public void evaluateParallel(double[][] columns, double[] results, ForkJoinPool pool) 
+            throws InvalidMathExpressionException {
+        checkColumns(columns, results.length);
+        Cancellation cancellation = new Cancellation(limits);
+        if (results.length <= ParallelBatch.MIN_ROWS) {
+            evaluate(columns, results, 0, results.length, cancellation);
+            return;
+        }
+        ParallelBatch.evaluate(this, columns, results, pool, cancellation);
+    }
+    
+    private void checkColumns(double[][] columns, int rows) {
+        if (columns.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + 
+                    " variable columns but got " + columns.length);
+        }
+        for (int slot=0; slot<variables.length; slot++) {
+            if (columns[slot].length < rows) {
+                throw new IllegalArgumentException("Column for " + variables[slot] + " has " + 
+                        columns[slot].length + " rows but " + rows + " are needed");
+            }
+        }
+    }
+    
+    /**
+     * Evaluates a range of rows, the columns must already have been checked. The cancellation is
+     * checked once per block of rows.
+     */
+    void evaluate(double[][] columns, double[] results, int from, int to, 
+            Cancellation cancellation) throws InvalidMathExpressionException {
+        if (batchable) {
+            new BatchEvaluator(shared, root).evaluate(columns, results, from, to, cancellation);
+            return;
+        }
+        double[] values = new double[variables.length];
+        for (int row=from; row<to; row++) {
+            if ((row - from) % BatchEvaluator.BLOCK_SIZE == 0) {
+                cancellation.check(row);
+            }
+            for (int slot=0; slot<values.length; slot++) {
+                values[slot] = columns[slot][row];
+            }
+            results[row] = evaluate(values);
+        }
+    }
+
+    /**
+     * Gets the number of operations, such as additions and function calls, that are computed each
+     * time this expression is evaluated
+     * @return the number of operations
+     */
+    public int getOperationCount() {
+        return operationCount;
+    }
+    
+    /**
+     * Gets the number of operations that are saved on each evaluation by computing repeated 
+     * sub-expressions only once. For example, <code>sqrt(x^2+y^2)</code> appearing three times 
+     * saves eight operations: two copies of four operations each.
+     * @return the number of operations saved, zero if the expression has no repeated 
+     * sub-expressions or was compiled with optimization disabled
+     * @see StringMathExpressionEvaluator#setOptimizing(boolean)
+     */
+    public int getSavedEvaluationCount() {
+        return savedEvaluationCount;
+    }
+    
+    /**
+     * Gets the shared sub-expressions in the order they must be computed
+     */
+    Node[] getShared() {
+        return shared;
+    }
+    
+    /**
+     * Gets the root of the expression tree, which reads the values of the shared sub-expressions
+     */
+    Node getRoot() {
+        return root;
+    }
+    
+    /**
+     * Gets the expression tree before shared sub-expressions were removed
+     * @return the tree or null if it is not needed to report errors
+     */
+    Node getUnshared() {
+        return unshared;
+    }
+    
+    /**
+     * Checks if the value of a variable is needed to evaluate this expression
+     * @param slot - the slot of the variable
+     * @return true if the variable appears in the expression, after any optimization
+     */
+    boolean usesVariable(int slot) {
+        for (Node node : shared) {
+            if (usesVariable(node, slot)) {
+                return true;
+            }
+        }
+        return usesVariable(root, slot);
+    }
+    
+    private static boolean usesVariable(Node node, int slot) {
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested operations don't read variables themselves so only the operands that
+            //are shallow enough for recursion are checked
+            for (Node deep : Node.deepNodes(node)) {
+                for (Node arg : deep.args) {
+                    if (arg.depth <= Node.MAX_RECURSION && usesVariable(arg, slot)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        for (; node.chain > 0; node = node.args[0]) {
+            if (usesVariable(node.args[1], slot)) {
+                return true;
+            }
+        }
+        if (node.op == Node.VARIABLE) {
+            return node.slot == slot;
+        }
+        for (Node arg : node.args) {
+            if (usesVariable(arg, slot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the engine that evaluates this expression. This may be 
+     * {@link StringMathExpressionEvaluator.Engine#INTERPRETER INTERPRETER} even if bytecode was 
+     * requested when bytecode generation is not supported for the expression or Java version.
+     * @return the engine
+     */
+    public StringMathExpressionEvaluator.Engine getEngine() {
+        if (codePending) {
+            generateCode();
+        }
+        return code != null ? StringMathExpressionEvaluator.Engine.BYTECODE : 
+            StringMathExpressionEvaluator.Engine.INTERPRETER;
+    }
+
+    /**
+     * Gets the names of the variables, in slot order, that were declared when this was compiled
+     * @return a copy of the variable names
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Gets the slot of the named variable
+     * @param name - the name of the variable
+     * @return the slot of the variable or -1 if there is no variable with that name
+     */
+    public int getSlot(String name) {
+        for (int slot=0; slot<variables.length; slot++) {
+            if (variables[slot].equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the math expression string from which this was compiled
+     * @return the math expression string
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates one or more math expressions for every row of a CSV file. The first line of the file 
+ * is a header naming the columns, and every column whose name is a valid variable name may be used
+ * as a variable in the expressions. Each row of the input is copied to the output followed by the 
+ * value of each expression for that row.
+ * <p>
+ * The input file is memory mapped a window at a time and numbers are parsed directly from the 
+ * mapped bytes, so files much larger than the heap can be processed in bounded memory. Rows are 
+ * gathered into batches and evaluated with {@link CompiledExpression#evaluate(double[][], double[])}.
+ * Only the columns that are used by the expressions are parsed. Fields may be quoted, empty fields
+ * and missing fields have the value NaN. A row for which an expression fails to evaluate, or has a 
+ * field that is not a number, is reported on the error stream and the expression's value is left 
+ * empty.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -jar StringMathExpressionEvaluator.jar [options] &lt;input.csv&gt; &lt;expression&gt;...
+ *   -d, --degrees          evaluate trigonometric functions in degrees
+ *   -o, --output &lt;file&gt;    write to the file instead of standard output
+ *   -t, --delimiter &lt;c&gt;    the field delimiter, comma by default
+ * </pre>
+ */
+public final class CsvEvaluator {
+    private static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+    private static final int BATCH_ROWS = 4096;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_REPORTED_ERRORS = 10;
+    
+    private final StringMathExpressionEvaluator evaluator;
+    private final String[] expressions;
+    private final byte delimiter;
+    private final PrintStream errors;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    
+    //State of the file being processed
+    private FileChannel channel;
+    private long fileSize;
+    private long windowStart;
+    private MappedByteBuffer window;
+    private int limit;
+    private long rowNumber;
+    private long errorCount;
+    private CompiledExpression[] compiled;
+    private int[] columnSlots;
+    private int fieldStart;
+    private int fieldEnd;
+    private final WindowChars windowChars = new WindowChars();
+    
+    //The current batch of rows, with offsets into the current window
+    private double[][] columns;
+    private double[][] results;
+    private boolean[][] failed;
+    //Which variable slots each expression reads
+    private boolean[][] usesSlot;
+    private int[] rowStarts = new int[BATCH_ROWS];
+    private int[] rowEnds = new int[BATCH_ROWS];
+    private int batchSize;
+    
+    private OutputStream output;
+    private byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private int outputSize;
+    private final StringBuilder numberText = new StringBuilder(32);
+    
+    /**
+     * Constructs a CSV evaluator for the given expressions
+     * @param evaluator - the evaluator used to compile the expressions, its angle mode and 
+     * optimization settings apply
+     * @param delimiter - the character that separates fields, must be an ASCII character other
+     * than a double quote, carriage return or line feed
+     * @param errors - the stream on which rows that fail to evaluate are reported
+     * @param expressions - the expressions to evaluate for each row
+     */
+    public CsvEvaluator(StringMathExpressionEvaluator evaluator, char delimiter, PrintStream errors,
+            String... expressions) {
+        if (delimiter > 0x7f || delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("Invalid delimiter: '" + delimiter + "'");
+        }
+        this.evaluator = evaluator;
+        this.delimiter = (byte) delimiter;
+        this.errors = errors;
+        this.expressions = expressions.clone();
+    }
+    
+    /**
+     * Sets the size of the portion of the file that is mapped into memory at one time, only 
+     * intended for testing
+     * @param windowSize - the size in bytes, must be larger than the longest line of the file
+     */
+    void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+    
+    /**
+     * Gets the number of rows that failed to evaluate, or had fields that are not numbers, during
+     * the last call to {@link #process(Path, OutputStream)}
+     * @return the number of errors
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+    
+    /**
+     * Evaluates the expressions for every row of a CSV file
+     * @param input - the CSV file
+     * @param output - the stream to receive the rows with the expression values appended, it is 
+     * flushed but not closed
+     * @return the number of rows processed, not counting the header
+     * @throws IOException if the file can't be read or the output can't be written
+     * @throws InvalidMathExpressionException if an expression is not valid
+     */
+    public long process(Path input, OutputStream output) 
+            throws IOException, InvalidMathExpressionException {
+        this.output = output;
+        rowNumber = 0;
+        errorCount = 0;
+        batchSize = 0;
+        outputSize = 0;
+        try (FileChannel fileChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+            channel = fileChannel;
+            fileSize = channel.size();
+            map(0);
+            int pos = processHeader();
+            while (pos < limit || !atEnd()) {
+                int next = parseRow(pos);
+                if (next < 0) {
+                    //The row continues past the end of the window
+                    if (pos == 0) {
+                        throw new IOException("Row " + (rowNumber + 1) + 
+                                " is longer than the mapping window");
+                    }
+                    flushBatch();
+                    map(windowStart + pos);
+                    pos = 0;
+                    continue;
+                }
+                pos = next;
+            }
+            flushBatch();
+            flushOutput();
+            output.flush();
+            return rowNumber;
+        }
+        finally {
+            channel = null;
+            window = null;
+            this.output = null;
+        }
+    }
+    
+    private void map(long start) throws IOException {
+        windowStart = start;
+        limit = (int) Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+    }
+    
+    private boolean atEnd() {
+        return windowStart + limit == fileSize;
+    }
+    
+    /**
+     * Reads the header, compiles the expressions and writes the output header
+     * @return the position of the first row
+     */
+    private int processHeader() throws IOException, InvalidMathExpressionException {
+        List<String> names = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        List<Integer> variableColumns = new ArrayList<>();
+        int pos = 0;
+        int end = -1;
+        while (end < 0) {
+            pos = findField(pos);
+            if (pos < 0) {
+                throw new IOException("Header is longer than the mapping window");
+            }
+            String name = new String(headerField(), StandardCharsets.UTF_8);
+            if (isVariableName(name) && !variables.contains(name)) {
+                variables.add(name);
+                variableColumns.add(names.size());
+            }
+            names.add(name);
+            if (pos < limit && window.get(pos) == delimiter) {
+                pos++;
+            }
+            else {
+                end = pos;
+                pos = skipLineEnd(pos);
+            }
+        }
+        
+        String[] variableNames = variables.toArray(new String[variables.size()]);
+        compiled = new CompiledExpression[expressions.length];
+        for (int i=0; i<expressions.length; i++) {
+            compiled[i] = evaluator.compile(expressions[i], variableNames);
+        }
+        columnSlots = new int[names.size()];
+        for (int column=0; column<columnSlots.length; column++) {
+            columnSlots[column] = -1;
+        }
+        usesSlot = new boolean[expressions.length][variableNames.length];
+        for (int slot=0; slot<variableNames.length; slot++) {
+            for (int e=0; e<compiled.length; e++) {
+                if (compiled[e].usesVariable(slot)) {
+                    usesSlot[e][slot] = true;
+                    columnSlots[variableColumns.get(slot)] = slot;
+                }
+            }
+        }
+        columns = new double[variableNames.length][BATCH_ROWS];
+        results = new double[expressions.length][BATCH_ROWS];
+        failed = new boolean[expressions.length][BATCH_ROWS];
+        
+        copy(0, end);
+        for (String expression : expressions) {
+            write(delimiter);
+            write('"');
+            for (byte b : expression.replace("\"", "\"\"").getBytes(StandardCharsets.UTF_8)) {
+                write(b);
+            }
+            write('"');
+        }
+        write('\n');
+        return pos;
+    }
+    
+    private byte[] headerField() {
+        int start = fieldStart;
+        int end = fieldEnd;
+        byte[] bytes = new byte[end - start];
+        int n = 0;
+        for (int i=start; i<end; i++) {
+            byte b = window.get(i);
+            if (b == '"' && i + 1 < end && window.get(i + 1) == '"') {
+                i++;
+            }
+            bytes[n++] = b;
+        }
+        return Arrays.copyOf(bytes, n);
+    }
+    
+    private static boolean isVariableName(String name) {
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0))) {
+            return false;
+        }
+        for (int i=1; i<name.length(); i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Finds the extent of the field starting at the given position. The contents of the field, 
+     * without surrounding spaces and quotes, are left in fieldStart and fieldEnd.
+     * @param pos - the position of the start of the field
+     * @return the position of the delimiter or line end following the field, or -1 if the field
+     * runs past the end of the window and the window is not at the end of the file
+     */
+    private int findField(int pos) {
+        while (pos < limit && window.get(pos) == ' ') {
+            pos++;
+        }
+        boolean quoted = pos < limit && window.get(pos) == '"';
+        if (quoted) {
+            fieldStart = ++pos;
+            while (true) {
+                if (pos + 1 >= limit && !atEnd()) {
+                    //Can't tell if a quote is doubled or closes the field
+                    return -1;
+                }
+                if (pos >= limit) {
+                    break;
+                }
+                if (window.get(pos) == '"') {
+                    if (pos + 1 < limit && window.get(pos + 1) == '"') {
+                        pos += 2;
+                        continue;
+                    }
+                    break;
+                }
+                pos++;
+            }
+            fieldEnd = pos;
+        }
+        else {
+            fieldStart = pos;
+        }
+        while (pos < limit) {
+            byte b = window.get(pos);
+            if (b == delimiter || b == '\n' || b == '\r') {
+                break;
+            }
+            pos++;
+        }
+        if (pos >= limit && !atEnd()) {
+            return -1;
+        }
+        if (!quoted) {
+            fieldEnd = pos;
+            while (fieldEnd > fieldStart && window.get(fieldEnd - 1) == ' ') {
+                fieldEnd--;
+            }
+        }
+        return pos;
+    }
+    
+    private int skipLineEnd(int pos) {
+        if (pos < limit && window.get(pos) == '\r') {
+            pos++;
+        }
+        if (pos < limit && window.get(pos) == '\n') {
+            pos++;
+        }
+        return pos;
+    }
+    
+    /**
+     * Parses the row starting at the given position and adds it to the batch
+     * @param pos - the position of the start of the row
+     * @return the position of the next row or -1 if the row is not complete in the current window
+     */
+    private int parseRow(int pos) throws IOException {
+        int start = pos;
+        int row = batchSize;
+        int errorColumn = -1;
+        int column = 0;
+        if (pos < limit && (window.get(pos) == '\n' || window.get(pos) == '\r')) {
+            //Skip blank lines
+            return skipLineEnd(pos);
+        }
+        while (true) {
+            pos = findField(pos);
+            if (pos < 0) {
+                return -1;
+            }
+            if (column < columnSlots.length && columnSlots[column] >= 0) {
+                double value = parseNumber(fieldStart, fieldEnd);
+                if (value != value && !isNaN(fieldStart, fieldEnd)) {
+                    if (errorColumn < 0) {
+                        errorColumn = column;
+                    }
+                    //The value of every expression that reads the field is left empty
+                    for (int e=0; e<compiled.length; e++) {
+                        failed[e][row] |= usesSlot[e][columnSlots[column]];
+                    }
+                }
+                columns[columnSlots[column]][row] = value;
+            }
+            column++;
+            if (pos < limit && window.get(pos) == delimiter) {
+                pos++;
+            }
+            else {
+                break;
+            }
+        }
+        for (; column < columnSlots.length; column++) {
+            if (columnSlots[column] >= 0) {
+                columns[columnSlots[column]][row] = Double.NaN;
+            }
+        }
+        if (errorColumn >= 0) {
+            reportError("column " + (errorColumn + 1) + " is not a number");
+        }
+        rowStarts[row] = start;
+        rowEnds[row] = pos;
+        rowNumber++;
+        batchSize++;
+        pos = skipLineEnd(pos);
+        if (batchSize == BATCH_ROWS) {
+            flushBatch();
+        }
+        return pos;
+    }
+    
+    private boolean isNaN(int start, int end) {
+        if (start == end) {
+            return true;
+        }
+        if (end - start != 3) {
+            return false;
+        }
+        return window.get(start) == 'N' && window.get(start + 1) == 'a' && 
+                window.get(start + 2) == 'N';
+    }
+    
+    /**
+     * Parses a number from the window without creating a string, except for the rare numbers 
+     * that only {@link Double#parseDouble(String)} can convert
+     * @param start - the position of the first character
+     * @param end - the position after the last character
+     * @return the value or NaN if the field is empty or not a number
+     * @see NumberParser#parseField(CharSequence, int, int)
+     */
+    private double parseNumber(int start, int end) {
+        return NumberParser.parseField(windowChars, start, end);
+    }
+    
+    /**
+     * A view of the bytes of the current window as characters
+     */
+    private final class WindowChars implements CharSequence {
+        
+        @Override
+        public int length() {
+            return limit;
+        }
+        
+        @Override
+        public char charAt(int index) {
+            return (char) (window.get(index) & 0xff);
+        }
+        
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i=start; i<end; i++) {
+                bytes[i - start] = window.get(i);
+            }
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        
+        @Override
+        public String toString() {
+            return subSequence(0, limit).toString();
+        }
+    }
+    
+    private void reportError(String message) {
+        errorCount++;
+        if (errorCount <= MAX_REPORTED_ERRORS) {
+            errors.println("Row " + (rowNumber + 1) + ": " + message);
+        }
+        else if (errorCount == MAX_REPORTED_ERRORS + 1) {
+            errors.println("Further errors are not reported");
+        }
+    }
+    
+    /**
+     * Evaluates the rows of the batch and writes them to the output
+     */
+    private void flushBatch() throws IOException {
+        if (batchSize == 0) {
+            return;
+        }
+        long firstRow = rowNumber - batchSize;
+        //The tool runs without a time limit on a thread that is never interrupted
+        Cancellation cancellation = new Cancellation(ResourceLimits.DEFAULT);
+        for (int e=0; e<compiled.length; e++) {
+            try {
+                compiled[e].evaluate(columns, results[e], 0, batchSize, cancellation);
+            }
+            catch (InvalidMathExpressionException ex) {
+                //Find the rows that failed
+                double[] values = new double[columns.length];
+                for (int row=0; row<batchSize; row++) {
+                    if (failed[e][row]) {
+                        continue;
+                    }
+                    for (int slot=0; slot<values.length; slot++) {
+                        values[slot] = columns[slot][row];
+                    }
+                    try {
+                        results[e][row] = compiled[e].evaluate(values);
+                    }
+                    catch (InvalidMathExpressionException rowEx) {
+                        failed[e][row] = true;
+                        long saved = rowNumber;
+                        rowNumber = firstRow + row;
+                        reportError(rowEx.getMessage() + " in \"" + expressions[e] + "\"");
+                        rowNumber = saved;
+                    }
+                }
+            }
+        }
+        for (int row=0; row<batchSize; row++) {
+            copy(rowStarts[row], rowEnds[row]);
+            for (int e=0; e<compiled.length; e++) {
+                write(delimiter);
+                if (failed[e][row]) {
+                    failed[e][row] = false;
+                }
+                else {
+                    writeNumber(results[e][row]);
+                }
+            }
+            write('\n');
+        }
+        batchSize = 0;
+    }
+    
+    private void copy(int start, int end) throws IOException {
+        window.position(start);
+        int remaining = end - start;
+        while (remaining > 0) {
+            if (outputSize == outputBuffer.length) {
+                flushOutput();
+            }
+            int n = Math.min(remaining, outputBuffer.length - outputSize);
+            window.get(outputBuffer, outputSize, n);
+            outputSize += n;
+            remaining -= n;
+        }
+    }
+    
+    private void writeNumber(double value) throws IOException {
+        //Formatted into a reused builder, in the same format as Double.toString, so that no 
+        //string is created for each field
+        StringBuilder text = numberText;
+        text.setLength(0);
+        text.append(value);
+        if (outputBuffer.length - outputSize < text.length()) {
+            flushOutput();
+        }
+        for (int i=0; i<text.length(); i++) {
+            outputBuffer[outputSize++] = (byte) text.charAt(i);
+        }
+    }
+    
+    private void write(int b) throws IOException {
+        if (outputSize == outputBuffer.length) {
+            flushOutput();
+        }
+        outputBuffer[outputSize++] = (byte) b;
+    }
+    
+    private void flushOutput() throws IOException {
+        output.write(outputBuffer, 0, outputSize);
+        outputSize = 0;
+    }
+    
+    /**
+     * Runs the CSV evaluator from the command line, see the class description for the options
+     * @param args - the command line arguments
+     */
+    public static void main(String[] args) {
+        StringMathExpressionEvaluator evaluator = new StringMathExpressionEvaluator(0);
+        String outputFile = null;
+        char delimiter = ',';
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; i++) {
+                switch (args[i]) {
+                    case "-d":
+                    case "--degrees":
+                        evaluator.setDegreeMode();
+                        break;
+                    case "-o":
+                    case "--output":
+                        outputFile = args[++i];
+                        break;
+                    case "-t":
+                    case "--delimiter":
+                        String d = args[++i].equals("\\t") ? "\t" : args[i];
+                        if (d.length() != 1) {
+                            throw new IllegalArgumentException("Delimiter must be one character");
+                        }
+                        delimiter = d.charAt(0);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (args.length - i < 2) {
+                throw new IllegalArgumentException("An input file and at least one expression " +
+                        "are required");
+            }
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println(ex instanceof IllegalArgumentException ? ex.getMessage() : 
+                "Missing option value");
+            System.err.println("Usage: java -jar StringMathExpressionEvaluator.jar [options] " + 
+                    "<input.csv> <expression>...");
+            System.err.println("  -d, --degrees          evaluate trigonometric functions in degrees");
+            System.err.println("  -o, --output <file>    write to the file instead of standard output");
+            System.err.println("  -t, --delimiter <c>    the field delimiter, comma by default");
+            System.exit(1);
+            return;
+        }
+        
+        Path input = Paths.get(args[i]);
+        String[] expressions = Arrays.copyOfRange(args, i + 1, args.length);
+        try {
+            CsvEvaluator csv = new CsvEvaluator(evaluator, delimiter, System.err, expressions);
+            if (outputFile != null) {
+                try (OutputStream out = new FileOutputStream(outputFile)) {
+                    csv.process(input, out);
+                }
+            }
+            else {
+                csv.process(input, System.out);
+            }
+            System.exit(csv.getErrorCount() == 0 ? 0 : 2);
+        }
+        catch (IOException | InvalidMathExpressionException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the expression tree of the partial derivative of an expression tree with respect to one 
+ * of its variables. The derivative reuses the nodes of the original tree wherever it needs their 
+ * values, for example the derivative of <code>sin(u)</code> is <code>cos(u)*u'</code> with the 
+ * same <code>u</code>, so that common sub-expression elimination can share them between the 
+ * expression and its derivatives. Angle conversions need no special handling since the parser has
+ * already made them part of the tree.
+ * <p>
+ * Each node of the derivative is simplified as it is built, and terms that are multiplied by a 
+ * derivative of zero are dropped. As is usual for symbolic differentiation this assumes that every
+ * sub-expression is finite, so where the expression is infinite or NaN the derivative may be 
+ * finite. Comparisons, logical functions, rounding and the integer functions <code>fact</code>, 
+ * <code>comb</code> and <code>perm</code> are piecewise constant and so have a derivative of zero.
+ */
+final class Differentiator {
+    private static final Node ZERO = new Node(0.0);
+    private static final Node ONE = new Node(1.0);
+    private static final Node TWO = new Node(2.0);
+    private static final Node THREE = new Node(3.0);
+    private static final double LOG_10 = Math.log(10);
+    private static final Node[] NO_ARGS = {};
+    
+    private final int slot;
+    private final Map<Node, Node> derivatives = new IdentityHashMap<>();
+    
+    private Differentiator(int slot) {
+        this.slot = slot;
+    }
+    
+    /**
+     * Differentiates the tree rooted at the given node
+     * @param root - the root of the tree
+     * @param slot - the slot of the variable to differentiate with respect to
+     * @return the root of the tree of the derivative
+     * @throws InvalidMathExpressionException if the value of a user defined function depends on 
+     * the variable
+     */
+    static Node differentiate(Node root, int slot) throws InvalidMathExpressionException {
+        return new Differentiator(slot).derivative(root);
+    }
+    
+    private Node derivative(Node node) throws InvalidMathExpressionException {
+        //Sub-trees reused by earlier derivatives are only differentiated once
+        Node done = derivatives.get(node);
+        if (done != null) {
+            return done;
+        }
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested trees are differentiated from the innermost operations outwards first,
+            //in the same order as recursion, so the recursion below stays shallow
+            List<Node> nodes = pending(node);
+            for (int i=0; i<nodes.size() - 1; i++) {
+                derivative(nodes.get(i));
+            }
+        }
+        else if (node.chain >= Node.LONG_CHAIN && !derivatives.containsKey(node.args[0])) {
+            //Long chains are differentiated from the innermost operation outwards first, in the
+            //same order as recursion, so no operation of the chain recurses into its left operand
+            Node[] nodes = node.chainNodes();
+            for (int i=nodes.length - 1; i>0; i--) {
+                derivative(nodes[i]);
+            }
+        }
+        Node result = computeDerivative(node);
+        derivatives.put(node, result);
+        return result;
+    }
+    
+    /**
+     * Lists the nodes of a tree too deeply nested for recursion whose derivatives are needed, in 
+     * the order that recursion would finish them. Like {@link Node#postOrder(Node, Map)} except 
+     * that only the operands that are differentiated are visited.
+     * @param root - the root of the tree
+     * @return the nodes not yet differentiated, each listed once, ending with the root
+     */
+    private List<Node> pending(Node root) {
+        List<Node> order = new ArrayList<>();
+        Map<Node, Boolean> seen = new IdentityHashMap<>();
+        Node[] nodes = new Node[16];
+        int[] steps = new int[16];
+        int top = 0;
+        nodes[0] = root;
+        while (top >= 0) {
+            Node node = nodes[top];
+            int step = steps[top]++;
+            Node[] args = differentiatedArgs(node);
+            if (step == args.length) {
+                order.add(node);
+                top--;
+                continue;
+            }
+            Node arg = args[step];
+            if (derivatives.containsKey(arg) || seen.put(arg, Boolean.TRUE) != null) {
+                continue;
+            }
+            if (arg.depth > Node.MAX_RECURSION) {
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2*top);
+                    steps = Arrays.copyOf(steps, 2*top);
+                }
+                nodes[top] = arg;
+                steps[top] = 0;
+            }
+            else {
+                order.add(arg);
+            }
+        }
+        return order;
+    }
+    
+    /**
+     * Gets the operands whose derivatives are needed for the derivative of an operation
+     * @param node - the operation
+     * @return the operands in the order they are differentiated
+     */
+    private static Node[] differentiatedArgs(Node node) {
+        switch (node.op) {
+            case Node.VARIABLE:
+            case Node.CONSTANT:
+            case Node.PI:
+            case Node.E:
+            case Node.EQUAL:
+            case Node.NOT_EQUAL:
+            case Node.GREATER:
+            case Node.GREATER_OR_EQUAL:
+            case Node.LESS:
+            case Node.LESS_OR_EQUAL:
+            case Node.NOT:
+            case Node.AND:
+            case Node.OR:
+            case Node.XOR:
+            case Node.CEIL:
+            case Node.FLOOR:
+            case Node.ROUND:
+            case Node.SIGNUM:
+            case Node.FACT:
+            case Node.COMB:
+            case Node.PERM:
+                return NO_ARGS;
+            case Node.IF:
+                //The condition only chooses which derivative applies
+                return new Node[] {node.args[1], node.args[2]};
+            default:
+                return node.args;
+        }
+    }
+    
+    private Node computeDerivative(Node node) throws InvalidMathExpressionException {
+        Node[] args = node.args;
+        int index = node.index;
+        switch (node.op) {
+            case Node.VARIABLE:
+                return node.slot == slot ? ONE : ZERO;
+            case Node.CONSTANT:
+            case Node.PI:
+            case Node.E:
+            case Node.EQUAL:
+            case Node.NOT_EQUAL:
+            case Node.GREATER:
+            case Node.GREATER_OR_EQUAL:
+            case Node.LESS:
+            case Node.LESS_OR_EQUAL:
+            case Node.NOT:
+            case Node.AND:
+            case Node.OR:
+            case Node.XOR:
+            case Node.CEIL:
+            case Node.FLOOR:
+            case Node.ROUND:
+            case Node.SIGNUM:
+            case Node.FACT:
+            case Node.COMB:
+            case Node.PERM:
+                return ZERO;
+            case Node.IF: {
+                //The condition only chooses which derivative applies
+                Node thenDerivative = derivative(args[1]);
+                Node elseDerivative = derivative(args[2]);
+                if (isZero(thenDerivative) && isZero(elseDerivative)) {
+                    return ZERO;
+                }
+                return make(Node.IF, index, args[0], thenDerivative, elseDerivative);
+            }
+            default:
+                break;
+        }
+        Node[] d = new Node[args.length];
+        boolean constant = true;
+        for (int i=0; i<args.length; i++) {
+            d[i] = derivative(args[i]);
+            constant &= isZero(d[i]);
+        }
+        if (constant) {
+            return ZERO;
+        }
+        if (node.op == Node.CALL) {
+            throw InvalidMathExpressionException.notDifferentiable(node.function.name, index);
+        }
+        Node u = args[0];
+        Node du = d[0];
+        Node v = args.length > 1 ? args[1] : null;
+        Node dv = args.length > 1 ? d[1] : null;
+        switch (node.op) {
+            case Node.NEGATE:
+                return negate(du, index);
+            case Node.ADD:
+                return add(du, dv, index);
+            case Node.SUBTRACT:
+                return subtract(du, dv, index);
+            case Node.MULTIPLY:
+                return add(multiply(du, v, index), multiply(u, dv, index), index);
+            case Node.DIVIDE:
+                if (isZero(dv)) {
+                    return divide(du, v, index);
+                }
+                return divide(subtract(multiply(du, v, index), multiply(u, dv, index), index), 
+                        square(v, index), index);
+            case Node.MODULUS:
+                // u % v = u - v*trunc(u/v) and trunc(u/v) = (u - u%v)/v is piecewise constant
+                return subtract(du, multiply(dv, divide(subtract(u, node, index), v, index), 
+                        index), index);
+            case Node.POWER:
+                if (isZero(dv)) {
+                    // (u^c)' = c*u^(c-1)*u'
+                    return multiply(multiply(v, make(Node.POWER, index, u, 
+                            subtract(v, ONE, index)), index), du, index);
+                }
+                if (isZero(du)) {
+                    // (c^v)' = c^v*ln(c)*v'
+                    return multiply(multiply(node, make(Node.LOG, index, u), index), dv, index);
+                }
+                return multiply(node, add(multiply(dv, make(Node.LOG, index, u), index), 
+                        divide(multiply(v, du, index), u, index), index), index);
+            case Node.INTEGER_POWER: {
+                int exponent = (int) node.value;
+                Node power = exponent == 2 ? u : 
+                    Optimizer.optimizeNode(Node.integerPower(u, exponent - 1, index));
+                return multiply(multiply(new Node(exponent), power, index), du, index);
+            }
+            case Node.POWER_HALF:
+            case Node.SQRT:
+                return divide(du, multiply(TWO, node, index), index);
+            case Node.CBRT:
+                return divide(du, multiply(THREE, square(node, index), index), index);
+            case Node.ABS:
+                return multiply(du, make(Node.SIGNUM, index, u), index);
+            case Node.SIN:
+                return multiply(make(Node.COS, index, u), du, index);
+            case Node.COS:
+                return negate(multiply(make(Node.SIN, index, u), du, index), index);
+            case Node.TAN:
+                return multiply(add(ONE, square(node, index), index), du, index);
+            case Node.ASIN:
+                return divide(du, make(Node.SQRT, index, subtract(ONE, square(u, index), index)), 
+                        index);
+            case Node.ACOS:
+                return negate(divide(du, make(Node.SQRT, index, 
+                        subtract(ONE, square(u, index), index)), index), index);
+            case Node.ATAN:
+                return divide(du, add(ONE, square(u, index), index), index);
+            case Node.SINH:
+                return multiply(make(Node.COSH, index, u), du, index);
+            case Node.COSH:
+                return multiply(make(Node.SINH, index, u), du, index);
+            case Node.TANH:
+                return multiply(subtract(ONE, square(node, index), index), du, index);
+            case Node.ASINH:
+                return divide(du, make(Node.SQRT, index, add(square(u, index), ONE, index)), index);
+            case Node.ACOSH:
+                return divide(du, make(Node.SQRT, index, subtract(square(u, index), ONE, index)), 
+                        index);
+            case Node.ATANH:
+                return divide(du, subtract(ONE, square(u, index), index), index);
+            case Node.EXP:
+                return multiply(node, du, index);
+            case Node.LOG:
+                return divide(du, u, index);
+            case Node.LOG2:
+                return divide(du, multiply(u, new Node(Node.LOG_2), index), index);
+            case Node.LOG10:
+                return divide(du, multiply(u, new Node(LOG_10), index), index);
+            case Node.TO_RADIANS:
+                return multiply(du, new Node(Math.toRadians(1)), index);
+            case Node.TO_DEGREES:
+                return multiply(du, new Node(Math.toDegrees(1)), index);
+            case Node.ATAN2:
+                // atan2(u, v)' = (v*u' - u*v')/(u^2 + v^2)
+                return divide(subtract(multiply(v, du, index), multiply(u, dv, index), index), 
+                        add(square(u, index), square(v, index), index), index);
+            case Node.HYPOT:
+                return divide(add(multiply(u, du, index), multiply(v, dv, index), index), node, 
+                        index);
+            case Node.LOG_BASE:
+                // log(u, v) = ln(v)/ln(u) so its derivative is (v'/v - log(u, v)*u'/u)/ln(u)
+                return divide(subtract(divide(dv, v, index), 
+                        multiply(node, divide(du, u, index), index), index), 
+                        make(Node.LOG, index, u), index);
+            case Node.MAX:
+                return make(Node.IF, index, make(Node.GREATER_OR_EQUAL, index, u, v), du, dv);
+            case Node.MIN:
+                return make(Node.IF, index, make(Node.LESS_OR_EQUAL, index, u, v), du, dv);
+            default:
+                throw new IllegalStateException("Unknown operation code: " + node.op);
+        }
+    }
+    
+    private static boolean isZero(Node node) {
+        return node.op == Node.CONSTANT && node.value == 0;
+    }
+    
+    private static Node make(int op, int index, Node... args) {
+        return Optimizer.optimizeNode(new Node(op, index, args));
+    }
+    
+    private static Node negate(Node x, int index) {
+        return make(Node.NEGATE, index, x);
+    }
+    
+    private static Node add(Node x, Node y, int index) {
+        if (isZero(x)) {
+            return y;
+        }
+        if (isZero(y)) {
+            return x;
+        }
+        return make(Node.ADD, index, x, y);
+    }
+    
+    private static Node subtract(Node x, Node y, int index) {
+        if (isZero(y)) {
+            return x;
+        }
+        if (isZero(x)) {
+            return negate(y, index);
+        }
+        return make(Node.SUBTRACT, index, x, y);
+    }
+    
+    private static Node multiply(Node x, Node y, int index) {
+        if (isZero(x) || isZero(y)) {
+            return ZERO;
+        }
+        return make(Node.MULTIPLY, index, x, y);
+    }
+    
+    private static Node divide(Node x, Node y, int index) {
+        if (isZero(x)) {
+            return ZERO;
+        }
+        return make(Node.DIVIDE, index, x, y);
+    }
+    
+    private static Node square(Node x, int index) {
+        return Optimizer.optimizeNode(Node.integerPower(x, 2, index));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * The kinds of problem that make a math expression invalid
+ * @see InvalidMathExpressionException#getKind()
+ * @see EvaluationResult#getErrorKind()
+ */
+public enum ErrorKind {
+    /**
+     * A character that can't appear at its position in the expression, including the end of the 
+     * expression where more was expected, such as the second decimal point of <code>1.2.3</code>
+     */
+    UNEXPECTED_CHARACTER,
+    
+    /**
+     * A number that is not properly formed, such as a decimal point without any digits or an 
+     * exponent without digits like <code>1e</code> or <code>2.5e+</code>
+     */
+    INVALID_NUMBER,
+    
+    /**
+     * A '(' without a matching ')'
+     */
+    MISSING_PARENTHESIS,
+    
+    /**
+     * A name that is not a variable and is not followed by '(' so is not a function call either
+     */
+    UNKNOWN_VARIABLE,
+    
+    /**
+     * A call to a function that does not exist with the given number of arguments
+     */
+    UNKNOWN_FUNCTION,
+    
+    /**
+     * A relational operator that is not properly formed, such as '=' instead of '=='
+     */
+    INVALID_OPERATOR,
+    
+    /**
+     * An argument outside the domain of a built-in function, such as the factorial of a negative 
+     * number
+     */
+    INVALID_ARGUMENT,
+    
+    /**
+     * An error reported by a user defined function
+     */
+    FUNCTION_ERROR,
+    
+    /**
+     * An expression or evaluation that exceeds one of the configured resource limits
+     * @see ResourceLimits
+     */
+    LIMIT_EXCEEDED,
+    
+    /**
+     * A formula in a {@link FormulaGraph} that depends on its own value
+     */
+    CIRCULAR_REFERENCE,
+    
+    /**
+     * An evaluation of many rows that was stopped because the calling thread was interrupted
+     */
+    CANCELLED,
+    
+    /**
+     * A call to a user defined function, whose derivative is not known, in an expression that is 
+     * being differentiated
+     * @see StringMathExpressionEvaluator#compileGradient(String, String...)
+     */
+    NOT_DIFFERENTIABLE
+}
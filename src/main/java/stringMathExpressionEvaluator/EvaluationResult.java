@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * Holds the outcome of {@link StringMathExpressionEvaluator#tryEvaluate(CharSequence, 
+ * EvaluationResult)}, either the value of the expression or a description of why it is invalid. 
+ * A result may be reused for any number of evaluations so that checking untrusted input needs no 
+ * allocation when the expression is valid. A result is not thread safe, each thread should use its
+ * own.
+ */
+public final class EvaluationResult {
+    private double value = Double.NaN;
+    private InvalidMathExpressionException error;
+    
+    /**
+     * Records a successful evaluation
+     * @param value - the value of the expression
+     */
+    void succeed(double value) {
+        this.value = value;
+        error = null;
+    }
+    
+    /**
+     * Records a failed evaluation
+     * @param error - the reason for the failure
+     */
+    void fail(InvalidMathExpressionException error) {
+        value = Double.NaN;
+        this.error = error;
+    }
+    
+    /**
+     * Checks if the expression was successfully evaluated
+     * @return true if the expression was valid
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+    
+    /**
+     * Gets the value of the expression
+     * @return the value or NaN if the expression was not valid
+     */
+    public double getValue() {
+        return value;
+    }
+    
+    /**
+     * Gets the kind of problem that made the expression invalid
+     * @return the kind or null if the expression was valid
+     */
+    public ErrorKind getErrorKind() {
+        return error != null ? error.getKind() : null;
+    }
+    
+    /**
+     * Gets the index in the expression of the problem that made it invalid
+     * @return the index, or -1 if the expression was valid or the problem was reported by a user
+     * defined function
+     */
+    public int getErrorIndex() {
+        return error != null ? error.getIndex() : -1;
+    }
+    
+    /**
+     * Gets a description of the problem that made the expression invalid. The description is built
+     * when this method is called.
+     * @return the description or null if the expression was valid
+     */
+    public String getErrorMessage() {
+        return error != null ? error.getMessage() : null;
+    }
+    
+    /**
+     * Gets the exception that {@link StringMathExpressionEvaluator#evaluate(CharSequence)} would 
+     * have thrown for the expression
+     * @return the exception or null if the expression was valid
+     */
+    public InvalidMathExpressionException getError() {
+        return error;
+    }
+    
+    @Override
+    public String toString() {
+        return error != null ? "Invalid: " + error.getMessage() : "Valid: " + value;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A size bounded, thread safe cache of compiled expressions keyed by expression string and angle 
+ * mode. Lookups are lock free. When the cache is full, an entry is evicted using the CLOCK 
+ * algorithm, an approximation of least recently used that only needs a flag to be set on each hit.
+ * Entries that are never used again after being added are the first to be evicted so a long tail
+ * of one-off expressions does not push out the frequently used ones.
+ * <p>
+ * Every clear starts a new generation. Callers read the generation before the settings they 
+ * compile with and pass it to {@link #get} and {@link #put}, so an expression compiled with 
+ * settings that were changed, and the cache cleared, while it was being compiled is not added.
+ */
+final class ExpressionCache {
+    private static final class Entry {
+        final String expression;
+        final boolean degrees;
+        final CompiledExpression compiled;
+        volatile boolean referenced;
+        
+        Entry(String expression, boolean degrees, CompiledExpression compiled) {
+            this.expression = expression;
+            this.degrees = degrees;
+            this.compiled = compiled;
+        }
+    }
+    
+    /**
+     * A lookup key that compares equal to the string with the same characters without the 
+     * characters having to be copied into a string. Map lookups compare the key being looked up 
+     * to the stored keys with the lookup key's equals method so a probe can find an entry that was
+     * stored with a string key.
+     */
+    private static final class Probe {
+        private final CharSequence chars;
+        private final int hash;
+        
+        Probe(CharSequence chars) {
+            this.chars = chars;
+            //Same as String.hashCode()
+            int h = 0;
+            for (int i=0; i<chars.length(); i++) {
+                h = 31*h + chars.charAt(i);
+            }
+            hash = h;
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof String && ((String) obj).contentEquals(chars);
+        }
+    }
+    
+    /**
+     * A counter that spreads increments from different threads over separate cache lines so that
+     * threads counting hits at the same time don't contend with each other
+     */
+    private static final class Counter {
+        private static final int STRIPES = 16;
+        private static final int PADDING = 8;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+        
+        void increment() {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.getAndIncrement(stripe * PADDING);
+        }
+        
+        long get() {
+            long sum = 0;
+            for (int i=0; i<STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+        
+        void reset() {
+            for (int i=0; i<STRIPES; i++) {
+                cells.set(i * PADDING, 0);
+            }
+        }
+    }
+    
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> radianEntries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> degreeEntries = new ConcurrentHashMap<>();
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+    //Only changed while holding the lock
+    private volatile long generation;
+    
+    //The clock and its hand are guarded by this
+    private Entry[] clock = new Entry[0];
+    private int size;
+    private int hand;
+    
+    /**
+     * Constructs an empty cache
+     * @param capacity - the maximum number of entries the cache may hold
+     */
+    ExpressionCache(int capacity) {
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Gets the current generation of the cache, which changes every time it is cleared
+     * @return the generation
+     */
+    long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Gets the compiled expression for the given expression and angle mode. Expressions that are 
+     * not strings are looked up without copying their characters into a string.
+     * @param expression - the expression, whose characters must not change during the call
+     * @param degrees - true if the expression was compiled in degree mode
+     * @param generation - the generation read before the caller's settings
+     * @return the compiled expression or null if it is not in the cache or the cache has been 
+     * cleared since the given generation
+     */
+    CompiledExpression get(CharSequence expression, boolean degrees, long generation) {
+        if (expression instanceof String) {
+            return lookup(expression, degrees, generation);
+        }
+        return lookup(new Probe(expression), degrees, generation);
+    }
+    
+    private CompiledExpression lookup(Object key, boolean degrees, long generation) {
+        Entry entry = (degrees ? degreeEntries : radianEntries).get(key);
+        if (entry == null || generation != this.generation) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.compiled;
+    }
+    
+    /**
+     * Adds a compiled expression to the cache, evicting another entry if the cache is full. 
+     * Nothing is added if the cache has been cleared since the expression's settings were read.
+     * @param expression - the expression string
+     * @param degrees - true if the expression was compiled in degree mode
+     * @param compiled - the compiled expression
+     * @param generation - the generation read before the settings the expression was compiled with
+     */
+    void put(String expression, boolean degrees, CompiledExpression compiled, long generation) {
+        Entry entry = new Entry(expression, degrees, compiled);
+        synchronized (this) {
+            if (generation != this.generation) {
+                //The settings may have changed while the expression was compiled
+                return;
+            }
+            if ((degrees ? degreeEntries : radianEntries).putIfAbsent(expression, entry) != null) {
+                //Another thread added it first
+                return;
+            }
+            if (size < capacity) {
+                if (size == clock.length) {
+                    clock = Arrays.copyOf(clock, Math.min(capacity, Math.max(16, 2*size)));
+                }
+                clock[size++] = entry;
+                return;
+            }
+            //Sweep the hand around the clock giving referenced entries a second chance
+            while (clock[hand].referenced) {
+                clock[hand].referenced = false;
+                hand = (hand + 1) % capacity;
+            }
+            Entry victim = clock[hand];
+            (victim.degrees ? degreeEntries : radianEntries).remove(victim.expression, victim);
+            clock[hand] = entry;
+            hand = (hand + 1) % capacity;
+            evictions.increment();
+        }
+    }
+    
+    /**
+     * Removes all entries from the cache, resets its counters and starts a new generation
+     */
+    synchronized void clear() {
+        generation++;
+        radianEntries.clear();
+        degreeEntries.clear();
+        clock = new Entry[0];
+        size = 0;
+        hand = 0;
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+    
+    /**
+     * Gets a snapshot of the cache's counters
+     * @return the statistics
+     */
+    synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(capacity, size, hits.get(), misses.get(), evictions.get());
+    }
+}
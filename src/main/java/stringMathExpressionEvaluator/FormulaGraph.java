@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A set of named values, like the cells of a spreadsheet, each of which is either an input whose
+ * value is set directly or a formula that may refer to inputs and other formulas by name. For 
+ * example, after <code>setInput("r", 2)</code> and <code>setFormula("area", "pi()*r^2")</code>, 
+ * reading <code>area</code> gives 12.566... and changing <code>r</code> changes it.
+ * <p>
+ * Each formula is compiled once, when it is set, and its value is kept until something it depends
+ * on changes. Changing an input or formula only recomputes the formulas that depend on it, in 
+ * dependency order so each is computed at most once, and a formula whose value turns out not to
+ * have changed does not cause the formulas that depend on it to be recomputed. Recomputation is 
+ * deferred until a value is read, or {@link #recalculate()} is called, so many inputs may be 
+ * changed at the cost of a single recomputation.
+ * <p>
+ * Formulas are compiled with the functions, angle mode, engine, optimization setting and resource
+ * limits of the evaluator at the time they are set. A formula may refer to a name that has not 
+ * been defined yet, reading it fails until the name is defined. A formula that fails to evaluate 
+ * makes every formula that depends on it fail with the same exception. Setting a formula that 
+ * would make a value depend on itself fails and leaves the graph unchanged.
+ * <p>
+ * A graph is not thread safe, it must be synchronized externally if it is shared between threads.
+ */
+public final class FormulaGraph {
+    private static final Cell[] NO_CELLS = {};
+    
+    /**
+     * Orders cells so that every formula comes after all the formulas it depends on
+     */
+    private static final Comparator<Cell> BY_RANK = new Comparator<Cell>() {
+        @Override
+        public int compare(Cell x, Cell y) {
+            return Integer.compare(x.rank, y.rank);
+        }
+    };
+    
+    /**
+     * A named value. A cell that is neither an input nor a formula exists only while formulas 
+     * refer to it.
+     */
+    private static final class Cell {
+        final String name;
+        final Set<Cell> dependents = new LinkedHashSet<>();
+        boolean defined;
+        CompiledExpression formula;
+        /** The cells the formula refers to, in slot order */
+        Cell[] dependencies = NO_CELLS;
+        double[] arguments;
+        /** Zero for an input, otherwise greater than the rank of every cell the formula refers to */
+        int rank;
+        /** The next reference to visit while ranking */
+        int next;
+        boolean pending;
+        double value;
+        InvalidMathExpressionException error;
+        
+        Cell(String name) {
+            this.name = name;
+        }
+    }
+    
+    private final StringMathExpressionEvaluator evaluator;
+    private final Map<String, Cell> cells = new HashMap<>();
+    private final List<Cell> pending = new ArrayList<>();
+    private boolean ranksChanged;
+    
+    /**
+     * Constructs an empty graph
+     * @param evaluator - the evaluator whose settings are used to compile the formulas
+     */
+    public FormulaGraph(StringMathExpressionEvaluator evaluator) {
+        if (evaluator == null) {
+            throw new NullPointerException("evaluator");
+        }
+        this.evaluator = evaluator;
+    }
+    
+    /**
+     * Sets the value of an input, replacing any formula with the same name
+     * @param name - the name of the input
+     * @param value - the value
+     * @throws IllegalArgumentException if the name is not a valid variable name
+     */
+    public void setInput(String name, double value) {
+        Cell cell = getOrCreate(name);
+        boolean changed = !cell.defined || cell.error != null || 
+                Double.doubleToLongBits(value) != Double.doubleToLongBits(cell.value);
+        if (cell.formula != null) {
+            detach(cell);
+            cell.formula = null;
+            cell.arguments = null;
+            ranksChanged = true;
+        }
+        cell.defined = true;
+        cell.value = value;
+        cell.error = null;
+        if (changed) {
+            scheduleDependents(cell);
+        }
+    }
+    
+    /**
+     * Sets a formula, replacing any input or formula with the same name. Names in the formula that
+     * are not followed by '(' refer to other inputs and formulas.
+     * @param name - the name of the formula
+     * @param expression - the math expression that computes the value of the formula
+     * @throws InvalidMathExpressionException if the expression is not a valid math expression or 
+     * the formula would depend on its own value, in which case the kind of the exception is 
+     * {@link ErrorKind#CIRCULAR_REFERENCE}
+     * @throws IllegalArgumentException if the name is not a valid variable name
+     */
+    public void setFormula(String name, String expression) throws InvalidMathExpressionException {
+        checkName(name);
+        ValidationResult validation = evaluator.validate(expression);
+        if (!validation.isValid()) {
+            throw validation.getError();
+        }
+        String[] references = validation.getVariables();
+        CompiledExpression formula = evaluator.compile(expression, references);
+        checkAcyclic(name, references);
+        
+        Cell cell = getOrCreate(name);
+        detach(cell);
+        cell.dependencies = new Cell[references.length];
+        for (int slot=0; slot<references.length; slot++) {
+            Cell dependency = getOrCreate(references[slot]);
+            dependency.dependents.add(cell);
+            cell.dependencies[slot] = dependency;
+        }
+        cell.formula = formula;
+        cell.arguments = new double[references.length];
+        cell.defined = true;
+        ranksChanged = true;
+        schedule(cell);
+    }
+    
+    /**
+     * Removes an input or formula. Formulas that refer to it fail until it is defined again.
+     * @param name - the name of the input or formula
+     * @return true if there was an input or formula with the name
+     */
+    public boolean remove(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null || !cell.defined) {
+            return false;
+        }
+        detach(cell);
+        cell.formula = null;
+        cell.arguments = null;
+        cell.defined = false;
+        ranksChanged = true;
+        cell.error = null;
+        if (cell.dependents.isEmpty()) {
+            cells.remove(name);
+        }
+        else {
+            scheduleDependents(cell);
+        }
+        return true;
+    }
+    
+    /**
+     * Gets the value of an input or formula, first recomputing any formulas affected by changes 
+     * @param name - the name of the input or formula
+     * @return the value
+     * @throws InvalidMathExpressionException if the formula, or one it depends on, fails to 
+     * evaluate or refers to a name that is not defined
+     * @throws IllegalArgumentException if there is no input or formula with the name
+     */
+    public double getValue(String name) throws InvalidMathExpressionException {
+        Cell cell = cells.get(name);
+        if (cell == null || !cell.defined) {
+            throw new IllegalArgumentException("Undefined name: " + name);
+        }
+        recalculate();
+        if (cell.error != null) {
+            throw cell.error;
+        }
+        return cell.value;
+    }
+    
+    /**
+     * Gets the expression of a formula
+     * @param name - the name of the formula
+     * @return the expression or null if there is no formula with the name
+     */
+    public String getFormula(String name) {
+        Cell cell = cells.get(name);
+        return cell != null && cell.formula != null ? cell.formula.getExpression() : null;
+    }
+    
+    /**
+     * Checks if an input or formula is defined
+     * @param name - the name
+     * @return true if there is an input or formula with the name
+     */
+    public boolean isDefined(String name) {
+        Cell cell = cells.get(name);
+        return cell != null && cell.defined;
+    }
+    
+    /**
+     * Recomputes the formulas affected by changes since the last recomputation. This is done 
+     * automatically when a value is read.
+     * @return the number of formulas that were recomputed
+     */
+    public int recalculate() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        if (ranksChanged) {
+            updateRanks();
+        }
+        PriorityQueue<Cell> queue = new PriorityQueue<>(pending.size(), BY_RANK);
+        queue.addAll(pending);
+        pending.clear();
+        int count = 0;
+        Cell cell;
+        while ((cell = queue.poll()) != null) {
+            cell.pending = false;
+            //A formula that has since been replaced by an input has no value to compute, its 
+            //dependents were scheduled when that happened
+            if (cell.formula != null) {
+                count++;
+                if (compute(cell)) {
+                    for (Cell dependent : cell.dependents) {
+                        if (!dependent.pending) {
+                            dependent.pending = true;
+                            queue.add(dependent);
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Computes the value of a formula from the values of the cells it refers to, which have 
+     * already been computed
+     * @param cell - the formula
+     * @return true if the value or error of the formula changed
+     */
+    private boolean compute(Cell cell) {
+        InvalidMathExpressionException error = null;
+        Cell[] dependencies = cell.dependencies;
+        for (int slot=0; slot<dependencies.length && error == null; slot++) {
+            if (!dependencies[slot].defined) {
+                error = undefinedReference(cell);
+            }
+            else {
+                error = dependencies[slot].error;
+                cell.arguments[slot] = dependencies[slot].value;
+            }
+        }
+        double value = Double.NaN;
+        if (error == null) {
+            try {
+                value = cell.formula.evaluate(cell.arguments);
+            }
+            catch (InvalidMathExpressionException ex) {
+                error = ex;
+            }
+        }
+        boolean changed = error != cell.error || 
+                Double.doubleToLongBits(value) != Double.doubleToLongBits(cell.value);
+        cell.value = value;
+        cell.error = error;
+        return changed;
+    }
+    
+    /**
+     * Creates the exception for a formula that refers to an undefined name, which is the one that
+     * {@link StringMathExpressionEvaluator#compile(String, String...)} would report for the 
+     * formula if only the defined names were variables
+     */
+    private InvalidMathExpressionException undefinedReference(Cell cell) {
+        List<String> names = new ArrayList<>();
+        for (Cell dependency : cell.dependencies) {
+            if (dependency.defined) {
+                names.add(dependency.name);
+            }
+        }
+        return evaluator.validate(cell.formula.getExpression(), 
+                names.toArray(new String[names.size()])).getError();
+    }
+    
+    /**
+     * Checks that a formula with the given name that refers to the given names would not depend
+     * on its own value
+     * @param name - the name of the formula
+     * @param references - the names the formula refers to
+     * @throws InvalidMathExpressionException if the formula would depend on its own value
+     */
+    private void checkAcyclic(String name, String[] references) 
+            throws InvalidMathExpressionException {
+        if (!createsCycle(name, references)) {
+            return;
+        }
+        //Search the formulas the new one depends on, remembering how each was reached
+        Map<String, String> referrers = new HashMap<>();
+        ArrayDeque<String> stack = new ArrayDeque<>();
+        for (String reference : references) {
+            referrers.put(reference, name);
+            stack.push(reference);
+        }
+        while (!stack.isEmpty()) {
+            String current = stack.pop();
+            if (current.equals(name)) {
+                List<String> path = new ArrayList<>();
+                path.add(name);
+                for (String referrer = referrers.get(name); !referrer.equals(name); 
+                        referrer = referrers.get(referrer)) {
+                    path.add(referrer);
+                }
+                StringBuilder sb = new StringBuilder(name);
+                for (int i=path.size() - 1; i>=0; i--) {
+                    sb.append(" -> ").append(path.get(i));
+                }
+                throw InvalidMathExpressionException.circularReference(sb.toString());
+            }
+            Cell cell = cells.get(current);
+            if (cell != null) {
+                for (Cell dependency : cell.dependencies) {
+                    if (!referrers.containsKey(dependency.name)) {
+                        referrers.put(dependency.name, current);
+                        stack.push(dependency.name);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks if a formula with the given name that refers to the given names would depend on its
+     * own value, that is if the formula is among the cells the references depend on or, 
+     * equivalently, one of the references is among the cells that depend on the formula. Both 
+     * searches are made a step at a time in turn and the check stops as soon as either is 
+     * complete, so adding a formula that nothing depends on yet, or that only depends on inputs,
+     * is quick whatever the size of the graph.
+     */
+    private boolean createsCycle(String name, String[] references) {
+        Cell target = cells.get(name);
+        Set<Cell> upstream = new HashSet<>();
+        ArrayDeque<Cell> up = new ArrayDeque<>();
+        for (String reference : references) {
+            if (reference.equals(name)) {
+                return true;
+            }
+            Cell cell = cells.get(reference);
+            if (cell != null) {
+                upstream.add(cell);
+                up.add(cell);
+            }
+        }
+        if (target == null) {
+            return false;
+        }
+        Set<Cell> downstream = new HashSet<>();
+        ArrayDeque<Cell> down = new ArrayDeque<>();
+        downstream.add(target);
+        down.add(target);
+        while (!up.isEmpty() && !down.isEmpty()) {
+            for (Cell dependency : up.poll().dependencies) {
+                if (downstream.contains(dependency)) {
+                    return true;
+                }
+                if (upstream.add(dependency)) {
+                    up.add(dependency);
+                }
+            }
+            for (Cell dependent : down.poll().dependents) {
+                if (upstream.contains(dependent)) {
+                    return true;
+                }
+                if (downstream.add(dependent)) {
+                    down.add(dependent);
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Ranks every cell after all the cells it refers to, by a depth first search of the 
+     * references that uses an explicit stack so that long chains of formulas can't overflow the
+     * call stack
+     */
+    private void updateRanks() {
+        for (Cell cell : cells.values()) {
+            cell.rank = -1;
+        }
+        ArrayDeque<Cell> stack = new ArrayDeque<>();
+        for (Cell root : cells.values()) {
+            if (root.rank >= 0) {
+                continue;
+            }
+            root.next = 0;
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Cell cell = stack.peek();
+                if (cell.next < cell.dependencies.length) {
+                    //Since there are no cycles an unranked reference can't already be on the stack
+                    Cell dependency = cell.dependencies[cell.next++];
+                    if (dependency.rank < 0) {
+                        dependency.next = 0;
+                        stack.push(dependency);
+                    }
+                    continue;
+                }
+                int rank = 0;
+                if (cell.formula != null) {
+                    for (Cell dependency : cell.dependencies) {
+                        rank = Math.max(rank, dependency.rank);
+                    }
+                    rank++;
+                }
+                cell.rank = rank;
+                stack.pop();
+            }
+        }
+        ranksChanged = false;
+    }
+    
+    /**
+     * Removes a formula from the dependents of the cells it refers to, discarding those that are
+     * no longer needed
+     */
+    private void detach(Cell cell) {
+        for (Cell dependency : cell.dependencies) {
+            dependency.dependents.remove(cell);
+            if (!dependency.defined && dependency.dependents.isEmpty()) {
+                cells.remove(dependency.name);
+            }
+        }
+        cell.dependencies = NO_CELLS;
+    }
+    
+    private void schedule(Cell cell) {
+        if (!cell.pending) {
+            cell.pending = true;
+            pending.add(cell);
+        }
+    }
+    
+    private void scheduleDependents(Cell cell) {
+        for (Cell dependent : cell.dependents) {
+            schedule(dependent);
+        }
+    }
+    
+    private Cell getOrCreate(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null) {
+            checkName(name);
+            cell = new Cell(name);
+            cells.put(name, cell);
+        }
+        return cell;
+    }
+    
+    private static void checkName(String name) {
+        if (!StringMathExpressionEvaluator.isValidName(name)) {
+            throw new IllegalArgumentException("Invalid name: " + name);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An immutable table of the functions that may be called from math expressions, keyed by name and
+ * number of arguments. Names are matched without regard to case. Lookups are made directly against
+ * the expression string so that no strings need to be created while parsing. Registering a 
+ * function creates a new registry so a parser can keep using the one it started with.
+ */
+final class FunctionRegistry {
+    /**
+     * The built-in functions
+     */
+    static final FunctionRegistry BUILT_INS = new FunctionRegistry(new MathFunction[] {
+        MathFunction.builtIn("pi", 0, Node.PI),
+        MathFunction.builtIn("e", 0, Node.E),
+        MathFunction.builtIn("abs", 1, Node.ABS),
+        MathFunction.builtIn("ceil", 1, Node.CEIL),
+        MathFunction.builtIn("floor", 1, Node.FLOOR),
+        MathFunction.builtIn("round", 1, Node.ROUND),
+        MathFunction.builtIn("signum", 1, Node.SIGNUM),
+        MathFunction.builtIn("sqrt", 1, Node.SQRT),
+        MathFunction.builtIn("cbrt", 1, Node.CBRT),
+        MathFunction.builtIn("sin", 1, Node.SIN),
+        MathFunction.builtIn("cos", 1, Node.COS),
+        MathFunction.builtIn("tan", 1, Node.TAN),
+        MathFunction.builtIn("asin", 1, Node.ASIN),
+        MathFunction.builtIn("acos", 1, Node.ACOS),
+        MathFunction.builtIn("atan", 1, Node.ATAN),
+        MathFunction.builtIn("sinh", 1, Node.SINH),
+        MathFunction.builtIn("cosh", 1, Node.COSH),
+        MathFunction.builtIn("tanh", 1, Node.TANH),
+        MathFunction.builtIn("asinh", 1, Node.ASINH),
+        MathFunction.builtIn("acosh", 1, Node.ACOSH),
+        MathFunction.builtIn("atanh", 1, Node.ATANH),
+        MathFunction.builtIn("exp", 1, Node.EXP),
+        MathFunction.builtIn("log", 1, Node.LOG),
+        MathFunction.builtIn("log2", 1, Node.LOG2),
+        MathFunction.builtIn("log10", 1, Node.LOG10),
+        MathFunction.builtIn("toradians", 1, Node.TO_RADIANS),
+        MathFunction.builtIn("todegrees", 1, Node.TO_DEGREES),
+        MathFunction.builtIn("not", 1, Node.NOT),
+        MathFunction.builtIn("fact", 1, Node.FACT),
+        MathFunction.builtIn("atan", 2, Node.ATAN2),
+        MathFunction.builtIn("atan2", 2, Node.ATAN2),
+        MathFunction.builtIn("hypot", 2, Node.HYPOT),
+        MathFunction.builtIn("log", 2, Node.LOG_BASE),
+        MathFunction.builtIn("max", 2, Node.MAX),
+        MathFunction.builtIn("min", 2, Node.MIN),
+        MathFunction.builtIn("pow", 2, Node.POWER),
+        MathFunction.builtIn("and", 2, Node.AND),
+        MathFunction.builtIn("or", 2, Node.OR),
+        MathFunction.builtIn("xor", 2, Node.XOR),
+        MathFunction.builtIn("comb", 2, Node.COMB), //m taken n at a time
+        MathFunction.builtIn("perm", 2, Node.PERM), //m taken n at a time
+        MathFunction.builtIn("if", 3, Node.IF),
+    });
+    
+    private final MathFunction[] functions;
+    //Open addressing hash table of the functions
+    private final MathFunction[] table;
+    
+    private FunctionRegistry(MathFunction[] functions) {
+        this.functions = functions;
+        int capacity = Integer.highestOneBit(4*functions.length - 1);
+        table = new MathFunction[capacity];
+        for (MathFunction function : functions) {
+            int i = hash(function.name, 0, function.name.length(), function.arity) & (capacity - 1);
+            while (table[i] != null) {
+                i = (i + 1) & (capacity - 1);
+            }
+            table[i] = function;
+        }
+    }
+    
+    private static int hash(CharSequence str, int start, int length, int arity) {
+        int h = arity;
+        for (int i=start; i<start + length; i++) {
+            h = 31*h + Character.toLowerCase(str.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Finds a function
+     * @param str - the characters holding the name of the function
+     * @param start - the index of the name in the string
+     * @param length - the length of the name
+     * @param arity - the number of arguments
+     * @return the function or null if there is no function with the name and number of arguments
+     */
+    MathFunction lookup(CharSequence str, int start, int length, int arity) {
+        int mask = table.length - 1;
+        for (int i = hash(str, start, length, arity) & mask; table[i] != null; i = (i + 1) & mask) {
+            MathFunction function = table[i];
+            if (function.arity == arity && function.name.length() == length && 
+                    nameMatches(str, start, function.name)) {
+                return function;
+            }
+        }
+        return null;
+    }
+    
+    private static boolean nameMatches(CharSequence str, int start, String name) {
+        for (int i=0; i<name.length(); i++) {
+            if (Character.toLowerCase(str.charAt(start + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Creates a registry with a function added, replacing any user defined function with the 
+     * same name and number of arguments
+     * @param function - the function to add
+     * @return the new registry
+     * @throws IllegalArgumentException if the function would replace a built-in function
+     */
+    FunctionRegistry with(MathFunction function) {
+        MathFunction existing = lookup(function.name, 0, function.name.length(), function.arity);
+        if (existing != null && existing.op != Node.CALL) {
+            throw new IllegalArgumentException("Built-in function " + function.name + " with " + 
+                    function.arity + " argument(s) can't be replaced");
+        }
+        MathFunction[] others = without(existing);
+        MathFunction[] newFunctions = Arrays.copyOf(others, others.length + 1);
+        newFunctions[others.length] = function;
+        return new FunctionRegistry(newFunctions);
+    }
+    
+    /**
+     * Creates a registry with a user defined function removed
+     * @param name - the name of the function
+     * @param arity - the number of arguments
+     * @return the new registry or this registry if there is no such user defined function
+     */
+    FunctionRegistry without(String name, int arity) {
+        MathFunction existing = lookup(name, 0, name.length(), arity);
+        if (existing == null || existing.op != Node.CALL) {
+            return this;
+        }
+        return new FunctionRegistry(without(existing));
+    }
+    
+    private MathFunction[] without(MathFunction function) {
+        if (function == null) {
+            return functions;
+        }
+        MathFunction[] result = new MathFunction[functions.length - 1];
+        int n = 0;
+        for (MathFunction f : functions) {
+            if (f != function) {
+                result[n++] = f;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Converts a function name to the form in which it is stored
+     * @param name - the name
+     * @return the lower case name
+     */
+    static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * A math expression compiled together with its partial derivatives with respect to each of its 
+ * variables, so that numerical optimizers can get exact gradients instead of estimating them by 
+ * finite differences. The expression and its derivatives are computed in one pass that evaluates
+ * each of their common sub-expressions only once. Instances are immutable and are obtained from
+ * {@link StringMathExpressionEvaluator#compileGradient(String, String...)}.
+ * <p>
+ * The derivatives follow the usual rules of calculus, with angle conversions applied when the 
+ * expression was compiled in degree mode. Functions that are piecewise constant, such as 
+ * comparisons, <code>floor</code> and <code>fact</code>, have a derivative of zero and 
+ * <code>abs</code>, <code>max</code> and <code>min</code> take the derivative of the side that is
+ * selected. Since terms multiplied by a derivative of zero are dropped, the derivatives are only
+ * meaningful where the expression's sub-expressions are finite.
+ */
+public final class Gradient {
+    private static final double[] NO_VALUES = {};
+    
+    /**
+     * Per thread storage for the values of shared sub-expressions so that evaluation does not 
+     * need to allocate
+     */
+    private static final class Scratch {
+        double[] values = new double[16];
+        boolean inUse;
+    }
+    
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    
+    private final String expression;
+    private final String[] variables;
+    private final Node[] shared;
+    private final Node[] roots;
+    private final BytecodeCompiler.Code code;
+    private final Node[] unshared;
+    private final int operationCount;
+    private final int savedEvaluationCount;
+    
+    /**
+     * @param roots - the expression followed by its derivative with respect to each variable in 
+     * slot order
+     * @param unshared - the roots before shared sub-expressions were removed, only needed if the 
+     * shared sub-expressions can throw so that errors are reported in the same order as they 
+     * would be without sharing
+     */
+    Gradient(String expression, String[] variables, Node[] shared, Node[] roots, 
+            BytecodeCompiler.Code code, int savedEvaluationCount, Node[] unshared) {
+        this.expression = expression;
+        this.variables = variables;
+        this.shared = shared;
+        this.roots = roots;
+        this.code = code;
+        this.unshared = unshared;
+        this.savedEvaluationCount = savedEvaluationCount;
+        int count = 0;
+        for (Node node : shared) {
+            count += node.operations;
+        }
+        for (Node node : roots) {
+            count += node.operations;
+        }
+        operationCount = count;
+    }
+    
+    /**
+     * Evaluates the expression and its partial derivatives using the given variable values. The 
+     * value of the expression is the same as would be obtained from 
+     * {@link CompiledExpression#evaluate(double...)}.
+     * @param values - the values of the variables indexed by slot, must have at least as many 
+     * elements as there are variables
+     * @param gradient - the array to receive the partial derivative with respect to each variable 
+     * indexed by slot, must have at least as many elements as there are variables. Its contents 
+     * are unspecified if an exception is thrown.
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     * @throws IllegalArgumentException if fewer values are given than there are variables or the 
+     * gradient array is too short
+     */
+    public double evaluate(double[] values, double[] gradient) throws InvalidMathExpressionException {
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + 
+                    " variable values but got " + values.length);
+        }
+        if (gradient.length < variables.length) {
+            throw new IllegalArgumentException("Expected room for " + variables.length + 
+                    " derivatives but got " + gradient.length);
+        }
+        if (unshared != null) {
+            try {
+                return evaluateShared(values, gradient);
+            }
+            catch (InvalidMathExpressionException ex) {
+                //A shared sub-expression may have been evaluated ahead of one that fails first
+                return evaluate(unshared, values, gradient, NO_VALUES);
+            }
+        }
+        return evaluateShared(values, gradient);
+    }
+    
+    /**
+     * Evaluates the partial derivatives of the expression using the given variable values
+     * @param values - the values of the variables indexed by slot, must have at least as many 
+     * elements as there are variables
+     * @return a new array holding the partial derivative with respect to each variable indexed by 
+     * slot
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     * @throws IllegalArgumentException if fewer values are given than there are variables
+     */
+    public double[] gradient(double... values) throws InvalidMathExpressionException {
+        double[] gradient = new double[variables.length];
+        evaluate(values, gradient);
+        return gradient;
+    }
+    
+    private double evaluateShared(double[] values, double[] gradient) 
+            throws InvalidMathExpressionException {
+        if (code != null) {
+            return code.evaluate(values, gradient);
+        }
+        if (shared.length == 0) {
+            return evaluate(roots, values, gradient, NO_VALUES);
+        }
+        Scratch scratch = SCRATCH.get();
+        if (scratch.inUse) {
+            //A function is evaluating another expression on this thread
+            return evaluate(values, gradient, new double[shared.length]);
+        }
+        if (scratch.values.length < shared.length) {
+            scratch.values = new double[shared.length];
+        }
+        scratch.inUse = true;
+        try {
+            return evaluate(values, gradient, scratch.values);
+        }
+        finally {
+            scratch.inUse = false;
+        }
+    }
+    
+    private double evaluate(double[] values, double[] gradient, double[] sharedValues) 
+            throws InvalidMathExpressionException {
+        for (int i=0; i<shared.length; i++) {
+            sharedValues[i] = shared[i].eval(values, sharedValues);
+        }
+        return evaluate(roots, values, gradient, sharedValues);
+    }
+    
+    private static double evaluate(Node[] roots, double[] values, double[] gradient, 
+            double[] sharedValues) throws InvalidMathExpressionException {
+        double value = roots[0].eval(values, sharedValues);
+        for (int i=1; i<roots.length; i++) {
+            gradient[i - 1] = roots[i].eval(values, sharedValues);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the number of operations, such as additions and function calls, that are computed each
+     * time the expression and its derivatives are evaluated
+     * @return the number of operations
+     */
+    public int getOperationCount() {
+        return operationCount;
+    }
+    
+    /**
+     * Gets the number of operations that are saved on each evaluation by computing sub-expressions
+     * that are repeated within or between the expression and its derivatives only once
+     * @return the number of operations saved, zero if there are no repeated sub-expressions or the
+     * gradient was compiled with optimization disabled
+     * @see StringMathExpressionEvaluator#setOptimizing(boolean)
+     */
+    public int getSavedEvaluationCount() {
+        return savedEvaluationCount;
+    }
+    
+    /**
+     * Gets the engine that evaluates the expression and its derivatives. This may be 
+     * {@link StringMathExpressionEvaluator.Engine#INTERPRETER INTERPRETER} even if bytecode was 
+     * requested when bytecode generation is not supported for the expression or Java version.
+     * @return the engine
+     */
+    public StringMathExpressionEvaluator.Engine getEngine() {
+        return code != null ? StringMathExpressionEvaluator.Engine.BYTECODE : 
+            StringMathExpressionEvaluator.Engine.INTERPRETER;
+    }
+
+    /**
+     * Gets the names of the variables, in slot order, that were declared when this was compiled
+     * @return a copy of the variable names
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Gets the math expression string from which this was compiled
+     * @return the math expression string
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
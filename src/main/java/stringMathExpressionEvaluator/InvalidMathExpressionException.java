@@ -19,12 +19,171 @@ package stringMathExpressionEvaluator;
 
 /**
  * An exception to indicate the math expression is invalid. Details of the cause of the exception
- * may be retrieved with the {@link Exception#getMessage() getMessage()} method.
+ * may be retrieved with the {@link Exception#getMessage() getMessage()} method or, without 
+ * building a message, with the {@link #getKind()} and {@link #getIndex()} methods. Since invalid 
+ * expressions are an expected part of handling user input, the exception does not record a stack 
+ * trace and its message is only built when it is asked for.
  */
 public class InvalidMathExpressionException extends Exception {
     private static final long serialVersionUID = 8867090037197025291L;
+    
+    private final ErrorKind kind;
+    private final int index;
+    private final String detail;
+    private final long number;
 
-    InvalidMathExpressionException(String msg) {
-        super(msg);
+    /**
+     * Constructs an exception with the given message, for use by user defined functions
+     * @param msg - the details of the cause of the exception
+     * @see StringMathExpressionEvaluator#registerFunction(String, UnaryFunction, boolean)
+     */
+    public InvalidMathExpressionException(String msg) {
+        super(msg, null, true, false);
+        kind = ErrorKind.FUNCTION_ERROR;
+        index = -1;
+        detail = null;
+        number = 0;
+    }
+    
+    private InvalidMathExpressionException(ErrorKind kind, int index, String detail, long number) {
+        super(null, null, true, false);
+        this.kind = kind;
+        this.index = index;
+        this.detail = detail;
+        this.number = number;
+    }
+    
+    static InvalidMathExpressionException unexpectedCharacter(int ch, int index) {
+        return new InvalidMathExpressionException(ErrorKind.UNEXPECTED_CHARACTER, index, null, ch);
+    }
+    
+    static InvalidMathExpressionException invalidNumber(String number, int index) {
+        return new InvalidMathExpressionException(ErrorKind.INVALID_NUMBER, index, number, 0);
+    }
+    
+    /**
+     * @param function - the name of the function whose argument list is not closed or null if 
+     * the parenthesis is not part of a function call
+     * @param index - the index in the expression where ')' was expected
+     */
+    static InvalidMathExpressionException missingParenthesis(String function, int index) {
+        return new InvalidMathExpressionException(ErrorKind.MISSING_PARENTHESIS, index, function, 0);
+    }
+    
+    static InvalidMathExpressionException unknownVariable(String name, int index) {
+        return new InvalidMathExpressionException(ErrorKind.UNKNOWN_VARIABLE, index, name, 0);
+    }
+    
+    static InvalidMathExpressionException unknownFunction(String name, int arity, int index) {
+        return new InvalidMathExpressionException(ErrorKind.UNKNOWN_FUNCTION, index, name, arity);
+    }
+    
+    static InvalidMathExpressionException invalidOperator(int index) {
+        return new InvalidMathExpressionException(ErrorKind.INVALID_OPERATOR, index, null, 0);
+    }
+    
+    /**
+     * @param description - a constant description of the valid arguments
+     * @param index - the index of the function in the expression
+     */
+    static InvalidMathExpressionException invalidArgument(String description, int index) {
+        return new InvalidMathExpressionException(ErrorKind.INVALID_ARGUMENT, index, description, 0);
+    }
+    
+    /**
+     * @param units - a constant description of what is limited, in the plural
+     * @param limit - the limit that was exceeded
+     * @param index - the index in the expression where the limit was exceeded or -1 if it was 
+     * exceeded during evaluation
+     */
+    static InvalidMathExpressionException limitExceeded(String units, long limit, int index) {
+        return new InvalidMathExpressionException(ErrorKind.LIMIT_EXCEEDED, index, units, limit);
+    }
+    
+    /**
+     * @param path - the names of the formulas in the cycle, starting and ending with the same one
+     */
+    static InvalidMathExpressionException circularReference(String path) {
+        return new InvalidMathExpressionException(ErrorKind.CIRCULAR_REFERENCE, -1, path, 0);
+    }
+    
+    /**
+     * @param row - the row that would have been evaluated next
+     */
+    static InvalidMathExpressionException cancelled(int row) {
+        return new InvalidMathExpressionException(ErrorKind.CANCELLED, -1, null, row);
+    }
+    
+    /**
+     * @param function - the name of the function that can't be differentiated
+     * @param index - the index of the function in the expression
+     */
+    static InvalidMathExpressionException notDifferentiable(String function, int index) {
+        return new InvalidMathExpressionException(ErrorKind.NOT_DIFFERENTIABLE, index, function, 0);
+    }
+    
+    /**
+     * Gets the kind of problem found in the expression
+     * @return the kind, {@link ErrorKind#FUNCTION_ERROR} if the exception was constructed by a 
+     * user defined function
+     */
+    public ErrorKind getKind() {
+        return kind;
+    }
+    
+    /**
+     * Gets the index of the problem in the expression
+     * @return the index or -1 if the exception was constructed by a user defined function or 
+     * does not relate to a position in the expression
+     */
+    public int getIndex() {
+        return index;
+    }
+    
+    @Override
+    public String getMessage() {
+        switch (kind) {
+            case UNEXPECTED_CHARACTER:
+                return "Unexpected character: '" + (char) number + "' at index " + index;
+            case INVALID_NUMBER:
+                return "Invalid number: " + detail + " at index " + index;
+            case MISSING_PARENTHESIS:
+                if (detail == null) {
+                    return "Missing ')' at index " + index;
+                }
+                return "Missing ')' after argument to " + detail + " at index " + index;
+            case UNKNOWN_VARIABLE:
+                return "Missing '(' after " + detail + " at index " + index;
+            case UNKNOWN_FUNCTION:
+                switch ((int) number) {
+                    case 0:
+                        return "Unknown function: " + detail + "() at index " + index;    
+                    case 1:
+                        return "Unknown function: " + detail + " with one argument at index " + index;    
+                    case 2:
+                        return "Unknown function: " + detail + " with two arguments at index " + index;    
+                    case 3:
+                        return "Unknown function: " + detail + " with three arguments at index " + index;    
+                    default:
+                        return "Unknown function: " + detail + " with " + number + " arguments at index " + index;    
+                }
+            case INVALID_OPERATOR:
+                return "Invalid operator, probably missing '=' at index " + index;
+            case INVALID_ARGUMENT:
+                return detail + " at index " + index;
+            case LIMIT_EXCEEDED:
+                if (index < 0) {
+                    return "Exceeded the limit of " + number + " " + detail;
+                }
+                return "Exceeded the limit of " + number + " " + detail + " at index " + index;
+            case CIRCULAR_REFERENCE:
+                return "Circular reference: " + detail;
+            case CANCELLED:
+                return "Evaluation cancelled before row " + number;
+            case NOT_DIFFERENTIABLE:
+                return "Can't differentiate " + detail + "() at index " + index;
+            default:
+                return super.getMessage();
+        }
     }
 }
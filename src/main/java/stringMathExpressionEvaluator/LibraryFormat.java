@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads libraries of compiled expressions in a compact binary format so that they can
+ * be loaded without parsing, optimizing or eliminating common sub-expressions again. All values 
+ * are big-endian and counts, slots and indices are unsigned LEB128 variable length integers 
+ * (varints). A library is laid out as:
+ * <pre>
+ * int     magic, 0x534D4545 ("SMEE")
+ * short   version, currently 1
+ * varint  number of user defined functions, each a string name and a varint arity
+ * varint  number of variable lists, each a varint count of string names
+ * varint  number of expressions, each:
+ *   string  the expression as it was written
+ *   varint  the variable list
+ *   varint  the saved evaluation count
+ *   varint  the number of shared sub-expressions, each a tree
+ *   tree    the root
+ *   byte    1 if the tree without shared sub-expressions follows, otherwise 0
+ * </pre>
+ * A string is a varint byte count followed by UTF-8. A tree is a varint node count followed by 
+ * its nodes in post-order, each an operation code byte followed, except for constants, by a 
+ * varint holding one more than the node's index in the expression string. Constants are followed 
+ * by their 8 byte value, variables and shared sub-expressions by their slot, small integer powers
+ * by their exponent byte and calls by the varint position of their function in the table of user
+ * defined functions. The version must change whenever the operation codes of {@link Node} or the 
+ * layout change.
+ */
+final class LibraryFormat {
+    static final int MAGIC = 0x534D4545;
+    static final int VERSION = 1;
+    private static final Node[] NO_ARGS = {};
+    
+    //The number of operands of each operation code, -1 for calls whose arity is their function's
+    private static final int[] ARITY = new int[Node.CALL + 1];
+    
+    static {
+        Arrays.fill(ARITY, Node.ABS, Node.FACT + 1, 1);
+        Arrays.fill(ARITY, Node.NEGATE + 1, Node.LESS_OR_EQUAL + 1, 2);
+        Arrays.fill(ARITY, Node.ATAN2, Node.PERM + 1, 2);
+        ARITY[Node.CONSTANT] = 0;
+        ARITY[Node.NEGATE] = 1;
+        ARITY[Node.PI] = 0;
+        ARITY[Node.E] = 0;
+        ARITY[Node.IF] = 3;
+        ARITY[Node.VARIABLE] = 0;
+        ARITY[Node.INTEGER_POWER] = 1;
+        ARITY[Node.POWER_HALF] = 1;
+        ARITY[Node.SHARED] = 0;
+        ARITY[Node.CALL] = -1;
+    }
+    
+    private LibraryFormat() {
+        //Not instantiable
+    }
+    
+    /**
+     * Writes a library
+     * @param expressions - the expressions in the order they are to be read back
+     * @param output - the stream to write to, which is not closed
+     * @throws IOException if the stream can't be written
+     */
+    static void write(CompiledExpression[] expressions, OutputStream output) throws IOException {
+        //The tables are only complete once every expression has been encoded
+        Map<MathFunction, Integer> functions = new IdentityHashMap<>();
+        Map<List<String>, Integer> variableLists = new HashMap<>();
+        List<List<String>> listTable = new ArrayList<>();
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        writeVarint(body, expressions.length);
+        for (CompiledExpression expression : expressions) {
+            writeString(body, expression.getExpression());
+            List<String> variables = Arrays.asList(expression.getVariables());
+            Integer list = variableLists.get(variables);
+            if (list == null) {
+                list = listTable.size();
+                variableLists.put(variables, list);
+                listTable.add(variables);
+            }
+            writeVarint(body, list);
+            writeVarint(body, expression.getSavedEvaluationCount());
+            Node[] shared = expression.getShared();
+            writeVarint(body, shared.length);
+            for (Node node : shared) {
+                writeTree(body, node, functions);
+            }
+            writeTree(body, expression.getRoot(), functions);
+            Node unshared = expression.getUnshared();
+            body.writeByte(unshared != null ? 1 : 0);
+            if (unshared != null) {
+                writeTree(body, unshared, functions);
+            }
+        }
+        
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        MathFunction[] functionTable = new MathFunction[functions.size()];
+        for (Map.Entry<MathFunction, Integer> entry : functions.entrySet()) {
+            functionTable[entry.getValue()] = entry.getKey();
+        }
+        writeVarint(out, functionTable.length);
+        for (MathFunction function : functionTable) {
+            writeString(out, function.name);
+            writeVarint(out, function.arity);
+        }
+        writeVarint(out, listTable.size());
+        for (List<String> variables : listTable) {
+            writeVarint(out, variables.size());
+            for (String name : variables) {
+                writeString(out, name);
+            }
+        }
+        bodyBytes.writeTo(out);
+        out.flush();
+    }
+    
+    private static void writeTree(DataOutputStream out, Node root, 
+            Map<MathFunction, Integer> functions) throws IOException {
+        writeVarint(out, root.size);
+        writeNodes(out, root, functions);
+    }
+    
+    private static void writeNodes(DataOutputStream out, Node node, 
+            Map<MathFunction, Integer> functions) throws IOException {
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested trees are written with an explicit stack of the operations whose 
+            //operands are still being written, in the same order as recursion
+            Node[] nodes = {node};
+            int[] steps = new int[1];
+            int top = 0;
+            while (top >= 0) {
+                Node next = nodes[top];
+                int step = steps[top]++;
+                if (step == next.args.length) {
+                    writeNode(out, next, functions);
+                    top--;
+                }
+                else if (next.args[step].depth <= Node.MAX_RECURSION) {
+                    writeNodes(out, next.args[step], functions);
+                }
+                else {
+                    if (++top == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, 2*top);
+                        steps = Arrays.copyOf(steps, 2*top);
+                    }
+                    nodes[top] = next.args[step];
+                    steps[top] = 0;
+                }
+            }
+            return;
+        }
+        if (node.chain >= Node.LONG_CHAIN) {
+            //Long chains are written from the innermost operation outwards with a loop, in the
+            //same order as recursion
+            Node[] nodes = node.chainNodes();
+            writeNodes(out, nodes[nodes.length - 1].args[0], functions);
+            for (int i=nodes.length - 1; i>=0; i--) {
+                writeNodes(out, nodes[i].args[1], functions);
+                writeNode(out, nodes[i], functions);
+            }
+            return;
+        }
+        for (Node arg : node.args) {
+            writeNodes(out, arg, functions);
+        }
+        writeNode(out, node, functions);
+    }
+    
+    private static void writeNode(DataOutputStream out, Node node, 
+            Map<MathFunction, Integer> functions) throws IOException {
+        out.writeByte(node.op);
+        if (node.op == Node.CONSTANT) {
+            //writeDouble would collapse every NaN to the canonical one
+            out.writeLong(Double.doubleToRawLongBits(node.value));
+            return;
+        }
+        writeVarint(out, node.index + 1);
+        switch (node.op) {
+            case Node.VARIABLE:
+            case Node.SHARED:
+                writeVarint(out, node.slot);
+                break;
+            case Node.INTEGER_POWER:
+                out.writeByte((int) node.value);
+                break;
+            case Node.CALL: {
+                Integer function = functions.get(node.function);
+                if (function == null) {
+                    function = functions.size();
+                    functions.put(node.function, function);
+                }
+                writeVarint(out, function);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    /**
+     * Reads a library from the buffer's position, leaving the position after the library
+     * @param buffer - the buffer holding the library
+     * @param functionRegistry - the functions that calls are resolved against by name and arity
+     * @param engine - the engine that evaluates the expressions
+     * @param limits - the limits that apply to the expressions
+     * @return the expressions in the order they were written
+     * @throws IOException if the buffer does not hold a library of this version or it is corrupt
+     * @throws InvalidMathExpressionException if an expression calls a user defined function that 
+     * is no longer registered or exceeds the resource limits
+     */
+    static CompiledExpression[] read(ByteBuffer buffer, FunctionRegistry functionRegistry, 
+            StringMathExpressionEvaluator.Engine engine, ResourceLimits limits) 
+                    throws IOException, InvalidMathExpressionException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.remaining() < 6 || in.getInt() != MAGIC) {
+                throw new IOException("Not an expression library");
+            }
+            int version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported expression library version " + version);
+            }
+            Reader reader = new Reader(in, limits);
+            MathFunction[] functions = new MathFunction[reader.readLength()];
+            String[] functionNames = new String[functions.length];
+            int[] arities = new int[functions.length];
+            for (int i=0; i<functions.length; i++) {
+                functionNames[i] = reader.readString();
+                arities[i] = reader.readCount();
+                MathFunction function = functionRegistry.lookup(functionNames[i], 0, 
+                        functionNames[i].length(), arities[i]);
+                //A function that is missing is only an error if it is called
+                functions[i] = function != null && function.op == Node.CALL ? function : null;
+            }
+            reader.functions = functions;
+            reader.functionNames = functionNames;
+            reader.arities = arities;
+            String[][] variableLists = new String[reader.readLength()][];
+            for (int i=0; i<variableLists.length; i++) {
+                String[] variables = new String[reader.readLength()];
+                for (int slot=0; slot<variables.length; slot++) {
+                    variables[slot] = reader.readString();
+                }
+                try {
+                    StringMathExpressionEvaluator.checkVariableNames(variables);
+                }
+                catch (IllegalArgumentException ex) {
+                    throw new IOException("Corrupt expression library: " + ex.getMessage());
+                }
+                variableLists[i] = variables;
+            }
+            CompiledExpression[] expressions = new CompiledExpression[reader.readLength()];
+            for (int i=0; i<expressions.length; i++) {
+                String expression = reader.readString();
+                int list = reader.readCount();
+                if (list >= variableLists.length) {
+                    throw reader.corrupt();
+                }
+                String[] variables = variableLists[list];
+                int savedEvaluations = reader.readCount();
+                Node[] shared = new Node[reader.readLength()];
+                for (int j=0; j<shared.length; j++) {
+                    shared[j] = reader.readTree(variables.length, j);
+                }
+                Node root = reader.readTree(variables.length, shared.length);
+                Node unshared = null;
+                switch (in.get()) {
+                    case 0:
+                        break;
+                    case 1:
+                        unshared = reader.readTree(variables.length, 0);
+                        break;
+                    default:
+                        throw reader.corrupt();
+                }
+                expressions[i] = StringMathExpressionEvaluator.build(expression, variables, 
+                        shared, root, savedEvaluations, unshared, engine, limits, true);
+            }
+            buffer.position(in.position());
+            return expressions;
+        }
+        catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated expression library");
+        }
+    }
+    
+    /**
+     * Decodes the parts of a library, reusing its storage between expressions
+     */
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final ResourceLimits limits;
+        private MathFunction[] functions;
+        private String[] functionNames;
+        private int[] arities;
+        private byte[] chars = new byte[256];
+        private Node[] stack = new Node[64];
+        
+        Reader(ByteBuffer in, ResourceLimits limits) {
+            this.in = in;
+            this.limits = limits;
+        }
+        
+        IOException corrupt() {
+            return new IOException("Corrupt expression library at byte " + in.position());
+        }
+        
+        int readCount() throws IOException {
+            int value = 0;
+            for (int shift=0; shift<32; shift+=7) {
+                int b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    if (value < 0) {
+                        throw corrupt();
+                    }
+                    return value;
+                }
+            }
+            throw corrupt();
+        }
+        
+        /**
+         * Reads the number of items that follow, each of which takes at least one byte, so that a
+         * corrupt count is rejected before anything of that size is allocated
+         */
+        int readLength() throws IOException {
+            int length = readCount();
+            if (length > in.remaining()) {
+                throw corrupt();
+            }
+            return length;
+        }
+        
+        String readString() throws IOException {
+            int length = readLength();
+            if (length > chars.length) {
+                chars = new byte[Math.max(length, 2*chars.length)];
+            }
+            in.get(chars, 0, length);
+            return new String(chars, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * Reads a tree without recursion so that no tree can overflow the stack while it is read,
+         * trees nested more deeply than the depth limit are rejected
+         * @param variableCount - the number of variable slots
+         * @param sharedCount - the number of shared sub-expressions the tree may read
+         */
+        Node readTree(int variableCount, int sharedCount) 
+                throws IOException, InvalidMathExpressionException {
+            int count = readLength();
+            int top = 0;
+            for (int i=0; i<count; i++) {
+                int op = in.get();
+                if (op < 0 || op >= ARITY.length) {
+                    throw corrupt();
+                }
+                Node node;
+                if (op == Node.CONSTANT) {
+                    node = new Node(Double.longBitsToDouble(in.getLong()));
+                }
+                else {
+                    int index = readCount() - 1;
+                    int arity = ARITY[op];
+                    MathFunction function = null;
+                    int slot = -1;
+                    int exponent = 0;
+                    switch (op) {
+                        case Node.VARIABLE:
+                        case Node.SHARED:
+                            slot = readCount();
+                            if (slot >= (op == Node.VARIABLE ? variableCount : sharedCount)) {
+                                throw corrupt();
+                            }
+                            break;
+                        case Node.INTEGER_POWER:
+                            exponent = in.get();
+                            if (exponent < 2 || exponent > 4) {
+                                throw corrupt();
+                            }
+                            break;
+                        case Node.CALL: {
+                            int id = readCount();
+                            if (id >= functions.length) {
+                                throw corrupt();
+                            }
+                            function = functions[id];
+                            if (function == null) {
+                                throw InvalidMathExpressionException.unknownFunction(
+                                        functionNames[id], arities[id], index);
+                            }
+                            arity = function.arity;
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                    if (arity > top) {
+                        throw corrupt();
+                    }
+                    //Arrays.copyOfRange would create the array reflectively
+                    Node[] args = arity == 0 ? NO_ARGS : new Node[arity];
+                    System.arraycopy(stack, top - arity, args, 0, arity);
+                    top -= arity;
+                    switch (op) {
+                        case Node.VARIABLE:
+                            node = Node.variable(slot, index);
+                            break;
+                        case Node.SHARED:
+                            node = Node.shared(slot, index);
+                            break;
+                        case Node.INTEGER_POWER:
+                            node = Node.integerPower(args[0], exponent, index);
+                            break;
+                        case Node.CALL:
+                            node = Node.call(function, index, args);
+                            break;
+                        default:
+                            node = new Node(op, index, args);
+                            break;
+                    }
+                    if (node.depth > limits.getMaxDepth()) {
+                        throw InvalidMathExpressionException.limitExceeded("levels of nesting", 
+                                limits.getMaxDepth(), index);
+                    }
+                }
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, 2*top);
+                }
+                stack[top++] = node;
+            }
+            if (top != 1) {
+                throw corrupt();
+            }
+            Node root = stack[0];
+            stack[0] = null;
+            return root;
+        }
+    }
+}
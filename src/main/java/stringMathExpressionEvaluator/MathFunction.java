@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * A function that can be called from a math expression, identified by its name and number of 
+ * arguments. Built-in functions are computed by their own operation code while user defined 
+ * functions are called through a reference to their implementation held by the expression tree.
+ */
+final class MathFunction {
+    final String name;
+    final int arity;
+    final int op;
+    final boolean pure;
+    private final UnaryFunction unary;
+    private final BinaryFunction binary;
+    private final NaryFunction nary;
+    
+    private MathFunction(String name, int arity, int op, boolean pure, UnaryFunction unary, 
+            BinaryFunction binary, NaryFunction nary) {
+        this.name = name;
+        this.arity = arity;
+        this.op = op;
+        this.pure = pure;
+        this.unary = unary;
+        this.binary = binary;
+        this.nary = nary;
+    }
+    
+    /**
+     * Creates a built-in function
+     * @param name - the lower case name of the function
+     * @param arity - the number of arguments
+     * @param op - the operation code that computes the function
+     * @return the function
+     */
+    static MathFunction builtIn(String name, int arity, int op) {
+        return new MathFunction(name, arity, op, true, null, null, null);
+    }
+    
+    static MathFunction custom(String name, UnaryFunction function, boolean pure) {
+        return new MathFunction(name, 1, Node.CALL, pure, function, null, null);
+    }
+    
+    static MathFunction custom(String name, BinaryFunction function, boolean pure) {
+        return new MathFunction(name, 2, Node.CALL, pure, null, function, null);
+    }
+    
+    static MathFunction custom(String name, int arity, NaryFunction function, boolean pure) {
+        return new MathFunction(name, arity, Node.CALL, pure, null, null, function);
+    }
+    
+    double call(double x) throws InvalidMathExpressionException {
+        return unary != null ? unary.apply(x) : nary.apply(new double[] {x});
+    }
+    
+    double call(double x, double y) throws InvalidMathExpressionException {
+        return binary != null ? binary.apply(x, y) : nary.apply(new double[] {x, y});
+    }
+    
+    double call(double[] args) throws InvalidMathExpressionException {
+        return nary.apply(args);
+    }
+}
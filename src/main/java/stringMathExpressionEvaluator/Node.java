@@ -0,0 +1,885 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A node of an immutable expression tree produced by parsing a math expression. Each node holds an
+ * operation code and the nodes of its operands. Evaluating the root node of a tree computes the
+ * numerical value of the whole expression without any further examination of the expression
+ * string.
+ */
+final class Node {
+    //Operation codes
+    static final int CONSTANT = 0;
+    static final int NEGATE = 1;
+    static final int ADD = 2;
+    static final int SUBTRACT = 3;
+    static final int MULTIPLY = 4;
+    static final int DIVIDE = 5;
+    static final int MODULUS = 6;
+    static final int POWER = 7;
+    static final int EQUAL = 8;
+    static final int NOT_EQUAL = 9;
+    static final int GREATER = 10;
+    static final int GREATER_OR_EQUAL = 11;
+    static final int LESS = 12;
+    static final int LESS_OR_EQUAL = 13;
+    static final int PI = 14;
+    static final int E = 15;
+    static final int ABS = 16;
+    static final int CEIL = 17;
+    static final int FLOOR = 18;
+    static final int ROUND = 19;
+    static final int SIGNUM = 20;
+    static final int SQRT = 21;
+    static final int CBRT = 22;
+    static final int SIN = 23;
+    static final int COS = 24;
+    static final int TAN = 25;
+    static final int ASIN = 26;
+    static final int ACOS = 27;
+    static final int ATAN = 28;
+    static final int SINH = 29;
+    static final int COSH = 30;
+    static final int TANH = 31;
+    static final int ASINH = 32;
+    static final int ACOSH = 33;
+    static final int ATANH = 34;
+    static final int EXP = 35;
+    static final int LOG = 36;
+    static final int LOG2 = 37;
+    static final int LOG10 = 38;
+    static final int TO_RADIANS = 39;
+    static final int TO_DEGREES = 40;
+    static final int NOT = 41;
+    static final int FACT = 42;
+    static final int ATAN2 = 43;
+    static final int HYPOT = 44;
+    static final int LOG_BASE = 45;
+    static final int MAX = 46;
+    static final int MIN = 47;
+    static final int AND = 48;
+    static final int OR = 49;
+    static final int XOR = 50;
+    static final int COMB = 51;
+    static final int PERM = 52;
+    static final int IF = 53;
+    static final int VARIABLE = 54;
+    static final int INTEGER_POWER = 55;
+    static final int POWER_HALF = 56;
+    static final int SHARED = 57;
+    static final int CALL = 58;
+
+    static final double LOG_2 = Math.log(2);
+
+    private static final Node[] NO_ARGS = {};
+    /**
+     * Chains of left associative operations at least this long are evaluated and walked with a
+     * loop instead of recursion so that long flat expressions don't overflow the stack
+     */
+    static final int LONG_CHAIN = 16;
+    /**
+     * Trees nested more deeply than this are evaluated and walked with explicit stacks instead of
+     * recursion so that expressions of any depth can be handled on small thread stacks
+     */
+    static final int MAX_RECURSION = 64;
+    
+    //170! is the largest factorial that is finite as a double
+    private static final int MAX_FACTORIAL = 170;
+    //Every binomial coefficient comb(m, n) with n and m-n both larger than this is infinite
+    private static final int MAX_COMB_TERMS = 1024;
+    private static final double[] FACTORIALS = new double[MAX_FACTORIAL + 1];
+    
+    static {
+        //Multiplied in the same order as a loop from 2 to x so the values are unchanged
+        FACTORIALS[0] = 1;
+        for (int i=1; i<=MAX_FACTORIAL; i++) {
+            FACTORIALS[i] = FACTORIALS[i - 1] * i;
+        }
+    }
+
+    final int op;
+    final double value;
+    final int slot;
+    final Node[] args;
+    final int index;
+    final MathFunction function;
+    /**
+     * The number of levels of nesting in the tree rooted at this node, 1 for a node without
+     * operands. The left operand of a left associative operation is not counted as nested so a
+     * flat chain such as 1+2+3+4 has a depth of 2 however long it is.
+     */
+    final int depth;
+    /** The number of nodes in the tree rooted at this node, saturating at Integer.MAX_VALUE */
+    final int size;
+    /**
+     * The number of operations in the tree rooted at this node, that is, the nodes other than 
+     * constants, variables and reads of shared values, saturating at Integer.MAX_VALUE
+     */
+    final int operations;
+    /**
+     * The number of left associative operations along the left edge of the tree rooted at this
+     * node, 0 when this node isn't a left associative operation
+     */
+    final int chain;
+    //The operations along the left edge, computed on first use
+    private volatile Node[] chainNodes;
+
+    private Node(int op, double value, int slot, Node[] args, int index, MathFunction function) {
+        this.op = op;
+        this.value = value;
+        this.slot = slot;
+        this.args = args;
+        this.index = index;
+        this.function = function;
+        boolean leftAssociative = isLeftAssociative(op);
+        int maxDepth = 0;
+        long nodes = 1;
+        long ops = op == CONSTANT || op == VARIABLE || op == SHARED ? 0 : 1;
+        for (int i=0; i<args.length; i++) {
+            int argDepth = args[i].depth;
+            if (i == 0 && leftAssociative) {
+                argDepth--;
+            }
+            maxDepth = Math.max(maxDepth, argDepth);
+            nodes += args[i].size;
+            ops += args[i].operations;
+        }
+        depth = maxDepth + 1;
+        size = (int) Math.min(nodes, Integer.MAX_VALUE);
+        operations = (int) Math.min(ops, Integer.MAX_VALUE);
+        chain = leftAssociative ? args[0].chain + 1 : 0;
+    }
+
+    /**
+     * Checks whether a binary operation groups from the left, so that a flat sequence of them
+     * builds a chain down the left operands
+     * @param op - the operation code
+     * @return true for the arithmetic and ordering operations
+     */
+    static boolean isLeftAssociative(int op) {
+        switch (op) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULUS:
+            case GREATER:
+            case GREATER_OR_EQUAL:
+            case LESS:
+            case LESS_OR_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Lists the left associative operations along the left edge of the tree rooted at this node
+     * @return the operations starting with this node, each one the left operand of the one before
+     * it. The left operand of the last one is the first value of the chain.
+     */
+    Node[] chainNodes() {
+        Node[] nodes = chainNodes;
+        if (nodes == null) {
+            nodes = new Node[chain];
+            Node node = this;
+            for (int i=0; i<nodes.length; i++) {
+                nodes[i] = node;
+                node = node.args[0];
+            }
+            chainNodes = nodes;
+        }
+        return nodes;
+    }
+
+    /**
+     * Lists the operations of a tree that are nested too deeply to be visited by recursion, those 
+     * deeper than {@link #MAX_RECURSION} that are reached through other such operations, so that a
+     * pass over the tree can handle each of them in a loop and only recurse into their shallower 
+     * operands. An operation that appears more than once in the tree is listed each time.
+     * @param root - the root of the tree
+     * @return the deeply nested operations, each one before its operands
+     */
+    static List<Node> deepNodes(Node root) {
+        List<Node> nodes = new ArrayList<>();
+        if (root.depth > MAX_RECURSION) {
+            nodes.add(root);
+        }
+        for (int i=0; i<nodes.size(); i++) {
+            for (Node arg : nodes.get(i).args) {
+                if (arg.depth > MAX_RECURSION) {
+                    nodes.add(arg);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Lists the nodes of a tree too deeply nested for recursion in the order that a recursive walk
+     * would finish them, so that a pass which remembers its result for each node can visit them 
+     * with a loop first and then never has to recurse more than {@link #MAX_RECURSION} levels. The
+     * operations deeper than that are listed after their operands, and their operands that are 
+     * shallow enough for recursion are listed without their own operands.
+     * @param root - the root of the tree
+     * @param done - the nodes already visited by the pass, which are left out along with their
+     * operands
+     * @return the nodes, each listed once, ending with the root
+     */
+    static List<Node> postOrder(Node root, Map<Node, ?> done) {
+        List<Node> order = new ArrayList<>();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        Node[] nodes = new Node[16];
+        int[] steps = new int[16];
+        int top = 0;
+        nodes[0] = root;
+        seen.add(root);
+        while (top >= 0) {
+            Node node = nodes[top];
+            int step = steps[top]++;
+            if (step == node.args.length) {
+                order.add(node);
+                top--;
+                continue;
+            }
+            Node arg = node.args[step];
+            if (done.containsKey(arg) || !seen.add(arg)) {
+                continue;
+            }
+            if (arg.depth > MAX_RECURSION) {
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2*top);
+                    steps = Arrays.copyOf(steps, 2*top);
+                }
+                nodes[top] = arg;
+                steps[top] = 0;
+            }
+            else {
+                order.add(arg);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Constructs a node that holds a constant value
+     * @param value - the value of the constant
+     */
+    Node(double value) {
+        this(CONSTANT, value, -1, NO_ARGS, -1, null);
+    }
+
+    /**
+     * Constructs a node that performs an operation on its operands
+     * @param op - the operation code
+     * @param index - the index in the expression string where the operation appears, used for
+     * reporting errors
+     * @param args - the operands of the operation
+     */
+    Node(int op, int index, Node... args) {
+        this(op, 0, -1, args, index, null);
+    }
+
+    /**
+     * Creates a node that reads the value of a variable
+     * @param slot - the index of the variable in the array of variable values
+     * @param index - the index in the expression string where the variable appears
+     * @return the node
+     */
+    static Node variable(int slot, int index) {
+        return new Node(VARIABLE, 0, slot, NO_ARGS, index, null);
+    }
+
+    /**
+     * Creates a node that reads the value of a shared sub-expression that has already been computed
+     * @param slot - the index of the sub-expression in the array of shared values
+     * @param index - the index in the expression string where the sub-expression first appears
+     * @return the node
+     */
+    static Node shared(int slot, int index) {
+        return new Node(SHARED, 0, slot, NO_ARGS, index, null);
+    }
+
+    /**
+     * Creates a node that raises its operand to a small integer power by multiplication
+     * @param base - the operand
+     * @param exponent - the power, 2, 3, or 4
+     * @param index - the index in the expression string where the operation appears
+     * @return the node
+     */
+    static Node integerPower(Node base, int exponent, int index) {
+        return new Node(INTEGER_POWER, exponent, -1, new Node[] {base}, index, null);
+    }
+
+    /**
+     * Creates a node that calls a user defined function
+     * @param function - the function
+     * @param index - the index in the expression string where the function appears
+     * @param args - the arguments of the function
+     * @return the node
+     */
+    static Node call(MathFunction function, int index, Node... args) {
+        return new Node(CALL, 0, -1, args, index, function);
+    }
+
+    /**
+     * Creates a copy of this node with different operands
+     * @param args - the new operands
+     * @return the copy
+     */
+    Node withArgs(Node... args) {
+        return new Node(op, value, slot, args, index, function);
+    }
+
+    /**
+     * Computes the numerical value of the tree rooted at this node
+     * @param vars - the values of the variables indexed by slot
+     * @param shared - the values of the shared sub-expressions indexed by slot
+     * @return the numerical value
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     */
+    double eval(double[] vars, double[] shared) throws InvalidMathExpressionException {
+        if (depth > MAX_RECURSION) {
+            return evalDeep(vars, shared);
+        }
+        if (chain >= LONG_CHAIN) {
+            return evalChain(vars, shared);
+        }
+        switch (op) {
+            case CONSTANT:
+                return value;
+            case VARIABLE:
+                return vars[slot];
+            case SHARED:
+                return shared[slot];
+            case NEGATE:
+                return -args[0].eval(vars, shared);
+            case ADD:
+                return args[0].eval(vars, shared) + args[1].eval(vars, shared);
+            case SUBTRACT:
+                return args[0].eval(vars, shared) - args[1].eval(vars, shared);
+            case MULTIPLY:
+                return args[0].eval(vars, shared) * args[1].eval(vars, shared);
+            case DIVIDE:
+                return args[0].eval(vars, shared) / args[1].eval(vars, shared);
+            case MODULUS:
+                return args[0].eval(vars, shared) % args[1].eval(vars, shared);
+            case POWER:
+                return Math.pow(args[0].eval(vars, shared), args[1].eval(vars, shared));
+            case INTEGER_POWER:
+                return integerPower(args[0].eval(vars, shared), (int) value);
+            case POWER_HALF:
+                return powerHalf(args[0].eval(vars, shared));
+            case EQUAL:
+                return args[0].eval(vars, shared) == args[1].eval(vars, shared) ? 1 : 0;
+            case NOT_EQUAL:
+                return args[0].eval(vars, shared) != args[1].eval(vars, shared) ? 1 : 0;
+            case GREATER:
+                return args[0].eval(vars, shared) > args[1].eval(vars, shared) ? 1 : 0;
+            case GREATER_OR_EQUAL:
+                return args[0].eval(vars, shared) >= args[1].eval(vars, shared) ? 1 : 0;
+            case LESS:
+                return args[0].eval(vars, shared) < args[1].eval(vars, shared) ? 1 : 0;
+            case LESS_OR_EQUAL:
+                return args[0].eval(vars, shared) <= args[1].eval(vars, shared) ? 1 : 0;
+            case PI:
+                return Math.PI;
+            case E:
+                return Math.E;
+            case ABS:
+                return Math.abs(args[0].eval(vars, shared));
+            case CEIL:
+                return Math.ceil(args[0].eval(vars, shared));
+            case FLOOR:
+                return Math.floor(args[0].eval(vars, shared));
+            case ROUND:
+                return Math.round(args[0].eval(vars, shared));
+            case SIGNUM:
+                return Math.signum(args[0].eval(vars, shared));
+            case SQRT:
+                return Math.sqrt(args[0].eval(vars, shared));
+            case CBRT:
+                return Math.cbrt(args[0].eval(vars, shared));
+            case SIN:
+                return Math.sin(args[0].eval(vars, shared));
+            case COS:
+                return Math.cos(args[0].eval(vars, shared));
+            case TAN:
+                return Math.tan(args[0].eval(vars, shared));
+            case ASIN:
+                return Math.asin(args[0].eval(vars, shared));
+            case ACOS:
+                return Math.acos(args[0].eval(vars, shared));
+            case ATAN:
+                return Math.atan(args[0].eval(vars, shared));
+            case SINH:
+                return Math.sinh(args[0].eval(vars, shared));
+            case COSH:
+                return Math.cosh(args[0].eval(vars, shared));
+            case TANH:
+                return Math.tanh(args[0].eval(vars, shared));
+            case ASINH:
+                return asinh(args[0].eval(vars, shared));
+            case ACOSH:
+                return acosh(args[0].eval(vars, shared));
+            case ATANH:
+                return atanh(args[0].eval(vars, shared));
+            case EXP:
+                return Math.exp(args[0].eval(vars, shared));
+            case LOG:
+                return Math.log(args[0].eval(vars, shared));
+            case LOG2:
+                return Math.log(args[0].eval(vars, shared)) / LOG_2;
+            case LOG10:
+                return Math.log10(args[0].eval(vars, shared));
+            case TO_RADIANS:
+                return Math.toRadians(args[0].eval(vars, shared));
+            case TO_DEGREES:
+                return Math.toDegrees(args[0].eval(vars, shared));
+            case NOT:
+                return args[0].eval(vars, shared) == 0 ? 1 : 0;
+            case FACT:
+                return fact(args[0].eval(vars, shared), index);
+            case ATAN2:
+                return Math.atan2(args[0].eval(vars, shared), args[1].eval(vars, shared));
+            case HYPOT:
+                return Math.hypot(args[0].eval(vars, shared), args[1].eval(vars, shared));
+            case LOG_BASE: {
+                double base = args[0].eval(vars, shared);
+                return Math.log(args[1].eval(vars, shared)) / Math.log(base);
+            }
+            case MAX:
+                return Math.max(args[0].eval(vars, shared), args[1].eval(vars, shared));
+            case MIN:
+                return Math.min(args[0].eval(vars, shared), args[1].eval(vars, shared));
+            case AND:
+                //The second argument is only evaluated when it decides the result
+                if (args[0].eval(vars, shared) == 0) {
+                    return 0;
+                }
+                return args[1].eval(vars, shared) != 0 ? 1 : 0;
+            case OR:
+                if (args[0].eval(vars, shared) != 0) {
+                    return 1;
+                }
+                return args[1].eval(vars, shared) != 0 ? 1 : 0;
+            case XOR: {
+                double x = args[0].eval(vars, shared);
+                return xor(x, args[1].eval(vars, shared));
+            }
+            case COMB: {
+                double m = args[0].eval(vars, shared);
+                return comb(m, args[1].eval(vars, shared), index);
+            }
+            case PERM: {
+                double m = args[0].eval(vars, shared);
+                return perm(m, args[1].eval(vars, shared), index);
+            }
+            case IF:
+                //Only the branch that is taken is evaluated
+                return args[0].eval(vars, shared) != 0 ? args[1].eval(vars, shared) : 
+                    args[2].eval(vars, shared);
+            case CALL:
+                switch (args.length) {
+                    case 1:
+                        return function.call(args[0].eval(vars, shared));
+                    case 2: {
+                        double x = args[0].eval(vars, shared);
+                        return function.call(x, args[1].eval(vars, shared));
+                    }
+                    default: {
+                        double[] values = new double[args.length];
+                        for (int i=0; i<values.length; i++) {
+                            values[i] = args[i].eval(vars, shared);
+                        }
+                        return function.call(values);
+                    }
+                }
+            default:
+                throw new IllegalStateException("Unknown operation code: " + op);
+        }
+    }
+
+    //Evaluates a long chain from the innermost operation outwards in the same order as recursion
+    private double evalChain(double[] vars, double[] shared) throws InvalidMathExpressionException {
+        Node[] nodes = chainNodes();
+        double x = nodes[nodes.length - 1].args[0].eval(vars, shared);
+        for (int i=nodes.length - 1; i>=0; i--) {
+            Node node = nodes[i];
+            x = applyLeftAssociative(node.op, x, node.args[1].eval(vars, shared));
+        }
+        return x;
+    }
+
+    /**
+     * Evaluates a tree too deeply nested for recursion. The operations whose operands are still 
+     * being computed are held on an explicit stack and their operands are evaluated in the same 
+     * order as recursion, skipping the arguments of conditionals that aren't needed, so the result
+     * and any exception thrown are the same. Operands that are shallow enough are evaluated by 
+     * recursion.
+     */
+    private double evalDeep(double[] vars, double[] shared) throws InvalidMathExpressionException {
+        Node[] nodes = new Node[16];
+        int[] steps = new int[16];
+        double[] values = new double[16];
+        int top = 0;
+        int count = 0;
+        nodes[0] = this;
+        while (top >= 0) {
+            Node node = nodes[top];
+            int step = steps[top]++;
+            Node next;
+            switch (node.op) {
+                case IF:
+                    if (step == 0) {
+                        next = node.args[0];
+                    }
+                    else if (step == 1) {
+                        next = values[--count] != 0 ? node.args[1] : node.args[2];
+                    }
+                    else {
+                        //The value of the branch taken is left as the value of the operation
+                        top--;
+                        continue;
+                    }
+                    break;
+                case AND:
+                case OR:
+                    if (step == 0) {
+                        next = node.args[0];
+                    }
+                    else if (step == 1 && (values[count - 1] != 0) == (node.op == AND)) {
+                        //The first argument doesn't decide the result so the second is needed
+                        count--;
+                        next = node.args[1];
+                    }
+                    else {
+                        values[count - 1] = values[count - 1] != 0 ? 1 : 0;
+                        top--;
+                        continue;
+                    }
+                    break;
+                default:
+                    if (step < node.args.length) {
+                        next = node.args[step];
+                        break;
+                    }
+                    count -= node.args.length;
+                    values[count] = node.apply(values, count);
+                    count++;
+                    top--;
+                    continue;
+            }
+            if (next.depth > MAX_RECURSION) {
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2*top);
+                    steps = Arrays.copyOf(steps, 2*top);
+                }
+                nodes[top] = next;
+                steps[top] = 0;
+            }
+            else {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, 2*count);
+                }
+                values[count++] = next.eval(vars, shared);
+            }
+        }
+        return values[0];
+    }
+
+    /**
+     * Applies this operation to the values of its operands, which must not be a conditional that 
+     * skips some of them
+     * @param values - holds the values of the operands
+     * @param base - the position of the value of the first operand
+     * @return the result
+     * @throws InvalidMathExpressionException if a function is called with arguments outside of its
+     * domain
+     */
+    private double apply(double[] values, int base) throws InvalidMathExpressionException {
+        double x = values[base];
+        double y = args.length > 1 ? values[base + 1] : 0;
+        if (isLeftAssociative(op)) {
+            return applyLeftAssociative(op, x, y);
+        }
+        switch (op) {
+            case NEGATE:
+                return -x;
+            case POWER:
+                return Math.pow(x, y);
+            case INTEGER_POWER:
+                return integerPower(x, (int) value);
+            case POWER_HALF:
+                return powerHalf(x);
+            case EQUAL:
+                return x == y ? 1 : 0;
+            case NOT_EQUAL:
+                return x != y ? 1 : 0;
+            case ABS:
+                return Math.abs(x);
+            case CEIL:
+                return Math.ceil(x);
+            case FLOOR:
+                return Math.floor(x);
+            case ROUND:
+                return Math.round(x);
+            case SIGNUM:
+                return Math.signum(x);
+            case SQRT:
+                return Math.sqrt(x);
+            case CBRT:
+                return Math.cbrt(x);
+            case SIN:
+                return Math.sin(x);
+            case COS:
+                return Math.cos(x);
+            case TAN:
+                return Math.tan(x);
+            case ASIN:
+                return Math.asin(x);
+            case ACOS:
+                return Math.acos(x);
+            case ATAN:
+                return Math.atan(x);
+            case SINH:
+                return Math.sinh(x);
+            case COSH:
+                return Math.cosh(x);
+            case TANH:
+                return Math.tanh(x);
+            case ASINH:
+                return asinh(x);
+            case ACOSH:
+                return acosh(x);
+            case ATANH:
+                return atanh(x);
+            case EXP:
+                return Math.exp(x);
+            case LOG:
+                return Math.log(x);
+            case LOG2:
+                return Math.log(x) / LOG_2;
+            case LOG10:
+                return Math.log10(x);
+            case TO_RADIANS:
+                return Math.toRadians(x);
+            case TO_DEGREES:
+                return Math.toDegrees(x);
+            case NOT:
+                return x == 0 ? 1 : 0;
+            case FACT:
+                return fact(x, index);
+            case ATAN2:
+                return Math.atan2(x, y);
+            case HYPOT:
+                return Math.hypot(x, y);
+            case LOG_BASE:
+                return Math.log(y) / Math.log(x);
+            case MAX:
+                return Math.max(x, y);
+            case MIN:
+                return Math.min(x, y);
+            case XOR:
+                return xor(x, y);
+            case COMB:
+                return comb(x, y, index);
+            case PERM:
+                return perm(x, y, index);
+            case CALL:
+                switch (args.length) {
+                    case 1:
+                        return function.call(x);
+                    case 2:
+                        return function.call(x, y);
+                    default:
+                        return function.call(Arrays.copyOfRange(values, base, base + args.length));
+                }
+            default:
+                throw new IllegalStateException("Unknown operation code: " + op);
+        }
+    }
+
+    /**
+     * Applies a left associative operation to the values of its operands
+     * @param op - the operation code, one that {@link #isLeftAssociative(int)} accepts
+     * @param x - the value of the left operand
+     * @param y - the value of the right operand
+     * @return the result
+     */
+    static double applyLeftAssociative(int op, double x, double y) {
+        switch (op) {
+            case ADD:
+                return x + y;
+            case SUBTRACT:
+                return x - y;
+            case MULTIPLY:
+                return x * y;
+            case DIVIDE:
+                return x / y;
+            case MODULUS:
+                return x % y;
+            case GREATER:
+                return x > y ? 1 : 0;
+            case GREATER_OR_EQUAL:
+                return x >= y ? 1 : 0;
+            case LESS:
+                return x < y ? 1 : 0;
+            case LESS_OR_EQUAL:
+                return x <= y ? 1 : 0;
+            default:
+                throw new IllegalStateException("Not a left associative operation code: " + op);
+        }
+    }
+
+    static double integerPower(double x, int exponent) {
+        double square = x * x;
+        switch (exponent) {
+            case 2:
+                return square;
+            case 3:
+                return square * x;
+            default:
+                return square * square;
+        }
+    }
+
+    /**
+     * Computes the square root of x with the special cases of {@link Math#pow(double, double)} 
+     * when its second argument is 0.5
+     * @param x - the value
+     * @return x^0.5
+     */
+    static double powerHalf(double x) {
+        if (x == Double.NEGATIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        //Adding zero turns -0.0 into 0.0
+        return Math.sqrt(x + 0.0);
+    }
+
+    static double and(double x, double y) {
+        return x != 0 && y != 0 ? 1 : 0;
+    }
+
+    static double or(double x, double y) {
+        return x != 0 || y != 0 ? 1 : 0;
+    }
+
+    static double xor(double x, double y) {
+        return (x != 0 && y == 0) || (x == 0 && y != 0) ? 1 : 0;
+    }
+
+    static double asinh(double x) {
+        return Math.log(x + Math.sqrt(x*x + 1));
+    }
+
+    static double acosh(double x) {
+        return Math.log(x + Math.sqrt(x*x - 1));
+    }
+
+    static double atanh(double x) {
+        return 0.5*Math.log((1 + x) / (1 - x));
+    }
+
+    /**
+     * Computes the factorial of x by table look up
+     * @param x - a non-negative integer
+     * @param index - the index in the expression string of the function, used for reporting errors
+     * @return x!, which is infinite for x greater than 170
+     * @throws InvalidMathExpressionException if x is not a non-negative integer
+     */
+    static double fact(double x, int index) throws InvalidMathExpressionException {
+        if (Math.round(x) != x || x < 0) {
+            throw InvalidMathExpressionException.invalidArgument("Factorial of non-integer or non-positive integer", index);
+        }
+        return x <= MAX_FACTORIAL ? FACTORIALS[(int) x] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Computes the number of combinations of m things taken n at a time. The work is bounded no 
+     * matter how large m and n are: at most 1024 terms are multiplied since the result is infinite
+     * if both n and m-n are larger than that.
+     * @param m - a non-negative integer
+     * @param n - a non-negative integer not greater than m
+     * @param index - the index in the expression string of the function, used for reporting errors
+     * @return m!/(n!(m-n)!)
+     * @throws InvalidMathExpressionException if m and n are not valid
+     */
+    static double comb(double m, double n, int index) throws InvalidMathExpressionException {
+        if (Math.round(m) != m || m < 0 || Math.round(n) != n || n < 0 || m < n) {
+            throw InvalidMathExpressionException.invalidArgument("In comb(m,n), n and m must be non-negative integers with m>=n", index);
+        }
+        if (n <= MAX_COMB_TERMS) {
+            double ret = combProduct(m, n);
+            if (ret != Double.POSITIVE_INFINITY || m - n >= n) {
+                return ret;
+            }
+            //The running product overflowed on its way down to a finite result, try the other way
+        }
+        if (m - n <= MAX_COMB_TERMS) {
+            return combProduct(m, m - n);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * Computes m/1 * (m-1)/2 * ... * (m-n+1)/n, stopping early once the product is infinite since
+     * each factor is positive
+     */
+    private static double combProduct(double m, double n) {
+        double ret = 1;
+        for (int j=1; j<=n && ret != Double.POSITIVE_INFINITY; j++) {
+            ret *= (m - j + 1) / j;
+        }
+        return ret;
+    }
+
+    /**
+     * Computes the number of permutations of m things taken n at a time. At most 170 terms are 
+     * multiplied since the product of more than 170 distinct positive integers is infinite.
+     * @param m - a non-negative integer
+     * @param n - a non-negative integer not greater than m
+     * @param index - the index in the expression string of the function, used for reporting errors
+     * @return m!/(m-n)!
+     * @throws InvalidMathExpressionException if m and n are not valid
+     */
+    static double perm(double m, double n, int index) throws InvalidMathExpressionException {
+        if (Math.round(m) != m || m < 0 || Math.round(n) != n || n < 0 || m < n) {
+            throw InvalidMathExpressionException.invalidArgument("In perm(m,n), n and m must be non-negative integers with m>=n", index);
+        }
+        if (n > MAX_FACTORIAL) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double ret = 1;
+        for (int j=0; j<n && ret != Double.POSITIVE_INFINITY; j++) {
+            ret *= m - j;
+        }
+        return ret;
+    }
+}
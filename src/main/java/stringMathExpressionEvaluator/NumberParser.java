@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.math.BigInteger;
+
+/**
+ * Converts decimal numbers to doubles directly from the characters of the input. The common case 
+ * of a number whose significant digits, up to 18 of them, form an integer no larger than 2^53 and 
+ * whose power of ten is at most 22 in magnitude is converted exactly using Clinger's fast path: 
+ * both the digits and the power of ten are exactly representable as doubles so a single 
+ * multiplication or division gives the correctly rounded result. Most other normal numbers, such 
+ * as the 17 digit ones written by {@link Double#toString(double)}, are converted by the 
+ * Eisel-Lemire algorithm, which multiplies the digits by a 128 bit approximation of the power of 
+ * ten and gives up in the rare cases where the approximation can't decide the rounding. Those, 
+ * subnormal and out of range numbers are passed to {@link Double#parseDouble(String)}, so the 
+ * result is always bit for bit identical to that method. No objects are created except on that
+ * last path.
+ */
+final class NumberParser {
+    //Every power of ten up to 10^22 is exactly representable as a double
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    //Every integer up to 2^53 is exactly representable as a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    //Digits beyond this many are not accumulated so the mantissa can't overflow
+    private static final int MAX_DIGITS = 18;
+    //The range of powers of ten in the table of 128 bit approximations, beyond which every 
+    //number of at most MAX_DIGITS digits is zero or infinite
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    //The high and low 64 bits of each power of ten, normalized to 128 bits and rounded down
+    private static final long[] POWER_BITS = new long[2 * (MAX_POWER - MIN_POWER + 1)];
+    
+    static {
+        for (int q=MIN_POWER; q<=MAX_POWER; q++) {
+            BigInteger power = BigInteger.TEN.pow(Math.abs(q));
+            int bits = power.bitLength();
+            BigInteger normalized;
+            if (q >= 0) {
+                normalized = bits > 128 ? power.shiftRight(bits - 128) : 
+                    power.shiftLeft(128 - bits);
+            }
+            else {
+                normalized = BigInteger.ONE.shiftLeft(bits + 127).divide(power);
+            }
+            POWER_BITS[2 * (q - MIN_POWER)] = normalized.shiftRight(64).longValue();
+            POWER_BITS[2 * (q - MIN_POWER) + 1] = normalized.longValue();
+        }
+    }
+    
+    private NumberParser() {
+        //Not instantiable
+    }
+    
+    /**
+     * Parses a decimal number of the form <code>[+|-]digits[.digits][(e|E)[+|-]digits]</code>, 
+     * where either the integer or fraction digits may be missing but not both
+     * @param str - the characters holding the number
+     * @param start - the index of the first character of the number
+     * @param end - the index after the last character of the number
+     * @return the value of the number, identical to 
+     * <code>Double.parseDouble(str.subSequence(start, end).toString())</code>
+     * @throws NumberFormatException if the characters are not a valid number
+     */
+    static double parse(CharSequence str, int start, int end) {
+        double value = parseDecimal(str, start, end);
+        if (value != value) {
+            //Either invalid or a form such as NaN that only Double.parseDouble accepts
+            return slowParse(str, start, end);
+        }
+        return value;
+    }
+    
+    /**
+     * Parses a field of a data file as {@link Double#parseDouble(String)} would, except that 
+     * text which isn't a number gives NaN rather than an exception. Surrounding white space, 
+     * <code>NaN</code>, <code>Infinity</code> and the type suffixes <code>f</code> and 
+     * <code>d</code> are accepted like that method does. Only hexadecimal numbers are passed to it.
+     * @param str - the characters holding the field
+     * @param start - the index of the first character of the field
+     * @param end - the index after the last character of the field
+     * @return the value of the field or NaN if it is empty or not a number
+     */
+    static double parseField(CharSequence str, int start, int end) {
+        while (start < end && str.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && str.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return Double.NaN;
+        }
+        char last = str.charAt(end - 1);
+        int numberEnd = last == 'f' || last == 'F' || last == 'd' || last == 'D' ? end - 1 : end;
+        double value = parseDecimal(str, start, numberEnd);
+        if (value == value) {
+            return value;
+        }
+        int pos = start;
+        boolean negative = str.charAt(pos) == '-';
+        if (negative || str.charAt(pos) == '+') {
+            pos++;
+        }
+        if (matches(str, pos, end, "NaN")) {
+            return Double.NaN;
+        }
+        if (matches(str, pos, end, "Infinity")) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        if (pos + 1 < end && str.charAt(pos) == '0' && 
+                (str.charAt(pos + 1) == 'x' || str.charAt(pos + 1) == 'X')) {
+            try {
+                return slowParse(str, start, end);
+            }
+            catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+    
+    private static boolean matches(CharSequence str, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i=0; i<word.length(); i++) {
+            if (str.charAt(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Parses a decimal number of the form accepted by {@link #parse(CharSequence, int, int)}
+     * @return the value of the number or NaN if the characters are not of that form
+     */
+    private static double parseDecimal(CharSequence str, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (str.charAt(pos) == '-' || str.charAt(pos) == '+')) {
+            negative = str.charAt(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean truncated = false;
+        boolean anyDigits = false;
+        boolean fraction = false;
+        for (; pos < end; pos++) {
+            char c = str.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                anyDigits = true;
+                if (mantissa == 0 && c == '0') {
+                    //Leading zeros are not significant
+                    if (fraction) {
+                        exponent--;
+                    }
+                }
+                else if (digits < MAX_DIGITS) {
+                    mantissa = 10*mantissa + (c - '0');
+                    digits++;
+                    if (fraction) {
+                        exponent--;
+                    }
+                }
+                else {
+                    truncated |= c != '0';
+                    if (!fraction) {
+                        exponent++;
+                    }
+                }
+            }
+            else if (c == '.' && !fraction) {
+                fraction = true;
+            }
+            else {
+                break;
+            }
+        }
+        if (!anyDigits) {
+            return Double.NaN;
+        }
+        if (pos < end && (str.charAt(pos) == 'e' || str.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (str.charAt(pos) == '-' || str.charAt(pos) == '+')) {
+                negativeExponent = str.charAt(pos) == '-';
+                pos++;
+            }
+            int explicit = 0;
+            int exponentStart = pos;
+            for (; pos < end; pos++) {
+                char c = str.charAt(pos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                if (explicit < 100000) {
+                    explicit = 10*explicit + (c - '0');
+                }
+            }
+            if (pos == exponentStart) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (pos != end) {
+            return Double.NaN;
+        }
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (!truncated && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double value = mantissa;
+            if (exponent < 0) {
+                value /= POWERS_OF_TEN[-exponent];
+            }
+            else {
+                value *= POWERS_OF_TEN[exponent];
+            }
+            return negative ? -value : value;
+        }
+        double value = eiselLemire(mantissa, exponent);
+        if (truncated && value == value && eiselLemire(mantissa + 1, exponent) != value) {
+            //The dropped digits put the number somewhere between the two and they round apart
+            value = Double.NaN;
+        }
+        if (value != value) {
+            //Always a valid number by now
+            return slowParse(str, start, end);
+        }
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Converts a decimal number to the nearest double by the Eisel-Lemire algorithm
+     * @param mantissa - the positive decimal digits as an integer
+     * @param exponent - the power of ten the digits are multiplied by
+     * @return the double nearest mantissa*10^exponent, or NaN if the approximation used can't 
+     * decide the rounding or the result is subnormal or infinite
+     */
+    private static double eiselLemire(long mantissa, int exponent) {
+        if (exponent < MIN_POWER || exponent > MAX_POWER) {
+            return Double.NaN;
+        }
+        int shift = Long.numberOfLeadingZeros(mantissa);
+        long m = mantissa << shift;
+        //217706 / 2^16 is just over log2(10) so this is floor(exponent*log2(10)) + 1087 - shift
+        int binaryExponent = (217706 * exponent >> 16) + 64 + 1023 - shift;
+        int index = 2 * (exponent - MIN_POWER);
+        long high = multiplyHigh(m, POWER_BITS[index]);
+        long low = m * POWER_BITS[index];
+        if ((high & 0x1FF) == 0x1FF && unsignedLess(low + m, m)) {
+            //The bits that decide the rounding may be changed by the low half of the power
+            long lowHigh = multiplyHigh(m, POWER_BITS[index + 1]);
+            long lowLow = m * POWER_BITS[index + 1];
+            long mergedLow = low + lowHigh;
+            if (unsignedLess(mergedLow, low)) {
+                high++;
+            }
+            if ((high & 0x1FF) == 0x1FF && mergedLow == -1 && unsignedLess(lowLow + m, m)) {
+                return Double.NaN;
+            }
+            low = mergedLow;
+        }
+        int top = (int) (high >>> 63);
+        long bits = high >>> (top + 9);
+        binaryExponent -= 1 ^ top;
+        if (low == 0 && (high & 0x1FF) == 0 && (bits & 3) == 1) {
+            //Exactly half way between two doubles as far as can be told
+            return Double.NaN;
+        }
+        bits += bits & 1;
+        bits >>>= 1;
+        if (bits >>> 53 > 0) {
+            bits >>>= 1;
+            binaryExponent++;
+        }
+        if (binaryExponent <= 0 || binaryExponent >= 0x7FF) {
+            return Double.NaN;
+        }
+        return Double.longBitsToDouble((long) binaryExponent << 52 | bits & 0xFFFFFFFFFFFFFL);
+    }
+    
+    //The high 64 bits of the unsigned 128 bit product of x and y
+    private static long multiplyHigh(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long t = x1*y0 + (x0*y0 >>> 32);
+        long u = x0*y1 + (t & 0xFFFFFFFFL);
+        return x1*y1 + (t >>> 32) + (u >>> 32);
+    }
+    
+    private static boolean unsignedLess(long x, long y) {
+        return x + Long.MIN_VALUE < y + Long.MIN_VALUE;
+    }
+    
+    private static double slowParse(CharSequence str, int start, int end) {
+        return Double.parseDouble(str.subSequence(start, end).toString());
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites expression trees so that they can be evaluated with less work. Sub-trees whose operands
+ * are all constants are replaced by their value, operations that can never change their operand 
+ * are removed and costly operations are replaced by cheaper ones. Except where noted, every 
+ * rewrite produces exactly the same IEEE-754 result as the original tree for all operand values,
+ * including NaN, infinities and signed zeros. The one exception, computing cubes and fourth powers
+ * by repeated multiplication, is only made when it is asked for.
+ */
+final class Optimizer {
+    
+    private Optimizer() {
+        //Not instantiable
+    }
+    
+    /**
+     * Optimizes the tree rooted at the given node
+     * @param node - the root of the tree
+     * @param fastPowers - true to compute cubes and fourth powers by repeated multiplication, 
+     * which may differ from Math.pow in the last binary place
+     * @return the root of the optimized tree, which may be the same node if nothing was changed
+     */
+    static Node optimize(Node node, boolean fastPowers) {
+        if (node.depth > Node.MAX_RECURSION) {
+            return optimizeDeep(node, fastPowers);
+        }
+        if (node.chain >= Node.LONG_CHAIN) {
+            return optimizeChain(node, fastPowers);
+        }
+        Node[] args = node.args;
+        Node[] newArgs = null;
+        for (int i=0; i<args.length; i++) {
+            Node arg = optimize(args[i], fastPowers);
+            if (arg != args[i]) {
+                if (newArgs == null) {
+                    newArgs = args.clone();
+                }
+                newArgs[i] = arg;
+            }
+        }
+        if (newArgs != null) {
+            node = node.withArgs(newArgs);
+        }
+        return optimizeNode(node, fastPowers);
+    }
+    
+    //Optimizes a long chain of left associative operations from the innermost one outwards
+    private static Node optimizeChain(Node node, boolean fastPowers) {
+        Node[] nodes = node.chainNodes();
+        Node result = optimize(nodes[nodes.length - 1].args[0], fastPowers);
+        for (int i=nodes.length - 1; i>=0; i--) {
+            Node operation = nodes[i];
+            Node right = optimize(operation.args[1], fastPowers);
+            if (result != operation.args[0] || right != operation.args[1]) {
+                operation = operation.withArgs(result, right);
+            }
+            result = optimizeNode(operation, fastPowers);
+        }
+        return result;
+    }
+    
+    /**
+     * Optimizes a tree too deeply nested for recursion. The operations whose operands are still 
+     * being optimized are held on an explicit stack and each is optimized as soon as its operands
+     * are done, in the same order as recursion. Operands that are shallow enough are optimized by
+     * recursion.
+     */
+    private static Node optimizeDeep(Node root, boolean fastPowers) {
+        Node[] nodes = new Node[16];
+        int[] steps = new int[16];
+        Node[] results = new Node[16];
+        int top = 0;
+        int count = 0;
+        nodes[0] = root;
+        while (top >= 0) {
+            Node node = nodes[top];
+            int step = steps[top]++;
+            Node[] args = node.args;
+            if (step < args.length) {
+                if (args[step].depth > Node.MAX_RECURSION) {
+                    if (++top == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, 2*top);
+                        steps = Arrays.copyOf(steps, 2*top);
+                    }
+                    nodes[top] = args[step];
+                    steps[top] = 0;
+                }
+                else {
+                    if (count == results.length) {
+                        results = Arrays.copyOf(results, 2*count);
+                    }
+                    results[count++] = optimize(args[step], fastPowers);
+                }
+                continue;
+            }
+            count -= args.length;
+            Node[] newArgs = null;
+            for (int i=0; i<args.length; i++) {
+                if (results[count + i] != args[i]) {
+                    if (newArgs == null) {
+                        newArgs = args.clone();
+                    }
+                    newArgs[i] = results[count + i];
+                }
+            }
+            if (newArgs != null) {
+                node = node.withArgs(newArgs);
+            }
+            results[count++] = optimizeNode(node, fastPowers);
+            top--;
+        }
+        return results[0];
+    }
+    
+    /**
+     * Optimizes a single operation without visiting its operands, which must already have been 
+     * optimized, using only rewrites that give exactly the same result
+     * @param node - the operation
+     * @return the optimized operation, which may be the same node if nothing was changed
+     */
+    static Node optimizeNode(Node node) {
+        return optimizeNode(node, false);
+    }
+    
+    /**
+     * Optimizes a single operation without visiting its operands, which must already have been 
+     * optimized
+     * @param node - the operation
+     * @param fastPowers - true to compute cubes and fourth powers by repeated multiplication
+     * @return the optimized operation, which may be the same node if nothing was changed
+     */
+    static Node optimizeNode(Node node, boolean fastPowers) {
+        Node folded = fold(node);
+        if (folded != null) {
+            return folded;
+        }
+        return simplify(node, fastPowers);
+    }
+    
+    /**
+     * Computes the value of an operation whose operands are all constants. Operations that would 
+     * throw an exception are not folded so the exception is still thrown when the expression is 
+     * evaluated. Impure user defined functions are never folded since they must be called on each
+     * evaluation.
+     * @param node - the operation
+     * @return a constant node holding the value of the operation or null if it can't be folded
+     */
+    private static Node fold(Node node) {
+        if (node.op == Node.CONSTANT || node.op == Node.VARIABLE || node.op == Node.SHARED || 
+                (node.op == Node.CALL && !node.function.pure)) {
+            return null;
+        }
+        for (Node arg : node.args) {
+            if (arg.op != Node.CONSTANT) {
+                return null;
+            }
+        }
+        try {
+            return new Node(node.eval(null, null));
+        }
+        catch (InvalidMathExpressionException | RuntimeException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Applies algebraic identities and strength reductions to an operation
+     * @param node - the operation
+     * @param fastPowers - true to compute cubes and fourth powers by repeated multiplication
+     * @return the simplified operation, or the same node if it can't be simplified
+     */
+    private static Node simplify(Node node, boolean fastPowers) {
+        Node[] args = node.args;
+        switch (node.op) {
+            case Node.NEGATE:
+                // --x = x
+                if (args[0].op == Node.NEGATE) {
+                    return args[0].args[0];
+                }
+                return node;
+            case Node.ADD:
+                // x + -0 = x and -0 + x = x but x + 0 is not x when x is -0
+                if (isConstant(args[1], -0.0)) {
+                    return args[0];
+                }
+                if (isConstant(args[0], -0.0)) {
+                    return args[1];
+                }
+                return node;
+            case Node.SUBTRACT:
+                // x - 0 = x
+                if (isConstant(args[1], 0.0)) {
+                    return args[0];
+                }
+                return node;
+            case Node.MULTIPLY:
+                // x * 1 = x, x * -1 = -x
+                if (isConstant(args[1], 1.0)) {
+                    return args[0];
+                }
+                if (isConstant(args[0], 1.0)) {
+                    return args[1];
+                }
+                if (isConstant(args[1], -1.0)) {
+                    return new Node(Node.NEGATE, node.index, args[0]);
+                }
+                if (isConstant(args[0], -1.0)) {
+                    return new Node(Node.NEGATE, node.index, args[1]);
+                }
+                return node;
+            case Node.DIVIDE:
+                // x / 1 = x, x / -1 = -x
+                if (isConstant(args[1], 1.0)) {
+                    return args[0];
+                }
+                if (isConstant(args[1], -1.0)) {
+                    return new Node(Node.NEGATE, node.index, args[0]);
+                }
+                // x / c = x * (1/c) only when 1/c is exact, that is, when c is a power of two
+                if (args[1].op == Node.CONSTANT && hasExactReciprocal(args[1].value)) {
+                    return new Node(Node.MULTIPLY, node.index, args[0], new Node(1 / args[1].value));
+                }
+                return node;
+            case Node.POWER:
+                return simplifyPower(node, fastPowers);
+            case Node.IF:
+                // if(c, x, y) = x when c is a non-zero constant and y when it is zero, the other 
+                // branch would never be evaluated
+                if (args[0].op == Node.CONSTANT) {
+                    return args[0].value != 0 ? args[1] : args[2];
+                }
+                return node;
+            case Node.AND:
+                // and(0, x) = 0 without evaluating x
+                if (args[0].op == Node.CONSTANT && args[0].value == 0) {
+                    return new Node(0.0);
+                }
+                return node;
+            case Node.OR:
+                // or(c, x) = 1 without evaluating x when c is a non-zero constant
+                if (args[0].op == Node.CONSTANT && args[0].value != 0) {
+                    return new Node(1.0);
+                }
+                return node;
+            default:
+                return node;
+        }
+    }
+    
+    /**
+     * Simplifies an exponentiation with a constant exponent
+     * @param node - the exponentiation
+     * @param fastPowers - true to compute cubes and fourth powers by repeated multiplication
+     * @return the simplified operation, or the same node if it can't be simplified
+     */
+    private static Node simplifyPower(Node node, boolean fastPowers) {
+        Node base = node.args[0];
+        Node exponent = node.args[1];
+        if (exponent.op != Node.CONSTANT) {
+            return node;
+        }
+        double y = exponent.value;
+        if (y == 1) {
+            // x^1 = x
+            return base;
+        }
+        if (y == 0 && !canThrow(base)) {
+            // x^0 = 1 for all x, even NaN
+            return new Node(1.0);
+        }
+        if (y == 0.5) {
+            return new Node(Node.POWER_HALF, node.index, base);
+        }
+        if (y == 2) {
+            //Squaring takes a single rounding so it is exactly Math.pow(x, 2)
+            return Node.integerPower(base, 2, node.index);
+        }
+        if (fastPowers && (y == 3 || y == 4)) {
+            //Cubes and fourth powers take two roundings so they may differ from Math.pow in the 
+            //last binary place
+            return Node.integerPower(base, (int) y, node.index);
+        }
+        return node;
+    }
+    
+    /**
+     * Checks if evaluating the tree rooted at the given node may throw an exception
+     * @param node - the root of the tree
+     * @return true if the tree contains a function that throws for some arguments or a user 
+     * defined function
+     */
+    static boolean canThrow(Node node) {
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested trees are checked one operation at a time
+            for (Node deep : Node.deepNodes(node)) {
+                if (throwsItself(deep)) {
+                    return true;
+                }
+                for (Node arg : deep.args) {
+                    if (arg.depth <= Node.MAX_RECURSION && canThrow(arg)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        //None of the left associative operations throw so only their right operands are checked
+        for (; node.chain > 0; node = node.args[0]) {
+            if (canThrow(node.args[1])) {
+                return true;
+            }
+        }
+        if (throwsItself(node)) {
+            return true;
+        }
+        for (Node arg : node.args) {
+            if (canThrow(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    //Checks if an operation throws for some values of its operands
+    private static boolean throwsItself(Node node) {
+        switch (node.op) {
+            case Node.FACT:
+            case Node.COMB:
+            case Node.PERM:
+            case Node.CALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Checks if the tree rooted at the given node calls an impure user defined function, which 
+     * must be called exactly once each time the node that calls it is evaluated
+     * @param node - the root of the tree
+     * @return true if the tree calls an impure function
+     */
+    static boolean callsImpure(Node node) {
+        if (node.depth > Node.MAX_RECURSION) {
+            for (Node deep : Node.deepNodes(node)) {
+                if (deep.op == Node.CALL && !deep.function.pure) {
+                    return true;
+                }
+                for (Node arg : deep.args) {
+                    if (arg.depth <= Node.MAX_RECURSION && callsImpure(arg)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        for (; node.chain > 0; node = node.args[0]) {
+            if (callsImpure(node.args[1])) {
+                return true;
+            }
+        }
+        if (node.op == Node.CALL && !node.function.pure) {
+            return true;
+        }
+        for (Node arg : node.args) {
+            if (callsImpure(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isConstant(Node node, double value) {
+        return node.op == Node.CONSTANT && 
+                Double.doubleToRawLongBits(node.value) == Double.doubleToRawLongBits(value);
+    }
+    
+    /**
+     * Checks if 1/c is exactly representable so that multiplying by it gives the same result as 
+     * dividing by c
+     * @param c - the divisor
+     * @return true if c is a power of two whose reciprocal is a normal number
+     */
+    private static boolean hasExactReciprocal(double c) {
+        if (c == 0 || Double.isNaN(c) || Double.isInfinite(c)) {
+            return false;
+        }
+        int exponent = Math.getExponent(c);
+        return Math.scalb(Math.abs(c), -exponent) == 1.0 && exponent > Double.MIN_EXPONENT && 
+                exponent < Double.MAX_EXPONENT;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a compiled expression over a range of rows by recursively splitting the range in half
+ * until the pieces are small enough to evaluate on a single thread. Split points are always on 
+ * block boundaries of the {@link BatchEvaluator} so every row is computed exactly as it would be
+ * by a serial batch evaluation. Each row's result is written to its own element of the results 
+ * array so the results do not depend on the number of threads or the order the pieces run in.
+ */
+final class ParallelBatch extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The number of rows below which a range is not split. Large enough to make the cost of 
+     * forking a task negligible while still giving each core many pieces to balance the load.
+     */
+    static final int MIN_ROWS = 16 * BatchEvaluator.BLOCK_SIZE;
+    
+    private static final ForkJoinPool COMMON_POOL = findCommonPool();
+    
+    /**
+     * The error found so far in the lowest numbered row, shared by all tasks of one evaluation
+     */
+    private static final class Failure {
+        int row = Integer.MAX_VALUE;
+        InvalidMathExpressionException exception;
+        
+        synchronized void report(int row, InvalidMathExpressionException exception) {
+            if (row < this.row) {
+                this.row = row;
+                this.exception = exception;
+            }
+        }
+    }
+    
+    private final CompiledExpression expression;
+    private final double[][] columns;
+    private final double[] results;
+    private final int from;
+    private final int to;
+    private final Failure failure;
+    private final Cancellation cancellation;
+    
+    private ParallelBatch(CompiledExpression expression, double[][] columns, double[] results, 
+            int from, int to, Failure failure, Cancellation cancellation) {
+        this.expression = expression;
+        this.columns = columns;
+        this.results = results;
+        this.from = from;
+        this.to = to;
+        this.failure = failure;
+        this.cancellation = cancellation;
+    }
+    
+    /**
+     * Evaluates all rows using the given pool and waits for them to complete
+     * @param expression - the expression to evaluate
+     * @param columns - the values of the variables, already checked against the expression
+     * @param results - the array to receive the value of each row
+     * @param pool - the pool to run on or null to use the common pool
+     * @param cancellation - checked by every task, so that they all stop soon after the calling 
+     * thread is interrupted or the time limit passes
+     * @throws InvalidMathExpressionException the error, if any, from the lowest numbered row that
+     * failed, which is the same error a serial evaluation would report
+     */
+    static void evaluate(CompiledExpression expression, double[][] columns, double[] results, 
+            ForkJoinPool pool, Cancellation cancellation) throws InvalidMathExpressionException {
+        Failure failure = new Failure();
+        (pool != null ? pool : COMMON_POOL).invoke(new ParallelBatch(expression, columns, results,
+                0, results.length, failure, cancellation));
+        if (failure.exception != null) {
+            throw failure.exception;
+        }
+    }
+    
+    @Override
+    protected void compute() {
+        if (to - from <= MIN_ROWS) {
+            try {
+                expression.evaluate(columns, results, from, to, cancellation);
+            }
+            catch (InvalidMathExpressionException ex) {
+                failure.report(from, ex);
+            }
+            return;
+        }
+        int blocks = (to - from + BatchEvaluator.BLOCK_SIZE - 1) / BatchEvaluator.BLOCK_SIZE;
+        int middle = from + (blocks / 2) * BatchEvaluator.BLOCK_SIZE;
+        invokeAll(new ParallelBatch(expression, columns, results, from, middle, failure, 
+                        cancellation),
+                new ParallelBatch(expression, columns, results, middle, to, failure, 
+                        cancellation));
+    }
+    
+    /**
+     * Gets the JVM wide common pool, which only exists on Java 8 and later, or a pool shared by 
+     * this library on earlier versions
+     */
+    private static ForkJoinPool findCommonPool() {
+        try {
+            return (ForkJoinPool) ForkJoinPool.class.getMethod("commonPool").invoke(null);
+        }
+        catch (ReflectiveOperationException ex) {
+            return new ForkJoinPool();
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * An operator precedence parser that converts a math expression string into an expression tree. 
+ * Pending operators and their operands are held on explicit stacks rather than on the call stack,
+ * so expressions of any depth are parsed in linear time on small thread stacks. A parser holds 
+ * the position of the character pointer and its stacks so a new one is needed for each string 
+ * parsed, this allows any number of threads to parse concurrently.
+ */
+final class Parser {
+    private static final Node[] NO_ARGS = {};
+    
+    //Markers on the operator stack, which have the lowest precedence so that no operator is 
+    //reduced past them
+    private static final int PARENTHESIS = -1;
+    private static final int FUNCTION = -2;
+    
+    private final CharSequence str;
+    private final int end;
+    private final String[] variables;
+    private final FunctionRegistry functions;
+    private final double angleConversion;
+    private final ResourceLimits limits;
+    private int idx = -1;
+    private int ch;
+    private Node[] operands = new Node[16];
+    private int operandCount;
+    //The operator stack: the operation code or marker, its index in the string and, for a 
+    //function, the height of the operand stack where its arguments begin
+    private int[] operators = new int[16];
+    private int[] positions = new int[16];
+    private int[] bases = new int[16];
+    private int operatorCount;
+    private Set<String> functionNames;
+    private Set<String> variableNames;
+    private boolean freeVariables;
+    
+    /**
+     * Constructs a parser for the given characters. The characters are read in place so they must
+     * not change while they are being parsed.
+     * @param str - the math expression to parse
+     * @param variables - the names of the variables in slot order
+     * @param functions - the functions that may be called
+     * @param angleConversion - the factor that converts angles in the current angle mode to 
+     * radians
+     * @param limits - the limits on the size of the expression
+     */
+    Parser(CharSequence str, String[] variables, FunctionRegistry functions, double angleConversion,
+            ResourceLimits limits) {
+        this.str = str;
+        this.end = str.length();
+        this.variables = variables;
+        this.functions = functions;
+        this.angleConversion = angleConversion;
+        this.limits = limits;
+    }
+    
+    /**
+     * Makes the parser record the names of the functions and variables that the expression refers
+     * to as it is parsed
+     * @param functionNames - receives the names of the functions
+     * @param variableNames - receives the names of the variables
+     * @param freeVariables - true if any name that is not followed by '(' is to be accepted as a 
+     * variable, in which case the nodes that read the variables can't be evaluated
+     */
+    void recordNames(Set<String> functionNames, Set<String> variableNames, boolean freeVariables) {
+        this.functionNames = functionNames;
+        this.variableNames = variableNames;
+        this.freeVariables = freeVariables;
+    }
+    
+    /**
+     * Parses the entire string
+     * @return the root of the expression tree
+     * @throws InvalidMathExpressionException if the string is not a valid math expression or
+     * exceeds the limits
+     */
+    Node parse() throws InvalidMathExpressionException {
+        limits.checkLength(str);
+        idx = -1;
+        operandCount = 0;
+        operatorCount = 0;
+        nextChar();
+        for (;;) {
+            while (!parseOperand()) {
+                //A prefix operator or an opening parenthesis, an operand must still follow
+            }
+            while (!parseOperator()) {
+                //Nothing more can be added to the innermost group so it must end here
+                reduce(1);
+                if (operatorCount == 0) {
+                    if (idx < end) {
+                        throw InvalidMathExpressionException.unexpectedCharacter(ch, idx);
+                    }
+                    return operands[0];
+                }
+                if (!closeGroup()) {
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Moves the character pointer to the next character in the string
+     */
+    private void nextChar() {
+        idx++;
+        if (idx < end) {
+            ch = str.charAt(idx);
+        }
+        else {
+            ch = -1;
+        }
+    }
+    
+    /**
+     * Advances the character pointer to the next non-whitespace character in the string and tests 
+     * its value to see if it matches the given character. If the character matches, the character 
+     * pointer is advanced to the next non-whitespace character in the string and true is returned. 
+     * Otherwise, the character pointer remains pointing at the non-matched character and false is 
+     * returned.
+     * @param charToConsume - the character to test for in the string
+     * @return true if the character matches otherwise false
+     */
+    private boolean consume(int charToConsume) {
+        while (Character.isWhitespace(ch)) {
+            nextChar();
+        }
+        if (ch == charToConsume) {
+            nextChar();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Checks that a newly built node does not make the expression exceed the limits on its depth
+     * and number of nodes
+     * @param node - the node
+     * @return the node
+     * @throws InvalidMathExpressionException if a limit is exceeded
+     */
+    private Node checkLimits(Node node) throws InvalidMathExpressionException {
+        if (node.depth > limits.getMaxDepth()) {
+            throw InvalidMathExpressionException.limitExceeded("levels of nesting", 
+                    limits.getMaxDepth(), node.index);
+        }
+        if (node.size > limits.getMaxNodes()) {
+            throw InvalidMathExpressionException.limitExceeded("nodes", limits.getMaxNodes(), 
+                    node.index);
+        }
+        return node;
+    }
+    
+    // Grammar:
+    // relation = expression | expression `==` relation | expression `!=` relation
+    //     | expression `>` expression | expression `>=` expression 
+    //     | expression `<` expression | expression `<=` expression
+    // expression = term | expression `+` term | expression `-` term
+    // term = factor | term `*` factor | term `/` factor | term `%` factor
+    // factor = `+` factor | `-` factor | `(` expression `)` | number
+    //        | function | variable | factor `^` factor
+    // function = functionName `(` relationList `)`
+    // variable = variableName
+    // relationList = relation | relation `,` relationList
+    
+    /**
+     * Parses the string for a number starting at the character pointer. The character pointer 
+     * is left pointing at the next non-whitespace character beyond the number.
+     * @return a node holding the numerical value of the number
+     * @throws InvalidMathExpressionException if a valid number is not found
+     */
+    private Node parseNumber() throws InvalidMathExpressionException {
+        int startIdx = this.idx;
+        boolean pointFound = false;
+        boolean exponent = false;
+        boolean exponentStarting = false;
+        while (Character.isDigit(ch) || (!pointFound && !exponent && ch == '.') || 
+                (!exponent && (ch == 'e' || ch == 'E')) ||
+                (exponentStarting && (ch == '+' || ch == '-'))) {
+            pointFound = pointFound || ch == '.';
+            if (exponent && exponentStarting) {
+                exponentStarting = false;
+            }
+            if (!exponent && (ch == 'e' || ch == 'E')) {
+                exponent = true;
+                exponentStarting = true;
+            }
+            nextChar();
+        }
+        try {
+            return new Node(NumberParser.parse(str, startIdx, this.idx));
+        }
+        catch (NumberFormatException ex) {
+            throw InvalidMathExpressionException.invalidNumber(
+                    str.subSequence(startIdx, this.idx).toString(), startIdx);
+        }
+        
+    }
+    
+    /**
+     * Parses the string for a function or a variable starting at the character pointer. The 
+     * character pointer is left pointing to the next non-whitespace after the variable or the 
+     * opening parenthesis of the function.
+     * @return true if a variable or a function call without arguments was pushed on the operand 
+     * stack, false if the argument list of a function was pushed on the operator stack
+     * @throws InvalidMathExpressionException if the variable is unknown or a function without 
+     * arguments is unknown
+     */
+    private boolean parseName() throws InvalidMathExpressionException {
+        int startIdx = this.idx;
+        while (Character.isLetterOrDigit(ch)) {
+            nextChar();
+        }
+        int length = this.idx - startIdx;
+        if (consume('(')) {
+            if (ch == ')') {
+                nextChar();
+                pushOperand(callFunction(startIdx, length, NO_ARGS));
+                return true;
+            }
+            pushOperator(FUNCTION, startIdx, operandCount);
+            return false;
+        }
+        for (int slot=0; slot<variables.length; slot++) {
+            if (variables[slot].length() == length && regionMatches(startIdx, variables[slot])) {
+                if (variableNames != null) {
+                    variableNames.add(variables[slot]);
+                }
+                pushOperand(Node.variable(slot, startIdx));
+                return true;
+            }
+        }
+        if (freeVariables) {
+            variableNames.add(str.subSequence(startIdx, startIdx + length).toString());
+            pushOperand(Node.variable(-1, startIdx));
+            return true;
+        }
+        throw InvalidMathExpressionException.unknownVariable(functionName(startIdx, length), idx);
+    }
+    
+    /**
+     * Creates the node that calls a function
+     * @param startIdx - the index of the name of the function in the string
+     * @param length - the length of the name
+     * @param args - the arguments of the function
+     * @return a node that computes the value of the function
+     * @throws InvalidMathExpressionException if the function is unknown or the node exceeds the 
+     * limits
+     */
+    private Node callFunction(int startIdx, int length, Node[] args) 
+            throws InvalidMathExpressionException {
+        MathFunction function = functions.lookup(str, startIdx, length, args.length);
+        if (function == null) {
+            throw InvalidMathExpressionException.unknownFunction(functionName(startIdx, length), 
+                    args.length, startIdx);
+        }
+        if (functionNames != null) {
+            functionNames.add(function.name);
+        }
+        switch (function.op) {
+            case Node.CALL:
+                return checkLimits(Node.call(function, startIdx, args));
+            case Node.SIN:
+            case Node.COS:
+            case Node.TAN:
+                return checkLimits(new Node(function.op, startIdx, toRadians(args[0], startIdx)));
+            case Node.ASIN:
+            case Node.ACOS:
+            case Node.ATAN:
+            case Node.ATAN2:
+                return checkLimits(fromRadians(new Node(function.op, startIdx, args), startIdx));
+            default:
+                return checkLimits(new Node(function.op, startIdx, args));
+        }
+    }
+    
+    /**
+     * Gets the lower case name of a function for use in error messages
+     * @param startIdx - the index of the name in the string
+     * @param length - the length of the name
+     * @return the name
+     */
+    private String functionName(int startIdx, int length) {
+        return str.subSequence(startIdx, startIdx + length).toString().toLowerCase();
+    }
+    
+    /**
+     * Tests if a name appears in the string at the given index
+     * @param startIdx - the index in the string
+     * @param name - the name
+     * @return true if the characters starting at the index match the name
+     */
+    private boolean regionMatches(int startIdx, String name) {
+        for (int i=0; i<name.length(); i++) {
+            if (str.charAt(startIdx + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Wraps the argument of a trig function so that it is converted from the current angle mode to
+     * radians
+     * @param arg - the argument of the trig function
+     * @param index - the index of the trig function in the string
+     * @return a node that computes the argument in radians
+     */
+    private Node toRadians(Node arg, int index) {
+        if (angleConversion == 1.0) {
+            return arg;
+        }
+        return new Node(Node.MULTIPLY, index, arg, new Node(angleConversion));
+    }
+    
+    /**
+     * Wraps the result of an inverse trig function so that it is converted from radians to the 
+     * current angle mode 
+     * @param result - the inverse trig function
+     * @param index - the index of the inverse trig function in the string
+     * @return a node that computes the result in the current angle mode
+     */
+    private Node fromRadians(Node result, int index) {
+        if (angleConversion == 1.0) {
+            return result;
+        }
+        return new Node(Node.DIVIDE, index, result, new Node(angleConversion));
+    }
+    
+    // Precedence, from lowest to highest, and associativity of the operators implied by the 
+    // grammar:
+    // `==` `!=`           right associative, a == b == c is a == (b == c)
+    // `>` `>=` `<` `<=`   left associative
+    // `+` `-`             left associative
+    // `*` `/` `%`         left associative
+    // unary `+` `-`       prefix, applies to a factor so -x^2 is -(x^2)
+    // `^`                 right associative, x^y^z is x^(y^z) and x^-y is x^(-y)
+    
+    /**
+     * Gets the precedence of an operator
+     * @param op - the operation code of the operator or a marker
+     * @return the precedence, higher binds more tightly, zero for a marker
+     */
+    private static int precedence(int op) {
+        switch (op) {
+            case Node.EQUAL:
+            case Node.NOT_EQUAL:
+                return 1;
+            case Node.GREATER:
+            case Node.GREATER_OR_EQUAL:
+            case Node.LESS:
+            case Node.LESS_OR_EQUAL:
+                return 2;
+            case Node.ADD:
+            case Node.SUBTRACT:
+                return 3;
+            case Node.MULTIPLY:
+            case Node.DIVIDE:
+            case Node.MODULUS:
+                return 4;
+            case Node.NEGATE:
+                return 5;
+            case Node.POWER:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+    
+    /**
+     * Parses the string for an operand, or the start of one, at the character pointer. A number, 
+     * a variable or a function call without arguments is a complete operand and is pushed on the 
+     * operand stack. A unary minus, an opening parenthesis or the start of the argument list of a 
+     * function is pushed on the operator stack and must be followed by another operand. A unary 
+     * plus has no effect.
+     * @return true if a complete operand was pushed
+     * @throws InvalidMathExpressionException if there is no operand at the character pointer
+     */
+    private boolean parseOperand() throws InvalidMathExpressionException {
+        int opIdx = idx;
+        if (consume('+')) { // unary plus
+            return false;
+        }
+        if (consume('-')) { // unary minus
+            pushOperator(Node.NEGATE, opIdx, 0);
+            return false;
+        }
+        if (consume('(')) { // parentheses
+            pushOperator(PARENTHESIS, opIdx, 0);
+            return false;
+        }
+        if (Character.isDigit(ch) || ch == '.') { // numbers
+            pushOperand(parseNumber());
+            return true;
+        }
+        if (Character.isLetter(ch)) { // functions and variables
+            return parseName();
+        }
+        throw InvalidMathExpressionException.unexpectedCharacter(ch, idx);
+    }
+    
+    /**
+     * Parses the string for a binary operator following an operand at the character pointer. 
+     * Pending operators that bind more tightly than it are applied to their operands before the 
+     * operator is pushed on the operator stack.
+     * @return true if an operator was found, false if the character pointer is left at the next
+     * non-whitespace character after the operand
+     * @throws InvalidMathExpressionException if the operator is not properly formed or applying a
+     * pending operator exceeds the limits
+     */
+    private boolean parseOperator() throws InvalidMathExpressionException {
+        int opIdx = idx;
+        int op;
+        if (consume('^')) {
+            op = Node.POWER;
+        }
+        else if (consume('*')) {
+            op = Node.MULTIPLY;
+        }
+        else if (consume('/')) {
+            op = Node.DIVIDE;
+        }
+        else if (consume('%')) {
+            op = Node.MODULUS;
+        }
+        else if (consume('+')) {
+            op = Node.ADD;
+        }
+        else if (consume('-')) {
+            op = Node.SUBTRACT;
+        }
+        else if (consume('=')) {
+            if (!consume('=')) {
+                throw InvalidMathExpressionException.invalidOperator(idx);
+            }
+            op = Node.EQUAL;
+        }
+        else if (consume('!')) {
+            if (!consume('=')) {
+                throw InvalidMathExpressionException.invalidOperator(idx);
+            }
+            op = Node.NOT_EQUAL;
+        }
+        else if (consume('>')) {
+            op = consume('=') ? Node.GREATER_OR_EQUAL : Node.GREATER;
+        }
+        else if (consume('<')) {
+            op = consume('=') ? Node.LESS_OR_EQUAL : Node.LESS;
+        }
+        else {
+            return false;
+        }
+        boolean rightAssociative = op == Node.POWER || op == Node.EQUAL || op == Node.NOT_EQUAL;
+        reduce(rightAssociative ? precedence(op) + 1 : precedence(op));
+        pushOperator(op, opIdx, 0);
+        return true;
+    }
+    
+    /**
+     * Ends the innermost parenthesis or argument list, whose operators have all been applied, at 
+     * the character pointer
+     * @return true if the group was closed, leaving its value on the operand stack, or false if it
+     * is an argument list and another argument follows
+     * @throws InvalidMathExpressionException if the group is not properly closed or the function is
+     * unknown
+     */
+    private boolean closeGroup() throws InvalidMathExpressionException {
+        int top = operatorCount - 1;
+        if (operators[top] == PARENTHESIS) {
+            if (!consume(')')) {
+                throw InvalidMathExpressionException.missingParenthesis(null, idx);
+            }
+            operatorCount = top;
+            return true;
+        }
+        if (consume(',')) {
+            return false;
+        }
+        int startIdx = positions[top];
+        int length = 0;
+        while (startIdx + length < end && Character.isLetterOrDigit(str.charAt(startIdx + length))) {
+            length++;
+        }
+        if (!consume(')')) {
+            throw InvalidMathExpressionException.missingParenthesis(
+                    functionName(startIdx, length), idx);
+        }
+        Node[] args = Arrays.copyOfRange(operands, bases[top], operandCount);
+        operandCount = bases[top];
+        operatorCount = top;
+        pushOperand(callFunction(startIdx, length, args));
+        return true;
+    }
+    
+    /**
+     * Applies the pending operators on top of the operator stack, down to the first marker or
+     * operator with a lower precedence than the given one, to their operands
+     * @param minPrecedence - the lowest precedence to apply, at least 1
+     * @throws InvalidMathExpressionException if a new node exceeds the limits
+     */
+    private void reduce(int minPrecedence) throws InvalidMathExpressionException {
+        while (operatorCount > 0 && precedence(operators[operatorCount - 1]) >= minPrecedence) {
+            operatorCount--;
+            int op = operators[operatorCount];
+            int opIdx = positions[operatorCount];
+            Node node;
+            if (op == Node.NEGATE) {
+                node = new Node(op, opIdx, operands[operandCount - 1]);
+                operandCount -= 1;
+            }
+            else {
+                node = new Node(op, opIdx, operands[operandCount - 2], operands[operandCount - 1]);
+                operandCount -= 2;
+            }
+            pushOperand(checkLimits(node));
+        }
+    }
+    
+    private void pushOperand(Node node) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, 2 * operandCount);
+        }
+        operands[operandCount++] = node;
+    }
+    
+    private void pushOperator(int op, int index, int base) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, 2 * operatorCount);
+            positions = Arrays.copyOf(positions, 2 * operatorCount);
+            bases = Arrays.copyOf(bases, 2 * operatorCount);
+        }
+        operators[operatorCount] = op;
+        positions[operatorCount] = index;
+        bases[operatorCount] = base;
+        operatorCount++;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * Limits on the resources an expression may use, for evaluating expressions from untrusted 
+ * sources. An expression that breaks a limit fails with an {@link InvalidMathExpressionException}
+ * whose kind is {@link ErrorKind#LIMIT_EXCEEDED}. Instances are immutable, each 
+ * <code>with</code> method returns a copy with one limit changed.
+ * <p>
+ * The length, depth and node limits are checked while the expression is parsed so that a hostile
+ * expression is rejected before it uses much memory or time. The operation limit is checked once
+ * the expression has been optimized: since every operation takes a bounded time, it bounds the 
+ * time of each evaluation, apart from the time spent in user defined functions. The time limit 
+ * applies to each evaluation of many rows at once, which is checked between blocks of rows, and 
+ * such an evaluation also stops if the calling thread is interrupted.
+ * @see StringMathExpressionEvaluator#setResourceLimits(ResourceLimits)
+ */
+public final class ResourceLimits {
+    /**
+     * The limits used unless others are set: only the depth is limited, to 1000 levels, deeply 
+     * enough for any reasonable expression
+     */
+    public static final ResourceLimits DEFAULT = new ResourceLimits(Integer.MAX_VALUE, 1000, 
+            Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+    
+    private final int maxLength;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int maxOperations;
+    private final long timeLimitMillis;
+    
+    private ResourceLimits(int maxLength, int maxDepth, int maxNodes, int maxOperations, 
+            long timeLimitMillis) {
+        this.maxLength = maxLength;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxOperations = maxOperations;
+        this.timeLimitMillis = timeLimitMillis;
+    }
+    
+    /**
+     * Creates a copy of these limits with a different maximum expression length
+     * @param maxLength - the maximum number of characters in an expression
+     * @return the new limits
+     * @throws IllegalArgumentException if the maximum is not positive
+     */
+    public ResourceLimits withMaxLength(int maxLength) {
+        checkPositive(maxLength);
+        return new ResourceLimits(maxLength, maxDepth, maxNodes, maxOperations, timeLimitMillis);
+    }
+    
+    /**
+     * Creates a copy of these limits with a different maximum nesting depth. Function arguments, 
+     * operands of unary minus, right operands of operators and left operands of the right 
+     * associative ^, == and != are each a level deeper than the operation, so 1+(2+(3+4)) is 4 
+     * levels deep, while a flat sequence of left associative operators such as 1+2*3-4 is only 3 
+     * levels deep however long it is. Redundant parentheses and unary plus signs don't count.
+     * <p>
+     * Deeply nested expressions are compiled and evaluated with explicit stacks rather than 
+     * recursion, so the limit may be raised as far as memory allows even on threads with small 
+     * stacks, although expressions nested more than 64 levels deep are always interpreted. The 
+     * derivatives of a gradient are checked against the limit as well as the expression.
+     * @param maxDepth - the maximum depth
+     * @return the new limits
+     * @throws IllegalArgumentException if the maximum is not positive
+     */
+    public ResourceLimits withMaxDepth(int maxDepth) {
+        checkPositive(maxDepth);
+        return new ResourceLimits(maxLength, maxDepth, maxNodes, maxOperations, timeLimitMillis);
+    }
+    
+    /**
+     * Creates a copy of these limits with a different maximum number of nodes, that is numbers, 
+     * variables and operations, in an expression as written
+     * @param maxNodes - the maximum number of nodes
+     * @return the new limits
+     * @throws IllegalArgumentException if the maximum is not positive
+     */
+    public ResourceLimits withMaxNodes(int maxNodes) {
+        checkPositive(maxNodes);
+        return new ResourceLimits(maxLength, maxDepth, maxNodes, maxOperations, timeLimitMillis);
+    }
+    
+    /**
+     * Creates a copy of these limits with a different maximum number of operations computed by 
+     * each evaluation, after optimization
+     * @param maxOperations - the maximum number of operations
+     * @return the new limits
+     * @throws IllegalArgumentException if the maximum is not positive
+     * @see CompiledExpression#getOperationCount()
+     */
+    public ResourceLimits withMaxOperations(int maxOperations) {
+        checkPositive(maxOperations);
+        return new ResourceLimits(maxLength, maxDepth, maxNodes, maxOperations, timeLimitMillis);
+    }
+    
+    /**
+     * Creates a copy of these limits with a different time limit for evaluating many rows at once.
+     * Limits of Long.MAX_VALUE / 1000000 milliseconds, about 292 years, or more are never reached.
+     * @param timeLimitMillis - the time limit in milliseconds
+     * @return the new limits
+     * @throws IllegalArgumentException if the time limit is not positive
+     * @see CompiledExpression#evaluate(double[][], double[])
+     */
+    public ResourceLimits withTimeLimit(long timeLimitMillis) {
+        if (timeLimitMillis <= 0) {
+            throw new IllegalArgumentException("Limit must be positive: " + timeLimitMillis);
+        }
+        return new ResourceLimits(maxLength, maxDepth, maxNodes, maxOperations, timeLimitMillis);
+    }
+    
+    private static void checkPositive(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+    }
+    
+    /**
+     * Gets the maximum number of characters in an expression
+     * @return the maximum, Integer.MAX_VALUE if there is no limit
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+    
+    /**
+     * Gets the maximum nesting depth of an expression
+     * @return the maximum
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+    
+    /**
+     * Gets the maximum number of nodes in an expression
+     * @return the maximum, Integer.MAX_VALUE if there is no limit
+     */
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+    
+    /**
+     * Gets the maximum number of operations computed by each evaluation
+     * @return the maximum, Integer.MAX_VALUE if there is no limit
+     */
+    public int getMaxOperations() {
+        return maxOperations;
+    }
+    
+    /**
+     * Gets the time limit for evaluating many rows at once
+     * @return the time limit in milliseconds, Long.MAX_VALUE if there is no limit
+     */
+    public long getTimeLimit() {
+        return timeLimitMillis;
+    }
+    
+    /**
+     * Checks that an expression is not too long
+     * @param expression - the expression
+     * @throws InvalidMathExpressionException if the expression is too long
+     */
+    void checkLength(CharSequence expression) throws InvalidMathExpressionException {
+        if (expression.length() > maxLength) {
+            throw InvalidMathExpressionException.limitExceeded("characters", maxLength, maxLength);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ResourceLimits [maxLength=" + maxLength + ", maxDepth=" + maxDepth + ", maxNodes=" + 
+                maxNodes + ", maxOperations=" + maxOperations + ", timeLimit=" + timeLimitMillis + 
+                "]";
+    }
+}
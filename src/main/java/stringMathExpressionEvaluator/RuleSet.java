@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Many rules, each a math expression that is usually a relation, compiled together so that they 
+ * can be checked against the same variable values much faster than by evaluating each one. A rule
+ * matches if its value is not zero. Rules are identified by their position in the array they were
+ * compiled from.
+ * <p>
+ * Rules of the form <code>x &gt; 3</code>, where a variable is compared with a constant by one of
+ * <code>&gt;</code>, <code>&gt;=</code>, <code>&lt;</code>, <code>&lt;=</code> or 
+ * <code>==</code>, are never evaluated. Instead their constants are sorted so that the matching 
+ * rules are found by a binary search for the variable's value. Rules of the form 
+ * <code>and(x &gt; 3, ...)</code>, whose first condition is such a comparison, are only 
+ * evaluated if the comparison is true. Only the remaining rules are evaluated every time. 
+ * Sub-expressions that appear in more than one rule are computed at most once per check, and only
+ * if a rule that is evaluated needs them.
+ * <p>
+ * The rules matched, and any exception thrown, are exactly the same as if each rule was compiled
+ * and evaluated separately in order. A rule set is immutable and may be used by any number of 
+ * threads at once.
+ * @see StringMathExpressionEvaluator#compileRules(String[], String...)
+ */
+public final class RuleSet {
+    private static final int[] NO_SLOTS = {};
+    private static final double[] NO_VALUES = {};
+    
+    /**
+     * The rules that compare one variable with a constant by one relation, sorted by the constant
+     */
+    private static final class Index {
+        final int slot;
+        /** The relation, with the variable on its left */
+        final int op;
+        final double[] thresholds;
+        final int[] rules;
+        /** True if the comparison is the whole rule, false if it is the first condition of and */
+        final boolean[] exact;
+        
+        Index(int slot, int op, List<Comparison> comparisons) {
+            this.slot = slot;
+            this.op = op;
+            Comparison[] sorted = comparisons.toArray(new Comparison[comparisons.size()]);
+            Arrays.sort(sorted);
+            thresholds = new double[sorted.length];
+            rules = new int[sorted.length];
+            exact = new boolean[sorted.length];
+            for (int i=0; i<sorted.length; i++) {
+                thresholds[i] = sorted[i].threshold;
+                rules[i] = sorted[i].rule;
+                exact[i] = sorted[i].exact;
+            }
+        }
+    }
+    
+    private static final class Comparison implements Comparable<Comparison> {
+        final double threshold;
+        final int rule;
+        final boolean exact;
+        
+        Comparison(double threshold, int rule, boolean exact) {
+            this.threshold = threshold;
+            this.rule = rule;
+            this.exact = exact;
+        }
+        
+        @Override
+        public int compareTo(Comparison other) {
+            return Double.compare(threshold, other.threshold);
+        }
+    }
+    
+    /**
+     * Working storage for one check, reused by each thread
+     */
+    private static final class Scratch {
+        final double[] sharedValues;
+        /** The check in which each shared value was computed */
+        final int[] computed;
+        int check;
+        final int[] candidates;
+        boolean inUse;
+        
+        Scratch(int sharedCount, int ruleCount) {
+            sharedValues = new double[sharedCount];
+            computed = new int[sharedCount];
+            candidates = new int[ruleCount];
+        }
+    }
+    
+    private final String[] rules;
+    private final String[] variables;
+    private final Index[] indexes;
+    /** The rules that are evaluated for every check, in order */
+    private final int[] unindexed;
+    /** The rules with repeated sub-expressions replaced by reads of the shared values */
+    private final Node[] roots;
+    /** 
+     * The rules as they were before sharing, to report errors in the right order, or null for the
+     * rules that aren't shared 
+     */
+    private final Node[] unshared;
+    private final Node[] shared;
+    /** The shared values each rule reads, directly or through other shared values, in order */
+    private final int[][] sharedSlots;
+    private final int indexedCount;
+    private final int savedEvaluationCount;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return newScratch();
+        }
+    };
+    
+    /**
+     * @param rules - the rule expressions
+     * @param variables - the names of the variables in slot order
+     * @param trees - the expression trees of the rules
+     * @param sharing - true if common sub-expressions are to be shared
+     */
+    RuleSet(String[] rules, String[] variables, Node[] trees, boolean sharing) {
+        this.rules = rules;
+        this.variables = variables;
+        Map<Integer, List<Comparison>> comparisons = new LinkedHashMap<>();
+        List<Integer> evaluated = new ArrayList<>();
+        List<Integer> unindexedRules = new ArrayList<>();
+        int indexed = 0;
+        for (int rule=0; rule<trees.length; rule++) {
+            Node condition = trees[rule];
+            while (condition.op == Node.AND) {
+                condition = condition.args[0];
+            }
+            int op = indexableRelation(condition);
+            boolean exact = condition == trees[rule];
+            if (op >= 0) {
+                int slot;
+                double threshold;
+                if (condition.args[0].op == Node.VARIABLE) {
+                    slot = condition.args[0].slot;
+                    threshold = condition.args[1].value;
+                }
+                else {
+                    slot = condition.args[1].slot;
+                    threshold = condition.args[0].value;
+                    op = reverse(op);
+                }
+                indexed++;
+                if (!exact) {
+                    evaluated.add(rule);
+                }
+                //A comparison with NaN is never true so the rule can never match
+                if (threshold == threshold) {
+                    Integer key = slot * 8 + (op - Node.EQUAL);
+                    List<Comparison> list = comparisons.get(key);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        comparisons.put(key, list);
+                    }
+                    list.add(new Comparison(threshold, rule, exact));
+                }
+            }
+            else {
+                evaluated.add(rule);
+                unindexedRules.add(rule);
+            }
+        }
+        indexes = new Index[comparisons.size()];
+        int i = 0;
+        for (Map.Entry<Integer, List<Comparison>> entry : comparisons.entrySet()) {
+            int key = entry.getKey();
+            indexes[i++] = new Index(key / 8, Node.EQUAL + key % 8, entry.getValue());
+        }
+        unindexed = toArray(unindexedRules);
+        indexedCount = indexed;
+        
+        roots = new Node[trees.length];
+        unshared = new Node[trees.length];
+        sharedSlots = new int[trees.length][];
+        //Rules that call impure functions are evaluated on their own since they couldn't be 
+        //evaluated again without sharing to report an error in the right order
+        List<Integer> sharedRules = new ArrayList<>();
+        for (int rule : evaluated) {
+            if (sharing && !Optimizer.callsImpure(trees[rule])) {
+                sharedRules.add(rule);
+            }
+            else {
+                roots[rule] = trees[rule];
+                sharedSlots[rule] = NO_SLOTS;
+            }
+        }
+        Node[] evaluatedTrees = new Node[sharedRules.size()];
+        for (i=0; i<evaluatedTrees.length; i++) {
+            evaluatedTrees[i] = trees[sharedRules.get(i)];
+        }
+        if (evaluatedTrees.length > 0) {
+            SubexpressionEliminator eliminator = new SubexpressionEliminator(evaluatedTrees);
+            shared = eliminator.getShared();
+            evaluatedTrees = eliminator.getRoots();
+            savedEvaluationCount = eliminator.getSavedEvaluations();
+        }
+        else {
+            shared = new Node[0];
+            savedEvaluationCount = 0;
+        }
+        int[][] sharedReads = new int[shared.length][];
+        for (i=0; i<shared.length; i++) {
+            sharedReads[i] = sharedSlots(shared[i], sharedReads);
+        }
+        for (i=0; i<evaluatedTrees.length; i++) {
+            int rule = sharedRules.get(i);
+            roots[rule] = evaluatedTrees[i];
+            unshared[rule] = trees[rule];
+            sharedSlots[rule] = sharedSlots(evaluatedTrees[i], sharedReads);
+        }
+    }
+    
+    /**
+     * Checks if a node compares a variable with a constant by a relation that can be indexed
+     * @param node - the node
+     * @return the relation or -1 if the node can't be indexed
+     */
+    private static int indexableRelation(Node node) {
+        switch (node.op) {
+            case Node.EQUAL:
+            case Node.GREATER:
+            case Node.GREATER_OR_EQUAL:
+            case Node.LESS:
+            case Node.LESS_OR_EQUAL:
+                Node x = node.args[0];
+                Node y = node.args[1];
+                if ((x.op == Node.VARIABLE && y.op == Node.CONSTANT) || 
+                        (x.op == Node.CONSTANT && y.op == Node.VARIABLE)) {
+                    return node.op;
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+    
+    /**
+     * Gets the relation that is true when the given one is with its operands swapped
+     */
+    private static int reverse(int op) {
+        switch (op) {
+            case Node.GREATER:
+                return Node.LESS;
+            case Node.GREATER_OR_EQUAL:
+                return Node.LESS_OR_EQUAL;
+            case Node.LESS:
+                return Node.GREATER;
+            case Node.LESS_OR_EQUAL:
+                return Node.GREATER_OR_EQUAL;
+            default:
+                return op;
+        }
+    }
+    
+    /**
+     * Finds the shared values that must be computed before a tree is evaluated
+     * @param node - the root of the tree
+     * @param sharedReads - the slots needed by each of the shared values that come before any the
+     * tree reads
+     * @return the slots in ascending order, which is an order they can be computed in
+     */
+    private static int[] sharedSlots(Node node, int[][] sharedReads) {
+        boolean[] needed = new boolean[sharedReads.length];
+        if (!markShared(node, needed, sharedReads)) {
+            return NO_SLOTS;
+        }
+        List<Integer> slots = new ArrayList<>();
+        for (int slot=0; slot<needed.length; slot++) {
+            if (needed[slot]) {
+                slots.add(slot);
+            }
+        }
+        return toArray(slots);
+    }
+    
+    private static boolean markShared(Node node, boolean[] needed, int[][] sharedReads) {
+        boolean found = false;
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested operations don't read shared values themselves so only the operands
+            //that are shallow enough for recursion are marked
+            for (Node deep : Node.deepNodes(node)) {
+                for (Node arg : deep.args) {
+                    if (arg.depth <= Node.MAX_RECURSION) {
+                        found |= markShared(arg, needed, sharedReads);
+                    }
+                }
+            }
+            return found;
+        }
+        //Chains of left associative operations are followed with a loop rather than recursion
+        for (; node.chain > 0; node = node.args[0]) {
+            found |= markShared(node.args[1], needed, sharedReads);
+        }
+        if (node.op == Node.SHARED) {
+            needed[node.slot] = true;
+            for (int slot : sharedReads[node.slot]) {
+                needed[slot] = true;
+            }
+            return true;
+        }
+        for (Node arg : node.args) {
+            found |= markShared(arg, needed, sharedReads);
+        }
+        return found;
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i=0; i<array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+    
+    private Scratch newScratch() {
+        return new Scratch(shared.length, rules.length);
+    }
+    
+    /**
+     * Finds the rules that match the given variable values
+     * @param values - the values of the variables indexed by slot, must have at least as many 
+     * elements as there are variables
+     * @return the ids of the matching rules in ascending order
+     * @throws InvalidMathExpressionException if a rule fails to evaluate
+     * @throws IllegalArgumentException if fewer values are given than there are variables
+     */
+    public int[] match(double... values) throws InvalidMathExpressionException {
+        int[] matches = new int[rules.length];
+        return Arrays.copyOf(matches, match(values, matches));
+    }
+    
+    /**
+     * Finds the rules that match the given variable values without allocating memory. The ids of 
+     * the matching rules are stored in ascending order at the start of the given array.
+     * @param values - the values of the variables indexed by slot, must have at least as many 
+     * elements as there are variables
+     * @param matches - receives the ids of the matching rules, must have room for all the rules
+     * @return the number of matching rules
+     * @throws InvalidMathExpressionException if a rule fails to evaluate, the exception is the one
+     * that the first rule to fail would throw if the rules were evaluated separately in order
+     * @throws IllegalArgumentException if fewer values are given than there are variables or the
+     * matches array is shorter than the number of rules
+     */
+    public int match(double[] values, int[] matches) throws InvalidMathExpressionException {
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + 
+                    " variable values but got " + values.length);
+        }
+        if (matches.length < rules.length) {
+            throw new IllegalArgumentException("Expected room for " + rules.length + 
+                    " matches but got " + matches.length);
+        }
+        Scratch scratch = this.scratch.get();
+        if (scratch.inUse) {
+            //A function is checking this rule set on this thread
+            return match(values, matches, newScratch());
+        }
+        scratch.inUse = true;
+        try {
+            return match(values, matches, scratch);
+        }
+        finally {
+            scratch.inUse = false;
+        }
+    }
+    
+    private int match(double[] values, int[] matches, Scratch scratch) 
+            throws InvalidMathExpressionException {
+        int matchCount = 0;
+        int[] candidates = scratch.candidates;
+        int candidateCount = 0;
+        for (Index index : indexes) {
+            double x = values[index.slot];
+            if (x != x) {
+                //No comparison with NaN is true
+                continue;
+            }
+            double[] thresholds = index.thresholds;
+            int from;
+            int to;
+            switch (index.op) {
+                case Node.GREATER:
+                    from = 0;
+                    to = firstNotLess(thresholds, x);
+                    break;
+                case Node.GREATER_OR_EQUAL:
+                    from = 0;
+                    to = firstGreater(thresholds, x);
+                    break;
+                case Node.LESS:
+                    from = firstGreater(thresholds, x);
+                    to = thresholds.length;
+                    break;
+                case Node.LESS_OR_EQUAL:
+                    from = firstNotLess(thresholds, x);
+                    to = thresholds.length;
+                    break;
+                default:
+                    from = firstNotLess(thresholds, x);
+                    to = firstGreater(thresholds, x);
+                    break;
+            }
+            for (int i=from; i<to; i++) {
+                if (index.exact[i]) {
+                    matches[matchCount++] = index.rules[i];
+                }
+                else {
+                    candidates[candidateCount++] = index.rules[i];
+                }
+            }
+        }
+        System.arraycopy(unindexed, 0, candidates, candidateCount, unindexed.length);
+        candidateCount += unindexed.length;
+        if (candidateCount > 0) {
+            //Evaluated in order so that the first rule to fail is the one that reports the error
+            Arrays.sort(candidates, 0, candidateCount);
+            if (++scratch.check == 0) {
+                Arrays.fill(scratch.computed, 0);
+                scratch.check = 1;
+            }
+            for (int i=0; i<candidateCount; i++) {
+                int rule = candidates[i];
+                if (evaluate(rule, values, scratch) != 0) {
+                    matches[matchCount++] = rule;
+                }
+            }
+        }
+        Arrays.sort(matches, 0, matchCount);
+        return matchCount;
+    }
+    
+    private double evaluate(int rule, double[] values, Scratch scratch) 
+            throws InvalidMathExpressionException {
+        double[] sharedValues = scratch.sharedValues;
+        try {
+            for (int slot : sharedSlots[rule]) {
+                if (scratch.computed[slot] != scratch.check) {
+                    sharedValues[slot] = shared[slot].eval(values, sharedValues);
+                    scratch.computed[slot] = scratch.check;
+                }
+            }
+            return roots[rule].eval(values, sharedValues);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (unshared[rule] == null) {
+                throw ex;
+            }
+            //A shared sub-expression may have been evaluated ahead of one that fails first, or
+            //may only be used by the rule in a branch that isn't taken
+            return unshared[rule].eval(values, NO_VALUES);
+        }
+    }
+    
+    /**
+     * Finds the first of the sorted thresholds that is not less than the given value
+     */
+    private static int firstNotLess(double[] thresholds, double x) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (thresholds[middle] < x) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Finds the first of the sorted thresholds that is greater than the given value
+     */
+    private static int firstGreater(double[] thresholds, double x) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (thresholds[middle] <= x) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Gets the number of rules
+     * @return the number of rules
+     */
+    public int getRuleCount() {
+        return rules.length;
+    }
+    
+    /**
+     * Gets a rule
+     * @param id - the id of the rule
+     * @return the math expression of the rule
+     * @throws IndexOutOfBoundsException if there is no rule with the id
+     */
+    public String getRule(int id) {
+        return rules[id];
+    }
+    
+    /**
+     * Gets the names of the variables in slot order
+     * @return the variable names
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+    
+    /**
+     * Gets the number of rules that are found through an index rather than being evaluated for 
+     * every check, that is those that compare a variable with a constant or have such a comparison
+     * as their first condition. Negative constants are only recognized when the rules were
+     * compiled with {@link StringMathExpressionEvaluator#setOptimizing(boolean) optimizing} on
+     * @return the number of indexed rules
+     */
+    public int getIndexedRuleCount() {
+        return indexedCount;
+    }
+    
+    /**
+     * Gets the number of operations that are saved, when every rule is evaluated, by computing 
+     * sub-expressions that appear in more than one place only once
+     * @return the number of operations saved, zero if the rules were compiled with optimization 
+     * disabled
+     * @see StringMathExpressionEvaluator#setOptimizing(boolean)
+     */
+    public int getSavedEvaluationCount() {
+        return savedEvaluationCount;
+    }
+}
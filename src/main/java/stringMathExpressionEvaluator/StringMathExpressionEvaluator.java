@@ -17,17 +17,87 @@
 
 package stringMathExpressionEvaluator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
- * A class for calculating the numerical value of math expressions given as strings
+ * A class for calculating the numerical value of math expressions given as strings. A single 
+ * instance may be shared by any number of threads without synchronization. Changes to the 
+ * configuration of an instance, such as its angle mode, are seen by all threads for calls that 
+ * begin after the change.
  */
 public class StringMathExpressionEvaluator {
-    private double angleConversion = 1.0;
-    private String str;
-    private int idx = -1;
-    private int ch;
+    /**
+     * The engines that can be used to evaluate compiled expressions
+     */
+    public enum Engine {
+        /**
+         * Compiled expressions are evaluated by walking their parsed expression tree (the default)
+         */
+        INTERPRETER,
+        
+        /**
+         * Each compiled expression is translated into JVM bytecode in its own hidden class that
+         * HotSpot can optimize like hand written Java. This is only worthwhile for expressions 
+         * that are evaluated a great many times since generating and loading the class is far more 
+         * costly than parsing. Hidden classes require Java 15 or later, on earlier versions and 
+         * for expressions too large for HotSpot to optimize, the interpreter is used instead.
+         */
+        BYTECODE
+    }
+    
+    /**
+     * The number of parsed expressions cached by an evaluator constructed with the default 
+     * constructor
+     */
+    public static final int DEFAULT_CACHE_CAPACITY = 1000;
+    
+    private static final String[] NO_VARIABLES = {};
+    private static final Node[] NO_NODES = {};    
+    private static final double DEGREES_TO_RADIANS = Math.PI / 180.0;
+    
+    //Configuration is volatile so that changes are safely published to all threads sharing an
+    //instance. Parsing state is kept in a Parser created for each call.
+    private volatile double angleConversion = 1.0;
+    private volatile Engine engine = Engine.INTERPRETER;
+    private volatile boolean optimizing = true;
+    private volatile boolean fastPowers = false;
+    private volatile FunctionRegistry functions = FunctionRegistry.BUILT_INS;
+    private volatile ResourceLimits limits = ResourceLimits.DEFAULT;
+    private final ExpressionCache cache;
+    
+    /**
+     * Constructs an evaluator that caches up to {@link #DEFAULT_CACHE_CAPACITY} parsed expressions
+     */
+    public StringMathExpressionEvaluator() {
+        this(DEFAULT_CACHE_CAPACITY);
+    }
+    
+    /**
+     * Constructs an evaluator with a cache of the given size. Expressions passed to 
+     * {@link #evaluate(String)} are parsed once and kept in the cache so that evaluating the same
+     * expression again, in the same angle mode, skips parsing. When the cache is full, expressions 
+     * that have not been used recently are evicted to make room for new ones.
+     * @param cacheCapacity - the maximum number of parsed expressions to cache, zero disables 
+     * caching
+     * @throws IllegalArgumentException if the capacity is negative
+     * @see #getCacheStatistics()
+     */
+    public StringMathExpressionEvaluator(int cacheCapacity) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("Negative cache capacity: " + cacheCapacity);
+        }
+        cache = cacheCapacity > 0 ? new ExpressionCache(cacheCapacity) : null;
+    }
     
     /**
      * Evaluates the given math expression and returns its numerical value. See the link below for
@@ -38,14 +108,418 @@ public class StringMathExpressionEvaluator {
      * @see <a href="https://github.com/tonyluken/StringMathExpressionEvaluator/wiki">StringMathExpressionEvaluator Wiki</a> for a complete list of operators and functions
      */
     public double evaluate(String expression) throws InvalidMathExpressionException {
-        this.str = expression;
-        idx = -1;
-        nextChar();
-        double x = parseRelation();
-        if (idx < str.length()) {
-            throw new InvalidMathExpressionException("Unexpected character: '" + (char)ch + "' at index " + idx);
+        return evaluate((CharSequence) expression);
+    }
+    
+    /**
+     * Evaluates the math expression held in the given characters and returns its numerical value.
+     * The characters are read in place, so an expression held in a {@link StringBuilder}, 
+     * {@link java.nio.CharBuffer} or other character sequence does not need to be copied into a 
+     * string. They are only copied if the expression is not already in the cache. The characters
+     * must not be changed by another thread during the call.
+     * @param expression - the math expression
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if the expression could not be evaluated
+     * @see #evaluate(String)
+     */
+    public double evaluate(CharSequence expression) throws InvalidMathExpressionException {
+        if (cache == null) {
+            return compile(expression, NO_VARIABLES, functions, angleConversion, engine, 
+                    optimizing, fastPowers, limits).evaluate();
+        }
+        //Read before the settings: every setter clears the cache after changing its setting, so
+        //if a setting read below is stale the generation will have changed and the expression
+        //compiled with it is not cached
+        long generation = cache.getGeneration();
+        double angleConversion = this.angleConversion;
+        ResourceLimits limits = this.limits;
+        //Checked before the lookup so an over-long expression is not hashed
+        limits.checkLength(expression);
+        boolean degrees = angleConversion != 1.0;
+        CompiledExpression compiled = cache.get(expression, degrees, generation);
+        if (compiled == null) {
+            compiled = compile(expression, NO_VARIABLES, functions, angleConversion, engine, 
+                    optimizing, fastPowers, limits);
+            cache.put(compiled.getExpression(), degrees, compiled, generation);
+        }
+        return compiled.evaluate();
+    }
+    
+    /**
+     * Evaluates the given math expression without throwing an exception if it is invalid. This is
+     * intended for untrusted input where invalid expressions are common: the outcome, including the
+     * kind and index of any problem, is stored in a result object that may be reused so a valid 
+     * expression found in the cache is evaluated without allocation, and the description of a 
+     * problem is only built if it is asked for.
+     * @param expression - the math expression
+     * @param result - receives the value of the expression or the reason it is invalid
+     * @return true if the expression was successfully evaluated
+     * @see #evaluate(CharSequence)
+     */
+    public boolean tryEvaluate(CharSequence expression, EvaluationResult result) {
+        try {
+            result.succeed(evaluate(expression));
+            return true;
+        }
+        catch (InvalidMathExpressionException ex) {
+            result.fail(ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Evaluates the math expression held in a range of a character array and returns its 
+     * numerical value. The characters are read in place. Indices in error messages are relative to
+     * the start of the range.
+     * @param chars - the array holding the math expression
+     * @param offset - the index of the first character of the expression
+     * @param length - the number of characters in the expression
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if the expression could not be evaluated
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     * @see #evaluate(CharSequence)
+     */
+    public double evaluate(char[] chars, int offset, int length) 
+            throws InvalidMathExpressionException {
+        return evaluate(CharBuffer.wrap(chars, offset, length));
+    }
+    
+    /**
+     * Evaluates the ASCII or UTF-8 encoded math expression held in the bytes between the position
+     * and the limit of the given buffer and returns its numerical value. The bytes are read in 
+     * place, so the buffer may be a direct buffer filled by a channel, and the position of the 
+     * buffer is not changed. Since all the characters of a valid expression are ASCII, a 
+     * multi-byte UTF-8 character is reported as an unexpected character. Indices in error messages
+     * are byte offsets from the position of the buffer.
+     * @param buffer - the buffer holding the math expression
+     * @return the numerical value of the expression
+     * @throws InvalidMathExpressionException if the expression could not be evaluated
+     * @see #evaluate(CharSequence)
+     */
+    public double evaluate(ByteBuffer buffer) throws InvalidMathExpressionException {
+        return evaluate(new AsciiSequence(buffer));
+    }
+    
+    /**
+     * Parses the given math expression into a form that can be evaluated repeatedly without 
+     * re-parsing the string. The current angle mode is fixed into the compiled expression so later
+     * calls to {@link #setDegreeMode()} or {@link #setRadianMode()} do not affect it.
+     * @param expression - the math expression as a string
+     * @return the compiled expression
+     * @throws InvalidMathExpressionException if the expression is not a valid math expression
+     * @see CompiledExpression#evaluate()
+     */
+    public CompiledExpression compile(String expression) throws InvalidMathExpressionException {
+        return compile(expression, NO_VARIABLES);
+    }
+    
+    /**
+     * Parses the given math expression, which may refer to the named variables, into a form that 
+     * can be evaluated repeatedly without re-parsing the string. Each variable is assigned a slot 
+     * equal to its position in the list of variables and its value is supplied in that slot when
+     * the expression is evaluated. Variable names must begin with a letter followed by any number 
+     * of letters or digits and are case sensitive. A variable may have the same name as a function
+     * since function names are always followed by '('.
+     * @param expression - the math expression as a string
+     * @param variables - the names of the variables in slot order
+     * @return the compiled expression
+     * @throws InvalidMathExpressionException if the expression is not a valid math expression
+     * @throws IllegalArgumentException if a variable name is not valid or is repeated
+     * @see CompiledExpression#evaluate(double...)
+     */
+    public CompiledExpression compile(String expression, String... variables) 
+            throws InvalidMathExpressionException {
+        String[] names = variables.clone();
+        checkVariableNames(names);
+        return compile(expression, names, functions, angleConversion, engine, optimizing, 
+                fastPowers, limits);
+    }
+    
+    private static CompiledExpression compile(CharSequence expression, String[] variables, 
+            FunctionRegistry functions, double angleConversion, Engine engine, boolean optimizing,
+            boolean fastPowers, ResourceLimits limits) throws InvalidMathExpressionException {
+        Node root = new Parser(expression, variables, functions, angleConversion, limits).parse();
+        Node[] shared = NO_NODES;
+        int savedEvaluations = 0;
+        Node unshared = null;
+        if (optimizing) {
+            root = Optimizer.optimize(root, fastPowers);
+        }
+        //An expression that calls an impure function isn't shared since it couldn't be evaluated 
+        //again without sharing to report an error in the right order
+        if (optimizing && !Optimizer.callsImpure(root)) {
+            SubexpressionEliminator eliminator = new SubexpressionEliminator(root);
+            shared = eliminator.getShared();
+            if (shared.length > 0 && Optimizer.canThrow(root)) {
+                unshared = root;
+            }
+            root = eliminator.getRoots()[0];
+            savedEvaluations = eliminator.getSavedEvaluations();
+        }
+        return build(expression.toString(), variables, shared, root, savedEvaluations, unshared,
+                engine, limits, false);
+    }
+    
+    /**
+     * Creates a compiled expression from its optimized trees, generating bytecode for it if the 
+     * engine calls for it
+     * @param deferCode - true to generate the bytecode when the expression is first evaluated, so
+     * that expressions that are never evaluated cost nothing
+     */
+    static CompiledExpression build(String expression, String[] variables, Node[] shared, 
+            Node root, int savedEvaluations, Node unshared, Engine engine, ResourceLimits limits,
+            boolean deferCode) throws InvalidMathExpressionException {
+        BytecodeCompiler.Code code = null;
+        boolean bytecode = engine == Engine.BYTECODE && BytecodeCompiler.isAvailable();
+        if (bytecode && !deferCode) {
+            code = BytecodeCompiler.compile(shared, root);
+        }
+        CompiledExpression compiled = new CompiledExpression(expression, variables, shared, root, 
+                code, savedEvaluations, unshared, limits, bytecode && deferCode);
+        if (compiled.getOperationCount() > limits.getMaxOperations()) {
+            throw InvalidMathExpressionException.limitExceeded("operations", 
+                    limits.getMaxOperations(), -1);
+        }
+        return compiled;
+    }
+    
+    /**
+     * Writes compiled expressions to a file in a compact, versioned binary format so that they can
+     * later be loaded by {@link #readLibrary(Path)} much faster than compiling them again. The 
+     * expressions are stored as they were compiled, after optimization, so loading them needs 
+     * neither the parser nor the optimizer. User defined functions are stored by name and arity.
+     * @param file - the file to write, which is replaced if it exists
+     * @param expressions - the expressions to write
+     * @throws IOException if the file can't be written
+     */
+    public static void writeLibrary(Path file, CompiledExpression... expressions) 
+            throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 65536)) {
+            writeLibrary(out, expressions);
+        }
+    }
+    
+    /**
+     * Writes compiled expressions to a stream in the format read by {@link #readLibrary(Path)} 
+     * and {@link #readLibrary(ByteBuffer)}
+     * @param out - the stream to write to, which is flushed but not closed
+     * @param expressions - the expressions to write
+     * @throws IOException if the stream can't be written
+     */
+    public static void writeLibrary(OutputStream out, CompiledExpression... expressions) 
+            throws IOException {
+        LibraryFormat.write(expressions, out);
+    }
+    
+    /**
+     * Loads the compiled expressions written by {@link #writeLibrary(Path, CompiledExpression...)}.
+     * The file is memory mapped and the expressions are rebuilt directly from its contents 
+     * without parsing their strings. Calls of user defined functions are bound to the functions 
+     * currently registered with this evaluator under the same name and arity, and the expressions
+     * are evaluated by this evaluator's current engine with its current resource limits. The 
+     * angle mode and optimization setting in effect when the expressions were compiled are kept.
+     * With the {@link Engine#BYTECODE BYTECODE} engine, the bytecode of each expression is only 
+     * generated when it is first evaluated, so loading a large library is not slowed by 
+     * expressions that are rarely used.
+     * @param file - the file to read
+     * @return the expressions in the order they were written
+     * @throws IOException if the file can't be read, is not a library of a supported version or 
+     * is corrupt
+     * @throws InvalidMathExpressionException if an expression calls a user defined function that 
+     * is not registered or exceeds the resource limits
+     */
+    public CompiledExpression[] readLibrary(Path file) 
+            throws IOException, InvalidMathExpressionException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Expression library is too large to map: " + size + 
+                        " bytes");
+            }
+            return readLibrary(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+    
+    /**
+     * Loads compiled expressions written by {@link #writeLibrary(OutputStream, 
+     * CompiledExpression...)} from a buffer, in the same way as {@link #readLibrary(Path)}
+     * @param buffer - the buffer holding the library from its position, the position is advanced
+     * past the library when it has been read
+     * @return the expressions in the order they were written
+     * @throws IOException if the buffer does not hold a library of a supported version or it is 
+     * corrupt
+     * @throws InvalidMathExpressionException if an expression calls a user defined function that 
+     * is not registered or exceeds the resource limits
+     */
+    public CompiledExpression[] readLibrary(ByteBuffer buffer) 
+            throws IOException, InvalidMathExpressionException {
+        return LibraryFormat.read(buffer, functions, engine, limits);
+    }
+    
+    /**
+     * Compiles the given math expression together with its partial derivatives with respect to 
+     * each of the named variables. The expression and all of its derivatives are evaluated in one
+     * pass that shares their common sub-expressions, which is both faster and more accurate than 
+     * estimating the gradient by finite differences. The expression is compiled by the same rules
+     * as {@link #compile(String, String...)}, including the current angle mode, functions, engine
+     * and resource limits.
+     * @param expression - the math expression as a string
+     * @param variables - the names of the variables in slot order
+     * @return the expression with its gradient
+     * @throws InvalidMathExpressionException if the expression is not a valid math expression or 
+     * it calls a user defined function with an argument that depends on a variable, since the 
+     * derivative of such a function is not known, or a derivative is nested more deeply than the
+     * resource limits allow
+     * @throws IllegalArgumentException if a variable name is not valid or is repeated
+     * @see Gradient#evaluate(double[], double[])
+     */
+    public Gradient compileGradient(String expression, String... variables) 
+            throws InvalidMathExpressionException {
+        String[] names = variables.clone();
+        checkVariableNames(names);
+        boolean optimizing = this.optimizing;
+        ResourceLimits limits = this.limits;
+        Node root = new Parser(expression, names, functions, angleConversion, limits).parse();
+        if (optimizing) {
+            root = Optimizer.optimize(root, fastPowers);
+        }
+        Node[] roots = new Node[names.length + 1];
+        roots[0] = root;
+        for (int slot=0; slot<names.length; slot++) {
+            roots[slot + 1] = Differentiator.differentiate(root, slot);
+            //A derivative nests deeper than its expression so it is held to the limit too
+            if (roots[slot + 1].depth > limits.getMaxDepth()) {
+                throw InvalidMathExpressionException.limitExceeded("levels of nesting", 
+                        limits.getMaxDepth(), -1);
+            }
+        }
+        Node[] shared = NO_NODES;
+        int savedEvaluations = 0;
+        Node[] unshared = null;
+        if (optimizing && !Optimizer.callsImpure(root)) {
+            SubexpressionEliminator eliminator = new SubexpressionEliminator(roots);
+            shared = eliminator.getShared();
+            if (shared.length > 0 && Optimizer.canThrow(root)) {
+                unshared = roots;
+            }
+            roots = eliminator.getRoots();
+            savedEvaluations = eliminator.getSavedEvaluations();
+        }
+        BytecodeCompiler.Code code = null;
+        if (engine == Engine.BYTECODE) {
+            code = BytecodeCompiler.compile(shared, roots);
+        }
+        Gradient gradient = new Gradient(expression, names, shared, roots, code, savedEvaluations, 
+                unshared);
+        if (gradient.getOperationCount() > limits.getMaxOperations()) {
+            throw InvalidMathExpressionException.limitExceeded("operations", 
+                    limits.getMaxOperations(), -1);
+        }
+        return gradient;
+    }
+    
+    /**
+     * Compiles many rules, such as the thresholds of an alerting system, together so that they 
+     * can be checked against the same variable values much faster than by evaluating each one. 
+     * Simple comparisons of a variable with a constant are indexed rather than evaluated and 
+     * sub-expressions that appear in more than one rule are computed only once per check. The 
+     * rules are compiled by the same rules as {@link #compile(String, String...)}.
+     * @param rules - the math expressions of the rules, each rule's id is its index in the array
+     * @param variables - the names of the variables in slot order
+     * @return the rule set
+     * @throws InvalidMathExpressionException if any rule is not a valid math expression, the 
+     * message does not identify the rule so callers with untrusted rules should 
+     * {@link #validate(CharSequence, String...) validate} them first
+     * @throws IllegalArgumentException if a variable name is not valid or is repeated
+     * @see RuleSet#match(double[], int[])
+     */
+    public RuleSet compileRules(String[] rules, String... variables) 
+            throws InvalidMathExpressionException {
+        String[] names = variables.clone();
+        checkVariableNames(names);
+        String[] expressions = rules.clone();
+        FunctionRegistry functions = this.functions;
+        double angleConversion = this.angleConversion;
+        boolean optimizing = this.optimizing;
+        boolean fastPowers = this.fastPowers;
+        ResourceLimits limits = this.limits;
+        Node[] trees = new Node[expressions.length];
+        for (int i=0; i<expressions.length; i++) {
+            Node root = new Parser(expressions[i], names, functions, angleConversion, limits).parse();
+            trees[i] = optimizing ? Optimizer.optimize(root, fastPowers) : root;
+        }
+        return new RuleSet(expressions, names, trees, optimizing);
+    }
+    
+    /**
+     * Checks that the given math expression is well formed without evaluating it. The grammar, 
+     * the function names and the number of arguments of each function call are checked by the 
+     * same rules as {@link #evaluate(String)}, but any name that is not followed by '(' is 
+     * accepted as a variable. Nothing is computed, not even constant sub-expressions, so this is 
+     * much faster than evaluating the expression.
+     * @param expression - the math expression
+     * @return the result, which lists the functions and variables the expression refers to
+     * @see #validate(CharSequence, String...)
+     */
+    public ValidationResult validate(CharSequence expression) {
+        return validate(expression, NO_VARIABLES, true);
+    }
+    
+    /**
+     * Checks that the given math expression, which may refer to the named variables, is well 
+     * formed without evaluating it. The expression is checked by the same rules as 
+     * {@link #compile(String, String...)} so a name that is not one of the variables and is not 
+     * followed by '(' makes the expression invalid.
+     * @param expression - the math expression
+     * @param variables - the names of the variables
+     * @return the result, which lists the functions and variables the expression refers to
+     * @throws IllegalArgumentException if a variable name is not valid or is repeated
+     * @see #validate(CharSequence)
+     */
+    public ValidationResult validate(CharSequence expression, String... variables) {
+        String[] names = variables.clone();
+        checkVariableNames(names);
+        return validate(expression, names, false);
+    }
+    
+    private ValidationResult validate(CharSequence expression, String[] variables, 
+            boolean freeVariables) {
+        Set<String> functionNames = new LinkedHashSet<>();
+        Set<String> variableNames = new LinkedHashSet<>();
+        Parser parser = new Parser(expression, variables, functions, angleConversion, limits);
+        parser.recordNames(functionNames, variableNames, freeVariables);
+        InvalidMathExpressionException error = null;
+        try {
+            parser.parse();
+        }
+        catch (InvalidMathExpressionException ex) {
+            error = ex;
+        }
+        return new ValidationResult(error, functionNames.toArray(new String[0]), 
+                variableNames.toArray(new String[0]));
+    }
+    
+    /**
+     * Gets a snapshot of the counters of the cache used by {@link #evaluate(String)}
+     * @return the cache statistics, all zero if caching is disabled
+     * @see #StringMathExpressionEvaluator(int)
+     */
+    public CacheStatistics getCacheStatistics() {
+        if (cache == null) {
+            return new CacheStatistics(0, 0, 0, 0, 0);
+        }
+        return cache.getStatistics();
+    }
+    
+    /**
+     * Removes all parsed expressions from the cache used by {@link #evaluate(String)} and resets 
+     * its counters. Expressions that other threads are compiling during the call are not added to
+     * the cache when they finish.
+     */
+    public void clearCache() {
+        if (cache != null) {
+            cache.clear();
         }
-        return x;
     }
     
     /**
@@ -56,7 +530,7 @@ public class StringMathExpressionEvaluator {
      * @see #isRadianMode()
      */
     public void setDegreeMode() {
-        angleConversion = Math.PI / 180.0;
+        angleConversion = DEGREES_TO_RADIANS;
     }
     
     /**
@@ -93,395 +567,241 @@ public class StringMathExpressionEvaluator {
     }
     
     /**
-     * Moves the character pointer to the next character in the string
+     * Sets the engine used to evaluate expressions compiled by {@link #compile(String)} and 
+     * {@link #compile(String, String...)}. Expressions that were compiled earlier are not affected
+     * but the cache used by {@link #evaluate(String)} is cleared so that expressions are 
+     * recompiled with the new engine.
+     * @param engine - the engine
+     * @see #getEngine()
+     * @see CompiledExpression#getEngine()
      */
-    private void nextChar() {
-        idx++;
-        if (idx < str.length()) {
-            ch = str.charAt(idx);
+    public void setEngine(Engine engine) {
+        if (engine == null) {
+            throw new NullPointerException("engine");
         }
-        else {
-            ch = -1;
+        if (engine != this.engine) {
+            this.engine = engine;
+            clearCache();
         }
     }
     
     /**
-     * Advances the character pointer to the next non-whitespace character in the string and tests 
-     * its value to see if it matches the given character. If the character matches, the character 
-     * pointer is advanced to the next non-whitespace character in the string and true is returned. 
-     * Otherwise, the character pointer remains pointing at the non-matched character and false is 
-     * returned.
-     * @param charToConsume - the character to test for in the string
-     * @return true if the character matches otherwise false
+     * Sets the limits on the resources that expressions may use, for evaluating expressions from 
+     * untrusted sources. The limits apply to expressions passed to {@link #evaluate(String)}, 
+     * {@link #compile(String, String...)} and {@link #validate(CharSequence)} and their variants.
+     * Expressions that were compiled earlier keep the limits they were compiled with but the cache
+     * used by {@link #evaluate(String)} is cleared so that cached expressions are checked against
+     * the new limits.
+     * @param limits - the limits
+     * @see #getResourceLimits()
      */
-    private boolean consume(int charToConsume) {
-        while (Character.isWhitespace(ch)) {
-            nextChar();
+    public void setResourceLimits(ResourceLimits limits) {
+        if (limits == null) {
+            throw new NullPointerException("limits");
         }
-        if (ch == charToConsume) {
-            nextChar();
-            return true;
-        }
-        return false;
-    }
-    
-    // Grammar:
-    // relation = expression | expression `==` relation | expression `!=` relation
-    //     | expression `>` expression | expression `>=` expression 
-    //     | expression `<` expression | expression `<=` expression
-    // expression = term | expression `+` term | expression `-` term
-    // term = factor | term `*` factor | term `/` factor | term `%` factor
-    // factor = `+` factor | `-` factor | `(` expression `)` | number
-    //        | function | factor `^` factor
-    // function = functionName `(` relationList `)`
-    // relationList = relation | relation `,` relationList
-    
-    /**
-     * Parses the string for a number starting at the character pointer. The character pointer 
-     * is left pointing at the next non-whitespace character beyond the number.
-     * @return the numerical value of the number
-     * @throws InvalidMathExpressionException if a valid number is not found
-     */
-    private double parseNumber() throws InvalidMathExpressionException {
-        int startIdx = this.idx;
-        boolean pointFound = false;
-        boolean exponent = false;
-        boolean exponentStarting = false;
-        while (Character.isDigit(ch) || (!pointFound && !exponent && ch == '.') || 
-                (!exponent && (ch == 'e' || ch == 'E')) ||
-                (exponentStarting && (ch == '+' || ch == '-'))) {
-            pointFound = pointFound || ch == '.';
-            if (exponent && exponentStarting) {
-                exponentStarting = false;
-            }
-            if (!exponent && (ch == 'e' || ch == 'E')) {
-                exponent = true;
-                exponentStarting = true;
-            }
-            nextChar();
-        }
-        try {
-            double x = Double.parseDouble(str.substring(startIdx, this.idx));
-            return x;
-        }
-        catch (NumberFormatException ex) {
-            throw new InvalidMathExpressionException("Invalid number: " + str.substring(startIdx, this.idx) +
-                    " at index " + startIdx);
+        if (limits != this.limits) {
+            this.limits = limits;
+            clearCache();
         }
-        
     }
     
     /**
-     * Parses the string for a function starting at the character pointer. The character pointer is
-     * left pointing to the next non-whitespace after the function.
-     * @return the numerical value of the function
-     * @throws InvalidMathExpressionException if the function is unknown or there is a problem with
-     * one or more of the function's arguments
+     * Gets the limits on the resources that expressions may use
+     * @return the limits, {@link ResourceLimits#DEFAULT} unless others have been set
+     * @see #setResourceLimits(ResourceLimits)
      */
-    private double parseFunction() throws InvalidMathExpressionException {
-        int startIdx = this.idx;
-        while (Character.isLetterOrDigit(ch)) {
-            nextChar();
-        }
-        String func = str.substring(startIdx, this.idx).toLowerCase();
-        Double[] args;
-        if (consume('(')) {
-            args = parseRelationList();
-            if (!consume(')')) {
-                throw new InvalidMathExpressionException(
-                        "Missing ')' after argument to " + func + " at index " + idx);
-            }
-        } else {
-            throw new InvalidMathExpressionException(
-                    "Missing '(' after " + func + " at index " + idx);
-        }
-        switch (args.length) {
-            case 0:
-                switch (func) {
-                    case "pi":
-                        return Math.PI;
-                    case "e":
-                        return Math.E;
-                    default:
-                        throw new InvalidMathExpressionException("Unknown function: " + func + "() at index " + startIdx);    
-                }
-            case 1:
-                switch (func) {
-                    case "abs":
-                        return Math.abs(args[0]);
-                    case "ceil":
-                        return Math.ceil(args[0]);
-                    case "floor":
-                        return Math.floor(args[0]);
-                    case "round":
-                        return Math.round(args[0]);
-                    case "signum":
-                        return Math.signum(args[0]);
-                    case "sqrt":
-                        return Math.sqrt(args[0]);
-                    case "cbrt":
-                        return Math.cbrt(args[0]);
-                    case "sin":
-                        return Math.sin(args[0]*angleConversion);
-                    case "cos":
-                        return Math.cos(args[0]*angleConversion);
-                    case "tan":
-                        return Math.tan(args[0]*angleConversion);
-                    case "asin":
-                        return Math.asin(args[0])/angleConversion;
-                    case "acos":
-                        return Math.acos(args[0])/angleConversion;
-                    case "atan":
-                        return Math.atan(args[0])/angleConversion;
-                    case "sinh":
-                        return Math.sinh(args[0]);
-                    case "cosh":
-                        return Math.cosh(args[0]);
-                    case "tanh":
-                        return Math.tanh(args[0]);
-                    case "asinh":
-                        return Math.log(args[0] + Math.sqrt(args[0]*args[0] + 1));
-                    case "acosh":
-                        return Math.log(args[0] + Math.sqrt(args[0]*args[0] - 1));
-                    case "atanh":
-                        return 0.5*Math.log((1 + args[0]) / (1 - args[0]));
-                    case "exp":
-                        return Math.exp(args[0]);
-                    case "log":
-                        return Math.log(args[0]);
-                    case "log2":
-                        return Math.log(args[0]) / Math.log(2);
-                    case "log10":
-                        return Math.log10(args[0]);
-                    case "toradians":
-                        return Math.toRadians(args[0]);
-                    case "todegrees":
-                        return Math.toDegrees(args[0]);
-                    case "not":
-                        return args[0] == 0 ? 1 : 0;
-                    case "fact":
-                        double x = args[0];
-                        if (Math.round(x) != x || x < 0) {
-                            throw new InvalidMathExpressionException("Factorial of non-integer or non-positive integer at index " + startIdx);
-                        }
-                        double ret = 1;
-                        for (int j=2; j<=x; j++) {
-                            ret *= j; 
-                        }
-                        return ret;
-                    default:
-                        throw new InvalidMathExpressionException("Unknown function: " + func + " with one argument at index " + startIdx);    
-                }
-            case 2:
-                switch (func) {
-                    case "atan":
-                    case "atan2":
-                        return Math.atan2(args[0], args[1])/angleConversion;
-                    case "hypot":
-                        return Math.hypot(args[0], args[1]);
-                    case "log":
-                        return Math.log(args[1]) / Math.log(args[0]);
-                    case "max":
-                        return Math.max(args[0], args[1]);
-                    case "min":
-                        return Math.min(args[0], args[1]);
-                    case "pow":
-                        return Math.pow(args[0], args[1]);
-                    case "and":
-                        return args[0] != 0 && args[1] != 0 ? 1 : 0;
-                    case "or":
-                        return args[0] != 0 || args[1] != 0 ? 1 : 0;
-                    case "xor":
-                        return (args[0] != 0 && args[1] == 0) || (args[0] == 0 && args[1] != 0) ? 1 : 0;
-                    case "comb": //m taken n at a time
-                        if (Math.round(args[0]) != args[0] || args[0] < 0 || 
-                                Math.round(args[1]) != args[1] || args[1] < 0 || args[0] < args[1]) {
-                            throw new InvalidMathExpressionException("In comb(m,n), n and m must be non-negative integers with m>=n at index " + startIdx);
-                        }
-                        double ret = 1;
-                        for (int i=args[0].intValue(), j=1; i>=args[0]-args[1]+1; i--, j++) {
-                            ret *= i /(double) j;
-                        }
-                    return ret;
-                    case "perm": //m taken n at a time
-                        if (Math.round(args[0]) != args[0] || args[0] < 0 || 
-                                Math.round(args[1]) != args[1] || args[1] < 0 || args[0] < args[1]) {
-                            throw new InvalidMathExpressionException("In perm(m,n), n and m must be non-negative integers with m>=n at index " + startIdx);
-                        }
-                        ret = 1;
-                        for (int i=args[0].intValue(); i>=args[0]-args[1]+1; i--) {
-                            ret *= i;
-                        }
-                        return ret;
-                    default:
-                        throw new InvalidMathExpressionException("Unknown function: " + func + " with two arguments at index " + startIdx);    
-                }
-            case 3:
-                switch (func) {
-                    case "if":
-                        return args[0] != 0 ? args[1] : args[2];
-                    default:
-                        throw new InvalidMathExpressionException("Unknown function: " + func + " with three arguments at index " + startIdx);    
-                }
-            default:
-                throw new InvalidMathExpressionException("Unknown function: " + func + " with " + args.length + " arguments at index " + startIdx);    
-        }
+    public ResourceLimits getResourceLimits() {
+        return limits;
     }
     
     /**
-     * Parses the string for a comma separated list of relations starting at the character pointer.
-     * The character pointer is left at the next non-whitespace character past the last relation.
-     * @return an array containing the numerical values of each of the relations
-     * @throws InvalidMathExpressionException if any of the relations is invalid
+     * Gets the engine used to evaluate compiled expressions
+     * @return the engine
+     * @see #setEngine(Engine)
      */
-    private Double[] parseRelationList() throws InvalidMathExpressionException {
-        List<Double> ret = new ArrayList<>();
-        if (ch != ')') {
-            ret.add(parseRelation());
-        }
-        while (consume(',')) {
-            ret.add(parseRelation());
-        }
-        Double[] retArray = {};
-        return ret.toArray(retArray);
+    public Engine getEngine() {
+        return engine;
     }
     
     /**
-     * Parses the string for a relation starting at the character pointer. The character pointer is
-     * left at the next non-whitespace character past the relation.
-     * @return the numerical value of the relation, either 1 if the relation is true or 0 if the 
-     * relation is false
-     * @throws InvalidMathExpressionException if the relation is invalid
+     * Enables or disables optimization of compiled expressions (enabled by default). When enabled, 
+     * sub-expressions whose operands are all constants, such as <code>2*pi()/360</code>, are 
+     * computed once when the expression is compiled, operations that can't change their operand,
+     * such as <code>x*1</code>, are removed, and some costly operations are replaced by cheaper 
+     * ones, for example <code>x^2</code> becomes <code>x*x</code>. Sub-expressions that appear 
+     * more than once, such as <code>sqrt(x^2+y^2)</code> in 
+     * <code>x/sqrt(x^2+y^2) + y/sqrt(x^2+y^2)</code>, are computed only once per evaluation, see
+     * {@link CompiledExpression#getSavedEvaluationCount()}. These give exactly the same 
+     * results as the unoptimized expression unless {@link #setFastPowers(boolean) fast powers}
+     * are enabled. Changing this clears the cache used by {@link #evaluate(String)}.
+     * @param optimizing - true to enable optimization
+     * @see #isOptimizing()
      */
-    private double parseRelation() throws InvalidMathExpressionException {
-        double x = parseExpression();
-        for (;;) {
-            if (consume('=')) {
-                if (consume('=')) {
-                    double y = parseRelation();
-                    x = x == y ? 1 : 0;
-                }
-                else {
-                    throw new InvalidMathExpressionException("Invalid operator, probably missing '=' at index " + idx);
-                }
-            }
-            else if (consume('!')) {
-                if (consume('=')) {
-                    double y = parseRelation();
-                    x = x != y ? 1 : 0;
-                }
-                else {
-                    throw new InvalidMathExpressionException("Invalid operator, probably missing '=' at index " + idx);
-                }
-            }
-            else if (consume('>')) {
-                if (consume('=')) {
-                    double y = parseExpression();
-                    x = x >= y ? 1 : 0;
-                }
-                else {
-                    double y = parseExpression();
-                    x = x > y ? 1 : 0;
-                }
-            }
-            else if (consume('<')) {
-                if (consume('=')) {
-                    double y = parseExpression();
-                    x = x <= y ? 1 : 0;
-                }
-                else {
-                    double y = parseExpression();
-                    x = x < y ? 1 : 0;
-                }
-            }
-            else {
-                return x;
-            }
+    public void setOptimizing(boolean optimizing) {
+        if (optimizing != this.optimizing) {
+            this.optimizing = optimizing;
+            clearCache();
         }
     }
     
     /**
-     * Parses the string for an expression starting at the character pointer. The character pointer
-     * is left at the next non-whitespace character past the expression. An expression is one or 
-     * more terms combined together with the + and/or - operators.
-     * @return the numerical value of the expression
-     * @throws InvalidMathExpressionException if the expression is not valid
+     * Checks if compiled expressions are optimized
+     * @return true if optimization is enabled
+     * @see #setOptimizing(boolean)
      */
-    private double parseExpression() throws InvalidMathExpressionException {
-        double x = parseTerm();
-        for (;;) {
-            if (consume('+')) { // addition
-                x += parseTerm();
-            }
-            else if (consume('-')) { // subtraction
-                x -= parseTerm();
-            }
-            else {
-                return x;
-            }
+    public boolean isOptimizing() {
+        return optimizing;
+    }
+    
+    /**
+     * Enables or disables computing cubes and fourth powers by repeated multiplication when 
+     * expressions are optimized (disabled by default). <code>x^3</code> and <code>x^4</code> are
+     * then several times faster but, since they are rounded more than once, they may differ from
+     * {@link Math#pow(double, double)} in the last binary place (one ulp). <code>x^2</code> is 
+     * always computed as <code>x*x</code> when optimizing since that is exact. Changing this 
+     * clears the cache used by {@link #evaluate(String)}.
+     * @param fastPowers - true to allow results that may differ in the last binary place
+     * @see #isFastPowers()
+     * @see #setOptimizing(boolean)
+     */
+    public void setFastPowers(boolean fastPowers) {
+        if (fastPowers != this.fastPowers) {
+            this.fastPowers = fastPowers;
+            clearCache();
         }
     }
     
     /**
-     * Parses the string for a term starting at the character pointer. The character pointer is left
-     * at the next non-whitespace character past the term. A term is one or more factors combined
-     * together with the *, /, and/or % operators.
-     * @return the numerical value of the term
-     * @throws InvalidMathExpressionException if the term is invalid
+     * Checks if cubes and fourth powers are computed by repeated multiplication
+     * @return true if fast powers are enabled
+     * @see #setFastPowers(boolean)
      */
-    private  double parseTerm() throws InvalidMathExpressionException {
-        double x = parseFactor();
-        for (;;) {
-            if (consume('*')) { // multiplication
-                x *= parseFactor();
-            }
-            else if (consume('/')) { // division
-                x /= parseFactor();
-            }
-            else if (consume('%')) { //modulus
-                x %= parseFactor();
-            }
-            else {
-                return x;
-            }
+    public boolean isFastPowers() {
+        return fastPowers;
+    }
+    
+    /**
+     * Registers a user defined function of one argument so that it can be called from 
+     * expressions. Function names are not case sensitive and may be overloaded by the number of 
+     * arguments. A pure function always returns the same value for the same argument and has no
+     * side effects, which allows calls with constant arguments to be computed once at compile time
+     * and repeated calls with the same argument to be made only once per evaluation. An impure 
+     * function is called exactly once for every time it appears in the expression each time the 
+     * expression is evaluated, so the sub-expressions of an expression that calls one are not 
+     * shared. Expressions compiled earlier are not affected but the cache used by 
+     * {@link #evaluate(String)} is cleared.
+     * @param name - the name of the function, a letter followed by any number of letters or digits
+     * @param function - the implementation of the function
+     * @param pure - true if the function is pure
+     * @throws IllegalArgumentException if the name is not valid or is that of a built-in function
+     * of one argument
+     * @see #unregisterFunction(String, int)
+     */
+    public void registerFunction(String name, UnaryFunction function, boolean pure) {
+        checkFunctionName(name, function);
+        register(MathFunction.custom(FunctionRegistry.normalize(name), function, pure));
+    }
+    
+    /**
+     * Registers a user defined function of two arguments so that it can be called from 
+     * expressions, see {@link #registerFunction(String, UnaryFunction, boolean)}
+     * @param name - the name of the function, a letter followed by any number of letters or digits
+     * @param function - the implementation of the function
+     * @param pure - true if the function is pure
+     * @throws IllegalArgumentException if the name is not valid or is that of a built-in function
+     * of two arguments
+     * @see #unregisterFunction(String, int)
+     */
+    public void registerFunction(String name, BinaryFunction function, boolean pure) {
+        checkFunctionName(name, function);
+        register(MathFunction.custom(FunctionRegistry.normalize(name), function, pure));
+    }
+    
+    /**
+     * Registers a user defined function of any fixed number of arguments so that it can be called
+     * from expressions, see {@link #registerFunction(String, UnaryFunction, boolean)}. A new array
+     * of arguments is created for each call.
+     * @param name - the name of the function, a letter followed by any number of letters or digits
+     * @param arity - the number of arguments
+     * @param function - the implementation of the function
+     * @param pure - true if the function is pure
+     * @throws IllegalArgumentException if the name is not valid, the number of arguments is 
+     * negative or the name is that of a built-in function with the same number of arguments
+     * @see #unregisterFunction(String, int)
+     */
+    public void registerFunction(String name, int arity, NaryFunction function, boolean pure) {
+        checkFunctionName(name, function);
+        if (arity < 0) {
+            throw new IllegalArgumentException("Negative number of arguments: " + arity);
         }
+        register(MathFunction.custom(FunctionRegistry.normalize(name), arity, function, pure));
     }
     
     /**
-     * Parses the string for a factor starting at the character pointer. The character pointer is
-     * left at the next non-whitespace character past the end of the factor. A factor is an optional
-     * unary '+' or '-' sign followed by either 1) a relation enclosed in parentheses, 2) a number, 
-     * or 3) a function call. This can optionally be followed by an exponentiation operator '^'
-     * followed by another factor.
-     * @return the numerical value of the factor
-     * @throws InvalidMathExpressionException if the factor is invalid
+     * Removes a user defined function. Expressions compiled earlier are not affected but the cache
+     * used by {@link #evaluate(String)} is cleared.
+     * @param name - the name of the function
+     * @param arity - the number of arguments of the function
+     * @return true if the function was removed, false if there was no such user defined function
      */
-    private double parseFactor() throws InvalidMathExpressionException {
-        if (consume('+')) { // unary plus
-            return +parseFactor();
+    public boolean unregisterFunction(String name, int arity) {
+        synchronized (this) {
+            FunctionRegistry registry = functions.without(FunctionRegistry.normalize(name), arity);
+            if (registry == functions) {
+                return false;
+            }
+            functions = registry;
         }
-        if (consume('-')) { // unary minus
-            return -parseFactor();
+        clearCache();
+        return true;
+    }
+    
+    private void register(MathFunction function) {
+        synchronized (this) {
+            functions = functions.with(function);
         }
-        
-        double x;
-        if (consume('(')) { // parentheses
-            x = parseRelation();
-            if (!consume(')')) {
-                throw new InvalidMathExpressionException("Missing ')' at index " + idx);
-            }
+        clearCache();
+    }
+    
+    private static void checkFunctionName(String name, Object function) {
+        if (function == null) {
+            throw new NullPointerException("function");
         }
-        else if (Character.isDigit(ch) || ch == '.') { // numbers
-            x = parseNumber();
-        } else if (Character.isLetter(ch)) { // functions
-            x = parseFunction();
-        } else {
-            throw new InvalidMathExpressionException("Unexpected character: '" + (char)ch + "' at index " + idx );
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid function name: " + name);
         }
-        
-        if (consume('^')) {
-            x = Math.pow(x, parseFactor());
+    }
+    
+    /**
+     * Checks if a name can be used for a variable or function, that is a letter followed by any
+     * number of letters or digits
+     * @param name - the name
+     * @return true if the name is valid
+     */
+    static boolean isValidName(String name) {
+        boolean valid = name != null && !name.isEmpty() && Character.isLetter(name.charAt(0));
+        for (int j=1; valid && j<name.length(); j++) {
+            valid = Character.isLetterOrDigit(name.charAt(j));
+        }
+        return valid;
+    }
+    
+    /**
+     * Checks that each variable name is a valid identifier and that no name is repeated
+     * @param variables - the variable names
+     * @throws IllegalArgumentException if a name is not valid or is repeated
+     */
+    static void checkVariableNames(String[] variables) {
+        for (int i=0; i<variables.length; i++) {
+            String name = variables[i];
+            if (!isValidName(name)) {
+                throw new IllegalArgumentException("Invalid variable name: " + name);
+            }
+            for (int j=0; j<i; j++) {
+                if (name.equals(variables[j])) {
+                    throw new IllegalArgumentException("Duplicate variable name: " + name);
+                }
+            }
         }
-        return x;
     }
 }
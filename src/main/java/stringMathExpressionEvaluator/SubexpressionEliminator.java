@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds structurally identical sub-expressions in one or more expression trees so that each is 
+ * computed only once per evaluation. Every repeated sub-expression is moved into a list of shared 
+ * sub-expressions, ordered so that each one only depends on those before it, and each of its 
+ * occurrences is replaced by a node that reads its value. All built-in functions are 
+ * deterministic so any repeated sub-expression may be shared, only calls of impure user defined
+ * functions are never shared.
+ * <p>
+ * Shared sub-expressions are computed before the trees that use them, so a sub-expression is only
+ * shared if at least one of its occurrences is always evaluated. One that only appears in the 
+ * branches of <code>if</code> or the second argument of <code>and</code> or <code>or</code> is 
+ * left in place so that it costs nothing when it is not needed.
+ */
+final class SubexpressionEliminator {
+    /**
+     * A key for finding nodes that compute the same thing. Operands are compared by identity since
+     * they have already been made unique.
+     */
+    private static final class Key {
+        private final Node node;
+        private final int hash;
+        
+        Key(Node node) {
+            this.node = node;
+            int h = node.op;
+            long bits = Double.doubleToRawLongBits(node.value);
+            h = 31*h + (int) (bits ^ (bits >>> 32));
+            h = 31*h + node.slot;
+            h = 31*h + System.identityHashCode(node.function);
+            for (Node arg : node.args) {
+                h = 31*h + System.identityHashCode(arg);
+            }
+            this.hash = h;
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Node other = ((Key) obj).node;
+            if (node.op != other.op || node.slot != other.slot || 
+                    node.function != other.function ||
+                    Double.doubleToRawLongBits(node.value) != Double.doubleToRawLongBits(other.value) ||
+                    node.args.length != other.args.length) {
+                return false;
+            }
+            for (int i=0; i<node.args.length; i++) {
+                if (node.args[i] != other.args[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private final Map<Key, Node> uniqueNodes = new HashMap<>();
+    private final Map<Node, Node> uniqueOf = new IdentityHashMap<>();
+    private final Map<Node, Integer> useCounts = new IdentityHashMap<>();
+    private final Set<Node> unconditional = 
+            Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    private final Map<Node, Node> rebuilt = new IdentityHashMap<>();
+    private final List<Node> shared = new ArrayList<>();
+    private final Node[] roots;
+    private final int savedEvaluations;
+    
+    /**
+     * Eliminates the common sub-expressions of the given trees. Sub-expressions are shared between
+     * trees as well as within them.
+     * @param roots - the roots of the trees
+     */
+    SubexpressionEliminator(Node... roots) {
+        int operations = 0;
+        Node[] uniqueRoots = new Node[roots.length];
+        for (int i=0; i<roots.length; i++) {
+            operations += roots[i].operations;
+            uniqueRoots[i] = unique(roots[i]);
+        }
+        for (Node root : uniqueRoots) {
+            countUses(root);
+            markUnconditional(root);
+        }
+        this.roots = new Node[roots.length];
+        int remainingOperations = 0;
+        for (int i=0; i<roots.length; i++) {
+            this.roots[i] = rebuild(uniqueRoots[i]);
+            remainingOperations += this.roots[i].operations;
+        }
+        for (Node node : shared) {
+            remainingOperations += node.operations;
+        }
+        savedEvaluations = operations - remainingOperations;
+    }
+    
+    /**
+     * Gets the shared sub-expressions in the order they must be computed
+     * @return the shared sub-expressions
+     */
+    Node[] getShared() {
+        return shared.toArray(new Node[shared.size()]);
+    }
+    
+    /**
+     * Gets the roots of the trees with repeated sub-expressions replaced by reads of the shared 
+     * values
+     * @return the roots in the same order they were given
+     */
+    Node[] getRoots() {
+        return roots.clone();
+    }
+    
+    /**
+     * Gets the number of operations that no longer need to be computed on each evaluation
+     * @return the number of operations saved
+     */
+    int getSavedEvaluations() {
+        return savedEvaluations;
+    }
+    
+    private static boolean isOperation(Node node) {
+        return node.op != Node.CONSTANT && node.op != Node.VARIABLE && node.op != Node.SHARED;
+    }
+    
+    /**
+     * Finds the unique node that computes the same thing as the tree rooted at the given node
+     * @param node - the root of the tree
+     * @return the unique node
+     */
+    private Node unique(Node node) {
+        //Trees such as derivatives may reuse the same sub-tree many times
+        Node done = uniqueOf.get(node);
+        if (done != null) {
+            return done;
+        }
+        if (node.depth > Node.MAX_RECURSION) {
+            //Deeply nested trees are visited from the innermost operations outwards first, in the
+            //same order as recursion, so the recursion below stays shallow
+            List<Node> nodes = Node.postOrder(node, uniqueOf);
+            for (int i=0; i<nodes.size() - 1; i++) {
+                Node other = nodes.get(i);
+                uniqueOf.put(other, uniqueNode(other));
+            }
+        }
+        else if (node.chain >= Node.LONG_CHAIN && !uniqueOf.containsKey(node.args[0])) {
+            //Long chains are visited from the innermost operation outwards first, in the same 
+            //order as recursion, so no operation of the chain has to recurse into its left operand
+            Node[] nodes = node.chainNodes();
+            for (int i=nodes.length - 1; i>0; i--) {
+                unique(nodes[i]);
+            }
+        }
+        Node result = uniqueNode(node);
+        uniqueOf.put(node, result);
+        return result;
+    }
+    
+    private Node uniqueNode(Node node) {
+        Node[] args = node.args;
+        Node[] uniqueArgs = args;
+        for (int i=0; i<args.length; i++) {
+            Node arg = unique(args[i]);
+            if (arg != args[i]) {
+                if (uniqueArgs == args) {
+                    uniqueArgs = args.clone();
+                }
+                uniqueArgs[i] = arg;
+            }
+        }
+        if (uniqueArgs != args) {
+            node = node.withArgs(uniqueArgs);
+        }
+        if (node.op == Node.CALL && !node.function.pure) {
+            //Each call of an impure function must be made
+            return node;
+        }
+        Key key = new Key(node);
+        Node existing = uniqueNodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        uniqueNodes.put(key, node);
+        return node;
+    }
+    
+    /**
+     * Counts how many times each unique node is used as an operand or root
+     * @param node - a unique node
+     */
+    private void countUses(Node node) {
+        if (node.depth > Node.MAX_RECURSION) {
+            //Only the totals matter so deeply nested trees are counted in any order with an 
+            //explicit stack
+            ArrayDeque<Node> pending = new ArrayDeque<>();
+            pending.push(node);
+            while (!pending.isEmpty()) {
+                Node next = pending.pop();
+                if (next.depth <= Node.MAX_RECURSION) {
+                    countUses(next);
+                    continue;
+                }
+                Integer count = useCounts.get(next);
+                useCounts.put(next, count == null ? 1 : count + 1);
+                if (count == null) {
+                    for (Node arg : next.args) {
+                        pending.push(arg);
+                    }
+                }
+            }
+            return;
+        }
+        while (true) {
+            Integer count = useCounts.get(node);
+            useCounts.put(node, count == null ? 1 : count + 1);
+            if (count != null) {
+                return;
+            }
+            if (node.chain == 0) {
+                break;
+            }
+            //Only the totals matter so the left operand can be counted last with a loop
+            countUses(node.args[1]);
+            node = node.args[0];
+        }
+        for (Node arg : node.args) {
+            countUses(arg);
+        }
+    }
+    
+    /**
+     * Marks the nodes that are evaluated every time the tree is evaluated
+     * @param node - a unique node that is always evaluated
+     */
+    private void markUnconditional(Node node) {
+        if (node.depth > Node.MAX_RECURSION) {
+            ArrayDeque<Node> pending = new ArrayDeque<>();
+            pending.push(node);
+            while (!pending.isEmpty()) {
+                Node next = pending.pop();
+                if (next.depth <= Node.MAX_RECURSION) {
+                    markUnconditional(next);
+                }
+                else if (unconditional.add(next)) {
+                    Node[] args = next.args;
+                    boolean conditional = next.op == Node.IF || next.op == Node.AND || 
+                            next.op == Node.OR;
+                    for (int i=conditional ? 0 : args.length - 1; i>=0; i--) {
+                        pending.push(args[i]);
+                    }
+                }
+            }
+            return;
+        }
+        for (; node.chain > 0; node = node.args[0]) {
+            if (!unconditional.add(node)) {
+                return;
+            }
+            markUnconditional(node.args[1]);
+        }
+        if (!unconditional.add(node)) {
+            return;
+        }
+        switch (node.op) {
+            case Node.IF:
+            case Node.AND:
+            case Node.OR:
+                //The other arguments are only evaluated depending on the value of the first
+                markUnconditional(node.args[0]);
+                break;
+            default:
+                for (Node arg : node.args) {
+                    markUnconditional(arg);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Rebuilds a tree replacing sub-expressions that are used more than once and always evaluated 
+     * with reads of shared values. Shared sub-expressions are added to the list as they are 
+     * completed in evaluation order so they are computed in the same order as they would have been
+     * without sharing.
+     * @param node - a unique node
+     * @return the root of the rebuilt tree
+     */
+    private Node rebuild(Node node) {
+        Node done = rebuilt.get(node);
+        if (done != null) {
+            return done;
+        }
+        if (node.depth > Node.MAX_RECURSION) {
+            //Visited from the innermost operations outwards first as in unique
+            List<Node> nodes = Node.postOrder(node, rebuilt);
+            for (int i=0; i<nodes.size() - 1; i++) {
+                rebuild(nodes.get(i));
+            }
+        }
+        else if (node.chain >= Node.LONG_CHAIN && !rebuilt.containsKey(node.args[0])) {
+            //Visited from the innermost operation outwards first as in unique
+            Node[] nodes = node.chainNodes();
+            for (int i=nodes.length - 1; i>0; i--) {
+                rebuild(nodes[i]);
+            }
+        }
+        Node[] args = node.args;
+        Node result = node;
+        if (args.length > 0) {
+            Node[] newArgs = new Node[args.length];
+            boolean changed = false;
+            for (int i=0; i<args.length; i++) {
+                newArgs[i] = rebuild(args[i]);
+                changed |= newArgs[i] != args[i];
+            }
+            if (changed) {
+                result = node.withArgs(newArgs);
+            }
+        }
+        if (isOperation(node) && useCounts.get(node) > 1 && unconditional.contains(node)) {
+            shared.add(result);
+            result = Node.shared(shared.size() - 1, node.index);
+        }
+        rebuilt.put(node, result);
+        return result;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+/**
+ * A user defined function of one argument that can be called from math expressions once it has 
+ * been registered with 
+ * {@link StringMathExpressionEvaluator#registerFunction(String, UnaryFunction, boolean)}
+ */
+public interface UnaryFunction {
+    
+    /**
+     * Computes the value of the function
+     * @param x - the argument
+     * @return the value of the function
+     * @throws InvalidMathExpressionException if the argument is outside of the function's domain
+     */
+    double apply(double x) throws InvalidMathExpressionException;
+}
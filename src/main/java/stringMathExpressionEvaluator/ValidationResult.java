@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+stringmathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Arrays;
+
+/**
+ * Holds the outcome of {@link StringMathExpressionEvaluator#validate(CharSequence)}: whether the 
+ * expression is well formed and the names of the functions and variables it refers to.
+ */
+public final class ValidationResult {
+    private final InvalidMathExpressionException error;
+    private final String[] functions;
+    private final String[] variables;
+    
+    ValidationResult(InvalidMathExpressionException error, String[] functions, String[] variables) {
+        this.error = error;
+        this.functions = functions;
+        this.variables = variables;
+    }
+    
+    /**
+     * Checks if the expression is well formed. A well formed expression may still fail to 
+     * evaluate if a function is given an argument outside its domain, such as 
+     * <code>fact(-1)</code>.
+     * @return true if the expression is well formed
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+    
+    /**
+     * Gets the names of the functions the expression calls, in the order in which they first 
+     * appear
+     * @return the lower case names, without repeats, of the functions found before any problem 
+     * that made the expression invalid
+     */
+    public String[] getFunctions() {
+        return functions.clone();
+    }
+    
+    /**
+     * Gets the names of the variables the expression reads, in the order in which they first 
+     * appear
+     * @return the names, without repeats, of the variables found before any problem that made the
+     * expression invalid
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+    
+    /**
+     * Gets the kind of problem that made the expression invalid
+     * @return the kind or null if the expression is valid
+     */
+    public ErrorKind getErrorKind() {
+        return error != null ? error.getKind() : null;
+    }
+    
+    /**
+     * Gets the index in the expression of the problem that made it invalid
+     * @return the index or -1 if the expression is valid
+     */
+    public int getErrorIndex() {
+        return error != null ? error.getIndex() : -1;
+    }
+    
+    /**
+     * Gets a description of the problem that made the expression invalid
+     * @return the description or null if the expression is valid
+     */
+    public String getErrorMessage() {
+        return error != null ? error.getMessage() : null;
+    }
+    
+    /**
+     * Gets the exception that compiling the expression would have thrown
+     * @return the exception or null if the expression is valid
+     */
+    public InvalidMathExpressionException getError() {
+        return error;
+    }
+    
+    @Override
+    public String toString() {
+        return (error != null ? "Invalid: " + error.getMessage() : "Valid") + ", functions: " + 
+                Arrays.toString(functions) + ", variables: " + 
+                Arrays.toString(variables);
+    }
+}
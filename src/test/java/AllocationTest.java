@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.BinaryFunction;
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class AllocationTest {
+    private static final int WARM_UP_CALLS = 50000;
+    private static final int MEASURED_CALLS = 20000;
+
+    @Test
+    public void testNoAllocationAfterWarmUp() throws Exception {
+        com.sun.management.ThreadMXBean bean = getBean();
+        if (bean == null) {
+            return;
+        }
+        
+        //Not optimized, so that the cached trees compute every operation and function call
+        final String[] expressions = {"sqrt(3^2 + 4^2)", "max(1, 2) * sin(pi()/4) + fact(5)", 
+                "if(2 > 1, log(100, 10), 0) + hypot(3, 4) + twice(3) + pow2(2, 3)"};
+        StringMathExpressionEvaluator interpreted = newEvaluator();
+        final StringMathExpressionEvaluator bytecode = newEvaluator();
+        bytecode.setEngine(StringMathExpressionEvaluator.Engine.BYTECODE);
+        final double[] values = {3, 4};
+        
+        for (final StringMathExpressionEvaluator smee : new StringMathExpressionEvaluator[] {
+                interpreted, bytecode}) {
+            smee.setOptimizing(false);
+            checkAllocation(bean, "evaluate(String) with the " + smee.getEngine() + " engine", 
+                    new Call() {
+                        @Override
+                        public double run(int i) throws Exception {
+                            return smee.evaluate(expressions[i % expressions.length]);
+                        }
+                    });
+            smee.setOptimizing(true);
+            final CompiledExpression shared = smee.compile(
+                    "x/sqrt(x^2+y^2) + y/sqrt(x^2+y^2) + sin(x)*max(x, y) + twice(y) + pow2(x, y)",
+                    "x", "y");
+            checkAllocation(bean, "evaluate(double...) of variables and function calls with the " + 
+                    smee.getEngine() + " engine", new Call() {
+                @Override
+                public double run(int i) throws Exception {
+                    values[0] = i;
+                    return shared.evaluate(values);
+                }
+            });
+        }
+    }
+    
+    @Test
+    public void testCacheMissAllocation() throws Exception {
+        com.sun.management.ThreadMXBean bean = getBean();
+        if (bean == null) {
+            return;
+        }
+        //Without a cache every call parses its expression, which must only allocate the tree it 
+        //builds, so long numbers and function names cost no more than short ones
+        final StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator(0);
+        smee.setOptimizing(false);
+        final String shortNames = repeat("abs(1)+", 200) + "1";
+        final String longNames = repeat("toDegrees(1.23456789012345)+", 200) + "1.5";
+        long shortBytes = measure(bean, new Call() {
+            @Override
+            public double run(int i) throws Exception {
+                return smee.evaluate(shortNames);
+            }
+        });
+        long longBytes = measure(bean, new Call() {
+            @Override
+            public double run(int i) throws Exception {
+                return smee.evaluate(longNames);
+            }
+        });
+        System.out.println("Cache misses allocated " + shortBytes/MEASURED_CALLS + 
+                " bytes per call with short names and " + longBytes/MEASURED_CALLS + 
+                " bytes per call with long names");
+        if (longBytes > shortBytes + shortBytes/10) {
+            throw new Exception("Parsing allocated " + (longBytes - shortBytes)/MEASURED_CALLS + 
+                    " more bytes per call for long numbers and names");
+        }
+    }
+    
+    private static com.sun.management.ThreadMXBean getBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation counters are not available, skipping");
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = 
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            System.out.println("Allocation counters are not enabled, skipping");
+            return null;
+        }
+        return bean;
+    }
+    
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+    
+    private static StringMathExpressionEvaluator newEvaluator() {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.registerFunction("twice", new UnaryFunction() {
+            @Override
+            public double apply(double x) {
+                return 2*x;
+            }
+        }, false);
+        smee.registerFunction("pow2", new BinaryFunction() {
+            @Override
+            public double apply(double x, double y) {
+                return x*x + y;
+            }
+        }, true);
+        return smee;
+    }
+    
+    private interface Call {
+        double run(int i) throws Exception;
+    }
+    
+    private void checkAllocation(com.sun.management.ThreadMXBean bean, String description, 
+            Call call) throws Exception {
+        long allocated = measure(bean, call);
+        System.out.println(description + " allocated " + allocated + " bytes in " + 
+                MEASURED_CALLS + " calls");
+        if (allocated >= MEASURED_CALLS) {
+            throw new Exception(description + " allocated " + (double) allocated / MEASURED_CALLS + 
+                    " bytes per call");
+        }
+    }
+    
+    /**
+     * @return the number of bytes allocated by the calls after warming them up
+     */
+    private static long measure(com.sun.management.ThreadMXBean bean, Call call) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        double sum = 0;
+        for (int i=0; i<WARM_UP_CALLS; i++) {
+            sum += call.run(i);
+        }
+        //Measure the cost of reading the counter itself
+        long before = bean.getThreadAllocatedBytes(threadId);
+        long overhead = bean.getThreadAllocatedBytes(threadId) - before;
+        
+        before = bean.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<MEASURED_CALLS; i++) {
+            sum += call.run(i);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before - overhead;
+        if (sum == 42) {
+            //Uses the results so the calls can't be removed
+            System.out.println("Checksum " + sum);
+        }
+        return allocated;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CacheStatistics;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class CacheTest {
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator(10);
+        for (int i=0; i<100; i++) {
+            checkEquality(smee.evaluate("sqrt(3^2 + 4^2)"), 5);
+        }
+        CacheStatistics stats = smee.getCacheStatistics();
+        System.out.println(stats);
+        if (stats.getMissCount() != 1 || stats.getHitCount() != 99 || stats.getSize() != 1) {
+            throw new Exception("Unexpected statistics: " + stats);
+        }
+        
+        //The angle mode is part of the key
+        smee.setDegreeMode();
+        checkEquality(smee.evaluate("atan(1)"), 45);
+        smee.setRadianMode();
+        checkEquality(smee.evaluate("atan(1)"), Math.PI/4);
+        smee.setDegreeMode();
+        checkEquality(smee.evaluate("atan(1)"), 45);
+        stats = smee.getCacheStatistics();
+        if (stats.getMissCount() != 3 || stats.getHitCount() != 100 || stats.getSize() != 3) {
+            throw new Exception("Unexpected statistics: " + stats);
+        }
+        
+        smee.clearCache();
+        stats = smee.getCacheStatistics();
+        if (stats.getMissCount() != 0 || stats.getHitCount() != 0 || stats.getSize() != 0) {
+            throw new Exception("Unexpected statistics: " + stats);
+        }
+        
+        StringMathExpressionEvaluator uncached = new StringMathExpressionEvaluator(0);
+        checkEquality(uncached.evaluate("sqrt(3^2 + 4^2)"), 5);
+        if (uncached.getCacheStatistics().getCapacity() != 0) {
+            throw new Exception("Unexpected statistics: " + uncached.getCacheStatistics());
+        }
+    }
+    
+    @Test
+    public void testClearDuringCompile() throws Exception {
+        final StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator(10);
+        //The pure function is called when its call is folded at compile time, where another 
+        //thread disables optimization and so clears the cache
+        smee.registerFunction("clearing", new UnaryFunction() {
+            @Override
+            public double apply(double x) {
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        smee.setOptimizing(false);
+                    }
+                });
+                other.start();
+                try {
+                    other.join();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return x;
+            }
+        }, true);
+        checkEquality(smee.evaluate("clearing(2) + 1"), 3);
+        CacheStatistics stats = smee.getCacheStatistics();
+        if (stats.getSize() != 0) {
+            throw new Exception("Expression compiled with stale settings was cached: " + stats);
+        }
+        
+        //Compiled without optimization this time, so it is cached
+        smee.evaluate("clearing(2) + 1");
+        if (smee.getCacheStatistics().getSize() != 1 || smee.isOptimizing()) {
+            throw new Exception("Unexpected statistics: " + smee.getCacheStatistics());
+        }
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        int capacity = 100;
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator(capacity);
+        Random rng = new Random(73);
+        String[] hotSet = new String[20];
+        for (int i=0; i<hotSet.length; i++) {
+            hotSet[i] = i + "*sin(" + i + ")";
+        }
+        //Mostly hot expressions with a long tail of one-off expressions
+        for (int i=0; i<100000; i++) {
+            if (rng.nextInt(10) < 7) {
+                int j = rng.nextInt(hotSet.length);
+                checkEquality(smee.evaluate(hotSet[j]), j*Math.sin(j));
+            }
+            else {
+                smee.evaluate(i + "+1");
+            }
+        }
+        CacheStatistics stats = smee.getCacheStatistics();
+        System.out.println(stats);
+        if (stats.getSize() != capacity) {
+            throw new Exception("Unexpected size: " + stats);
+        }
+        if (stats.getEvictionCount() != stats.getMissCount() - capacity) {
+            throw new Exception("Unexpected eviction count: " + stats);
+        }
+        //Nearly all hot expressions should be hits
+        if (stats.getHitRate() < 0.65) {
+            throw new Exception("Hot expressions were evicted: " + stats);
+        }
+    }
+    
+    private void checkEquality(double a, double b) throws Exception {
+        if (Math.abs(a - b) > 1e-9 * Math.max(1, Math.abs(b))) {
+            throw new Exception("Miscompare: " + a + " != " + b);
+        }
+    }
+}
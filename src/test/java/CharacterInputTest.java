@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CacheStatistics;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+public class CharacterInputTest {
+
+    @Test
+    public void testCharacterSequences() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        String json = "{\"formula\": \"2*(3+max(1.5e1, SQRT(16)))\", \"id\": 7}";
+        int start = json.indexOf('2');
+        int end = json.indexOf('"', start);
+        
+        checkEquality(smee.evaluate(new StringBuilder(json.substring(start, end))), 36);
+        
+        char[] chars = json.toCharArray();
+        checkEquality(smee.evaluate(chars, start, end - start), 36);
+        checkEquality(smee.evaluate(CharBuffer.wrap(chars, start, end - start)), 36);
+        
+        ByteBuffer heap = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+        heap.position(start).limit(end);
+        checkEquality(smee.evaluate(heap), 36);
+        if (heap.position() != start || heap.limit() != end) {
+            throw new Exception("The position or limit of the buffer was changed");
+        }
+        
+        ByteBuffer direct = ByteBuffer.allocateDirect(chars.length);
+        direct.put(json.getBytes(StandardCharsets.UTF_8));
+        direct.position(start).limit(end);
+        checkEquality(smee.evaluate(direct), 36);
+        
+        //The first evaluation compiled the expression, all the others found it in the cache
+        CacheStatistics stats = smee.getCacheStatistics();
+        if (stats.getMissCount() != 1 || stats.getHitCount() != 4 || stats.getSize() != 1) {
+            throw new Exception("Unexpected statistics: " + stats);
+        }
+        checkEquality(smee.evaluate(json.substring(start, end)), 36);
+        if (smee.getCacheStatistics().getHitCount() != 5) {
+            throw new Exception("Unexpected statistics: " + smee.getCacheStatistics());
+        }
+        
+        StringMathExpressionEvaluator uncached = new StringMathExpressionEvaluator(0);
+        checkEquality(uncached.evaluate(chars, start, end - start), 36);
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        char[] chars = "xx1 + foo(2)xx".toCharArray();
+        checkError(smee, CharBuffer.wrap(chars, 2, 10), "Unknown function: foo with one argument at index 4");
+        
+        ByteBuffer bytes = ByteBuffer.wrap("1 + π".getBytes(StandardCharsets.UTF_8));
+        try {
+            double result = smee.evaluate(bytes);
+            throw new Exception("Expected an error but got " + result);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().startsWith("Unexpected character") || 
+                    !ex.getMessage().endsWith("at index 4")) {
+                throw new Exception("Unexpected message: " + ex.getMessage());
+            }
+        }
+        
+        try {
+            double result = smee.evaluate(chars, 10, 5);
+            throw new Exception("Expected an IndexOutOfBoundsException but got " + result);
+        }
+        catch (IndexOutOfBoundsException ex) {
+            //Expected
+        }
+    }
+    
+    private void checkError(StringMathExpressionEvaluator smee, CharSequence expression, 
+            String expectedMessage) throws Exception {
+        try {
+            double result = smee.evaluate(expression);
+            throw new Exception("Expected an error but got " + result);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().equals(expectedMessage)) {
+                throw new Exception("Expected \"" + expectedMessage + "\" but got \"" + 
+                        ex.getMessage() + "\"");
+            }
+        }
+    }
+    
+    private void checkEquality(double result, double expected) throws Exception {
+        if (result != expected) {
+            throw new Exception("Expected " + expected + " but got " + result);
+        }
+    }
+}
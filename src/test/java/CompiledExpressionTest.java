@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class CompiledExpressionTest {
+
+    @Test
+    public void testRepeatedEvaluation() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        String[] expressions = {"2*(3+7)", "3.2*sin(0.56)", "atan2(-1, -1)", "-2^2", "2^-2",
+                "1.1^(1.2^1.3)^1.4", "17.3*(2-0.145)/7 % 3", "2 < 4 < 1 != 5 < 6 >= 1",
+                "if(1 > 2, log(2, 8), log2(8))", "comb(16,3) + perm(16,3) - fact(13)",
+                "xor(1, 0) + and(1, 0) + or(0, 1) + not(0)", "asinh(1)+acosh(2)+atanh(0.5)"};
+        double[] expected = {20, 3.2*Math.sin(0.56), Math.atan2(-1, -1), -4, 0.25,
+                Math.pow(1.1, Math.pow(Math.pow(1.2 , 1.3), 1.4)), (17.3*(2-0.145)/7) % 3, 1,
+                3, 560 + 3360 - 6227020800d, 3,
+                Math.log(1 + Math.sqrt(2)) + Math.log(2 + Math.sqrt(3)) + 0.5*Math.log(3)};
+        for (int i=0; i<expressions.length; i++) {
+            CompiledExpression compiled = smee.compile(expressions[i]);
+            System.out.println("\"" + compiled + "\" evaluates to " + compiled.evaluate());
+            for (int j=0; j<1000; j++) {
+                checkEquality(compiled.evaluate(), expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testAngleModeIsFixedAtCompileTime() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.setDegreeMode();
+        CompiledExpression degrees = smee.compile("atan(1/sqrt(3)) + sin(30)");
+        smee.setRadianMode();
+        CompiledExpression radians = smee.compile("atan(1/sqrt(3)) + sin(30)");
+        checkEquality(degrees.evaluate(), 30.5);
+        checkEquality(radians.evaluate(), Math.PI/6 + Math.sin(30));
+    }
+
+    @Test
+    public void testVariables() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        CompiledExpression compiled = smee.compile("a*sin(b)+c", "a", "b", "c");
+        Random rng = new Random(70);
+        double[] values = new double[3];
+        for (int i=0; i<10000; i++) {
+            values[0] = rng.nextDouble()*10;
+            values[1] = (2*rng.nextDouble() - 1)*Math.PI;
+            values[2] = rng.nextDouble() - 0.5;
+            double result = compiled.evaluate(values);
+            double expected = smee.evaluate(String.format("%.17e*sin(%.17e)+%.17e", values[0], values[1], values[2]));
+            if (result != expected) {
+                throw new Exception("Miscompare: " + result + " != " + expected);
+            }
+        }
+        
+        //Variables may share names with functions and are case sensitive
+        compiled = smee.compile("e*e() + E - max(max, 2)", "e", "E", "max");
+        checkEquality(compiled.evaluate(2, 3, 1), 2*Math.E + 3 - 2);
+        if (compiled.getSlot("max") != 2 || compiled.getSlot("x") != -1) {
+            throw new Exception("Unexpected variable slot");
+        }
+        
+        String[][] invalidNames = {{"1a"}, {"a_b"}, {""}, {"x", "x"}};
+        for (String[] names : invalidNames) {
+            try {
+                smee.compile("1", names);
+                throw new Exception("Variable names " + Arrays.toString(names) + " didn't throw an exception as expected");
+            }
+            catch (IllegalArgumentException ex) {
+                System.out.println(Arrays.toString(names) + " rejected (this is expected) due to " + ex.getMessage());
+            }
+        }
+        try {
+            smee.compile("a+b", "a");
+            throw new Exception("Undeclared variable didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            System.out.println("Undeclared variable rejected (this is expected) due to " + ex.getMessage());
+        }
+        try {
+            smee.compile("a+b", "a", "b").evaluate(1);
+            throw new Exception("Missing variable value didn't throw an exception as expected");
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("Missing variable value rejected (this is expected) due to " + ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testBytecodeEngine() throws Exception {
+        String[] expressions = {"pi() + e() - x", "abs(x)", "ceil(x)", "floor(x)", "round(x)", 
+                "signum(x)", "sqrt(x)", "cbrt(x)", "sin(x)", "cos(x)", "tan(x)", "asin(x)", "acos(x)",
+                "atan(x)", "sinh(x)", "cosh(x)", "tanh(x)", "asinh(x)", "acosh(x)", "atanh(x)", 
+                "exp(x)", "log(x)", "log2(x)", "log10(x)", "toRadians(x)", "toDegrees(x)", "not(x)",
+                "atan(x, y)", "atan2(x, y)", "hypot(x, y)", "log(x, y)", "max(x, y)", "min(x, y)", 
+                "pow(x, y)", "and(x, y)", "or(x, y)", "xor(x, y)", "if(x, y, -y)", 
+                "if(x > 0, and(y, x), or(y, if(y < x, x, -x)))", "-x^y % 7", 
+                "x/y*x-y+-x", "x == y", "x != y", "x > y", "x >= y", "x < y", "x <= y", 
+                "x == y == (x < y) != 0", "x^2 + y^3 - x^4 + y^0.5", "fact(round(abs(x) % 30))", "comb(17, 3)*perm(12, 4)"};
+        double[] specialValues = {0, -0.0, 1, -1, 0.5, 2, Double.NaN, Double.POSITIVE_INFINITY, 
+                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+        Random rng = new Random(71);
+        StringMathExpressionEvaluator interpreter = new StringMathExpressionEvaluator();
+        StringMathExpressionEvaluator bytecode = new StringMathExpressionEvaluator();
+        bytecode.setEngine(StringMathExpressionEvaluator.Engine.BYTECODE);
+        for (int mode=0; mode<2; mode++) {
+            if (mode == 1) {
+                interpreter.setDegreeMode();
+                bytecode.setDegreeMode();
+            }
+            for (String expression : expressions) {
+                CompiledExpression expected = interpreter.compile(expression, "x", "y");
+                CompiledExpression compiled = bytecode.compile(expression, "x", "y");
+                if (compiled.getEngine() != StringMathExpressionEvaluator.Engine.BYTECODE && 
+                        Runtime.version().feature() >= 15) {
+                    throw new Exception("\"" + expression + "\" was not compiled to bytecode");
+                }
+                for (int i=0; i<2000; i++) {
+                    double x = i < 121 ? specialValues[i % 11] : (2*rng.nextDouble() - 1)*25;
+                    double y = i < 121 ? specialValues[i / 11] : (2*rng.nextDouble() - 1)*25;
+                    checkIdentical(compiled, expected, x, y);
+                }
+            }
+        }
+        
+        //Domain errors must be reported the same way
+        CompiledExpression compiled = bytecode.compile("fact(x)", "x");
+        try {
+            compiled.evaluate(-1);
+            throw new Exception("fact(-1) didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().equals("Factorial of non-integer or non-positive integer at index 0")) {
+                throw new Exception("Unexpected message: " + ex.getMessage());
+            }
+        }
+    }
+    
+    @Test
+    public void testOptimizer() throws Exception {
+        StringMathExpressionEvaluator optimized = new StringMathExpressionEvaluator();
+        StringMathExpressionEvaluator unoptimized = new StringMathExpressionEvaluator();
+        unoptimized.setOptimizing(false);
+        String[] expressions = {"2*pi()/360*x", "x^2 + y^0.5 + x^1 - y^0 + x^-1", "x*1+0", 
+                "1*x/1-0+-0", "--x*-1", "x/4 + y/0.125 + x/3", "log2(x) + log2(8)", 
+                "sin(30)*cos(x)^2", "if(x > y, e(), pi())*x", "x^3 + y^4"};
+        double[] specialValues = {0, -0.0, 1, -1, 0.5, 2, Double.NaN, Double.POSITIVE_INFINITY, 
+                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+        Random rng = new Random(74);
+        for (String expression : expressions) {
+            CompiledExpression compiled = optimized.compile(expression, "x", "y");
+            CompiledExpression expected = unoptimized.compile(expression, "x", "y");
+            for (int i=0; i<2000; i++) {
+                double x = i < 121 ? specialValues[i % 11] : (2*rng.nextDouble() - 1)*25;
+                double y = i < 121 ? specialValues[i / 11] : (2*rng.nextDouble() - 1)*25;
+                checkIdentical(compiled, expected, x, y);
+            }
+        }
+        
+        //Fast cubes and fourth powers may differ from Math.pow in the last binary place
+        optimized.setFastPowers(true);
+        CompiledExpression compiled = optimized.compile("x^3 + x^4", "x");
+        for (int i=0; i<1000; i++) {
+            double x = (2*rng.nextDouble() - 1)*25;
+            checkEquality(compiled.evaluate(x), Math.pow(x, 3) + Math.pow(x, 4));
+        }
+    }
+    
+    @Test
+    public void testCommonSubexpressions() throws Exception {
+        StringMathExpressionEvaluator unoptimized = new StringMathExpressionEvaluator();
+        unoptimized.setOptimizing(false);
+        StringMathExpressionEvaluator interpreter = new StringMathExpressionEvaluator();
+        StringMathExpressionEvaluator bytecode = new StringMathExpressionEvaluator();
+        bytecode.setEngine(StringMathExpressionEvaluator.Engine.BYTECODE);
+        
+        String distance = "sqrt(x^2+y^2)";
+        CompiledExpression compiled = interpreter.compile("x/" + distance + " + y/" + distance + 
+                " + " + distance, "x", "y");
+        if (compiled.getSavedEvaluationCount() != 8 || compiled.getOperationCount() != 8) {
+            throw new Exception("Unexpected counts: " + compiled.getSavedEvaluationCount() + 
+                    " saved, " + compiled.getOperationCount() + " computed");
+        }
+        if (unoptimized.compile(compiled.getExpression(), "x", "y").getSavedEvaluationCount() != 0) {
+            throw new Exception("Unoptimized expression unexpectedly shared sub-expressions");
+        }
+        
+        String[] expressions = {"x/sqrt(x^2+y^2) + y/sqrt(x^2+y^2) + sqrt(x^2+y^2)", 
+                "sin(x)*sin(x) + cos(x)*cos(x) + sin(x)", "(x+y)*(x+y)-(x+y)/(y+x)",
+                "fact(y) + fact(x) + fact(x)", "fact(x+1) / (fact(x+1) - fact(y))",
+                "0*(x+1) + -0*(x+1) + (x+1)^0.5 + sqrt(x+1)"};
+        double[] specialValues = {0, -0.0, 1, -1, 0.5, 2, 3, Double.NaN, Double.POSITIVE_INFINITY, 
+                Double.NEGATIVE_INFINITY, Double.MAX_VALUE};
+        Random rng = new Random(75);
+        for (String expression : expressions) {
+            CompiledExpression expected = unoptimized.compile(expression, "x", "y");
+            CompiledExpression interpreted = interpreter.compile(expression, "x", "y");
+            CompiledExpression generated = bytecode.compile(expression, "x", "y");
+            if (interpreted.getSavedEvaluationCount() == 0) {
+                throw new Exception("\"" + expression + "\" did not share any sub-expressions");
+            }
+            for (int i=0; i<1000; i++) {
+                double x = i < 121 ? specialValues[i % 11] : (2*rng.nextDouble() - 1)*10;
+                double y = i < 121 ? specialValues[i / 11] : (2*rng.nextDouble() - 1)*10;
+                checkIdentical(interpreted, expected, x, y);
+                checkIdentical(generated, expected, x, y);
+            }
+        }
+        
+        //Enough shared values to need wide local variable instructions in the bytecode
+        StringBuilder sb = new StringBuilder("0");
+        for (int i=0; i<200; i++) {
+            sb.append(" + (x+" + i + ")*(x+" + i + ")");
+        }
+        CompiledExpression expected = unoptimized.compile(sb.toString(), "x");
+        CompiledExpression generated = bytecode.compile(sb.toString(), "x");
+        if (generated.getEngine() != StringMathExpressionEvaluator.Engine.BYTECODE || 
+                generated.getSavedEvaluationCount() != 200) {
+            throw new Exception("Unexpected saved count: " + generated.getSavedEvaluationCount());
+        }
+        for (int i=0; i<100; i++) {
+            checkIdentical(generated, expected, (2*rng.nextDouble() - 1)*10);
+        }
+    }
+
+    @Test
+    public void testLazyEvaluation() throws Exception {
+        final int[] calls = new int[1];
+        UnaryFunction counted = new UnaryFunction() {
+            @Override
+            public double apply(double x) throws InvalidMathExpressionException {
+                calls[0]++;
+                return x;
+            }
+        };
+        for (StringMathExpressionEvaluator.Engine engine : StringMathExpressionEvaluator.Engine.values()) {
+            StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+            smee.setEngine(engine);
+            smee.registerFunction("counted", counted, true);
+            smee.registerFunction("boom", new UnaryFunction() {
+                @Override
+                public double apply(double x) throws InvalidMathExpressionException {
+                    throw new InvalidMathExpressionException("Untaken branch was evaluated");
+                }
+            }, false);
+            String[] expressions = {"if(x > 0, x, boom(x))", "if(x <= 0, boom(x), x)", 
+                    "x + and(x < 0, boom(x))", "x + or(x > 0, boom(x)) - 1", "and(x, or(x, boom(x))) * x"};
+            for (String expression : expressions) {
+                CompiledExpression compiled = smee.compile(expression, "x");
+                checkEquality(compiled.evaluate(2), 2);
+            }
+            
+            //A sub-expression that only appears in branches is not computed ahead of them
+            CompiledExpression compiled = smee.compile(
+                    "if(x > 0, counted(x), 0) + if(x > 1, counted(x), 0)", "x");
+            calls[0] = 0;
+            checkEquality(compiled.evaluate(-1), 0);
+            if (calls[0] != 0) {
+                throw new Exception("Untaken branches called a function " + calls[0] + " times");
+            }
+            //But one that is always computed is still shared with the branches
+            compiled = smee.compile("counted(x) + if(x > 0, counted(x), 0)", "x");
+            calls[0] = 0;
+            checkEquality(compiled.evaluate(3), 6);
+            if (calls[0] != 1 || compiled.getSavedEvaluationCount() != 1) {
+                throw new Exception("Expected one call but got " + calls[0]);
+            }
+        }
+    }
+    
+    @Test
+    public void testBatchEvaluation() throws Exception {
+        StringMathExpressionEvaluator optimized = new StringMathExpressionEvaluator();
+        StringMathExpressionEvaluator unoptimized = new StringMathExpressionEvaluator();
+        unoptimized.setOptimizing(false);
+        String[] expressions = {"x + y*2 - x/y + x%y - -x", "x^2 + y^3 + x^4 + x^0.5 + x^y", 
+                "(x == y) + (x != y) + (x > y) + (x >= y) + (x < y) + (x <= y) + not(x)",
+                "if(x > y, abs(x), min(x, y)) + max(x, y)", "sqrt(x^2+y^2) / sqrt(x^2+y^2)",
+                "and(x, y) + or(x, y) + xor(x, y) + atan2(x, y) + hypot(x, y) + log(x, y)",
+                "ceil(x) + floor(x) + round(x) + signum(x) + cbrt(x) + sin(x) + cos(x) + tan(x)",
+                "asin(x) + acos(x) + atan(x) + sinh(x) + cosh(x) + tanh(x) + asinh(x) + acosh(x)",
+                "atanh(x) + exp(x) + log(x) + log2(x) + log10(x) + toRadians(x) + toDegrees(x) + pi()*e()", 
+                "fact(round(abs(x) % 20))", 
+                "if(abs(x) < 1e300, x, y) + and(x*0, y) + or(1 + x*0, y) + if(x > y, or(x, y), 3)"};
+        double[] specialValues = {0, -0.0, 1, -1, 0.5, 2, Double.NaN, Double.POSITIVE_INFINITY, 
+                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+        Random rng = new Random(76);
+        int rows = 3*512 + 121;
+        double[][] columns = new double[2][rows];
+        for (int i=0; i<rows; i++) {
+            columns[0][i] = i < 121 ? specialValues[i % 11] : (2*rng.nextDouble() - 1)*25;
+            columns[1][i] = i < 121 ? specialValues[i / 11] : (2*rng.nextDouble() - 1)*25;
+        }
+        double[] results = new double[rows];
+        for (String expression : expressions) {
+            for (StringMathExpressionEvaluator evaluator : new StringMathExpressionEvaluator[] {
+                    optimized, unoptimized}) {
+                CompiledExpression compiled = evaluator.compile(expression, "x", "y");
+                compiled.evaluate(columns, results);
+                for (int i=0; i<rows; i++) {
+                    double expected = compiled.evaluate(columns[0][i], columns[1][i]);
+                    if (Double.doubleToLongBits(results[i]) != Double.doubleToLongBits(expected)) {
+                        throw new Exception("Miscompare: \"" + expression + "\" with x = " + 
+                                columns[0][i] + ", y = " + columns[1][i] + " gives " + results[i] + 
+                                " != " + expected);
+                    }
+                }
+            }
+        }
+        
+        try {
+            optimized.compile("fact(x)", "x").evaluate(columns, results);
+            throw new Exception("fact(-1) in a batch didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            //expected
+        }
+        try {
+            optimized.compile("x + y", "x", "y").evaluate(new double[][] {columns[0]}, results);
+            throw new Exception("Missing column didn't throw an exception as expected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+        try {
+            optimized.compile("x", "x").evaluate(new double[][] {new double[rows - 1]}, results);
+            throw new Exception("Short column didn't throw an exception as expected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+        
+        //Throughput of batches compared with one row at a time, for information only
+        rows = 1000000;
+        columns = new double[2][rows];
+        for (int i=0; i<rows; i++) {
+            columns[0][i] = rng.nextDouble();
+            columns[1][i] = rng.nextDouble();
+        }
+        results = new double[rows];
+        CompiledExpression compiled = optimized.compile("if(x > y, x*x - y, max(x, y)*3 + abs(x - y))", 
+                "x", "y");
+        double[] values = new double[2];
+        long scalarNanos = Long.MAX_VALUE;
+        long batchNanos = Long.MAX_VALUE;
+        for (int pass=0; pass<5; pass++) {
+            long start = System.nanoTime();
+            for (int i=0; i<rows; i++) {
+                values[0] = columns[0][i];
+                values[1] = columns[1][i];
+                results[i] = compiled.evaluate(values);
+            }
+            scalarNanos = Math.min(scalarNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            compiled.evaluate(columns, results);
+            batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+        }
+        System.out.println(String.format("Rows per second: %.3g one at a time, %.3g in batches", 
+                rows*1e9/scalarNanos, rows*1e9/batchNanos));
+    }
+
+    @Test
+    public void testParallelBatchEvaluation() throws Exception {
+        StringMathExpressionEvaluator evaluator = new StringMathExpressionEvaluator();
+        Random rng = new Random(77);
+        int rows = 2000000 + 123;
+        double[][] columns = new double[2][rows];
+        for (int i=0; i<rows; i++) {
+            columns[0][i] = (2*rng.nextDouble() - 1)*25;
+            columns[1][i] = (2*rng.nextDouble() - 1)*25;
+        }
+        double[] expected = new double[rows];
+        double[] results = new double[rows];
+        String[] expressions = {"sin(x)*cos(y) + sqrt(x^2 + y^2)", "if(x > y, x, y) - min(x, y)/3", 
+                "fact(round(abs(x)))"};
+        for (String expression : expressions) {
+            CompiledExpression compiled = evaluator.compile(expression, "x", "y");
+            compiled.evaluate(columns, expected);
+            compiled.evaluateParallel(columns, results);
+            if (!Arrays.equals(results, expected)) {
+                throw new Exception("Parallel results of \"" + expression + "\" differ from serial");
+            }
+        }
+        
+        //The error reported must be the one from the first failing row
+        CompiledExpression compiled = evaluator.compile("fact(x) + comb(y, x)", "x", "y");
+        for (int i=0; i<rows; i++) {
+            columns[0][i] = i < rows/2 ? 1 : rng.nextInt(3);
+            columns[1][i] = i < rows/2 ? 2 : rng.nextInt(3);
+        }
+        String expectedMessage = null;
+        try {
+            compiled.evaluate(columns, expected);
+        }
+        catch (InvalidMathExpressionException ex) {
+            expectedMessage = ex.getMessage();
+        }
+        try {
+            compiled.evaluateParallel(columns, results);
+            throw new Exception("Parallel evaluation didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().equals(expectedMessage)) {
+                throw new Exception("Unexpected message: " + ex.getMessage());
+            }
+        }
+        
+        //Scaling with the number of threads, for information only
+        for (int i=0; i<rows; i++) {
+            columns[0][i] = (2*rng.nextDouble() - 1)*25;
+            columns[1][i] = (2*rng.nextDouble() - 1)*25;
+        }
+        compiled = evaluator.compile(expressions[0], "x", "y");
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; threads<=processors; threads*=2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long nanos = Long.MAX_VALUE;
+            for (int pass=0; pass<5; pass++) {
+                long start = System.nanoTime();
+                compiled.evaluateParallel(columns, results, pool);
+                nanos = Math.min(nanos, System.nanoTime() - start);
+            }
+            pool.shutdown();
+            System.out.println(String.format("Rows per second with %d threads: %.3g", threads, 
+                    rows*1e9/nanos));
+        }
+    }
+
+    private void checkIdentical(CompiledExpression compiled, CompiledExpression expected, double... values) throws Exception {
+        String result;
+        try {
+            result = Double.toString(compiled.evaluate(values));
+        }
+        catch (InvalidMathExpressionException ex) {
+            result = ex.getMessage();
+        }
+        String expectedResult;
+        try {
+            expectedResult = Double.toString(expected.evaluate(values));
+        }
+        catch (InvalidMathExpressionException ex) {
+            expectedResult = ex.getMessage();
+        }
+        if (!result.equals(expectedResult)) {
+            throw new Exception("Miscompare: \"" + compiled + "\" with " + Arrays.toString(values) + 
+                    " gives " + result + " != " + expectedResult);
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        String[] syntaxErrors = {"(6 - sqt(4))", "2*(3+7", "1 = 2", "pi", "max(1)", "3 $ 4", "1.2.3"};
+        for (String expression : syntaxErrors) {
+            try {
+                smee.compile(expression);
+                throw new Exception("\"" + expression + "\" didn't throw an exception as expected");
+            }
+            catch (InvalidMathExpressionException ex) {
+                System.out.println("\"" + expression + "\" failed to compile (this is expected) due to " + ex.getMessage());
+            }
+        }
+
+        //Domain errors are only detected when the expression is evaluated
+        String[] domainErrors = {"fact(-1)", "comb(2, 3)", "perm(2.5, 1)"};
+        for (String expression : domainErrors) {
+            CompiledExpression compiled = smee.compile(expression);
+            try {
+                compiled.evaluate();
+                throw new Exception("\"" + expression + "\" didn't throw an exception as expected");
+            }
+            catch (InvalidMathExpressionException ex) {
+                System.out.println("\"" + expression + "\" failed to evaluate (this is expected) due to " + ex.getMessage());
+            }
+        }
+    }
+
+    private void checkEquality(double a, double b) throws Exception {
+        if (Math.abs(a - b) > 1e-9 * Math.max(1, Math.abs(b))) {
+            throw new Exception("Miscompare: " + a + " != " + b);
+        }
+    }
+}
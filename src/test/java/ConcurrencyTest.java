@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+public class ConcurrencyTest {
+    private static final int THREAD_COUNT = 16;
+    private static final int EXPRESSION_COUNT = 500;
+    private static final int PASSES = 20;
+    
+    private static final String[] UNARY_FUNCTIONS = {"abs", "ceil", "floor", "round", "signum", 
+            "sqrt", "cbrt", "sin", "cos", "tan", "asin", "acos", "atan", "sinh", "cosh", "tanh", 
+            "exp", "log", "log2", "log10", "not"};
+    private static final String[] BINARY_FUNCTIONS = {"atan2", "hypot", "log", "max", "min", "pow",
+            "and", "or", "xor"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "^", "==", "!=", "<", "<=", 
+            ">", ">="};
+
+    @Test
+    public void testSharedEvaluator() throws Exception {
+        Random rng = new Random(72);
+        final List<String> expressions = new ArrayList<>();
+        for (int i=0; i<EXPRESSION_COUNT; i++) {
+            expressions.add(randomExpression(rng, 4));
+        }
+        //A few invalid expressions to check errors are also reported consistently
+        expressions.add("2*(3+7");
+        expressions.add("fact(-3)");
+        expressions.add("sqt(4)");
+        
+        final StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        final List<String> expected = new ArrayList<>();
+        for (String expression : expressions) {
+            expected.add(evaluate(smee, expression));
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t=0; t<THREAD_COUNT; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        List<Integer> order = new ArrayList<>();
+                        for (int i=0; i<expressions.size(); i++) {
+                            order.add(i);
+                        }
+                        Random threadRng = new Random(seed);
+                        start.await();
+                        int count = 0;
+                        for (int pass=0; pass<PASSES; pass++) {
+                            Collections.shuffle(order, threadRng);
+                            for (int i : order) {
+                                String result = evaluate(smee, expressions.get(i));
+                                if (!result.equals(expected.get(i))) {
+                                    throw new Exception("Miscompare: \"" + expressions.get(i) + 
+                                            "\" gives " + result + " != " + expected.get(i));
+                                }
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            start.countDown();
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += future.get();
+            }
+            System.out.println(total + " evaluations by " + THREAD_COUNT + " threads matched single threaded results");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static String evaluate(StringMathExpressionEvaluator smee, String expression) {
+        try {
+            return Double.toString(smee.evaluate(expression));
+        }
+        catch (InvalidMathExpressionException ex) {
+            return ex.getMessage();
+        }
+    }
+    
+    static String randomExpression(Random rng, int depth) {
+        int choice = depth <= 0 ? 0 : rng.nextInt(6);
+        switch (choice) {
+            case 0:
+                return String.format("%.6f", rng.nextDouble()*20 - 10);
+            case 1:
+                return UNARY_FUNCTIONS[rng.nextInt(UNARY_FUNCTIONS.length)] + "(" + 
+                    randomExpression(rng, depth - 1) + ")";
+            case 2:
+                return BINARY_FUNCTIONS[rng.nextInt(BINARY_FUNCTIONS.length)] + "(" + 
+                    randomExpression(rng, depth - 1) + ", " + randomExpression(rng, depth - 1) + ")";
+            case 3:
+                return "(" + randomExpression(rng, depth - 1) + ")";
+            case 4:
+                return "-" + randomExpression(rng, depth - 1);
+            default:
+                return randomExpression(rng, depth - 1) + OPERATORS[rng.nextInt(OPERATORS.length)] + 
+                    randomExpression(rng, depth - 1);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.BinaryFunction;
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.NaryFunction;
+import stringMathExpressionEvaluator.RuleSet;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class CustomFunctionTest {
+
+    @Test
+    public void testCustomFunctions() throws Exception {
+        for (StringMathExpressionEvaluator.Engine engine : StringMathExpressionEvaluator.Engine.values()) {
+            StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+            smee.setEngine(engine);
+            smee.registerFunction("square", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    return x*x;
+                }
+            }, true);
+            smee.registerFunction("clamp", 3, new NaryFunction() {
+                @Override
+                public double apply(double[] args) {
+                    return Math.max(args[1], Math.min(args[2], args[0]));
+                }
+            }, true);
+            smee.registerFunction("avg", new BinaryFunction() {
+                @Override
+                public double apply(double x, double y) {
+                    return (x + y)/2;
+                }
+            }, true);
+            smee.registerFunction("avg", 3, new NaryFunction() {
+                @Override
+                public double apply(double[] args) {
+                    return (args[0] + args[1] + args[2])/3;
+                }
+            }, true);
+            smee.registerFunction("sqrt", 2, new NaryFunction() {
+                @Override
+                public double apply(double[] args) {
+                    return Math.pow(args[0], 1/args[1]);
+                }
+            }, true);
+            
+            checkEquality(smee.evaluate("square(3) + 1"), 10);
+            checkEquality(smee.evaluate("SQUARE(2)*Square(2)"), 16);
+            checkEquality(smee.evaluate("clamp(12, 0, 10) + clamp(-1, 0, 10)"), 10);
+            checkEquality(smee.evaluate("avg(1, 2) + avg(1, 2, 6)"), 4.5);
+            checkEquality(smee.evaluate("sqrt(27, 3) + sqrt(16)"), 7);
+            
+            CompiledExpression compiled = smee.compile("square(x) + avg(x, y) + clamp(x, y, 2*y)", 
+                    "x", "y");
+            if (compiled.getEngine() != engine) {
+                throw new Exception("Expected the " + engine + " engine");
+            }
+            checkEquality(compiled.evaluate(3, 4), 9 + 3.5 + 4);
+            checkEquality(compiled.evaluate(10, 4), 100 + 7 + 8);
+        }
+    }
+    
+    @Test
+    public void testPurity() throws Exception {
+        for (StringMathExpressionEvaluator.Engine engine : StringMathExpressionEvaluator.Engine.values()) {
+            StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+            smee.setEngine(engine);
+            final AtomicInteger pureCalls = new AtomicInteger();
+            final AtomicInteger impureCalls = new AtomicInteger();
+            smee.registerFunction("f", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    pureCalls.incrementAndGet();
+                    return x + 1;
+                }
+            }, true);
+            smee.registerFunction("next", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    return impureCalls.incrementAndGet()*x;
+                }
+            }, false);
+            
+            //Pure calls with constant arguments are made once at compile time
+            CompiledExpression compiled = smee.compile("f(2) + f(3)");
+            int calls = pureCalls.get();
+            checkEquality(compiled.evaluate(), 7);
+            checkEquality(compiled.evaluate(), 7);
+            if (pureCalls.get() != calls) {
+                throw new Exception("Pure function with constant arguments was called at evaluation");
+            }
+            
+            //Repeated pure calls are made once per evaluation
+            compiled = smee.compile("f(x)*f(x) + f(x)", "x");
+            pureCalls.set(0);
+            checkEquality(compiled.evaluate(2), 12);
+            if (pureCalls.get() != 1) {
+                throw new Exception("Repeated pure call was made " + pureCalls.get() + " times");
+            }
+            
+            //Impure calls are made every time they appear
+            compiled = smee.compile("next(1) + next(1)*0 + next(x)", "x");
+            impureCalls.set(0);
+            checkEquality(compiled.evaluate(10), 1 + 0 + 30);
+            checkEquality(compiled.evaluate(10), 4 + 0 + 60);
+            if (impureCalls.get() != 6) {
+                throw new Exception("Impure function was called " + impureCalls.get() + " times");
+            }
+            
+            //Impure calls are made once even when a later operation fails
+            String failing = "(next(1) + sqrt(x)*sqrt(x)) * fact(x - 2)";
+            compiled = smee.compile(failing, "x");
+            impureCalls.set(0);
+            try {
+                compiled.evaluate(1);
+                throw new Exception("fact(-1) didn't throw an exception as expected");
+            }
+            catch (InvalidMathExpressionException ex) {
+                //expected
+            }
+            RuleSet rules = smee.compileRules(new String[] {failing + " > 0", "sqrt(x) > 0"}, "x");
+            try {
+                rules.match(new double[] {1}, new int[2]);
+                throw new Exception("fact(-1) didn't throw an exception as expected");
+            }
+            catch (InvalidMathExpressionException ex) {
+                //expected
+            }
+            if (impureCalls.get() != 2) {
+                throw new Exception("Impure function was called " + impureCalls.get() + " times");
+            }
+        }
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.registerFunction("checked", new UnaryFunction() {
+            @Override
+            public double apply(double x) throws InvalidMathExpressionException {
+                if (x < 0) {
+                    throw new InvalidMathExpressionException("Negative argument to checked");
+                }
+                return x;
+            }
+        }, true);
+        try {
+            smee.evaluate("1 + checked(-1)");
+            throw new Exception("checked(-1) didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            System.out.println("\"1 + checked(-1)\" failed to evaluate (this is expected) due to " + 
+                    ex.getMessage());
+        }
+        
+        try {
+            smee.registerFunction("sin", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    return x;
+                }
+            }, true);
+            throw new Exception("Replacing a built-in function didn't throw an exception as expected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+        try {
+            smee.registerFunction("2x", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    return 2*x;
+                }
+            }, true);
+            throw new Exception("Invalid name didn't throw an exception as expected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+        
+        //Unregistering removes the function from expressions compiled afterwards
+        CompiledExpression compiled = smee.compile("checked(2)");
+        checkEquality(smee.evaluate("checked(2)"), 2);
+        if (!smee.unregisterFunction("CHECKED", 1) || smee.unregisterFunction("checked", 1) || 
+                smee.unregisterFunction("sin", 1)) {
+            throw new Exception("Unexpected result from unregisterFunction");
+        }
+        checkEquality(compiled.evaluate(), 2);
+        try {
+            smee.evaluate("checked(2)");
+            throw new Exception("Unregistered function didn't throw an exception as expected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().equals("Unknown function: checked with one argument at index 0")) {
+                throw new Exception("Unexpected message: " + ex.getMessage());
+            }
+        }
+    }
+    
+    private void checkEquality(double a, double b) throws Exception {
+        if (Math.abs(a - b) > 1e-9*Math.max(1, Math.abs(b))) {
+            throw new Exception("Miscompare: " + a + " != " + b);
+        }
+    }
+}
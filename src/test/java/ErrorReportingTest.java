@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.EvaluationResult;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class ErrorReportingTest {
+
+    @Test
+    public void testTryEvaluate() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.registerFunction("checked", new UnaryFunction() {
+            @Override
+            public double apply(double x) throws InvalidMathExpressionException {
+                if (x < 0) {
+                    throw new InvalidMathExpressionException("Negative argument to checked");
+                }
+                return x;
+            }
+        }, true);
+        EvaluationResult result = new EvaluationResult();
+        
+        check(smee, result, "2*(3+4)", 14);
+        check(smee, result, "1 + $", ErrorKind.UNEXPECTED_CHARACTER, 4, 
+                "Unexpected character: '$' at index 4");
+        check(smee, result, "1 + 2.3.4", ErrorKind.UNEXPECTED_CHARACTER, 7, 
+                "Unexpected character: '.' at index 7");
+        check(smee, result, "1 + .", ErrorKind.INVALID_NUMBER, 4, "Invalid number: . at index 4");
+        check(smee, result, "1 + 2.5e+", ErrorKind.INVALID_NUMBER, 4, 
+                "Invalid number: 2.5e+ at index 4");
+        check(smee, result, "2*(3+4", ErrorKind.MISSING_PARENTHESIS, 6, "Missing ')' at index 6");
+        check(smee, result, "Max(1, 2", ErrorKind.MISSING_PARENTHESIS, 8, 
+                "Missing ')' after argument to max at index 8");
+        check(smee, result, "1 + pi", ErrorKind.UNKNOWN_VARIABLE, 6, 
+                "Missing '(' after pi at index 6");
+        check(smee, result, "1 + foo(1, 2, 3, 4)", ErrorKind.UNKNOWN_FUNCTION, 4, 
+                "Unknown function: foo with 4 arguments at index 4");
+        check(smee, result, "1 = 1", ErrorKind.INVALID_OPERATOR, 4, 
+                "Invalid operator, probably missing '=' at index 4");
+        check(smee, result, "1 + fact(-1)", ErrorKind.INVALID_ARGUMENT, 4, 
+                "Factorial of non-integer or non-positive integer at index 4");
+        check(smee, result, "1 + checked(-1)", ErrorKind.FUNCTION_ERROR, -1, 
+                "Negative argument to checked");
+        check(smee, result, "sqrt(16)", 4);
+    }
+    
+    @Test
+    public void testNoStackTrace() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        for (String expression : new String[] {"1 +", "fact(0.5)"}) {
+            try {
+                double value = smee.evaluate(expression);
+                throw new Exception("Expected an error but got " + value);
+            }
+            catch (InvalidMathExpressionException ex) {
+                if (ex.getStackTrace().length != 0) {
+                    throw new Exception("Expected no stack trace for " + expression);
+                }
+            }
+        }
+    }
+    
+    private void check(StringMathExpressionEvaluator smee, EvaluationResult result, 
+            String expression, double expected) throws Exception {
+        if (!smee.tryEvaluate(expression, result) || !result.isValid() || 
+                result.getValue() != expected || result.getErrorKind() != null || 
+                result.getErrorIndex() != -1 || result.getErrorMessage() != null) {
+            throw new Exception("Unexpected result for " + expression + ": " + result);
+        }
+    }
+    
+    private void check(StringMathExpressionEvaluator smee, EvaluationResult result, 
+            String expression, ErrorKind kind, int index, String message) throws Exception {
+        if (smee.tryEvaluate(expression, result) || result.isValid() || 
+                !Double.isNaN(result.getValue()) || result.getErrorKind() != kind || 
+                result.getErrorIndex() != index || !message.equals(result.getErrorMessage())) {
+            throw new Exception("Unexpected result for " + expression + ": " + result.getErrorKind() + 
+                    " at " + result.getErrorIndex() + ", " + result);
+        }
+        try {
+            double value = smee.evaluate(expression);
+            throw new Exception("Expected an error for " + expression + " but got " + value);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (!ex.getMessage().equals(message) || ex.getKind() != kind) {
+                throw new Exception("Unexpected exception for " + expression + ": " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.FormulaGraph;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+public class FormulaGraphTest {
+
+    @Test
+    public void testIncrementalRecomputation() throws Exception {
+        FormulaGraph graph = new FormulaGraph(new StringMathExpressionEvaluator());
+        graph.setInput("r", 2);
+        graph.setInput("h", 10);
+        graph.setFormula("area", "pi()*r^2");
+        graph.setFormula("volume", "area*h");
+        graph.setFormula("circumference", "2*pi()*r");
+        graph.setFormula("sign", "signum(h)");
+        graph.setFormula("scaled", "sign*volume");
+        checkValue(graph, "volume", Math.PI*4*10);
+        checkValue(graph, "scaled", Math.PI*4*10);
+        checkRecalculated(graph, 0);
+        
+        graph.setInput("r", 3);
+        checkRecalculated(graph, 4);
+        checkValue(graph, "circumference", 2*Math.PI*3);
+        checkValue(graph, "scaled", Math.PI*9*10);
+        
+        //sign does not change so only volume causes scaled to be recomputed
+        graph.setInput("h", 20);
+        checkRecalculated(graph, 3);
+        graph.setInput("h", 20);
+        checkRecalculated(graph, 0);
+        
+        //Replacing a formula by an input and back
+        graph.setInput("area", 1);
+        checkValue(graph, "scaled", 20);
+        graph.setFormula("area", "r*r");
+        checkValue(graph, "scaled", 180);
+        if (!"r*r".equals(graph.getFormula("area")) || graph.getFormula("r") != null) {
+            throw new Exception("Unexpected formulas " + graph.getFormula("area") + ", " + 
+                    graph.getFormula("r"));
+        }
+    }
+    
+    @Test
+    public void testUndefinedNames() throws Exception {
+        FormulaGraph graph = new FormulaGraph(new StringMathExpressionEvaluator());
+        graph.setFormula("a", "2*b + c");
+        graph.setFormula("b", "c + 1");
+        //The error is the one from b, which a refers to before c
+        checkError(graph, "a", ErrorKind.UNKNOWN_VARIABLE, 2);
+        graph.setInput("c", 1);
+        checkValue(graph, "a", 5);
+        if (!graph.remove("c") || graph.remove("c") || graph.isDefined("c")) {
+            throw new Exception("Expected c to be removed once");
+        }
+        checkError(graph, "b", ErrorKind.UNKNOWN_VARIABLE, 2);
+        checkError(graph, "a", ErrorKind.UNKNOWN_VARIABLE, 2);
+        try {
+            graph.getValue("c");
+            throw new Exception("Expected c to be undefined");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+        try {
+            graph.setInput("2x", 1);
+            throw new Exception("Expected 2x to be rejected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        FormulaGraph graph = new FormulaGraph(new StringMathExpressionEvaluator());
+        graph.setInput("x", -1);
+        graph.setFormula("f", "fact(x)");
+        graph.setFormula("g", "f + 1");
+        checkError(graph, "g", ErrorKind.INVALID_ARGUMENT, 0);
+        graph.setInput("x", 3);
+        checkValue(graph, "g", 7);
+        
+        try {
+            graph.setFormula("g", "f +");
+            throw new Exception("Expected an invalid formula to be rejected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            //expected
+        }
+        checkValue(graph, "g", 7);
+        
+        graph.setFormula("a", "b + 1");
+        graph.setFormula("b", "c + 1");
+        checkCycle(graph, "c", "a * 2", "c -> a -> b -> c");
+        checkCycle(graph, "d", "d + 1", "d -> d");
+        checkCycle(graph, "x", "g", "x -> g -> f -> x");
+        if (graph.isDefined("c") || graph.isDefined("d")) {
+            throw new Exception("Expected a rejected formula to leave the graph unchanged");
+        }
+        graph.setInput("c", 1);
+        checkValue(graph, "a", 3);
+        checkValue(graph, "g", 7);
+    }
+    
+    @Test
+    public void testLargeGraph() throws Exception {
+        //Long chains defined in and against dependency order, plus many independent formulas
+        int n = 5000;
+        FormulaGraph graph = new FormulaGraph(new StringMathExpressionEvaluator());
+        graph.setFormula("h0", "x");
+        for (int i=0; i<n; i++) {
+            graph.setFormula("f" + i, "f" + (i + 1) + " + 1");
+            graph.setFormula("g" + i, "x*" + i);
+            graph.setFormula("h" + (i + 1), "h" + i + " + 1");
+        }
+        graph.setInput("f" + n, 0);
+        graph.setInput("x", 1);
+        checkValue(graph, "f0", n);
+        checkValue(graph, "g10", 10);
+        graph.setInput("f" + n, 1);
+        checkRecalculated(graph, n);
+        checkValue(graph, "f0", n + 1);
+        graph.setInput("x", 2);
+        checkRecalculated(graph, 2*n + 1);
+        checkValue(graph, "g" + (n - 1), 2*(n - 1));
+        checkValue(graph, "h" + n, n + 2);
+        try {
+            graph.setFormula("h0", "h" + n);
+            throw new Exception("Expected a long cycle to be rejected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.CIRCULAR_REFERENCE || 
+                    !ex.getMessage().startsWith("Circular reference: h0 -> h" + n + " -> h" + 
+                            (n - 1) + " -> ")) {
+                throw new Exception("Unexpected error " + ex.getKind());
+            }
+        }
+    }
+    
+    private static void checkValue(FormulaGraph graph, String name, double expected) 
+            throws Exception {
+        double value = graph.getValue(name);
+        if (Math.abs(value - expected) > 1e-12 * Math.abs(expected)) {
+            throw new Exception("Expected " + name + " = " + expected + " but got " + value);
+        }
+    }
+    
+    private static void checkRecalculated(FormulaGraph graph, int expected) throws Exception {
+        int count = graph.recalculate();
+        if (count != expected) {
+            throw new Exception("Expected " + expected + " formulas to be recomputed but " + 
+                    count + " were");
+        }
+    }
+    
+    private static void checkError(FormulaGraph graph, String name, ErrorKind kind, int index) 
+            throws Exception {
+        try {
+            double value = graph.getValue(name);
+            throw new Exception("Expected " + name + " to fail but got " + value);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != kind || ex.getIndex() != index) {
+                throw new Exception("Expected " + kind + " at " + index + " for " + name + 
+                        " but got " + ex.getMessage());
+            }
+        }
+    }
+    
+    private static void checkCycle(FormulaGraph graph, String name, String expression, 
+            String path) throws Exception {
+        try {
+            graph.setFormula(name, expression);
+            throw new Exception("Expected " + name + " = " + expression + " to be rejected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.CIRCULAR_REFERENCE || 
+                    !ex.getMessage().equals("Circular reference: " + path)) {
+                throw new Exception("Unexpected error " + ex.getMessage());
+            }
+        }
+    }
+}
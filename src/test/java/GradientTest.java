@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.Gradient;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator.Engine;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class GradientTest {
+    //x and y are kept in (0, 1) and z in (1, 2) so every function is differentiable
+    private static final String[] EXPRESSIONS = {
+            "x", "3", "-x", "x + y", "x - 2*y", "x*y*z", "x/y", "x % y + z % 0.25", 
+            "x^y", "x^3", "x^2 + y^4", "x^-2", "x^0.5", "2^x", "pow(z, x*y)", "z^(1/3)",
+            "abs(x - y)", "sqrt(x*y)", "cbrt(x + z)", 
+            "sin(x*y)", "cos(x + y)", "tan(x)", "asin(x)", "acos(y)", "atan(x/y)", 
+            "sinh(x)", "cosh(x*z)", "tanh(y)", "asinh(z)", "acosh(z)", "atanh(x)",
+            "exp(x*y)", "log(x)", "log2(z)", "log10(x + y)", "log(z, x)", "log(x + 1, z)",
+            "toradians(x)", "todegrees(y)", "atan(x, y)", "atan2(z, x*y)", "hypot(x, z)", 
+            "max(x, y)", "min(x*z, y)", "if(x > y, x^2, y^3)", "floor(z) * x + ceil(y)",
+            "round(x) + signum(y) + fact(3)*x + (x > y)", 
+            "sqrt(x^2 + y^2) + exp(sqrt(x^2 + y^2)) * sin(sqrt(x^2 + y^2))",
+            "sin(x)^2 + cos(x)^2 + tan(y)/sin(y)", "e()^(pi()*x) - 1/(1 + exp(-y*z))"};
+    private static final String[] VARIABLES = {"x", "y", "z"};
+    private static final double[][] POINTS = {{0.3, 0.7, 1.6}, {0.8, 0.45, 1.1}, {0.55, 0.2, 1.9}};
+    private static final double H = 1e-6;
+
+    @Test
+    public void testAgainstFiniteDifferences() throws Exception {
+        for (Engine engine : Engine.values()) {
+            for (boolean optimizing : new boolean[] {true, false}) {
+                for (boolean degrees : new boolean[] {false, true}) {
+                    StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+                    smee.setEngine(engine);
+                    smee.setOptimizing(optimizing);
+                    if (degrees) {
+                        smee.setDegreeMode();
+                    }
+                    for (String expression : EXPRESSIONS) {
+                        checkGradient(smee, expression);
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testExactDerivatives() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        checkExact(smee.compileGradient("x^2*y + 3*y", "x", "y"), new double[] {2, 5}, 
+                new double[] {20, 7});
+        checkExact(smee.compileGradient("x*y - z", "x", "y", "z"), new double[] {4, -2, 8}, 
+                new double[] {-2, 4, -1});
+        checkExact(smee.compileGradient("exp(x)", "x"), new double[] {1}, new double[] {Math.E});
+        //A variable that does not appear has a derivative of zero
+        checkExact(smee.compileGradient("sin(x)", "x", "unused"), new double[] {0, 7}, 
+                new double[] {1, 0});
+        smee.setDegreeMode();
+        //Derivatives are in terms of degrees
+        checkExact(smee.compileGradient("sin(x)", "x"), new double[] {0}, 
+                new double[] {Math.PI/180});
+        checkExact(smee.compileGradient("asin(x)", "x"), new double[] {0}, 
+                new double[] {180/Math.PI});
+        
+        Gradient gradient = smee.compileGradient("sqrt(x^2 + y^2) + 1/sqrt(x^2 + y^2)", "x", "y");
+        if (gradient.getSavedEvaluationCount() <= 0) {
+            throw new Exception("Expected the expression and its derivatives to share work");
+        }
+        if (!gradient.getExpression().equals(gradient.toString()) || 
+                gradient.getVariables().length != 2) {
+            throw new Exception("Unexpected expression or variables");
+        }
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        for (Engine engine : Engine.values()) {
+            StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+            smee.setEngine(engine);
+            smee.registerFunction("twice", new UnaryFunction() {
+                @Override
+                public double apply(double x) {
+                    return 2*x;
+                }
+            }, true);
+            try {
+                smee.compileGradient("x + twice(x*y)", "x", "y");
+                throw new Exception("Expected a user defined function to be rejected");
+            }
+            catch (InvalidMathExpressionException ex) {
+                if (ex.getKind() != ErrorKind.NOT_DIFFERENTIABLE || ex.getIndex() != 4 || 
+                        !ex.getMessage().equals("Can't differentiate twice() at index 4")) {
+                    throw new Exception("Unexpected error: " + ex.getMessage());
+                }
+            }
+            //A user defined function of constants is just a constant
+            checkExact(smee.compileGradient("x*twice(3)", "x"), new double[] {2}, 
+                    new double[] {6});
+            
+            Gradient gradient = smee.compileGradient("sqrt(x^2 + fact(y)) * sqrt(x^2 + fact(y))", 
+                    "x", "y");
+            checkExact(gradient, new double[] {3, 2}, new double[] {6, 0});
+            try {
+                gradient.evaluate(new double[] {3, -1}, new double[2]);
+                throw new Exception("Expected fact(-1) to fail");
+            }
+            catch (InvalidMathExpressionException ex) {
+                if (ex.getKind() != ErrorKind.INVALID_ARGUMENT || ex.getIndex() != 11) {
+                    throw new Exception("Unexpected error: " + ex.getMessage());
+                }
+            }
+            try {
+                gradient.evaluate(new double[] {3, 2}, new double[1]);
+                throw new Exception("Expected a short gradient array to be rejected");
+            }
+            catch (IllegalArgumentException ex) {
+                //expected
+            }
+            
+            //The derivative of a power tower nests several times deeper than the tower itself
+            StringBuilder tower = new StringBuilder("x");
+            for (int i=0; i<999; i++) {
+                tower.append("^x");
+            }
+            smee.compile(tower.toString(), "x");
+            try {
+                smee.compileGradient(tower.toString(), "x");
+                throw new Exception("Expected the derivative to exceed the depth limit");
+            }
+            catch (InvalidMathExpressionException ex) {
+                if (ex.getKind() != ErrorKind.LIMIT_EXCEEDED) {
+                    throw new Exception("Unexpected error: " + ex.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static void checkExact(Gradient gradient, double[] values, double[] expected) 
+            throws Exception {
+        double[] actual = gradient.gradient(values);
+        for (int i=0; i<expected.length; i++) {
+            if (Math.abs(actual[i] - expected[i]) > 1e-12 * Math.max(1, Math.abs(expected[i]))) {
+                throw new Exception("Expected d/d" + gradient.getVariables()[i] + " of " + 
+                        gradient + " to be " + expected[i] + " but got " + actual[i]);
+            }
+        }
+    }
+    
+    private static void checkGradient(StringMathExpressionEvaluator smee, String expression) 
+            throws Exception {
+        Gradient gradient = smee.compileGradient(expression, VARIABLES);
+        CompiledExpression compiled = smee.compile(expression, VARIABLES);
+        if (gradient.getEngine() != smee.getEngine() && Runtime.version().feature() >= 15) {
+            throw new Exception("The gradient of \"" + expression + "\" was not compiled to " + 
+                    smee.getEngine());
+        }
+        double[] derivatives = new double[VARIABLES.length];
+        for (double[] point : POINTS) {
+            double value = gradient.evaluate(point, derivatives);
+            if (Double.doubleToLongBits(value) != 
+                    Double.doubleToLongBits(compiled.evaluate(point))) {
+                throw new Exception("Value of " + expression + " differs from the compiled value");
+            }
+            for (int slot=0; slot<VARIABLES.length; slot++) {
+                double[] above = point.clone();
+                double[] below = point.clone();
+                above[slot] += H;
+                below[slot] -= H;
+                double estimate = (compiled.evaluate(above) - compiled.evaluate(below))/(2*H);
+                if (Math.abs(derivatives[slot] - estimate) > 1e-5 * Math.max(1, Math.abs(estimate))) {
+                    throw new Exception("Expected d/d" + VARIABLES[slot] + " of " + expression + 
+                            " to be about " + estimate + " but got " + derivatives[slot] + 
+                            " with " + smee.getEngine() + ", optimizing " + smee.isOptimizing() + 
+                            (smee.isDegreeMode() ? " in degrees" : " in radians"));
+                }
+            }
+        }
+    }
+}
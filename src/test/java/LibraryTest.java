@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator.Engine;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class LibraryTest {
+    private static final String[] EXPRESSIONS = {
+            "42", "x", "-x + 2*y", "x^2 + x^3 + x^0.5 + x^y", "sin(x)*cos(y) + tan(x/y)", 
+            "sqrt(x^2 + y^2) / (1 + sqrt(x^2 + y^2))", "if(x > y, log(x), exp(y))",
+            "and(x >= 0, or(y != 1, not(x == y)))", "max(x, y) % min(x, y) + hypot(x, y)",
+            "log(2, x) + log2(y) + log10(x) + atan(y, x) + pi() + e()", "fact(y) + comb(y, 2)", 
+            "sqrt(fact(y) + 1) * sqrt(fact(y) + 1) + fact(x)", "twice(x) + twice(3)", 
+            "todegrees(asin(x/10)) + toradians(y) + abs(-x) + floor(y) + ceil(x) + round(y)",
+            "1/0 + x", "0/0*y"};
+    private static final String[] VARIABLES = {"x", "y"};
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (Engine engine : Engine.values()) {
+            for (boolean optimizing : new boolean[] {true, false}) {
+                StringMathExpressionEvaluator smee = newEvaluator();
+                smee.setEngine(engine);
+                smee.setOptimizing(optimizing);
+                smee.setDegreeMode();
+                CompiledExpression[] expected = new CompiledExpression[EXPRESSIONS.length + 1];
+                for (int i=0; i<EXPRESSIONS.length; i++) {
+                    expected[i] = smee.compile(EXPRESSIONS[i], VARIABLES);
+                }
+                expected[EXPRESSIONS.length] = smee.compile("sin(z) + pi()", "z");
+                
+                Path file = Files.createTempFile("LibraryTest", ".bin");
+                CompiledExpression[] actual;
+                try {
+                    StringMathExpressionEvaluator.writeLibrary(file, expected);
+                    //The angle mode of the expressions is kept
+                    StringMathExpressionEvaluator loader = newEvaluator();
+                    loader.setEngine(engine);
+                    actual = loader.readLibrary(file);
+                }
+                finally {
+                    Files.delete(file);
+                }
+                if (actual.length != expected.length) {
+                    throw new Exception("Expected " + expected.length + " expressions but got " + 
+                            actual.length);
+                }
+                Random rng = new Random(1);
+                for (int i=0; i<expected.length; i++) {
+                    checkSame(expected[i], actual[i]);
+                    for (int j=0; j<50; j++) {
+                        double x = j < 10 ? j - 3 : (2*rng.nextDouble() - 1)*10;
+                        double y = j < 10 ? (j*7) % 6 : (2*rng.nextDouble() - 1)*10;
+                        checkSameValue(expected[i], actual[i], x, y);
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testBuffers() throws Exception {
+        StringMathExpressionEvaluator smee = newEvaluator();
+        CompiledExpression[] expected = {smee.compile("x*y", VARIABLES), smee.compile("2+3")};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {1, 2, 3});
+        StringMathExpressionEvaluator.writeLibrary(out, expected);
+        StringMathExpressionEvaluator.writeLibrary(out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        buffer.position(3);
+        CompiledExpression[] actual = smee.readLibrary(buffer);
+        if (actual.length != 2 || actual[0].evaluate(3, 4) != 12 || actual[1].evaluate() != 5) {
+            throw new Exception("Unexpected expressions read from a buffer");
+        }
+        if (smee.readLibrary(buffer).length != 0 || buffer.hasRemaining()) {
+            throw new Exception("Expected the buffer to hold an empty library");
+        }
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        StringMathExpressionEvaluator smee = newEvaluator();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringMathExpressionEvaluator.writeLibrary(out, smee.compile("x + twice(y)", VARIABLES),
+                smee.compile("sqrt(x^2 + y^2) + 1/sqrt(x^2 + y^2) + fact(x)", VARIABLES));
+        byte[] bytes = out.toByteArray();
+        
+        try {
+            new StringMathExpressionEvaluator().readLibrary(ByteBuffer.wrap(bytes));
+            throw new Exception("Expected a missing function to be reported");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.UNKNOWN_FUNCTION || ex.getIndex() != 4) {
+                throw new Exception("Unexpected error: " + ex.getMessage());
+            }
+        }
+        
+        byte[] wrongVersion = bytes.clone();
+        wrongVersion[5]++;
+        checkCorrupt(smee, wrongVersion, "Unsupported expression library version 2");
+        for (int length=0; length<bytes.length; length++) {
+            checkCorrupt(smee, Arrays.copyOf(bytes, length), null);
+        }
+        
+        //Huge counts of functions, variable lists, variables and expressions are rejected before
+        //anything of that size is allocated
+        byte[] hugeCount = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+        byte[][] prefixes = {{}, {0}, {0, 1}, {0, 0}};
+        for (byte[] prefix : prefixes) {
+            byte[] huge = Arrays.copyOf(bytes, 6 + prefix.length + hugeCount.length);
+            System.arraycopy(prefix, 0, huge, 6, prefix.length);
+            System.arraycopy(hugeCount, 0, huge, 6 + prefix.length, hugeCount.length);
+            checkCorrupt(smee, huge, "Corrupt expression library at byte " + huge.length);
+        }
+        
+        //Damaged libraries must be rejected or give expressions that can be evaluated
+        Random rng = new Random(7);
+        for (int i=0; i<5000; i++) {
+            byte[] damaged = bytes.clone();
+            damaged[6 + rng.nextInt(damaged.length - 6)] ^= 1 << rng.nextInt(8);
+            try {
+                for (CompiledExpression compiled : smee.readLibrary(ByteBuffer.wrap(damaged))) {
+                    double[] values = new double[compiled.getVariables().length];
+                    Arrays.fill(values, 2);
+                    compiled.evaluate(values);
+                }
+            }
+            catch (IOException | InvalidMathExpressionException ex) {
+                //expected
+            }
+        }
+    }
+    
+    private static StringMathExpressionEvaluator newEvaluator() {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.registerFunction("twice", new UnaryFunction() {
+            @Override
+            public double apply(double x) {
+                return 2*x;
+            }
+        }, true);
+        return smee;
+    }
+    
+    private static void checkCorrupt(StringMathExpressionEvaluator smee, byte[] bytes, 
+            String message) throws Exception {
+        try {
+            smee.readLibrary(ByteBuffer.wrap(bytes));
+            throw new Exception("Expected a library of " + bytes.length + " bytes to be rejected");
+        }
+        catch (IOException ex) {
+            if (message != null && !ex.getMessage().equals(message)) {
+                throw new Exception("Unexpected message: " + ex.getMessage());
+            }
+        }
+    }
+    
+    private static void checkSame(CompiledExpression expected, CompiledExpression actual) 
+            throws Exception {
+        if (!expected.getExpression().equals(actual.getExpression()) || 
+                !Arrays.equals(expected.getVariables(), actual.getVariables()) || 
+                expected.getEngine() != actual.getEngine() || 
+                expected.getOperationCount() != actual.getOperationCount() || 
+                expected.getSavedEvaluationCount() != actual.getSavedEvaluationCount()) {
+            throw new Exception("Loaded expression " + actual + " differs from " + expected);
+        }
+    }
+    
+    private static void checkSameValue(CompiledExpression expected, CompiledExpression actual, 
+            double x, double y) throws Exception {
+        double[] values = Arrays.copyOf(new double[] {x, y}, expected.getVariables().length);
+        String expectedResult;
+        String actualResult;
+        try {
+            expectedResult = Long.toHexString(Double.doubleToRawLongBits(expected.evaluate(values)));
+        }
+        catch (InvalidMathExpressionException ex) {
+            expectedResult = ex.getMessage();
+        }
+        try {
+            actualResult = Long.toHexString(Double.doubleToRawLongBits(actual.evaluate(values)));
+        }
+        catch (InvalidMathExpressionException ex) {
+            actualResult = ex.getMessage();
+        }
+        if (!expectedResult.equals(actualResult)) {
+            throw new Exception("Loaded " + actual + " gave " + actualResult + " instead of " + 
+                    expectedResult + " for x = " + x + ", y = " + y);
+        }
+    }
+}
@@ -592,6 +592,61 @@ public class MathExpressionTest {
         checkEquality(result, expected);
 }
     
+    @Test
+    public void testLargeFactorials() throws Exception {
+        StringMathExpressionEvaluator mee = new StringMathExpressionEvaluator();
+        
+        //Results are bit for bit the same as multiplying out the terms wherever that is finite and 
+        //takes no more than 1024 terms
+        for (int m=0; m<=1200; m+=(m < 200 ? 1 : 7)) {
+            double fact = 1;
+            for (int j=2; j<=m; j++) {
+                fact *= j;
+            }
+            checkIdentical(mee.evaluate("fact(" + m + ")"), fact);
+            for (int n=0; n<=m; n+=(m < 200 ? 1 : 5)) {
+                double perm = 1;
+                double comb = 1;
+                for (int k=m, j=1; k>=m-n+1; k--, j++) {
+                    perm *= k;
+                    comb *= k /(double) j;
+                }
+                checkIdentical(mee.evaluate("perm(" + m + ", " + n + ")"), perm);
+                if (!Double.isInfinite(comb) && !Double.isNaN(comb)) {
+                    //Beyond 1024 terms it is computed the other way round, which is more accurate
+                    if (n <= 1024) {
+                        checkIdentical(mee.evaluate("comb(" + m + ", " + n + ")"), comb);
+                    }
+                    else {
+                        checkEquality(mee.evaluate("comb(" + m + ", " + n + ")"), comb);
+                    }
+                }
+            }
+        }
+        
+        //The table ends at the largest finite factorial and larger arguments saturate to infinity
+        checkIdentical(mee.evaluate("fact(20)"), 2432902008176640000.0);
+        checkIdentical(mee.evaluate("fact(170)"), 7.257415615307994E306);
+        checkIdentical(mee.evaluate("fact(171)"), Double.POSITIVE_INFINITY);
+        checkIdentical(mee.evaluate("perm(171, 171)"), Double.POSITIVE_INFINITY);
+        
+        //Huge arguments saturate or are computed from only the terms that are needed
+        String[] expressions = {"fact(1e9)", "fact(3e15)", "perm(1e12, 1e11)", "perm(3e9, 2)", 
+                "comb(1e15, 5e14)", "comb(4e9, 4e9 - 2)", "comb(1e9, 1e9 - 1)"};
+        double[] expected = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, 
+                Double.POSITIVE_INFINITY, 3e9*(3e9 - 1), Double.POSITIVE_INFINITY, 
+                4e9*(4e9 - 1)/2, 1e9};
+        for (int i=0; i<expressions.length; i++) {
+            checkIdentical(mee.evaluate(expressions[i]), expected[i]);
+        }
+    }
+    
+    private void checkIdentical(double a, double b) throws Exception {
+        if (Double.doubleToLongBits(a) != Double.doubleToLongBits(b)) {
+            throw new Exception("Miscompare: " + a + " != " + b);
+        }
+    }
+    
     @Test
     public void testOperatorPrecedence() throws Exception {
         StringMathExpressionEvaluator mee = new StringMathExpressionEvaluator();
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.ResourceLimits;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator.Engine;
+import stringMathExpressionEvaluator.UnaryFunction;
+
+public class ResourceLimitsTest {
+
+    @Test
+    public void testDefaultDepthLimit() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        for (Engine engine : Engine.values()) {
+            smee.setEngine(engine);
+            //Just within the limit, redundant parentheses don't count
+            checkValue(smee, repeat("(", 100000) + "1" + repeat(")", 100000), 1);
+            checkValue(smee, repeat("(1+", 999) + "1" + repeat(")", 999), 1000);
+            checkValue(smee, repeat("-", 998) + "1", 1);
+            checkValue(smee, "1" + repeat("^1", 999), 1);
+            checkValue(smee, "1" + repeat("==1", 499), 1);
+            checkValue(smee, repeat("sin(", 999) + "0" + repeat(")", 999), 0);
+            
+            //Flat chains of left associative operations aren't nested however long they are
+            checkValue(smee, "1" + repeat("+1", 9999), 10000);
+            checkValue(smee, "1" + repeat("+1", 100000), 100001);
+            checkValue(smee, "2" + repeat("*1-1+1/1", 10000), 2);
+            checkValue(smee, "1" + repeat("<2", 10000), 1);
+            
+            //Beyond the limit, deep enough to overflow the stack if unchecked
+            checkLimitExceeded(smee, repeat("(1+", 1000) + "1" + repeat(")", 1000));
+            checkLimitExceeded(smee, repeat("-", 100000) + "1");
+            checkLimitExceeded(smee, "1" + repeat("^1", 100000));
+            checkLimitExceeded(smee, "1" + repeat("==1", 100000));
+            checkLimitExceeded(smee, repeat("sin(", 100000) + "1" + repeat(")", 100000));
+        }
+        if (smee.validate(repeat("-(", 100000) + "x" + repeat(")", 100000)).getErrorKind() != 
+                ErrorKind.LIMIT_EXCEEDED) {
+            throw new Exception("Expected validation to fail the depth limit");
+        }
+    }
+    
+    @Test
+    public void testLongChains() throws Exception {
+        //Long flat expressions are evaluated without recursing once per operation
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxDepth(Integer.MAX_VALUE));
+        String expression = "x" + repeat("+x*y", 50000) + repeat("-x/y", 50000);
+        for (Engine engine : Engine.values()) {
+            smee.setEngine(engine);
+            for (boolean optimizing : new boolean[] {true, false}) {
+                smee.setOptimizing(optimizing);
+                checkValue(smee, "1" + repeat("+1", 100000), 100001);
+                CompiledExpression compiled = smee.compile(expression, "x", "y");
+                double value = compiled.evaluate(2, 4);
+                double[] results = new double[1];
+                compiled.evaluate(new double[][] {{2}, {4}}, results);
+                if (value != 375002 || results[0] != value) {
+                    throw new Exception("Expected 375002 but got " + value + " and " + results[0]);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testDeepNesting() throws Exception {
+        //With the depth limit lifted, deeply nested expressions are compiled and evaluated with 
+        //explicit stacks so they fit on a small thread stack
+        final StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxDepth(Integer.MAX_VALUE));
+        final Exception[] failure = new Exception[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkDeepNesting(smee);
+                }
+                catch (Exception ex) {
+                    failure[0] = ex;
+                }
+            }
+        }, "small stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+    
+    private static void checkDeepNesting(StringMathExpressionEvaluator smee) throws Exception {
+        String nested = repeat("(1+", 20000) + "x" + repeat(")", 20000);
+        //A raised limit is enforced like any other
+        checkValue(smee, nested.replace("x", "1"), 20001);
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxDepth(20000));
+        checkLimitExceeded(smee, nested.replace("x", "1"));
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxDepth(Integer.MAX_VALUE));
+        //Each template nests its argument one level deeper
+        String[] templates = {"sin(#)", "(#)*1.5+x", "x-(#)", "if(x>0.5,#,x)", "and(#,x)", 
+            "or(x>0.7,#)", "max(#,x)", "log(2,abs(#)+3)", "-(#)", "(#)^2", "sqrt(abs(#))", 
+            "(#)/4", "hypot(#,x)", "atan2(x,#)", "(#)%3", "x*(#)", "#<x", "not(#)"};
+        Random random = new Random(21);
+        for (Engine engine : Engine.values()) {
+            smee.setEngine(engine);
+            for (boolean optimizing : new boolean[] {true, false}) {
+                smee.setOptimizing(optimizing);
+                CompiledExpression compiled = smee.compile(nested, "x");
+                double[] results = new double[1];
+                compiled.evaluate(new double[][] {{0.5}}, results);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                StringMathExpressionEvaluator.writeLibrary(out, compiled);
+                CompiledExpression loaded = smee.readLibrary(ByteBuffer.wrap(out.toByteArray()))[0];
+                double[] gradient = smee.compileGradient(nested, "x").gradient(0.5);
+                if (compiled.evaluate(0.5) != 20000.5 || results[0] != 20000.5 || 
+                        loaded.evaluate(0.5) != 20000.5 || gradient[0] != 1) {
+                    throw new Exception("Wrong results for a deeply nested sum");
+                }
+                
+                //A random nesting of templates gives the same value as computing one level at a
+                //time
+                String expression = "x";
+                CompiledExpression[] levels = new CompiledExpression[2000];
+                for (int i=0; i<levels.length; i++) {
+                    String template = templates[random.nextInt(templates.length)];
+                    expression = template.replace("#", "(" + expression + ")");
+                    levels[i] = smee.compile(template.replace("#", "y"), "x", "y");
+                }
+                compiled = smee.compile(expression, "x");
+                for (double x = -1; x <= 1; x += 0.125) {
+                    double expected = x;
+                    for (CompiledExpression level : levels) {
+                        expected = level.evaluate(x, expected);
+                    }
+                    double value = compiled.evaluate(x);
+                    if (Double.doubleToLongBits(value) != Double.doubleToLongBits(expected)) {
+                        throw new Exception("Expected " + expected + " but got " + value + 
+                                " for x=" + x + " with " + engine);
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testSizeLimits() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxLength(10));
+        checkValue(smee, "1234567890", 1234567890);
+        checkLimitExceeded(smee, "1234567890+");
+        CharSequence builder = new StringBuilder("(1+2)*(3+4)");
+        checkLimitExceeded(smee, builder);
+        
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxNodes(5));
+        checkValue(smee, "1+2+3", 6);
+        checkLimitExceeded(smee, "1+2+3+4");
+        checkLimitExceeded(smee, "max(1+2, 3+4)");
+        
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxDepth(3));
+        checkValue(smee, "(1+2)*(3+4)", 21);
+        checkLimitExceeded(smee, "1-(1+2)*(3+4)");
+        checkValue(smee, "1+2*3-4/2+5", 10);
+        checkValue(smee, "((((-1))))", -1);
+        checkLimitExceeded(smee, "-(-(-(-1)))");
+        
+        //Constant sub-expressions are computed when compiled so only the remaining operations count
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxOperations(3));
+        CompiledExpression compiled = smee.compile("x*x + 2*pi()*x", "x");
+        if (compiled.getOperationCount() != 3) {
+            throw new Exception("Expected 3 operations but got " + compiled.getOperationCount());
+        }
+        try {
+            smee.compile("x*x + 2*x + 1", "x");
+            throw new Exception("Expected the operation limit to be exceeded");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.LIMIT_EXCEEDED || ex.getIndex() != -1) {
+                throw new Exception("Unexpected error " + ex.getKind() + " at " + ex.getIndex());
+            }
+        }
+        
+        //Changing the limits clears the cache so cached expressions are checked again
+        smee.setResourceLimits(ResourceLimits.DEFAULT);
+        checkValue(smee, "1+2+3+4", 10);
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withMaxNodes(5));
+        checkLimitExceeded(smee, "1+2+3+4");
+        
+        try {
+            ResourceLimits.DEFAULT.withMaxDepth(0);
+            throw new Exception("Expected a zero limit to be rejected");
+        }
+        catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+    
+    @Test
+    public void testCancellation() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        CompiledExpression compiled = smee.compile("x*x + 1", "x");
+        double[][] columns = {new double[100000]};
+        double[] results = new double[columns[0].length];
+        Thread.currentThread().interrupt();
+        try {
+            compiled.evaluate(columns, results);
+            throw new Exception("Expected the evaluation to be cancelled");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.CANCELLED) {
+                throw new Exception("Expected CANCELLED but got " + ex.getKind());
+            }
+        }
+        Thread.currentThread().interrupt();
+        try {
+            compiled.evaluateParallel(columns, results);
+            throw new Exception("Expected the parallel evaluation to be cancelled");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.CANCELLED) {
+                throw new Exception("Expected CANCELLED but got " + ex.getKind());
+            }
+        }
+        finally {
+            Thread.interrupted();
+        }
+        compiled.evaluate(columns, results);
+        if (results[results.length - 1] != 1) {
+            throw new Exception("Expected 1 but got " + results[results.length - 1]);
+        }
+    }
+    
+    @Test
+    public void testTimeLimit() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        smee.registerFunction("slow", new UnaryFunction() {
+            @Override
+            public double apply(double x) throws InvalidMathExpressionException {
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return x;
+            }
+        }, true);
+        smee.setResourceLimits(ResourceLimits.DEFAULT.withTimeLimit(1));
+        CompiledExpression compiled = smee.compile("slow(x)", "x");
+        double[][] columns = {new double[10000]};
+        double[] results = new double[columns[0].length];
+        long start = System.nanoTime();
+        try {
+            compiled.evaluate(columns, results);
+            throw new Exception("Expected the time limit to be exceeded");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.LIMIT_EXCEEDED) {
+                throw new Exception("Expected LIMIT_EXCEEDED but got " + ex.getKind());
+            }
+        }
+        //One block of rows is evaluated before the limit is noticed, not all of them
+        long millis = (System.nanoTime() - start) / 1000000;
+        if (millis > 5000) {
+            throw new Exception("Took " + millis + " ms to stop");
+        }
+        
+        //Limits too long to count in nanoseconds are never reached
+        columns = new double[][] {new double[4 * 1024]};
+        results = new double[columns[0].length];
+        for (long limit : new long[] {Long.MAX_VALUE / 1000000, Long.MAX_VALUE / 1000, 
+                Long.MAX_VALUE - 1}) {
+            smee.setResourceLimits(ResourceLimits.DEFAULT.withTimeLimit(limit));
+            compiled = smee.compile("x+1", "x");
+            compiled.evaluate(columns, results);
+            if (results[results.length - 1] != 1) {
+                throw new Exception("Expected 1 but got " + results[results.length - 1]);
+            }
+        }
+    }
+    
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i=0; i<times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+    
+    private static void checkValue(StringMathExpressionEvaluator smee, String expression, 
+            double expected) throws Exception {
+        double value = smee.evaluate(expression);
+        if (value != expected) {
+            throw new Exception("Expected " + expected + " but got " + value + " for " + 
+                    abbreviate(expression));
+        }
+    }
+    
+    private static void checkLimitExceeded(StringMathExpressionEvaluator smee, 
+            CharSequence expression) throws Exception {
+        try {
+            double value = smee.evaluate(expression);
+            throw new Exception("Expected " + abbreviate(expression) + 
+                    " to exceed a limit but got " + value);
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.LIMIT_EXCEEDED) {
+                throw new Exception("Expected LIMIT_EXCEEDED but got " + ex.getMessage() + 
+                        " for " + abbreviate(expression));
+            }
+        }
+    }
+    
+    private static String abbreviate(CharSequence expression) {
+        return expression.length() <= 40 ? expression.toString() : 
+            expression.subSequence(0, 40) + "...";
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.CompiledExpression;
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.RuleSet;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+
+public class RuleSetTest {
+    private static final String[] VARIABLES = {"x", "y", "z"};
+    private static final String[] RELATIONS = {">", ">=", "<", "<=", "==", "!="};
+
+    @Test
+    public void testMatchesSeparateEvaluation() throws Exception {
+        Random random = new Random(42);
+        String[] rules = new String[2000];
+        for (int i=0; i<rules.length; i++) {
+            rules[i] = randomRule(random);
+        }
+        for (boolean optimizing : new boolean[] {true, false}) {
+            StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+            smee.setOptimizing(optimizing);
+            RuleSet ruleSet = smee.compileRules(rules, VARIABLES);
+            CompiledExpression[] compiled = new CompiledExpression[rules.length];
+            for (int i=0; i<rules.length; i++) {
+                compiled[i] = smee.compile(rules[i], VARIABLES);
+            }
+            if (optimizing && ruleSet.getIndexedRuleCount() < rules.length / 3) {
+                throw new Exception("Expected a third of the rules to be indexed but only " + 
+                        ruleSet.getIndexedRuleCount() + " were");
+            }
+            int[] matches = new int[rules.length];
+            int[] expected = new int[rules.length];
+            double[] special = {Double.NaN, -0.0, 0.0, Double.POSITIVE_INFINITY, 
+                    Double.NEGATIVE_INFINITY};
+            for (int event=0; event<500; event++) {
+                double[] values = new double[VARIABLES.length];
+                for (int slot=0; slot<values.length; slot++) {
+                    values[slot] = random.nextInt(10) == 0 ? special[random.nextInt(special.length)] 
+                            : random.nextInt(21) - 10;
+                }
+                int expectedCount = 0;
+                for (int i=0; i<rules.length; i++) {
+                    if (compiled[i].evaluate(values) != 0) {
+                        expected[expectedCount++] = i;
+                    }
+                }
+                int count = ruleSet.match(values, matches);
+                if (!Arrays.equals(Arrays.copyOf(matches, count), 
+                        Arrays.copyOf(expected, expectedCount))) {
+                    throw new Exception("Rules matched for " + Arrays.toString(values) + 
+                            " differ, expected " + expectedCount + " but got " + count);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testSharing() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        RuleSet ruleSet = smee.compileRules(new String[] {
+                "sqrt(x^2 + y^2) > 5",
+                "sqrt(x^2 + y^2) < 1",
+                "and(x > 0, sqrt(x^2 + y^2) == 5)",
+                "3 <= y",
+                "x != y"}, "x", "y");
+        if (ruleSet.getSavedEvaluationCount() != 8) {
+            throw new Exception("Expected 8 saved evaluations but got " + 
+                    ruleSet.getSavedEvaluationCount());
+        }
+        if (ruleSet.getIndexedRuleCount() != 2) {
+            throw new Exception("Expected 2 indexed rules but got " + 
+                    ruleSet.getIndexedRuleCount());
+        }
+        checkMatches(ruleSet, new int[] {2, 3, 4}, 3, 4);
+        checkMatches(ruleSet, new int[] {1}, 0.5, 0.5);
+        checkMatches(ruleSet, new int[] {0, 3, 4}, -6, 3);
+        checkMatches(ruleSet, new int[] {4}, -6, Double.NaN);
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        RuleSet ruleSet = smee.compileRules(new String[] {
+                "x > 0",
+                "and(x < 0, fact(y) > 1)",
+                "and(x >= 0, comb(y, x) >= 1)"}, "x", "y");
+        checkMatches(ruleSet, new int[] {0, 2}, 2, 5);
+        checkMatches(ruleSet, new int[] {1}, -1, 4);
+        try {
+            ruleSet.match(-1, -1);
+            throw new Exception("Expected fact(-1) to fail");
+        }
+        catch (InvalidMathExpressionException ex) {
+            if (ex.getKind() != ErrorKind.INVALID_ARGUMENT || ex.getIndex() != 11) {
+                throw new Exception("Expected the error from rule 1 but got " + ex.getMessage());
+            }
+        }
+        try {
+            smee.compileRules(new String[] {"x > 1", "y >"}, "x", "y");
+            throw new Exception("Expected an invalid rule to be rejected");
+        }
+        catch (InvalidMathExpressionException ex) {
+            //expected
+        }
+    }
+    
+    private static void checkMatches(RuleSet ruleSet, int[] expected, double... values) 
+            throws Exception {
+        int[] matches = ruleSet.match(values);
+        if (!Arrays.equals(matches, expected)) {
+            throw new Exception("Expected " + Arrays.toString(expected) + " to match " + 
+                    Arrays.toString(values) + " but got " + Arrays.toString(matches));
+        }
+    }
+    
+    private static String randomRule(Random random) {
+        String comparison = randomComparison(random);
+        switch (random.nextInt(8)) {
+            case 0:
+                return "and(" + comparison + ", " + randomComparison(random) + ")";
+            case 1:
+                return "and(and(" + comparison + ", " + randomComparison(random) + "), " + 
+                        randomComparison(random) + ")";
+            case 2:
+                return "or(" + comparison + ", x*y " + randomRelation(random) + " z)";
+            case 3:
+                return "abs(x - y) " + randomRelation(random) + " " + (random.nextInt(9) - 4);
+            case 4:
+                return "if(" + comparison + ", abs(x - y) > 2, 0/0)";
+            default:
+                return comparison;
+        }
+    }
+    
+    private static String randomComparison(Random random) {
+        String variable = VARIABLES[random.nextInt(VARIABLES.length)];
+        String constant = random.nextInt(20) == 0 ? "0/0" : 
+            random.nextInt(10) == 0 ? "-0" : Integer.toString(random.nextInt(21) - 10);
+        String relation = randomRelation(random);
+        return random.nextBoolean() ? variable + " " + relation + " " + constant : 
+            "(" + constant + ") " + relation + " " + variable;
+    }
+    
+    private static String randomRelation(Random random) {
+        return RELATIONS[random.nextInt(RELATIONS.length)];
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import stringMathExpressionEvaluator.ErrorKind;
+import stringMathExpressionEvaluator.InvalidMathExpressionException;
+import stringMathExpressionEvaluator.StringMathExpressionEvaluator;
+import stringMathExpressionEvaluator.UnaryFunction;
+import stringMathExpressionEvaluator.ValidationResult;
+
+public class ValidationTest {
+
+    @Test
+    public void testValidate() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator();
+        final int[] calls = new int[1];
+        smee.registerFunction("counted", new UnaryFunction() {
+            @Override
+            public double apply(double x) throws InvalidMathExpressionException {
+                calls[0]++;
+                return x;
+            }
+        }, true);
+        
+        ValidationResult result = smee.validate("fact(-1) + x*y + SIN(x) + sin(1) + counted(2) + x");
+        check(result, true, new String[] {"fact", "sin", "counted"}, new String[] {"x", "y"});
+        if (calls[0] != 0) {
+            throw new Exception("A function was called during validation");
+        }
+        
+        result = smee.validate("2*(3+4)");
+        check(result, true, new String[0], new String[0]);
+        
+        result = smee.validate("sqrt(a) + max(1)");
+        check(result, false, new String[] {"sqrt"}, new String[] {"a"});
+        if (result.getErrorKind() != ErrorKind.UNKNOWN_FUNCTION || result.getErrorIndex() != 10 || 
+                !result.getErrorMessage().equals("Unknown function: max with one argument at index 10")) {
+            throw new Exception("Unexpected result: " + result);
+        }
+        
+        result = smee.validate("1 + (2");
+        check(result, false, new String[0], new String[0]);
+        if (result.getErrorKind() != ErrorKind.MISSING_PARENTHESIS) {
+            throw new Exception("Unexpected result: " + result);
+        }
+        
+        //With declared variables, other names are rejected just as when compiling
+        result = smee.validate("x + min(y, z)", "x", "y");
+        check(result, false, new String[0], new String[] {"x", "y"});
+        if (result.getErrorKind() != ErrorKind.UNKNOWN_VARIABLE) {
+            throw new Exception("Unexpected result: " + result);
+        }
+        result = smee.validate("x + min(y, x)", "x", "y");
+        check(result, true, new String[] {"min"}, new String[] {"x", "y"});
+    }
+    
+    @Test
+    public void testSpeed() throws Exception {
+        StringMathExpressionEvaluator smee = new StringMathExpressionEvaluator(0);
+        String[] expressions = new String[1000];
+        for (int i=0; i<expressions.length; i++) {
+            expressions[i] = "fact(" + (i % 170) + ") + comb(" + (i + 200) + ", " + (i % 50) + 
+                    ") * sin(" + i + ".5) / log(2, " + (i + 2) + ") + max(" + i + ", sqrt(" + i + 
+                    "))";
+        }
+        //Keep the fastest of several passes so that warm-up doesn't count
+        double[] time = {Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int pass=0; pass<20; pass++) {
+            long start = System.nanoTime();
+            for (String expression : expressions) {
+                if (!smee.validate(expression).isValid()) {
+                    throw new Exception("Unexpected error in " + expression);
+                }
+            }
+            time[0] = Math.min(time[0], System.nanoTime() - start);
+            start = System.nanoTime();
+            for (String expression : expressions) {
+                smee.evaluate(expression);
+            }
+            time[1] = Math.min(time[1], System.nanoTime() - start);
+        }
+        System.out.println(String.format("Validated %.2e expressions per second, evaluated %.2e", 
+                expressions.length / time[0] * 1e9, expressions.length / time[1] * 1e9));
+    }
+    
+    private void check(ValidationResult result, boolean valid, String[] functions, 
+            String[] variables) throws Exception {
+        if (result.isValid() != valid || !Arrays.equals(result.getFunctions(), functions) || 
+                !Arrays.equals(result.getVariables(), variables)) {
+            throw new Exception("Unexpected result: " + result);
+        }
+    }
+}
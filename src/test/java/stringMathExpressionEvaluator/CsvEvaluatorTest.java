@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CsvEvaluatorTest {
+
+    @Test
+    public void testProcess() throws Exception {
+        String input = "x,name,y,\"z\",2bad\r\n" +
+                "1,\"Smith, J\",2,3,a\r\n" +
+                "\r\n" +
+                " 4.5 ,\"say \"\"hi\"\"\", -0.25 ,\"7\",b\n" +
+                "1e3,,,9\n" +
+                "6,x,oops,1\n" +
+                "-1,x,2,0,last";
+        String expected = "x,name,y,\"z\",2bad,\"x + y\",\"max(x, z)\",\"fact(z)\"\n" +
+                "1,\"Smith, J\",2,3,a,3.0,3.0,6.0\n" +
+                " 4.5 ,\"say \"\"hi\"\"\", -0.25 ,\"7\",b,4.25,7.0,5040.0\n" +
+                "1e3,,,9,NaN,1000.0,362880.0\n" +
+                "6,x,oops,1,,6.0,1.0\n" +
+                "-1,x,2,0,last,1.0,0.0,1.0\n";
+        String[] expressions = {"x + y", "max(x, z)", "fact(z)"};
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Path file = Files.createTempFile("CsvEvaluatorTest", ".csv");
+        try {
+            Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+            CsvEvaluator csv = new CsvEvaluator(new StringMathExpressionEvaluator(), ',', 
+                    new PrintStream(errors, true), expressions);
+            for (int windowSize : new int[] {1 << 20, 64, 37}) {
+                csv.setWindowSize(windowSize);
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                long rows = csv.process(file, output);
+                String result = new String(output.toByteArray(), StandardCharsets.UTF_8);
+                if (rows != 5 || !result.equals(expected)) {
+                    throw new Exception("Unexpected output with a window of " + windowSize + 
+                            " bytes:\n" + result);
+                }
+                if (csv.getErrorCount() != 1) {
+                    throw new Exception("Unexpected errors: " + errors);
+                }
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testNonNumericFields() throws Exception {
+        //Only the expressions that read a field that is not a number are left empty
+        String input = "a,b\n1,2\nx,3\n4,\n";
+        String expected = "a,b,\"a+b\",\"b*2\"\n1,2,3.0,4.0\nx,3,,6.0\n4,,NaN,NaN\n";
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Path file = Files.createTempFile("CsvEvaluatorTest", ".csv");
+        try {
+            Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+            CsvEvaluator csv = new CsvEvaluator(new StringMathExpressionEvaluator(), ',', 
+                    new PrintStream(errors, true), "a+b", "b*2");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            csv.process(file, output);
+            String result = new String(output.toByteArray(), StandardCharsets.UTF_8);
+            if (!result.equals(expected)) {
+                throw new Exception("Unexpected output:\n" + result);
+            }
+            String message = new String(errors.toByteArray(), StandardCharsets.UTF_8);
+            if (csv.getErrorCount() != 1 || !message.startsWith("Row 2: column 1 ")) {
+                throw new Exception("Unexpected errors: " + message);
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testFieldParsingAllocation() throws Exception {
+        //Full precision numbers and fields that are not numbers are parsed without creating any
+        //objects
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean bean = 
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        Random rng = new Random(17);
+        String[] fields = new String[1000];
+        for (int i=0; i<fields.length; i++) {
+            if (i % 10 == 0) {
+                fields[i] = i % 20 == 0 ? "n/a" : "0.30000000000000004";
+            }
+            else {
+                fields[i] = String.format("%.16e", (rng.nextDouble() - 0.5) * 1e6);
+            }
+        }
+        double sum = 0;
+        for (int pass=0; pass<200; pass++) {
+            for (String field : fields) {
+                sum += NumberParser.parseField(field, 0, field.length());
+            }
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        long overhead = bean.getThreadAllocatedBytes(threadId) - before;
+        before = bean.getThreadAllocatedBytes(threadId);
+        int calls = 0;
+        for (int pass=0; pass<100; pass++) {
+            for (String field : fields) {
+                sum += NumberParser.parseField(field, 0, field.length());
+                calls++;
+            }
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before - overhead;
+        if (allocated >= calls) {
+            throw new Exception("Parsing allocated " + (double) allocated / calls + 
+                    " bytes per field");
+        }
+        if (sum == 42) {
+            //Uses the results so the calls can't be removed
+            System.out.println("Checksum " + sum);
+        }
+    }
+    
+    @Test
+    public void testNumberParsing() throws Exception {
+        Random rng = new Random(78);
+        StringBuilder sb = new StringBuilder("x\n");
+        int rows = 20000;
+        double[] values = new double[rows];
+        String[] special = {"0", "-0", "0.0", "00012", "1.", ".5", "-.5e-3", "+7", "1E22", 
+                "1e23", "123456789012345678901234", "0.000000000000000000000000001", 
+                "9007199254740993", "2.2250738585072014E-308", "4.9e-324", "1.7976931348623157e308",
+                "1e400", "Infinity", "-Infinity", "NaN", "0x1p3"};
+        for (int i=0; i<rows; i++) {
+            String text;
+            if (i < special.length) {
+                text = special[i];
+            }
+            else if (i % 3 == 0) {
+                text = Double.toString(Double.longBitsToDouble(rng.nextLong()));
+            }
+            else if (i % 3 == 1) {
+                text = Long.toString(rng.nextLong() % 100000000) + "." + 
+                        Integer.toString(rng.nextInt(1000000));
+            }
+            else {
+                text = String.format("%." + rng.nextInt(20) + "e", (rng.nextDouble() - 0.5)*1e6);
+            }
+            values[i] = Double.parseDouble(text);
+            sb.append(text).append('\n');
+        }
+        Path file = Files.createTempFile("CsvEvaluatorTest", ".csv");
+        try {
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+            CsvEvaluator csv = new CsvEvaluator(new StringMathExpressionEvaluator(), ',', 
+                    System.err, "x");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            csv.process(file, output);
+            String[] lines = new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n");
+            for (int i=0; i<rows; i++) {
+                String line = lines[i + 1];
+                double value = Double.parseDouble(line.substring(line.lastIndexOf(',') + 1));
+                if (Double.doubleToLongBits(value) != Double.doubleToLongBits(values[i])) {
+                    throw new Exception("Parsed " + line + " as " + value + " instead of " + 
+                            values[i]);
+                }
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class NumberParserTest {
+
+    @Test
+    public void testSpecialCases() throws Exception {
+        String[] numbers = {"0", "0.0", "-0", "-0.0", "+0", "00000", "0.000", "0e999999", "1", "-1", 
+                "1.", ".5", "007.250", "123456789012345678", "1234567890123456789", 
+                "12345678901234567890123456789", "9007199254740992", "9007199254740993", 
+                "9007199254740995", "1e22", "1e23", "1.7976931348623157e308", "1.7976931348623159e308", 
+                "1e309", "4.9e-324", "2.4703282292062327e-324", "2.4703282292062328e-324", 
+                "2.2250738585072011e-308", "2.2250738585072012e-308", "1e-400", "1e99999999999", 
+                "0.1", "0.2", "0.3", "3.14159265358979323846264338327950288", "1E5", "1e+5", 
+                "1e-5", "000000000000000000000000001e-20", "0.000000000000000000000000001e20", 
+                "1.00000000000000011102230246251565404236316680908203125", 
+                "1.00000000000000011102230246251565404236316680908203124", 
+                "1.00000000000000011102230246251565404236316680908203126"};
+        for (String number : numbers) {
+            check(number);
+        }
+        String[] invalid = {"", ".", "-", "+", "1e", "1e+", "1e-", ".e1", "e1", "1..2", "1e1.5", "--1", 
+                "1x"};
+        for (String number : invalid) {
+            check(number);
+        }
+    }
+    
+    @Test
+    public void testRandomDoubles() throws Exception {
+        Random random = new Random(42);
+        for (int i=0; i<200000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            check(Double.toString(value));
+            check(Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20)));
+        }
+    }
+    
+    @Test
+    public void testRandomDigitStrings() throws Exception {
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<200000; i++) {
+            sb.setLength(0);
+            if (random.nextInt(4) == 0) {
+                sb.append(random.nextBoolean() ? '-' : '+');
+            }
+            int digits = 1 + random.nextInt(random.nextBoolean() ? 8 : 30);
+            int point = random.nextInt(digits + 2) - 1;
+            for (int j=0; j<digits; j++) {
+                if (j == point) {
+                    sb.append('.');
+                }
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextBoolean()) {
+                sb.append(random.nextBoolean() ? 'e' : 'E');
+                int exponent = random.nextInt(701) - 350;
+                if (exponent >= 0 && random.nextBoolean()) {
+                    sb.append('+');
+                }
+                sb.append(exponent);
+            }
+            check(sb.toString());
+        }
+    }
+    
+    @Test
+    public void testInPlace() throws Exception {
+        String str = "max(12.5e-3,0.1)";
+        if (NumberParser.parse(str, 4, 11) != 12.5e-3 || NumberParser.parse(str, 12, 15) != 0.1) {
+            throw new Exception("Wrong value parsed from within a string");
+        }
+        double value = new StringMathExpressionEvaluator().evaluate("0.1 + 0.2");
+        if (value != 0.1 + 0.2) {
+            throw new Exception("Expected " + (0.1 + 0.2) + " but got " + value);
+        }
+    }
+    
+    @Test
+    public void testFields() throws Exception {
+        String[] fields = {" 1.5 ", "\t-2e3\t", "1.5f", "2D", "NaN", "-NaN", "Infinity", 
+                "+Infinity", "-Infinity", "0x1p3", "-0x1.8P-2", "0.30000000000000004", "abc", 
+                "1abc", "Inf", "NaNa", "0x", "0xg", "1.5ff", "", " "};
+        for (String field : fields) {
+            checkField(field);
+        }
+    }
+    
+    /**
+     * Checks that a CSV field parses to the same value as Double.parseDouble, or NaN where 
+     * Double.parseDouble rejects it
+     * @param field - the field to parse
+     * @throws Exception if the results differ
+     */
+    private void checkField(String field) throws Exception {
+        double expected;
+        try {
+            expected = Double.parseDouble(field);
+        }
+        catch (NumberFormatException ex) {
+            expected = Double.NaN;
+        }
+        String padded = "," + field + ",";
+        double value = NumberParser.parseField(padded, 1, padded.length() - 1);
+        if (Double.doubleToLongBits(value) != Double.doubleToLongBits(expected)) {
+            throw new Exception("Field \"" + field + "\" parsed as " + value + " but expected " + 
+                    expected);
+        }
+    }
+    
+    /**
+     * Checks that the result of parsing the number is bit for bit identical to that of 
+     * Double.parseDouble and that both reject the same strings
+     * @param number - the number to parse
+     * @throws Exception if the results differ
+     */
+    private void check(String number) throws Exception {
+        String padded = "(" + number + ")";
+        double expected;
+        try {
+            expected = Double.parseDouble(number);
+        }
+        catch (NumberFormatException ex) {
+            try {
+                double value = NumberParser.parse(padded, 1, padded.length() - 1);
+                throw new Exception("Expected \"" + number + "\" to be rejected but got " + value);
+            }
+            catch (NumberFormatException ex2) {
+                checkField(number);
+                return;
+            }
+        }
+        checkField(number);
+        double value = NumberParser.parse(padded, 1, padded.length() - 1);
+        if (Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(expected)) {
+            throw new Exception("\"" + number + "\" parsed as " + value + " but expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+public class OptimizerTest {
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        checkConstant("2*pi()/360", 2*Math.PI/360);
+        checkConstant("e()^2 + log2(8)", Math.E*Math.E + 3);
+        checkConstant("sin(30) + x*0", Double.NaN, true);
+        
+        //Sub-trees that throw are left for evaluation time
+        Node root = optimize("fact(-1) + 2*3");
+        if (root.op != Node.ADD || root.args[0].op != Node.FACT || root.args[1].op != Node.CONSTANT) {
+            throw new Exception("fact(-1) should not have been folded");
+        }
+    }
+    
+    @Test
+    public void testRewrites() throws Exception {
+        checkOp("x^2", Node.INTEGER_POWER);
+        //Cubes and fourth powers by multiplication may differ from Math.pow in the last binary 
+        //place so they are only rewritten when asked for
+        checkOp("x^3", Node.POWER);
+        checkOp("x^4", Node.POWER);
+        checkOp("x^3", Node.INTEGER_POWER, true);
+        checkOp("x^4", Node.INTEGER_POWER, true);
+        checkOp("x^5", Node.POWER, true);
+        checkOp("x^0.5", Node.POWER_HALF);
+        checkOp("x^1", Node.VARIABLE);
+        checkOp("x^0", Node.CONSTANT);
+        checkOp("fact(x)^0", Node.POWER);
+        //Math.pow(x, -1) and 1/x differ in the last place for some x so it must be kept
+        checkOp("x^-1", Node.POWER);
+        checkOp("x*1", Node.VARIABLE);
+        checkOp("1*x", Node.VARIABLE);
+        checkOp("x/1", Node.VARIABLE);
+        checkOp("x-0", Node.VARIABLE);
+        checkOp("x*-1", Node.NEGATE);
+        checkOp("--x", Node.VARIABLE);
+        checkOp("x/4", Node.MULTIPLY);
+        checkOp("x/3", Node.DIVIDE);
+        //x + 0 is -0 + 0 = 0 when x is -0 so it must be kept
+        checkOp("x*1+0", Node.ADD);
+        checkOp("x+-0", Node.VARIABLE);
+    }
+    
+    private static Node optimize(String expression) throws InvalidMathExpressionException {
+        return optimize(expression, false);
+    }
+    
+    private static Node optimize(String expression, boolean fastPowers) throws InvalidMathExpressionException {
+        return Optimizer.optimize(new Parser(expression, new String[] {"x"}, FunctionRegistry.BUILT_INS, 1.0, ResourceLimits.DEFAULT).parse(), fastPowers);
+    }
+    
+    private static void checkOp(String expression, int op) throws Exception {
+        checkOp(expression, op, false);
+    }
+    
+    private static void checkOp(String expression, int op, boolean fastPowers) throws Exception {
+        Node root = optimize(expression, fastPowers);
+        if (root.op != op) {
+            throw new Exception("\"" + expression + "\" optimized to op " + root.op + " instead of " + op);
+        }
+    }
+    
+    private static void checkConstant(String expression, double value) throws Exception {
+        checkConstant(expression, value, false);
+    }
+    
+    private static void checkConstant(String expression, double value, boolean variable) throws Exception {
+        Node root = optimize(expression);
+        if (variable) {
+            //Only the constant part is folded
+            if (root.op != Node.ADD || root.args[0].op != Node.CONSTANT) {
+                throw new Exception("\"" + expression + "\" was not partially folded");
+            }
+            return;
+        }
+        if (root.op != Node.CONSTANT || root.value != value) {
+            throw new Exception("\"" + expression + "\" was not folded to " + value);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 Tony Luken <tonyluken62+mathexpressionevaluator.gmail.com>
+ * 
+ * This file is part of StringMathExpressionEvaluator.
+ * 
+ * StringMathExpressionEvaluator is free software: you can redistribute it and/or modify it under the 
+ * terms of the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * StringMathExpressionEvaluator is distributed in the hope that it will be useful, but WITHOUT ANY 
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR 
+ * PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with 
+ * StringMathExpressionEvaluator. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stringMathExpressionEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+public class ParserTest {
+    private static final String[] VARIABLES = {"a", "b", "c", "d"};
+    private static final ResourceLimits UNLIMITED = ResourceLimits.DEFAULT.withMaxDepth(
+            Integer.MAX_VALUE);
+
+    @Test
+    public void testPrecedence() throws Exception {
+        checkSame("a - b - c", "(a - b) - c");
+        checkSame("a / b * c % d", "((a / b) * c) % d");
+        checkSame("a + b * c - d", "(a + (b * c)) - d");
+        checkSame("a ^ b ^ c", "a ^ (b ^ c)");
+        checkSame("-a ^ b", "-(a ^ b)");
+        checkSame("a ^ -b ^ c * d", "(a ^ (-(b ^ c))) * d");
+        checkSame("-a * -b", "(-a) * (-b)");
+        checkSame("+-+-a", "-(-a)");
+        checkSame("2 * -a ^ 2", "2 * (-(a ^ 2))");
+        checkSame("a < b < c", "(a < b) < c");
+        checkSame("a == b == c", "a == (b == c)");
+        checkSame("a != b > c + d", "a != (b > (c + d))");
+        checkSame("a >= b == c <= d", "(a >= b) == (c <= d)");
+        checkSame("max(a + b, c) ^ 2 - atan2(a, b)", "((max((a + b), c)) ^ 2) - (atan2(a, b))");
+        checkSame("sin(cos(a) + pi())", "sin((cos(a)) + (pi()))");
+    }
+    
+    @Test
+    public void testDeepExpressionsOnSmallStack() throws Exception {
+        final StringBuilder parentheses = new StringBuilder();
+        final StringBuilder negations = new StringBuilder();
+        final StringBuilder powers = new StringBuilder("a");
+        for (int i=0; i<100000; i++) {
+            parentheses.append('(');
+            negations.append("-(");
+            powers.append("^a");
+        }
+        parentheses.append('a');
+        negations.append('a');
+        for (int i=0; i<100000; i++) {
+            parentheses.append(')');
+            negations.append(')');
+        }
+        final Node[] roots = new Node[3];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    roots[0] = parse(parentheses);
+                    roots[1] = parse(negations);
+                    roots[2] = parse(powers);
+                }
+                catch (Throwable ex) {
+                    failure[0] = ex;
+                }
+            }
+        }, "small stack", 64 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw new Exception("Failed to parse deep expressions", failure[0]);
+        }
+        if (roots[0].op != Node.VARIABLE) {
+            throw new Exception("Expected redundant parentheses to be removed");
+        }
+        if (roots[1].depth != 100001 || roots[2].depth != 100001) {
+            throw new Exception("Expected depths of 100001 but got " + roots[1].depth + " and " + 
+                    roots[2].depth);
+        }
+    }
+    
+    private static Node parse(CharSequence expression) throws InvalidMathExpressionException {
+        return new Parser(expression, VARIABLES, FunctionRegistry.BUILT_INS, 1.0, UNLIMITED).parse();
+    }
+    
+    private static void checkSame(String expression, String parenthesized) throws Exception {
+        if (!same(parse(expression), parse(parenthesized))) {
+            throw new Exception("\"" + expression + "\" is not parsed as \"" + parenthesized + "\"");
+        }
+    }
+    
+    private static boolean same(Node x, Node y) {
+        if (x.op != y.op || Double.doubleToLongBits(x.value) != Double.doubleToLongBits(y.value) ||
+                x.slot != y.slot || x.function != y.function || x.args.length != y.args.length) {
+            return false;
+        }
+        for (int i=0; i<x.args.length; i++) {
+            if (!same(x.args[i], y.args[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}